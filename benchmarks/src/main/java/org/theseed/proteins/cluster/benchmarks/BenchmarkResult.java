@@ -0,0 +1,224 @@
+package org.theseed.proteins.cluster.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This object holds the measurements for one phase of one scalability benchmark configuration.  The
+ * configuration is the number of genomes, the number of roles, the gap, and the number of counting
+ * threads.  The measurements are the wall time, the peak resident set size, the peak heap usage, the
+ * garbage collection time and count, and the size of the file produced by the phase.
+ *
+ * Each result is stored as a single line of JSON in the results file.  The lines are flat objects with
+ * only numeric and string values, so they are read back with a simple pattern match.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BenchmarkResult {
+
+    // FIELDS
+    /** number of genomes */
+    private int genomes;
+    /** number of useful roles */
+    private int roles;
+    /** maximum gap between neighbors */
+    private int gap;
+    /** number of counting threads */
+    private int threads;
+    /** name of the phase */
+    private String phase;
+    /** TRUE if the phase completed successfully */
+    private boolean ok;
+    /** elapsed time, in milliseconds */
+    private long wall;
+    /** peak resident set size, in kilobytes (-1 if unknown) */
+    private long rss;
+    /** peak heap usage, in bytes */
+    private long heap;
+    /** garbage collection time, in milliseconds */
+    private long gcTime;
+    /** number of garbage collections */
+    private long gcCount;
+    /** size of the output file, in bytes */
+    private long outputSize;
+
+    /** pattern for a field in a result line */
+    private static final Pattern FIELD = Pattern.compile("\"(\\w+)\":(?:\"([^\"]*)\"|([-0-9.]+)|(true|false))");
+
+    /**
+     * Create a result for a benchmark configuration and phase, with no measurements.
+     *
+     * @param genomes	number of genomes
+     * @param roles		number of useful roles
+     * @param gap		maximum gap between neighbors
+     * @param threads	number of counting threads
+     * @param phase		name of the phase
+     */
+    public BenchmarkResult(int genomes, int roles, int gap, int threads, String phase) {
+        this.genomes = genomes;
+        this.roles = roles;
+        this.gap = gap;
+        this.threads = threads;
+        this.phase = phase;
+        this.ok = false;
+        this.wall = 0;
+        this.rss = -1;
+        this.heap = 0;
+        this.gcTime = 0;
+        this.gcCount = 0;
+        this.outputSize = 0;
+    }
+
+    /**
+     * Store the measurements from a phase runner's result line.
+     *
+     * @param line		result line written by {@link PhaseRunner}
+     */
+    public void setMeasurements(String line) {
+        String[] fields = line.split("\t");
+        this.wall = Long.parseLong(fields[1]);
+        this.rss = Long.parseLong(fields[2]);
+        this.heap = Long.parseLong(fields[3]);
+        this.gcTime = Long.parseLong(fields[4]);
+        this.gcCount = Long.parseLong(fields[5]);
+    }
+
+    /**
+     * @return a key identifying the configuration and phase of this result
+     */
+    public String getKey() {
+        return this.genomes + "/" + this.roles + "/" + this.gap + "/" + this.threads + "/" + this.phase;
+    }
+
+    /**
+     * @return a JSON string describing this result
+     */
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"genomes\":%d,\"roles\":%d,\"gap\":%d,\"threads\":%d,\"phase\":\"%s\"," +
+                "\"ok\":%s,\"wallMs\":%d,\"peakRssKb\":%d,\"peakHeapBytes\":%d,\"gcMs\":%d,\"gcCount\":%d," +
+                "\"outputBytes\":%d}", this.genomes, this.roles, this.gap, this.threads, this.phase, this.ok,
+                this.wall, this.rss, this.heap, this.gcTime, this.gcCount, this.outputSize);
+    }
+
+    /**
+     * @return a result parsed from a line of JSON
+     *
+     * @param line	JSON string produced by {@link #toJson()}
+     */
+    public static BenchmarkResult fromJson(String line) {
+        Map<String, String> fields = new HashMap<String, String>();
+        Matcher m = FIELD.matcher(line);
+        while (m.find()) {
+            String value = (m.group(2) != null ? m.group(2) : (m.group(3) != null ? m.group(3) : m.group(4)));
+            fields.put(m.group(1), value);
+        }
+        BenchmarkResult retVal;
+        try {
+            retVal = new BenchmarkResult(Integer.parseInt(fields.get("genomes")),
+                    Integer.parseInt(fields.get("roles")), Integer.parseInt(fields.get("gap")),
+                    Integer.parseInt(fields.get("threads")), fields.get("phase"));
+            retVal.ok = Boolean.parseBoolean(fields.get("ok"));
+            retVal.wall = Long.parseLong(fields.get("wallMs"));
+            retVal.rss = Long.parseLong(fields.get("peakRssKb"));
+            retVal.heap = Long.parseLong(fields.get("peakHeapBytes"));
+            retVal.gcTime = Long.parseLong(fields.get("gcMs"));
+            retVal.gcCount = Long.parseLong(fields.get("gcCount"));
+            retVal.outputSize = Long.parseLong(fields.get("outputBytes"));
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new IllegalArgumentException("Invalid benchmark result: " + line);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a map of the results in a results file, keyed by configuration and phase; if a key occurs
+     * 		   more than once, the last occurrence is kept
+     *
+     * @param inFile	results file to read
+     *
+     * @throws IOException
+     */
+    public static Map<String, BenchmarkResult> readAll(File inFile) throws IOException {
+        Map<String, BenchmarkResult> retVal = new LinkedHashMap<String, BenchmarkResult>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(inFile))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (! line.trim().isEmpty()) {
+                    BenchmarkResult result = fromJson(line);
+                    retVal.put(result.getKey(), result);
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the phase completed successfully
+     */
+    public boolean isOk() {
+        return this.ok;
+    }
+
+    /**
+     * @param ok 	TRUE if the phase completed successfully
+     */
+    public void setOk(boolean ok) {
+        this.ok = ok;
+    }
+
+    /**
+     * @return the elapsed time, in milliseconds
+     */
+    public long getWall() {
+        return this.wall;
+    }
+
+    /**
+     * @return the peak resident set size, in kilobytes (-1 if unknown)
+     */
+    public long getRss() {
+        return this.rss;
+    }
+
+    /**
+     * @return the peak heap usage, in bytes
+     */
+    public long getHeap() {
+        return this.heap;
+    }
+
+    /**
+     * @return the garbage collection time, in milliseconds
+     */
+    public long getGcTime() {
+        return this.gcTime;
+    }
+
+    /**
+     * @return the size of the output file, in bytes
+     */
+    public long getOutputSize() {
+        return this.outputSize;
+    }
+
+    /**
+     * @param outputSize 	the size of the output file, in bytes
+     */
+    public void setOutputSize(long outputSize) {
+        this.outputSize = outputSize;
+    }
+
+    @Override
+    public String toString() {
+        return this.getKey();
+    }
+
+}
@@ -0,0 +1,34 @@
+package org.theseed.proteins.cluster.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * This program runs the coupling benchmarks with the GC profiler turned on and writes the results,
+ * including the allocation rate per operation, to a JSON file so they can be tracked over releases.
+ *
+ * The first parameter is the name of the result file (default "jmh-result.json").  The second, if
+ * present, is a regular expression selecting the benchmarks to run.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String resultFile = (args.length > 0 ? args[0] : "jmh-result.json");
+        String pattern = (args.length > 1 ? args[1] : CouplingBenchmark.class.getSimpleName());
+        Options opts = new OptionsBuilder()
+                .include(pattern)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+        new Runner(opts).run();
+    }
+
+}
@@ -0,0 +1,150 @@
+package org.theseed.proteins.cluster.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theseed.counters.PairCounter;
+import org.theseed.genome.Genome;
+import org.theseed.proteins.Role;
+import org.theseed.proteins.cluster.RoleCoupleCounter;
+
+/**
+ * These are the benchmarks for the hot paths of the role-coupling counter:  counting a genome, saving
+ * and loading the coupler in both formats, and selecting the pairs above a threshold.
+ *
+ * The genomes come from {@link SyntheticGenomes} with a fixed seed.  A reference coupler is built
+ * during setup from a batch of genomes so that the save, load, and selection benchmarks run against
+ * a realistically populated pair table.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CouplingBenchmark {
+
+    /** number of useful roles */
+    @Param({ "500", "5000" })
+    public int roles;
+
+    /** maximum gap between neighbors */
+    @Param({ "500", "5000" })
+    public int gap;
+
+    /** number of contigs per genome */
+    @Param({ "10" })
+    public int contigs;
+
+    /** features per kilobase */
+    @Param({ "1.0" })
+    public double density;
+
+    /** number of genomes in the reference coupler */
+    @Param({ "50" })
+    public int genomeCount;
+
+    /** minimum togetherness for pair selection */
+    @Param({ "0.2" })
+    public double minTogether;
+
+    /** minimum pair count for pair selection */
+    @Param({ "10" })
+    public int minCount;
+
+    /** genomes for counting */
+    private List<Genome> genomes;
+    /** index of the next genome to count */
+    private int nextGenome;
+    /** counter for the counting benchmark */
+    private RoleCoupleCounter counter;
+    /** populated reference coupler */
+    private RoleCoupleCounter reference;
+    /** temporary directory for saved couplers */
+    private File tempDir;
+    /** saved text coupler */
+    private File textFile;
+    /** saved binary coupler */
+    private File binaryFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        SyntheticGenomes generator = new SyntheticGenomes(20200819L, this.roles)
+                .setContigs(this.contigs).setDensity(this.density);
+        this.genomes = generator.genomes(this.genomeCount);
+        this.nextGenome = 0;
+        this.counter = new RoleCoupleCounter(generator.getRoleMap(), this.gap);
+        this.reference = new RoleCoupleCounter(generator.getRoleMap(), this.gap);
+        for (Genome genome : this.genomes)
+            this.reference.countCouplings(genome);
+        this.tempDir = Files.createTempDirectory("coupling").toFile();
+        this.textFile = new File(this.tempDir, "reference.tbl");
+        this.binaryFile = new File(this.tempDir, "reference.rcb");
+        this.reference.save(this.textFile);
+        this.reference.save(this.binaryFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file : this.tempDir.listFiles())
+            file.delete();
+        this.tempDir.delete();
+    }
+
+    @Benchmark
+    public RoleCoupleCounter countCouplings() {
+        Genome genome = this.genomes.get(this.nextGenome);
+        this.nextGenome = (this.nextGenome + 1) % this.genomes.size();
+        this.counter.countCouplings(genome);
+        return this.counter;
+    }
+
+    @Benchmark
+    public File saveText() throws IOException {
+        File outFile = new File(this.tempDir, "out.tbl");
+        this.reference.save(outFile);
+        return outFile;
+    }
+
+    @Benchmark
+    public File saveBinary() throws IOException {
+        File outFile = new File(this.tempDir, "out.rcb");
+        this.reference.save(outFile);
+        return outFile;
+    }
+
+    @Benchmark
+    public RoleCoupleCounter loadText() throws IOException {
+        return RoleCoupleCounter.load(this.textFile);
+    }
+
+    @Benchmark
+    public RoleCoupleCounter loadBinary() throws IOException {
+        return RoleCoupleCounter.load(this.binaryFile);
+    }
+
+    @Benchmark
+    public List<PairCounter<Role>.Count> getPairCounts() {
+        return this.reference.getPairCounts(this.minTogether, this.minCount);
+    }
+
+}
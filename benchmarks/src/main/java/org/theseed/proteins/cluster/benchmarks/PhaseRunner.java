@@ -0,0 +1,75 @@
+package org.theseed.proteins.cluster.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import org.theseed.proteins.cluster.App;
+
+/**
+ * This program runs a single phase of the scalability benchmark in its own virtual machine, so that the
+ * memory and garbage collection figures describe only that phase.  The parameters are passed unchanged to
+ * the role-coupling {@link App}.  When the command finishes, a single line is written to the standard
+ * output, beginning with {@link #MARKER} and containing the following tab-delimited fields.
+ *
+ * 	wall		elapsed time of the command, in milliseconds
+ * 	rss			peak resident set size of the process, in kilobytes (-1 if not available)
+ * 	heap		sum of the peak usage of the heap memory pools, in bytes
+ * 	gcTime		total time spent in garbage collection, in milliseconds
+ * 	gcCount		total number of garbage collections
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PhaseRunner {
+
+    /** prefix for the result line */
+    public static final String MARKER = "#PHASE";
+
+    public static void main(String[] args) {
+        long start = System.currentTimeMillis();
+        App.main(args);
+        long wall = System.currentTimeMillis() - start;
+        long heap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                heap += pool.getPeakUsage().getUsed();
+        }
+        long gcTime = 0;
+        long gcCount = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcTime += Math.max(gc.getCollectionTime(), 0);
+            gcCount += Math.max(gc.getCollectionCount(), 0);
+        }
+        System.out.println(MARKER + "\t" + wall + "\t" + peakRss() + "\t" + heap + "\t" + gcTime + "\t" + gcCount);
+    }
+
+    /**
+     * @return the peak resident set size of this process in kilobytes, or -1 if it is not available
+     *
+     * The figure is the high-water mark from the Linux process status file.
+     */
+    private static long peakRss() {
+        long retVal = -1;
+        File statusFile = new File("/proc/self/status");
+        if (statusFile.canRead()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(statusFile))) {
+                String line = reader.readLine();
+                while (line != null && retVal < 0) {
+                    if (line.startsWith("VmHWM:"))
+                        retVal = Long.parseLong(line.substring(6).replace("kB", "").trim());
+                    line = reader.readLine();
+                }
+            } catch (IOException | NumberFormatException e) {
+                retVal = -1;
+            }
+        }
+        return retVal;
+    }
+
+}
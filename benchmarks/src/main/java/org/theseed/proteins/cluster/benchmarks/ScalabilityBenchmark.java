@@ -0,0 +1,481 @@
+package org.theseed.proteins.cluster.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * This program measures how the role-coupling command scales.  For each combination of genome count,
+ * role count, gap, and thread count, it runs the full cycle of commands against a directory of synthetic
+ * genomes, each command in its own virtual machine using {@link PhaseRunner}.  The phases are
+ *
+ * 	create		count the genomes and save a new text coupler
+ * 	convert		load the text coupler and save it in binary form
+ * 	load		load the binary coupler, check the genome directory against its ledger, and save it again
+ * 	compare		compare the text coupler to the binary coupler
+ *
+ * The synthetic genome directories are generated with {@link SyntheticGenomes} from a fixed seed, so they
+ * are the same on every machine.  A directory is kept in the work directory once it is complete, and is
+ * reused by later runs with the same settings.  Note that the directory for 50000 genomes needs tens of
+ * gigabytes of disk.
+ *
+ * The results are appended to the results file, one line of JSON per phase, containing the configuration,
+ * the wall time, the peak resident set size, the peak heap usage, the garbage collection time and count,
+ * and the size of the file produced.  If a baseline file is specified, each result is compared to the
+ * baseline result with the same configuration and phase.  A phase that is slower or uses more memory than
+ * the baseline by more than the tolerance, or that fails when the baseline succeeded, is reported as a
+ * regression, and the program exits with a status of 1.
+ *
+ * The command-line options are as follows.
+ *
+ * -v			write progress messages to STDERR
+ *
+ * --work		work directory for the genome directories and coupler files (default "scalability")
+ * --sizes		comma-delimited list of genome counts (default "1000,10000,50000")
+ * --roles		comma-delimited list of role counts (default "1000")
+ * --gaps		comma-delimited list of gaps (default "500")
+ * --threads	comma-delimited list of counting thread counts (default 1 and the number of processors)
+ * --contigs	number of contigs per synthetic genome (default 10)
+ * --features	number of features per synthetic contig (default 400)
+ * --seed		random number seed for the synthetic genomes (default 20200819)
+ * --jvm		space-delimited options for the virtual machines that run the phases (default "-Xmx8g")
+ * --results	file to which the results are appended (default "scalability.jsonl")
+ * --baseline	file of baseline results to compare against
+ * --update		replace the baseline file with the results of this run
+ * --tolerance	fraction by which a measurement may exceed the baseline before it is flagged (default 0.25)
+ * --minDelta	minimum wall-time increase in milliseconds that is flagged (default 1000)
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ScalabilityBenchmark {
+
+    // FIELDS
+    /** genome counts */
+    private int[] sizes;
+    /** role counts */
+    private int[] roleCounts;
+    /** gaps */
+    private int[] gaps;
+    /** thread counts */
+    private int[] threadCounts;
+    /** results of this run */
+    private List<BenchmarkResult> results;
+
+    /** names of the phases, in execution order */
+    public static final List<String> PHASES = Arrays.asList("create", "convert", "load", "compare");
+
+    /** help option */
+    @Option(name="-h", aliases={"--help"}, help=true)
+    private boolean help;
+
+    /** TRUE if we want progress messages */
+    @Option(name="-v", aliases={"--verbose", "--debug"}, usage="display progress on STDERR")
+    private boolean debug;
+
+    /** work directory */
+    @Option(name="--work", metaVar="scalability", usage="work directory for genomes and couplers")
+    private File workDir;
+
+    /** genome count list */
+    @Option(name="--sizes", metaVar="1000,10000,50000", usage="comma-delimited list of genome counts")
+    private String sizeList;
+
+    /** role count list */
+    @Option(name="--roles", metaVar="1000", usage="comma-delimited list of role counts")
+    private String roleList;
+
+    /** gap list */
+    @Option(name="--gaps", metaVar="500", usage="comma-delimited list of gaps")
+    private String gapList;
+
+    /** thread count list */
+    @Option(name="--threads", metaVar="1,8", usage="comma-delimited list of counting thread counts")
+    private String threadList;
+
+    /** contigs per genome */
+    @Option(name="--contigs", metaVar="10", usage="number of contigs per synthetic genome")
+    private int contigs;
+
+    /** features per contig */
+    @Option(name="--features", metaVar="400", usage="number of features per synthetic contig")
+    private int features;
+
+    /** random number seed */
+    @Option(name="--seed", metaVar="20200819", usage="random number seed for the synthetic genomes")
+    private long seed;
+
+    /** virtual machine options */
+    @Option(name="--jvm", metaVar="-Xmx8g", usage="options for the virtual machines that run the phases")
+    private String jvmOptions;
+
+    /** results file */
+    @Option(name="--results", metaVar="scalability.jsonl", usage="file to which the results are appended")
+    private File resultFile;
+
+    /** baseline file */
+    @Option(name="--baseline", metaVar="baseline.jsonl", usage="file of baseline results")
+    private File baselineFile;
+
+    /** baseline update flag */
+    @Option(name="--update", depends={"--baseline"}, usage="replace the baseline with the results of this run")
+    private boolean updateBaseline;
+
+    /** regression tolerance */
+    @Option(name="--tolerance", metaVar="0.25", usage="fraction by which a measurement may exceed the baseline")
+    private double tolerance;
+
+    /** minimum flagged wall-time increase */
+    @Option(name="--minDelta", metaVar="1000", usage="minimum wall-time increase (ms) to flag")
+    private long minDelta;
+
+    public static void main(String[] args) {
+        ScalabilityBenchmark runObject = new ScalabilityBenchmark();
+        int status = 2;
+        if (runObject.parseCommand(args))
+            status = runObject.run();
+        System.exit(status);
+    }
+
+    /**
+     * Parse the command-line options.
+     *
+     * @param args	command-line parameters
+     *
+     * @return TRUE if the parameters are valid, else FALSE
+     */
+    public boolean parseCommand(String[] args) {
+        boolean retVal = false;
+        // Set the defaults.
+        this.debug = false;
+        this.workDir = new File("scalability");
+        this.sizeList = "1000,10000,50000";
+        this.roleList = "1000";
+        this.gapList = "500";
+        this.threadList = "1," + Runtime.getRuntime().availableProcessors();
+        this.contigs = 10;
+        this.features = 400;
+        this.seed = 20200819L;
+        this.jvmOptions = "-Xmx8g";
+        this.resultFile = new File("scalability.jsonl");
+        this.baselineFile = null;
+        this.updateBaseline = false;
+        this.tolerance = 0.25;
+        this.minDelta = 1000;
+        // Parse the command line.
+        CmdLineParser parser = new CmdLineParser(this);
+        try {
+            parser.parseArgument(args);
+            if (this.help) {
+                parser.printUsage(System.err);
+            } else {
+                this.sizes = parseList(this.sizeList, 1);
+                this.roleCounts = parseList(this.roleList, 1);
+                this.gaps = parseList(this.gapList, 0);
+                this.threadCounts = parseList(this.threadList, 1);
+                if (this.contigs < 1 || this.features < 1) {
+                    throw new IllegalArgumentException("Contig and feature counts must be positive.");
+                }
+                if (this.tolerance < 0) {
+                    throw new IllegalArgumentException("Tolerance cannot be negative.");
+                }
+                retVal = true;
+            }
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            // For parameter errors, we display the command usage.
+            parser.printUsage(System.err);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the distinct numbers in a comma-delimited list, in ascending order
+     *
+     * @param list		comma-delimited list of numbers
+     * @param min		minimum acceptable value
+     */
+    private static int[] parseList(String list, int min) {
+        TreeSet<Integer> values = new TreeSet<Integer>();
+        for (String item : list.split(",")) {
+            try {
+                values.add(Integer.valueOf(item.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number \"" + item + "\" in list \"" + list + "\".");
+            }
+        }
+        if (values.first() < min)
+            throw new IllegalArgumentException("Values in list \"" + list + "\" must be at least " + min + ".");
+        int[] retVal = new int[values.size()];
+        int i = 0;
+        for (int value : values)
+            retVal[i++] = value;
+        return retVal;
+    }
+
+    /**
+     * Run the benchmarks.
+     *
+     * @return 0 if the run succeeded with no regressions, 1 if there were regressions, and 2 for an error
+     */
+    public int run() {
+        int retVal = 2;
+        this.results = new ArrayList<BenchmarkResult>();
+        try {
+            Files.createDirectories(this.workDir.toPath());
+            for (int roles : this.roleCounts) {
+                File roleFile = new File(this.workDir, "roles-" + roles + ".tbl");
+                for (int size : this.sizes) {
+                    File genomeDir = this.genomeDir(size, roles, roleFile);
+                    for (int gap : this.gaps) {
+                        for (int threads : this.threadCounts)
+                            this.runCycle(size, roles, gap, threads, roleFile, genomeDir);
+                    }
+                }
+            }
+            this.printSummary();
+            retVal = 0;
+            if (this.baselineFile != null) {
+                if (this.updateBaseline) {
+                    System.err.println("Writing new baseline to " + this.baselineFile + ".");
+                    try (PrintWriter writer = new PrintWriter(this.baselineFile)) {
+                        for (BenchmarkResult result : this.results)
+                            writer.println(result.toJson());
+                    }
+                } else if (! this.baselineFile.exists()) {
+                    System.err.println("Baseline file " + this.baselineFile + " not found.  No regression check made.");
+                } else if (this.checkBaseline() > 0) {
+                    retVal = 1;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error running benchmarks: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.err.println("Benchmarks interrupted.");
+            Thread.currentThread().interrupt();
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the synthetic genome directory for a genome count and role count, generating it if necessary
+     *
+     * A marker file is written when the directory is complete, so that a directory left partial by an
+     * interrupted run is regenerated.  The role file is always rewritten, since it is small.
+     *
+     * @param size		number of genomes
+     * @param roles		number of roles
+     * @param roleFile	role file to write
+     *
+     * @throws IOException
+     */
+    private File genomeDir(int size, int roles, File roleFile) throws IOException {
+        String name = String.format("genomes-%d-%d-%dx%d-%d", size, roles, this.contigs, this.features, this.seed);
+        File retVal = new File(this.workDir, name);
+        File marker = new File(this.workDir, name + ".done");
+        SyntheticGenomes generator = new SyntheticGenomes(this.seed, roles).setContigs(this.contigs)
+                .setFeaturesPerContig(this.features);
+        generator.writeRoles(roleFile);
+        if (marker.exists()) {
+            if (debug) System.err.println("Using existing genome directory " + retVal + ".");
+        } else {
+            System.err.println("Generating " + size + " synthetic genomes in " + retVal + ".");
+            long start = System.currentTimeMillis();
+            deleteTree(retVal);
+            generator.writeGenomes(retVal, size);
+            Files.createFile(marker.toPath());
+            if (debug) System.err.println("Genomes generated in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return retVal;
+    }
+
+    /**
+     * Run the full cycle of phases for one configuration and record the results.  If a phase fails, the
+     * phases that depend on it are recorded as failed without being run.
+     *
+     * @param size			number of genomes
+     * @param roles			number of roles
+     * @param gap			maximum gap between neighbors
+     * @param threads		number of counting threads
+     * @param roleFile		role file
+     * @param genomeDir		synthetic genome directory
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void runCycle(int size, int roles, int gap, int threads, File roleFile, File genomeDir)
+            throws IOException, InterruptedException {
+        File runDir = new File(this.workDir, String.format("run-%d-%d-%d-%d", size, roles, gap, threads));
+        deleteTree(runDir);
+        Files.createDirectories(runDir.toPath());
+        File textFile = new File(runDir, "coupler.tbl");
+        File binaryFile = new File(runDir, "coupler.rcb");
+        File compareFile = new File(runDir, "compare.tsv");
+        System.err.println("Running " + size + " genomes, " + roles + " roles, gap " + gap + ", " + threads +
+                " threads.");
+        boolean ok = true;
+        for (String phase : PHASES) {
+            BenchmarkResult result = new BenchmarkResult(size, roles, gap, threads, phase);
+            if (ok) {
+                List<String> args = new ArrayList<String>();
+                File outFile;
+                switch (phase) {
+                case "create" :
+                    args.addAll(Arrays.asList("--create", "-R", roleFile.getPath(), "-g", Integer.toString(gap),
+                            "--threads", Integer.toString(threads), "--output", new File(runDir, "create.tsv").getPath(),
+                            textFile.getPath(), genomeDir.getPath()));
+                    outFile = textFile;
+                    break;
+                case "convert" :
+                    args.addAll(Arrays.asList("convert", "--binary", textFile.getPath(), binaryFile.getPath()));
+                    outFile = binaryFile;
+                    break;
+                case "load" :
+                    args.addAll(Arrays.asList("--threads", Integer.toString(threads), "--output",
+                            new File(runDir, "load.tsv").getPath(), binaryFile.getPath(), genomeDir.getPath()));
+                    outFile = binaryFile;
+                    break;
+                default :
+                    args.addAll(Arrays.asList("--compare", binaryFile.getPath(), "--output", compareFile.getPath(),
+                            textFile.getPath()));
+                    outFile = compareFile;
+                }
+                // A new output file is removed first, so that a phase that fails to write it is detected.
+                if (! phase.equals("load"))
+                    Files.deleteIfExists(outFile.toPath());
+                this.runPhase(result, args, new File(runDir, phase + ".log"));
+                ok = result.isOk() && outFile.length() > 0;
+                result.setOk(ok);
+                result.setOutputSize(outFile.length());
+                if (debug) System.err.println(result.toJson());
+            }
+            this.results.add(result);
+            try (PrintWriter writer = new PrintWriter(new FileWriter(this.resultFile, true))) {
+                writer.println(result.toJson());
+            }
+        }
+    }
+
+    /**
+     * Run a phase in its own virtual machine.  The error output of the phase is written to a log file.
+     *
+     * @param result	result object to receive the measurements
+     * @param args		parameters for the role-coupling command
+     * @param logFile	file to receive the error output
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void runPhase(BenchmarkResult result, List<String> args, File logFile)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        for (String option : this.jvmOptions.trim().split("\\s+")) {
+            if (! option.isEmpty())
+                command.add(option);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(PhaseRunner.class.getName());
+        command.addAll(args);
+        ProcessBuilder builder = new ProcessBuilder(command).redirectError(logFile);
+        Process process = builder.start();
+        String marker = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(PhaseRunner.MARKER))
+                    marker = line;
+            }
+        }
+        int status = process.waitFor();
+        if (marker != null && status == 0) {
+            result.setMeasurements(marker);
+            result.setOk(true);
+        } else {
+            System.err.println("Phase " + result + " failed.  See " + logFile + ".");
+        }
+    }
+
+    /**
+     * Write a table of the results to the standard output.
+     */
+    private void printSummary() {
+        System.out.format("%-28s %4s %10s %10s %10s %8s %12s%n", "configuration", "ok", "wall_ms", "rss_kb",
+                "heap_kb", "gc_ms", "output_bytes");
+        for (BenchmarkResult result : this.results)
+            System.out.format("%-28s %4s %10d %10d %10d %8d %12d%n", result.getKey(), (result.isOk() ? "yes" : "no"),
+                    result.getWall(), result.getRss(), result.getHeap() / 1024, result.getGcTime(),
+                    result.getOutputSize());
+    }
+
+    /**
+     * Compare the results of this run to the baseline and report the regressions.
+     *
+     * @return the number of regressions found
+     *
+     * @throws IOException
+     */
+    private int checkBaseline() throws IOException {
+        Map<String, BenchmarkResult> baseline = BenchmarkResult.readAll(this.baselineFile);
+        int retVal = 0;
+        int checked = 0;
+        for (BenchmarkResult result : this.results) {
+            BenchmarkResult base = baseline.get(result.getKey());
+            if (base != null && base.isOk()) {
+                checked++;
+                double limit = 1.0 + this.tolerance;
+                if (! result.isOk()) {
+                    System.err.println("REGRESSION " + result + ": phase failed.");
+                    retVal++;
+                } else if (result.getWall() > base.getWall() * limit && result.getWall() - base.getWall() >= this.minDelta) {
+                    System.err.format("REGRESSION %s: wall time %d ms, baseline %d ms.%n", result, result.getWall(),
+                            base.getWall());
+                    retVal++;
+                } else if (base.getRss() > 0 && result.getRss() > base.getRss() * limit) {
+                    System.err.format("REGRESSION %s: peak RSS %d kB, baseline %d kB.%n", result, result.getRss(),
+                            base.getRss());
+                    retVal++;
+                }
+            }
+        }
+        System.err.println(checked + " results checked against " + this.baselineFile + ", " + retVal +
+                " regressions found.");
+        return retVal;
+    }
+
+    /**
+     * Delete a directory and everything in it.
+     *
+     * @param dir	directory to delete
+     *
+     * @throws IOException
+     */
+    private static void deleteTree(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory())
+                    deleteTree(file);
+                else
+                    Files.delete(file.toPath());
+            }
+        }
+        Files.deleteIfExists(dir.toPath());
+    }
+
+}
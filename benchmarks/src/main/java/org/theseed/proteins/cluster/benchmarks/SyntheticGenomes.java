@@ -0,0 +1,223 @@
+package org.theseed.proteins.cluster.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.theseed.genome.Contig;
+import org.theseed.genome.Feature;
+import org.theseed.genome.Genome;
+import org.theseed.proteins.Role;
+import org.theseed.proteins.RoleMap;
+
+/**
+ * This class generates reproducible synthetic genomes for benchmarking.  All the randomness comes
+ * from a seeded generator, so the same settings always produce the same genomes.
+ *
+ * The role set consists of generated role names.  Each contig is filled with features whose start
+ * positions are spaced according to the feature density, with some overlap between neighbors.  A
+ * fixed fraction of the features have a useful role (occasionally two); the rest are hypothetical.
+ * Useful roles tend to come in operon-like runs of consecutive role indices, so that some pairs
+ * are strongly coupled, as in real genomes.
+ *
+ * The genomes can also be written to a directory of GTO files, along with a role file, so that the
+ * whole command-line pipeline can be run against them.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SyntheticGenomes {
+
+    // FIELDS
+    /** random number generator */
+    private Random rand;
+    /** number of contigs per genome */
+    private int contigs;
+    /** number of features per contig */
+    private int featuresPerContig;
+    /** features per kilobase */
+    private double density;
+    /** fraction of features with useful roles */
+    private double usefulFraction;
+    /** role map */
+    private RoleMap roleMap;
+    /** list of roles, for random selection */
+    private List<Role> roles;
+    /** number of genomes generated */
+    private int genomeCount;
+    /** index of the next role in the current operon */
+    private int operonRole;
+    /** number of roles left in the current operon */
+    private int operonLeft;
+
+    /**
+     * Construct a synthetic genome generator.
+     *
+     * @param seed		random number seed
+     * @param roleCount	number of useful roles
+     */
+    public SyntheticGenomes(long seed, int roleCount) {
+        this.rand = new Random(seed);
+        this.contigs = 10;
+        this.featuresPerContig = 400;
+        this.density = 1.0;
+        this.usefulFraction = 0.6;
+        this.genomeCount = 0;
+        this.operonLeft = 0;
+        this.roleMap = new RoleMap();
+        String[] names = new String[roleCount];
+        for (int i = 0; i < roleCount; i++)
+            names[i] = "Synthetic protein family " + i;
+        this.roleMap.register(names);
+        this.roles = new ArrayList<Role>(this.roleMap.objectValues());
+    }
+
+    /**
+     * @return the role map containing the useful roles
+     */
+    public RoleMap getRoleMap() {
+        return this.roleMap;
+    }
+
+    /**
+     * Specify the number of contigs per genome.
+     *
+     * @param contigs	the contig count to set
+     */
+    public SyntheticGenomes setContigs(int contigs) {
+        this.contigs = contigs;
+        return this;
+    }
+
+    /**
+     * Specify the number of features per contig.
+     *
+     * @param featuresPerContig	the feature count to set
+     */
+    public SyntheticGenomes setFeaturesPerContig(int featuresPerContig) {
+        this.featuresPerContig = featuresPerContig;
+        return this;
+    }
+
+    /**
+     * Specify the feature density.
+     *
+     * @param density	the number of features per kilobase
+     */
+    public SyntheticGenomes setDensity(double density) {
+        this.density = density;
+        return this;
+    }
+
+    /**
+     * Specify the fraction of features with useful roles.
+     *
+     * @param usefulFraction	the fraction to set
+     */
+    public SyntheticGenomes setUsefulFraction(double usefulFraction) {
+        this.usefulFraction = usefulFraction;
+        return this;
+    }
+
+    /**
+     * @return the next synthetic genome
+     */
+    public Genome next() {
+        this.genomeCount++;
+        String genomeId = "900" + this.genomeCount + ".1";
+        Genome retVal = new Genome(genomeId, "Synthetic genome " + this.genomeCount, "Bacteria", 11);
+        int spacing = (int) Math.max(1, 1000 / this.density);
+        int fid = 1;
+        for (int c = 1; c <= this.contigs; c++) {
+            String contigId = genomeId + ".con." + c;
+            retVal.addContig(new Contig(contigId, "", 11));
+            int pos = 1;
+            for (int f = 0; f < this.featuresPerContig; f++) {
+                int len = 300 + this.rand.nextInt(1200);
+                retVal.addFeature(new Feature("fig|" + genomeId + ".peg." + fid, this.function(), contigId,
+                        (this.rand.nextBoolean() ? "+" : "-"), pos, pos + len - 1));
+                fid++;
+                pos += spacing / 2 + this.rand.nextInt(spacing);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a random functional assignment
+     */
+    public String function() {
+        String retVal;
+        if (this.rand.nextDouble() >= this.usefulFraction) {
+            retVal = "hypothetical protein";
+        } else {
+            retVal = this.randomRole();
+            if (this.rand.nextInt(20) == 0)
+                retVal += " / " + this.randomRole();
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the name of a random useful role, continuing the current operon if there is one
+     */
+    private String randomRole() {
+        if (this.operonLeft <= 0) {
+            this.operonRole = this.rand.nextInt(this.roles.size());
+            this.operonLeft = 1 + this.rand.nextInt(5);
+        }
+        Role retVal = this.roles.get(this.operonRole % this.roles.size());
+        this.operonRole++;
+        this.operonLeft--;
+        return retVal.getName();
+    }
+
+    /**
+     * @return a list of synthetic genomes
+     *
+     * @param count		number of genomes to generate
+     */
+    public List<Genome> genomes(int count) {
+        List<Genome> retVal = new ArrayList<Genome>(count);
+        for (int i = 0; i < count; i++)
+            retVal.add(this.next());
+        return retVal;
+    }
+
+    /**
+     * Write a role file for the useful roles.  Each record contains a role ID and a role name, separated
+     * by a tab.
+     *
+     * @param roleFile	file to receive the roles
+     *
+     * @throws IOException
+     */
+    public void writeRoles(File roleFile) throws IOException {
+        try (PrintWriter writer = new PrintWriter(roleFile)) {
+            for (Role role : this.roles)
+                writer.println(role.getId() + "\t" + role.getName());
+        }
+    }
+
+    /**
+     * Write synthetic genomes to a directory of GTO files.  Each file is named from the genome ID, so the
+     * coupler's ledger sees the same IDs as the genomes themselves.
+     *
+     * @param genomeDir		directory to receive the genomes
+     * @param count			number of genomes to write
+     *
+     * @throws IOException
+     */
+    public void writeGenomes(File genomeDir, int count) throws IOException {
+        Files.createDirectories(genomeDir.toPath());
+        for (int i = 0; i < count; i++) {
+            Genome genome = this.next();
+            genome.save(new File(genomeDir, genome.getId() + ".gto"));
+        }
+    }
+
+}
@@ -1,15 +1,43 @@
 package org.theseed.proteins.cluster;
 
+import java.util.Arrays;
+
 /**
  * Process genomes to find functionally-coupled roles.
  *
+ * The first parameter can be a command name.  If it is not, the role-coupling processor is run.
+ *
+ * convert		convert a coupler file between the text and binary formats
+ * merge		merge partial coupler files built from disjoint sets of genomes
+ * serve		answer coupling queries over HTTP from a resident coupler
+ *
  */
 public class App
 {
     public static void main( String[] args )
     {
-        RoleCouplingProcessor runObject = new RoleCouplingProcessor();
-        boolean ok = runObject.parseCommand(args);
+        ICommand runObject;
+        String[] actualArgs = args;
+        String command = (args.length > 0 ? args[0] : "");
+        switch (command) {
+        case "convert" :
+            runObject = new CouplerConvertProcessor();
+            break;
+        case "merge" :
+            runObject = new CouplerMergeProcessor();
+            break;
+        case "serve" :
+            runObject = new CouplerServeProcessor();
+            break;
+        default :
+            runObject = null;
+        }
+        if (runObject == null) {
+            runObject = new RoleCouplingProcessor();
+        } else {
+            actualArgs = Arrays.copyOfRange(args, 1, args.length);
+        }
+        boolean ok = runObject.parseCommand(actualArgs);
         if (ok) {
             runObject.run();
         }
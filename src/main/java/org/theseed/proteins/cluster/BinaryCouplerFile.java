@@ -0,0 +1,465 @@
+/**
+ *
+ */
+package org.theseed.proteins.cluster;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.theseed.proteins.Role;
+
+/**
+ * This class manages the binary format for a role-coupling counter.  The binary format is much faster
+ * to load than the text format, and its pair table can be searched directly on disk.
+ *
+ * The file begins with a fixed-length header containing the magic number, the format version,
+ * the gap, the number of roles, the number of pairs, the byte offset of the pair table, and (starting
+ * with version 2) the byte offset of the genome ledger.  The
+ * role dictionary follows, sorted by role ID.  Each role entry contains the occurrence count, the
+ * role ID, and the role name; each string is a byte length followed by UTF-8 bytes.  The pair table
+ * consists of fixed-width records, each containing the dictionary index of the first role, the
+ * dictionary index of the second role, and the pair count.  The first index is never greater than
+ * the second, and the records are sorted by first index and then second index.  Because the
+ * dictionary is sorted by ID, this is also the order of the role ID pairs.  The genome ledger follows
+ * the pair table.  It consists of an entry count followed by a genome ID and a content hash for each
+ * genome, and then by the sequence number of the last contribution log commit reflected in the counts
+ * (0 if there is none).  Older files end after the last genome; they are treated as having a sequence
+ * number of 0.
+ *
+ * An open instance of this class provides read-only access to the dictionary and the pair table.
+ * The dictionary is mapped as well, and role IDs and names are decoded from it only when requested.
+ * Every section of the file is mapped when it is opened, and a mapping stays valid after its channel
+ * is closed, so the accessors keep working after {@link #close()}.
+ * The pair table is memory-mapped in segments, so it can be larger than the 2-gigabyte limit on a
+ * single mapping.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BinaryCouplerFile implements Closeable {
+
+    // FIELDS
+    /** channel for the open file */
+    private FileChannel channel;
+    /** format version of the file */
+    private int version;
+    /** gap used to build the coupler */
+    private int gap;
+    /** mapped role dictionary */
+    private ByteBuffer dictionary;
+    /** positions of the role entries in the dictionary, in dictionary order */
+    private int[] entryPositions;
+    /** number of pair records */
+    private long pairCount;
+    /** mapped segments of the pair table */
+    private MappedByteBuffer[] segments;
+    /** mapped genome ledger, or NULL if there is none */
+    private ByteBuffer ledger;
+
+    /** magic number identifying a binary coupler file */
+    public static final int MAGIC = 0x52435042;
+    /** current format version */
+    public static final int VERSION = 2;
+    /** file name suffix for binary coupler files */
+    public static final String SUFFIX = ".rcb";
+    /** length of the fixed header, in bytes */
+    public static final int HEADER_LEN = 40;
+    /** length of the fixed header in version 1 files, in bytes */
+    public static final int V1_HEADER_LEN = 32;
+    /** length of a pair record, in bytes */
+    public static final int RECORD_LEN = 12;
+    /** number of pair records in a mapped segment */
+    public static final int SEGMENT_RECORDS = 1 << 26;
+
+    /**
+     * Open a binary coupler file for reading.
+     *
+     * @param inFile	file to open
+     *
+     * @throws IOException
+     */
+    public BinaryCouplerFile(File inFile) throws IOException {
+        this.channel = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = this.channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(HEADER_LEN, this.channel.size()));
+            if (header.getInt() != MAGIC)
+                throw new IOException(inFile + " is not a binary coupler file.");
+            this.version = header.getInt();
+            if (this.version < 1 || this.version > VERSION)
+                throw new IOException(inFile + " has unsupported binary coupler version " + this.version + ".");
+            this.gap = header.getInt();
+            int roleTotal = header.getInt();
+            this.pairCount = header.getLong();
+            long pairOffset = header.getLong();
+            int headerLen = V1_HEADER_LEN;
+            long ledgerOffset = 0;
+            if (this.version >= 2) {
+                ledgerOffset = header.getLong();
+                headerLen = HEADER_LEN;
+            }
+            // Locate the entries in the role dictionary.  The strings are only decoded when they are needed.
+            ByteBuffer dict = this.channel.map(FileChannel.MapMode.READ_ONLY, headerLen, pairOffset - headerLen);
+            this.dictionary = dict;
+            this.entryPositions = new int[roleTotal];
+            int pos = 0;
+            for (int i = 0; i < roleTotal; i++) {
+                this.entryPositions[i] = pos;
+                pos = skipString(dict, skipString(dict, pos + 4));
+            }
+            // Map the pair table.
+            int segCount = (int) ((this.pairCount + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+            this.segments = new MappedByteBuffer[segCount];
+            for (int i = 0; i < segCount; i++) {
+                long first = (long) i * SEGMENT_RECORDS;
+                long records = Math.min(SEGMENT_RECORDS, this.pairCount - first);
+                this.segments[i] = this.channel.map(FileChannel.MapMode.READ_ONLY,
+                        pairOffset + first * RECORD_LEN, records * RECORD_LEN);
+            }
+            // Map the genome ledger.
+            this.ledger = null;
+            if (ledgerOffset > 0)
+                this.ledger = this.channel.map(FileChannel.MapMode.READ_ONLY, ledgerOffset,
+                        this.channel.size() - ledgerOffset);
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a string read from a buffer
+     *
+     * @param buffer	source buffer, positioned at the string's length
+     */
+    private static String readString(ByteBuffer buffer) {
+        int len = buffer.getInt();
+        byte[] bytes = new byte[len];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the position following a string in a buffer
+     *
+     * @param buffer	source buffer
+     * @param pos		position of the string's length
+     */
+    private static int skipString(ByteBuffer buffer, int pos) {
+        return pos + 4 + buffer.getInt(pos);
+    }
+
+    /**
+     * @return a string decoded from the role dictionary
+     *
+     * @param pos	position of the string's length in the dictionary
+     */
+    private String dictionaryString(int pos) {
+        ByteBuffer buffer = this.dictionary.duplicate();
+        buffer.position(pos);
+        return readString(buffer);
+    }
+
+    /**
+     * @return TRUE if the specified file is a binary coupler file
+     *
+     * @param inFile	file to check
+     *
+     * @throws IOException
+     */
+    public static boolean isBinary(File inFile) throws IOException {
+        boolean retVal = false;
+        if (inFile.length() >= V1_HEADER_LEN) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(inFile))) {
+                retVal = (in.readInt() == MAGIC);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the specified file name indicates the binary format
+     *
+     * @param outFile	file to check
+     */
+    public static boolean isBinaryName(File outFile) {
+        return outFile.getName().endsWith(SUFFIX);
+    }
+
+    /**
+     * Save a role-coupling counter in binary format.
+     *
+     * @param counter	counter to save
+     * @param outFile	output file
+     *
+     * @throws IOException
+     */
+    public static void save(RoleCoupleCounter counter, File outFile) throws IOException {
+        // Sort the roles by ID to form the dictionary.
+        final List<Role> roles = counter.roleList;
+        final int roleTotal = roles.size();
+        final int[] order = counter.sortedRoles();
+        final int[] dictIdx = RoleCoupleCounter.invert(order);
+        String[] ids = new String[roleTotal];
+        String[] names = new String[roleTotal];
+        int[] counts = new int[roleTotal];
+        for (int i = 0; i < roleTotal; i++) {
+            Role role = roles.get(order[i]);
+            ids[i] = role.getId();
+            names[i] = role.getName();
+            counts[i] = counter.roleCounts[order[i]];
+        }
+        // The pairs come back in dictionary order, including any that were spilled to disk.
+        try (BinaryCouplerWriter writer = new BinaryCouplerWriter(outFile, counter.gap, ids, names, counts)) {
+            counter.forEachSorted(dictIdx, order, (r1, r2, count) ->
+                    writer.writePair(dictIdx[r1], dictIdx[r2], count));
+            writer.writeLedger(counter.getLedger(), counter.getLogSequence());
+        }
+    }
+
+    /**
+     * Load a role-coupling counter from a binary file.
+     *
+     * @param inFile	input file
+     *
+     * @return a new role-coupling counter read from the file
+     *
+     * @throws IOException
+     */
+    public static RoleCoupleCounter load(File inFile) throws IOException {
+        try (BinaryCouplerFile reader = new BinaryCouplerFile(inFile)) {
+            return reader.readCounter();
+        }
+    }
+
+    /**
+     * @return a new role-coupling counter containing everything in this file
+     *
+     * @throws IOException if the file has more pairs than an in-memory counter can hold
+     */
+    public RoleCoupleCounter readCounter() throws IOException {
+        long pairTotal = this.getPairTotal();
+        if (pairTotal > HashPairTable.MAX_PAIRS)
+            throw new IOException("Binary coupler has " + pairTotal + " pairs, but at most " +
+                    HashPairTable.MAX_PAIRS + " can be loaded into memory.");
+        RoleCoupleCounter retVal = new RoleCoupleCounter(this.getGap());
+        // Because the counter is empty, the role indices will match the dictionary indices.
+        int roleTotal = this.getRoleTotal();
+        for (int i = 0; i < roleTotal; i++)
+            retVal.addRole(this.getRoleId(i), this.getRoleName(i), this.getRoleCount(i));
+        retVal.expectPairs((int) pairTotal);
+        PairCountTable table = retVal.pairCounts;
+        for (MappedByteBuffer segment : this.segments) {
+            ByteBuffer buffer = segment.duplicate();
+            while (buffer.hasRemaining()) {
+                int r1 = buffer.getInt();
+                int r2 = buffer.getInt();
+                table.add(r1, r2, buffer.getInt());
+            }
+        }
+        for (Map.Entry<String, String> entry : this.getLedger().entrySet())
+            retVal.recordGenome(entry.getKey(), entry.getValue());
+        retVal.setLogSequence(this.getLogSequence());
+        return retVal;
+    }
+
+    /**
+     * @return the genome ledger from this file, mapping each genome ID to its content hash
+     *
+     * @throws IOException
+     */
+    public Map<String, String> getLedger() throws IOException {
+        Map<String, String> retVal = new LinkedHashMap<String, String>();
+        if (this.ledger != null) {
+            ByteBuffer buffer = this.ledger.duplicate();
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String genomeId = readString(buffer);
+                retVal.put(genomeId, readString(buffer));
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the sequence number of the last contribution log commit reflected in this file's counts, or 0
+     * 		   if there is none
+     *
+     * @throws IOException
+     */
+    public long getLogSequence() throws IOException {
+        long retVal = 0;
+        if (this.ledger != null) {
+            ByteBuffer buffer = this.ledger.duplicate();
+            int count = buffer.getInt();
+            for (int i = 0; i < 2 * count; i++)
+                buffer.position(buffer.position() + 4 + buffer.getInt(buffer.position()));
+            if (buffer.remaining() >= 8)
+                retVal = buffer.getLong();
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the format version of this file
+     */
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return the gap used to build the coupler
+     */
+    public int getGap() {
+        return this.gap;
+    }
+
+    /**
+     * @return the number of roles in the dictionary
+     */
+    public int getRoleTotal() {
+        return this.entryPositions.length;
+    }
+
+    /**
+     * @return the ID of the role at the specified dictionary index
+     *
+     * @param idx	dictionary index of the role
+     */
+    public String getRoleId(int idx) {
+        return this.dictionaryString(this.entryPositions[idx] + 4);
+    }
+
+    /**
+     * @return the name of the role at the specified dictionary index
+     *
+     * @param idx	dictionary index of the role
+     */
+    public String getRoleName(int idx) {
+        return this.dictionaryString(skipString(this.dictionary, this.entryPositions[idx] + 4));
+    }
+
+    /**
+     * @return the dictionary index of the role with the specified ID, or -1 if the role is not present
+     *
+     * The dictionary is sorted by role ID, so it is searched in place; only the IDs probed are decoded.
+     *
+     * @param roleId	ID of the desired role
+     */
+    public int findRole(String roleId) {
+        int lo = 0;
+        int hi = this.entryPositions.length - 1;
+        int retVal = -1;
+        while (retVal < 0 && lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = this.getRoleId(mid).compareTo(roleId);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                retVal = mid;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the count for a pair of roles, found by binary search of the pair table
+     *
+     * @param role1		dictionary index of the first role
+     * @param role2		dictionary index of the second role
+     */
+    public int findPair(int role1, int role2) {
+        int retVal = 0;
+        long rec = this.search(role1, role2);
+        if (rec >= 0)
+            retVal = this.getPairCount(rec);
+        return retVal;
+    }
+
+    /**
+     * @return the index of the pair record for the specified roles, or -1 if there is none
+     *
+     * @param role1		dictionary index of the first role
+     * @param role2		dictionary index of the second role
+     */
+    public long search(int role1, int role2) {
+        long target = (role1 <= role2 ? ((long) role1 << 32) | role2 : ((long) role2 << 32) | role1);
+        long lo = 0;
+        long hi = this.pairCount - 1;
+        long retVal = -1;
+        while (retVal < 0 && lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long key = ((long) this.getRole1(mid) << 32) | this.getRole2(mid);
+            if (key < target) {
+                lo = mid + 1;
+            } else if (key > target) {
+                hi = mid - 1;
+            } else {
+                retVal = mid;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the occurrence count of the role at the specified dictionary index
+     *
+     * @param idx	dictionary index of the role
+     */
+    public int getRoleCount(int idx) {
+        return this.dictionary.getInt(this.entryPositions[idx]);
+    }
+
+    /**
+     * @return the number of pair records
+     */
+    public long getPairTotal() {
+        return this.pairCount;
+    }
+
+    /**
+     * @return the dictionary index of the first role in a pair record
+     *
+     * @param rec	index of the pair record
+     */
+    public int getRole1(long rec) {
+        return this.segments[(int) (rec / SEGMENT_RECORDS)].getInt((int) (rec % SEGMENT_RECORDS) * RECORD_LEN);
+    }
+
+    /**
+     * @return the dictionary index of the second role in a pair record
+     *
+     * @param rec	index of the pair record
+     */
+    public int getRole2(long rec) {
+        return this.segments[(int) (rec / SEGMENT_RECORDS)].getInt((int) (rec % SEGMENT_RECORDS) * RECORD_LEN + 4);
+    }
+
+    /**
+     * @return the count in a pair record
+     *
+     * @param rec	index of the pair record
+     */
+    public int getPairCount(long rec) {
+        return this.segments[(int) (rec / SEGMENT_RECORDS)].getInt((int) (rec % SEGMENT_RECORDS) * RECORD_LEN + 8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+}
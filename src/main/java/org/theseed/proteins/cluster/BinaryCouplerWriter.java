@@ -0,0 +1,129 @@
+package org.theseed.proteins.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * This class writes a coupler file in the binary format described in {@link BinaryCouplerFile} one pair
+ * at a time.  The pairs must be presented in dictionary index order.  Because the pair count and ledger
+ * position are not known until the end, the header is written with placeholders and filled in when the
+ * writer is closed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BinaryCouplerWriter extends CouplerWriter {
+
+    /** file offset of the pair count in the header */
+    private static final long PAIR_COUNT_OFFSET = 16;
+    /** file offset of the ledger offset in the header */
+    private static final long LEDGER_OFFSET_OFFSET = 32;
+
+    // FIELDS
+    /** output file */
+    private File outFile;
+    /** output stream */
+    private DataOutputStream out;
+    /** file offset of the pair table */
+    private long pairOffset;
+    /** file offset of the ledger, or 0 if there is none */
+    private long ledgerOffset;
+    /** key of the last pair written */
+    private long lastKey;
+
+    /**
+     * Open a binary coupler file for output and write the header and role dictionary.
+     *
+     * @param outFile	output file
+     * @param gap		maximum gap between neighbors
+     * @param ids		role IDs, sorted
+     * @param names		role names, in dictionary order
+     * @param counts	role occurrence counts, in dictionary order
+     *
+     * @throws IOException
+     */
+    public BinaryCouplerWriter(File outFile, int gap, String[] ids, String[] names, int[] counts)
+            throws IOException {
+        super(gap, ids, names, counts);
+        this.outFile = outFile;
+        this.ledgerOffset = 0;
+        this.lastKey = -1;
+        // Compute the pair table offset.
+        this.pairOffset = BinaryCouplerFile.HEADER_LEN;
+        for (int i = 0; i < ids.length; i++) {
+            this.pairOffset += 12 + ids[i].getBytes(StandardCharsets.UTF_8).length +
+                    names[i].getBytes(StandardCharsets.UTF_8).length;
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile), 1 << 20));
+        this.out.writeInt(BinaryCouplerFile.MAGIC);
+        this.out.writeInt(BinaryCouplerFile.VERSION);
+        this.out.writeInt(gap);
+        this.out.writeInt(ids.length);
+        // These two are filled in at the end.
+        this.out.writeLong(0);
+        this.out.writeLong(this.pairOffset);
+        this.out.writeLong(0);
+        for (int i = 0; i < ids.length; i++) {
+            this.out.writeInt(counts[i]);
+            writeString(this.out, ids[i]);
+            writeString(this.out, names[i]);
+        }
+    }
+
+    /**
+     * Write a string to an output stream.
+     *
+     * @param out		output stream
+     * @param string	string to write
+     *
+     * @throws IOException
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    protected void write(int role1, int role2, int count) throws IOException {
+        long key = ((long) role1 << 32) | role2;
+        if (role1 > role2 || key <= this.lastKey)
+            throw new IllegalStateException("Pair (" + role1 + ", " + role2 + ") out of order in binary coupler.");
+        this.lastKey = key;
+        this.out.writeInt(role1);
+        this.out.writeInt(role2);
+        this.out.writeInt(count);
+    }
+
+    @Override
+    public void writeLedger(Map<String, String> ledger, long logSequence) throws IOException {
+        if (! ledger.isEmpty() || logSequence > 0) {
+            this.ledgerOffset = this.pairOffset + this.pairTotal * BinaryCouplerFile.RECORD_LEN;
+            this.out.writeInt(ledger.size());
+            for (Map.Entry<String, String> entry : ledger.entrySet()) {
+                writeString(this.out, entry.getKey());
+                writeString(this.out, entry.getValue());
+            }
+            this.out.writeLong(logSequence);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.out.close();
+        // Fill in the pair count and ledger offset.
+        try (RandomAccessFile header = new RandomAccessFile(this.outFile, "rw")) {
+            header.seek(PAIR_COUNT_OFFSET);
+            header.writeLong(this.pairTotal);
+            header.seek(LEDGER_OFFSET_OFFSET);
+            header.writeLong(this.ledgerOffset);
+        }
+    }
+
+}
@@ -0,0 +1,287 @@
+package org.theseed.proteins.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This report writer produces a compact binary columnar coupling report for downstream loaders.  All
+ * numbers are big-endian.  The file begins with a header of three integers:  a magic number, the format
+ * version, and the number of reference couplers (0 if this is not a comparison report).
+ *
+ * The rows follow in groups.  Each group begins with an integer row count and an integer count of new
+ * role IDs.  The new role IDs follow, each as an integer byte length plus UTF-8 bytes; they are appended
+ * to a role dictionary that spans the whole file.  Then come the columns, each holding one value per
+ * row:  the dictionary index of the first role (int), the dictionary index of the second role (int),
+ * the togetherness (double), and the pair count (int).  A comparison report has five more columns for
+ * each reference coupler:  a comparison-present flag (byte), the other togetherness (double), the other
+ * pair count (int), the other occurrence count (int), and a failure flag (byte).  A group with a row
+ * count of 0 ends the file.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BinaryCouplingReport extends CouplingReport {
+
+    /** magic number for binary coupling reports ("RCPR") */
+    public static final int MAGIC = 0x52435052;
+    /** current format version */
+    public static final int VERSION = 1;
+    /** number of rows per group */
+    public static final int GROUP_ROWS = 1 << 16;
+
+    // FIELDS
+    /** output stream */
+    private DataOutputStream out;
+    /** map of role IDs to dictionary indices */
+    private Map<String, Integer> dictionary;
+    /** role IDs added to the dictionary in the current group */
+    private List<String> newRoles;
+    /** number of rows in the current group */
+    private int groupSize;
+    /** first-role column */
+    private int[] role1s;
+    /** second-role column */
+    private int[] role2s;
+    /** togetherness column */
+    private double[] togethers;
+    /** count column */
+    private int[] counts;
+    /** comparison-present columns, by reference */
+    private boolean[][] others;
+    /** other togetherness columns, by reference */
+    private double[][] otherFracs;
+    /** other count columns, by reference */
+    private int[][] otherCounts;
+    /** other occurrence columns, by reference */
+    private int[][] otherFounds;
+    /** failure columns, by reference */
+    private boolean[][] failures;
+
+    /**
+     * Create a binary report.
+     *
+     * @param out			output stream (should be buffered)
+     * @param references	number of reference couplers (0 if this is not a comparison report)
+     *
+     * @throws IOException
+     */
+    public BinaryCouplingReport(OutputStream out, int references) throws IOException {
+        super(references);
+        this.out = new DataOutputStream(out);
+        this.dictionary = new HashMap<String, Integer>();
+        this.newRoles = new ArrayList<String>();
+        this.groupSize = 0;
+        this.role1s = new int[GROUP_ROWS];
+        this.role2s = new int[GROUP_ROWS];
+        this.togethers = new double[GROUP_ROWS];
+        this.counts = new int[GROUP_ROWS];
+        this.others = new boolean[references][GROUP_ROWS];
+        this.otherFracs = new double[references][GROUP_ROWS];
+        this.otherCounts = new int[references][GROUP_ROWS];
+        this.otherFounds = new int[references][GROUP_ROWS];
+        this.failures = new boolean[references][GROUP_ROWS];
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        this.out.writeInt(references);
+    }
+
+    @Override
+    protected void writeRow(String role1, String role2, double together, int count, Comparison[] others)
+            throws IOException {
+        int i = this.groupSize;
+        this.role1s[i] = this.roleIndex(role1);
+        this.role2s[i] = this.roleIndex(role2);
+        this.togethers[i] = together;
+        this.counts[i] = count;
+        for (int r = 0; r < this.getReferences(); r++) {
+            boolean found = (others != null && others[r].isFound());
+            this.others[r][i] = found;
+            this.otherFracs[r][i] = (found ? others[r].getFrac() : 0.0);
+            this.otherCounts[r][i] = (found ? others[r].getCount() : 0);
+            this.otherFounds[r][i] = (found ? others[r].getOther() : 0);
+            this.failures[r][i] = (found && others[r].isFailure());
+        }
+        this.groupSize++;
+        if (this.groupSize >= GROUP_ROWS)
+            this.writeGroup();
+    }
+
+    /**
+     * @return the dictionary index of a role ID, adding it to the dictionary if it is new
+     *
+     * @param roleId	ID of the role of interest
+     */
+    private int roleIndex(String roleId) {
+        Integer retVal = this.dictionary.get(roleId);
+        if (retVal == null) {
+            retVal = this.dictionary.size();
+            this.dictionary.put(roleId, retVal);
+            this.newRoles.add(roleId);
+        }
+        return retVal;
+    }
+
+    /**
+     * Write the current row group.
+     *
+     * @throws IOException
+     */
+    private void writeGroup() throws IOException {
+        final int n = this.groupSize;
+        DataOutputStream stream = this.out;
+        stream.writeInt(n);
+        stream.writeInt(this.newRoles.size());
+        for (String roleId : this.newRoles) {
+            byte[] bytes = roleId.getBytes(StandardCharsets.UTF_8);
+            stream.writeInt(bytes.length);
+            stream.write(bytes);
+        }
+        this.newRoles.clear();
+        for (int i = 0; i < n; i++)
+            stream.writeInt(this.role1s[i]);
+        for (int i = 0; i < n; i++)
+            stream.writeInt(this.role2s[i]);
+        for (int i = 0; i < n; i++)
+            stream.writeDouble(this.togethers[i]);
+        for (int i = 0; i < n; i++)
+            stream.writeInt(this.counts[i]);
+        for (int r = 0; r < this.getReferences(); r++) {
+            for (int i = 0; i < n; i++)
+                stream.writeByte(this.others[r][i] ? 1 : 0);
+            for (int i = 0; i < n; i++)
+                stream.writeDouble(this.otherFracs[r][i]);
+            for (int i = 0; i < n; i++)
+                stream.writeInt(this.otherCounts[r][i]);
+            for (int i = 0; i < n; i++)
+                stream.writeInt(this.otherFounds[r][i]);
+            for (int i = 0; i < n; i++)
+                stream.writeByte(this.failures[r][i] ? 1 : 0);
+        }
+        this.groupSize = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.groupSize > 0)
+            this.writeGroup();
+        this.out.writeInt(0);
+        this.out.close();
+    }
+
+    /**
+     * Read a binary coupling report and write its rows to another report.  This can be used to convert
+     * a binary report to text.
+     *
+     * @param inFile	binary report file to read
+     * @param target	report to receive the rows; it must have the same number of reference couplers
+     *
+     * @throws IOException
+     */
+    public static void copy(File inFile, CouplingReport target) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(inFile),
+                BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(inFile + " is not a binary coupling report.");
+            int version = in.readInt();
+            if (version > VERSION)
+                throw new IOException(inFile + " has unsupported report version " + version + ".");
+            int references = in.readInt();
+            if (references != target.getReferences())
+                throw new IOException(inFile + " has " + references + " reference couplers, but the target has " +
+                        target.getReferences() + ".");
+            CouplingReport.Comparison[] comparisons = new CouplingReport.Comparison[references];
+            for (int r = 0; r < references; r++)
+                comparisons[r] = new CouplingReport.Comparison();
+            List<String> roles = new ArrayList<String>();
+            try {
+                for (int n = in.readInt(); n > 0; n = in.readInt()) {
+                    int newRoles = in.readInt();
+                    for (int i = 0; i < newRoles; i++) {
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        roles.add(new String(bytes, StandardCharsets.UTF_8));
+                    }
+                    int[] role1s = readInts(in, n);
+                    int[] role2s = readInts(in, n);
+                    double[] togethers = readDoubles(in, n);
+                    int[] counts = readInts(in, n);
+                    if (references == 0) {
+                        for (int i = 0; i < n; i++)
+                            target.write(roles.get(role1s[i]), roles.get(role2s[i]), togethers[i], counts[i]);
+                    } else {
+                        byte[][] others = new byte[references][];
+                        double[][] otherFracs = new double[references][];
+                        int[][] otherCounts = new int[references][];
+                        int[][] otherFounds = new int[references][];
+                        byte[][] failures = new byte[references][];
+                        for (int r = 0; r < references; r++) {
+                            others[r] = new byte[n];
+                            in.readFully(others[r]);
+                            otherFracs[r] = readDoubles(in, n);
+                            otherCounts[r] = readInts(in, n);
+                            otherFounds[r] = readInts(in, n);
+                            failures[r] = new byte[n];
+                            in.readFully(failures[r]);
+                        }
+                        for (int i = 0; i < n; i++) {
+                            for (int r = 0; r < references; r++) {
+                                if (others[r][i] == 0) {
+                                    comparisons[r].clear();
+                                } else {
+                                    comparisons[r].set(otherFracs[r][i], otherCounts[r][i], otherFounds[r][i],
+                                            failures[r][i] != 0);
+                                }
+                            }
+                            target.write(roles.get(role1s[i]), roles.get(role2s[i]), togethers[i], counts[i],
+                                    comparisons);
+                        }
+                    }
+                }
+            } catch (EOFException e) {
+                throw new IOException(inFile + " is truncated.", e);
+            }
+        }
+    }
+
+    /**
+     * @return a column of integers read from a binary report
+     *
+     * @param in	input stream
+     * @param n		number of values to read
+     *
+     * @throws IOException
+     */
+    private static int[] readInts(DataInputStream in, int n) throws IOException {
+        int[] retVal = new int[n];
+        for (int i = 0; i < n; i++)
+            retVal[i] = in.readInt();
+        return retVal;
+    }
+
+    /**
+     * @return a column of doubles read from a binary report
+     *
+     * @param in	input stream
+     * @param n		number of values to read
+     *
+     * @throws IOException
+     */
+    private static double[] readDoubles(DataInputStream in, int n) throws IOException {
+        double[] retVal = new double[n];
+        for (int i = 0; i < n; i++)
+            retVal[i] = in.readDouble();
+        return retVal;
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.theseed.proteins.cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * This pair stream reads the pairs from a binary coupler file.  The pair table in the file is already in
+ * role ID order, so the stream simply walks the memory-mapped records.  Only the role dictionary is
+ * held in memory.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BinaryPairStream extends PairStream {
+
+    // FIELDS
+    /** binary coupler file */
+    private BinaryCouplerFile coupler;
+    /** index of the current pair record */
+    private long rec;
+    /** number of pair records */
+    private long total;
+
+    /**
+     * Open a pair stream on a binary coupler file.
+     *
+     * @param inFile	binary coupler file to stream
+     *
+     * @throws IOException
+     */
+    public BinaryPairStream(File inFile) throws IOException {
+        this.coupler = new BinaryCouplerFile(inFile);
+        this.rec = -1;
+        this.total = this.coupler.getPairTotal();
+    }
+
+    @Override
+    public boolean next() {
+        if (this.rec < this.total)
+            this.rec++;
+        return (this.rec < this.total);
+    }
+
+    @Override
+    public int getIndex1() {
+        return this.coupler.getRole1(this.rec);
+    }
+
+    @Override
+    public int getIndex2() {
+        return this.coupler.getRole2(this.rec);
+    }
+
+    @Override
+    public int getRoleTotal() {
+        return this.coupler.getRoleTotal();
+    }
+
+    @Override
+    public String getRoleId(int idx) {
+        return this.coupler.getRoleId(idx);
+    }
+
+    @Override
+    public String getRoleName(int idx) {
+        return this.coupler.getRoleName(idx);
+    }
+
+    @Override
+    public int getRoleCount(int idx) {
+        return this.coupler.getRoleCount(idx);
+    }
+
+    @Override
+    public Map<String, String> getLedger() throws IOException {
+        return this.coupler.getLedger();
+    }
+
+    @Override
+    public String getRole1() {
+        return this.coupler.getRoleId(this.getIndex1());
+    }
+
+    @Override
+    public String getRole2() {
+        return this.coupler.getRoleId(this.getIndex2());
+    }
+
+    @Override
+    public int getCount() {
+        return this.coupler.getPairCount(this.rec);
+    }
+
+    @Override
+    public int getRoleCount(String roleId) {
+        int idx = this.coupler.findRole(roleId);
+        return (idx < 0 ? 0 : this.coupler.getRoleCount(idx));
+    }
+
+    @Override
+    public double getTogetherness() {
+        return RoleCoupleCounter.togetherness(this.getCount(), this.coupler.getRoleCount(this.getIndex1()),
+                this.coupler.getRoleCount(this.getIndex2()));
+    }
+
+    /**
+     * @return the underlying binary coupler file
+     */
+    public BinaryCouplerFile getCoupler() {
+        return this.coupler;
+    }
+
+    @Override
+    public int getGap() {
+        return this.coupler.getGap();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.coupler.close();
+    }
+
+}
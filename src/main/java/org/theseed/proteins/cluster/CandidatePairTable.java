@@ -0,0 +1,78 @@
+package org.theseed.proteins.cluster;
+
+/**
+ * This pair count table counts only a fixed set of candidate pairs exactly, ignoring all the others.  It
+ * is used for the second pass of an approximate run, in which the candidates that survived the sketch are
+ * counted again to get their true counts.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CandidatePairTable extends PairCountTable {
+
+    // FIELDS
+    /** table with a nonzero entry for each candidate pair */
+    private HashPairTable candidates;
+    /** exact counts for the candidate pairs */
+    private HashPairTable counts;
+
+    /**
+     * Create an empty candidate table.
+     *
+     * @param expected	expected number of candidates
+     */
+    public CandidatePairTable(int expected) {
+        this.candidates = new HashPairTable(expected);
+        this.counts = new HashPairTable(expected);
+    }
+
+    /**
+     * Add a candidate pair.
+     *
+     * @param role1		index of the first role
+     * @param role2		index of the second role
+     */
+    public void addCandidate(int role1, int role2) {
+        if (this.candidates.get(role1, role2) == 0)
+            this.candidates.add(role1, role2, 1);
+    }
+
+    /**
+     * @return the number of candidate pairs
+     */
+    public int getCandidateCount() {
+        return this.candidates.size();
+    }
+
+    @Override
+    public int get(int role1, int role2) {
+        return this.counts.get(role1, role2);
+    }
+
+    @Override
+    public void add(int role1, int role2, int count) {
+        if (this.candidates.get(role1, role2) != 0)
+            this.counts.add(role1, role2, count);
+    }
+
+    @Override
+    public int size() {
+        return this.counts.size();
+    }
+
+    @Override
+    public long memoryUsed() {
+        return this.candidates.memoryUsed() + this.counts.memoryUsed();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        this.counts.forEach(visitor);
+    }
+
+    @Override
+    public PairCountTable grow(int roles) {
+        return this;
+    }
+
+}
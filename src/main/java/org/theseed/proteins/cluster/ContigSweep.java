@@ -0,0 +1,177 @@
+/**
+ *
+ */
+package org.theseed.proteins.cluster;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the features of a single contig in compact form for coupling counts.  Each feature
+ * is represented by its left and right positions and the indices of its useful roles, and the role
+ * indices for all the features are packed into a single array.  Features with no useful roles can be
+ * left out, since they contribute nothing to the counts.  The features must be added in order by left
+ * position.
+ *
+ * The arrays are reused from one contig to the next, so once they have grown to the size of the largest
+ * contig, counting does no further allocation.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ContigSweep {
+
+    // FIELDS
+    /** number of features stored */
+    private int size;
+    /** left positions of the features */
+    private int[] lefts;
+    /** right positions of the features */
+    private int[] rights;
+    /** position in the role array of the first role of each feature; the entry past the last feature
+     *  is the end of the role data */
+    private int[] roleStarts;
+    /** role indices for all the features */
+    private int[] roles;
+
+    /**
+     * Create a new, empty contig sweep.
+     */
+    public ContigSweep() {
+        this.lefts = new int[64];
+        this.rights = new int[64];
+        this.roleStarts = new int[65];
+        this.roles = new int[128];
+        this.size = 0;
+    }
+
+    /**
+     * Remove all the features so a new contig can be loaded.
+     */
+    public void clear() {
+        this.size = 0;
+        this.roleStarts[0] = 0;
+    }
+
+    /**
+     * Add a feature to the sweep.
+     *
+     * @param left		left position of the feature
+     * @param right		right position of the feature
+     * @param roleIdx	array containing the indices of the feature's useful roles
+     * @param n			number of roles in the array to use
+     */
+    public void add(int left, int right, int[] roleIdx, int n) {
+        if (this.size >= this.lefts.length) {
+            int newSize = this.lefts.length * 2;
+            this.lefts = Arrays.copyOf(this.lefts, newSize);
+            this.rights = Arrays.copyOf(this.rights, newSize);
+            this.roleStarts = Arrays.copyOf(this.roleStarts, newSize + 1);
+        }
+        int start = this.roleStarts[this.size];
+        int end = start + n;
+        if (end > this.roles.length)
+            this.roles = Arrays.copyOf(this.roles, Math.max(end, this.roles.length * 2));
+        System.arraycopy(roleIdx, 0, this.roles, start, n);
+        this.lefts[this.size] = left;
+        this.rights[this.size] = right;
+        this.size++;
+        this.roleStarts[this.size] = end;
+    }
+
+    /**
+     * @return the number of features in the sweep
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the index past the last neighbor of a feature; the neighbors are the features after it whose
+     * 		   left position is no more than the gap distance past its right position, which is the same
+     * 		   rule used by {@link org.theseed.genome.FeatureList.Position#within(int)}
+     *
+     * @param i		index of the feature of interest
+     * @param gap	maximum distance between neighbors
+     */
+    private int windowEnd(int i, int gap) {
+        int limit = this.rights[i] + gap;
+        int retVal = i + 1;
+        while (retVal < this.size && this.lefts[retVal] <= limit)
+            retVal++;
+        return retVal;
+    }
+
+    /**
+     * Count the couplings in this contig.  Each role of each feature is counted once, and it is paired
+     * with every role of every neighbor following it.
+     *
+     * @param gap			maximum distance between neighbors
+     * @param roleCounts	array of role occurrence counts to update
+     * @param pairCounts	table of pair counts to update
+     */
+    public void count(int gap, int[] roleCounts, PairCountTable pairCounts) {
+        this.count(gap, roleCounts, pairCounts, 1);
+    }
+
+    /**
+     * Add or subtract the couplings in this contig.  Each role of each feature is counted once, and it is
+     * paired with every role of every neighbor following it.
+     *
+     * @param gap			maximum distance between neighbors
+     * @param roleCounts	array of role occurrence counts to update
+     * @param pairCounts	table of pair counts to update
+     * @param delta			amount to add for each occurrence (1 to count, -1 to uncount)
+     */
+    public void count(int gap, int[] roleCounts, PairCountTable pairCounts, int delta) {
+        for (int i = 0; i < this.size; i++) {
+            int neighborStart = this.roleStarts[i + 1];
+            int neighborEnd = this.roleStarts[this.windowEnd(i, gap)];
+            for (int r = this.roleStarts[i]; r < neighborStart; r++) {
+                int role = this.roles[r];
+                roleCounts[role] += delta;
+                for (int q = neighborStart; q < neighborEnd; q++)
+                    pairCounts.add(role, this.roles[q], delta);
+            }
+        }
+    }
+
+    /**
+     * Count the couplings in this contig for a ladder of gaps in a single pass.  The pairs within the
+     * largest gap are counted in the main table.  In addition, each pair is counted in the bucket for the
+     * smallest gap that includes it, so the count for a smaller gap is the sum of the buckets up to and
+     * including that gap's bucket.  Pairs needing the largest gap are not bucketed, since they are
+     * counted in the main table.
+     *
+     * @param gaps			gap ladder, in ascending order
+     * @param roleCounts	array of role occurrence counts to update
+     * @param pairCounts	table of pair counts for the largest gap
+     * @param buckets		tables of pair counts for each gap distance bucket except the last
+     * @param delta			amount to add for each occurrence (1 to count, -1 to uncount)
+     */
+    public void count(int[] gaps, int[] roleCounts, PairCountTable pairCounts, PairCountTable[] buckets,
+            int delta) {
+        final int last = gaps.length - 1;
+        final int maxGap = gaps[last];
+        for (int i = 0; i < this.size; i++) {
+            int neighborStart = this.roleStarts[i + 1];
+            int end = this.windowEnd(i, maxGap);
+            for (int r = this.roleStarts[i]; r < neighborStart; r++) {
+                int role = this.roles[r];
+                roleCounts[role] += delta;
+                // The neighbors are in order by left position, so the bucket never decreases.
+                int b = 0;
+                for (int j = i + 1; j < end; j++) {
+                    int distance = this.lefts[j] - this.rights[i];
+                    while (b < last && distance > gaps[b])
+                        b++;
+                    for (int q = this.roleStarts[j]; q < this.roleStarts[j + 1]; q++) {
+                        pairCounts.add(role, this.roles[q], delta);
+                        if (b < last)
+                            buckets[b].add(role, this.roles[q], delta);
+                    }
+                }
+            }
+        }
+    }
+
+}
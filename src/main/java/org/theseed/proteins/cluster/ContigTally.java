@@ -0,0 +1,84 @@
+package org.theseed.proteins.cluster;
+
+/**
+ * This object holds the counts from a group of contigs counted apart from the main counter, so that the
+ * contigs of a single genome can be counted in parallel.  It contains role occurrence counts, a table of
+ * pair counts, and (for a multi-gap counter) a table of pair counts for each distance bucket.  Tallies for
+ * adjacent groups of contigs are combined using {@link #merge(ContigTally)}, and the final tally is added
+ * to the counter.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ContigTally {
+
+    // FIELDS
+    /** occurrence counts for the roles, by role index */
+    private int[] roleCounts;
+    /** counts for the role pairs */
+    private PairCountTable pairCounts;
+    /** counts for the role pairs in each distance bucket */
+    private PairCountTable[] buckets;
+
+    /** expected number of pairs in a new table */
+    private static final int EXPECTED_PAIRS = 1024;
+
+    /**
+     * Create an empty tally.
+     *
+     * @param roles		number of role indices in use
+     * @param buckets	number of distance buckets (0 for a single-gap counter)
+     */
+    public ContigTally(int roles, int buckets) {
+        this.roleCounts = new int[roles];
+        this.pairCounts = new HashPairTable(EXPECTED_PAIRS);
+        this.buckets = new PairCountTable[buckets];
+        for (int i = 0; i < buckets; i++)
+            this.buckets[i] = new HashPairTable(EXPECTED_PAIRS);
+    }
+
+    /**
+     * Add the counts from another tally to this one.
+     *
+     * @param other		tally whose counts are to be added
+     */
+    public void merge(ContigTally other) {
+        for (int i = 0; i < this.roleCounts.length; i++)
+            this.roleCounts[i] += other.roleCounts[i];
+        addTable(this.pairCounts, other.pairCounts);
+        for (int i = 0; i < this.buckets.length; i++)
+            addTable(this.buckets[i], other.buckets[i]);
+    }
+
+    /**
+     * Add the counts from one pair table to another.
+     *
+     * @param target	table to receive the counts
+     * @param source	table containing the counts to add
+     */
+    protected static void addTable(PairCountTable target, PairCountTable source) {
+        source.forEach((r1, r2, count) -> target.add(r1, r2, count));
+    }
+
+    /**
+     * @return the role occurrence counts
+     */
+    public int[] getRoleCounts() {
+        return this.roleCounts;
+    }
+
+    /**
+     * @return the pair counts
+     */
+    public PairCountTable getPairCounts() {
+        return this.pairCounts;
+    }
+
+    /**
+     * @return the pair counts for each distance bucket
+     */
+    public PairCountTable[] getBuckets() {
+        return this.buckets;
+    }
+
+}
@@ -0,0 +1,261 @@
+package org.theseed.proteins.cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * This class manages a directory of genome projections that records the contribution of each genome to a
+ * coupler.  When a genome is counted, its projection is written to the log.  When the genome is later
+ * withdrawn or reannotated, the old projection can be replayed to subtract the genome's counts, so the
+ * old version of the genome does not need to be available.
+ *
+ * Each projection is stored in a file named from the genome ID with the suffix ".rcl".
+ *
+ * The log must agree with the saved coupler, so changes are staged and only take effect when
+ * {@link #commit()} is called after the coupler is saved.  A new projection is staged in a file with the
+ * suffix ".rcl.new", and a deletion is staged as an empty file with the suffix ".rcl.del".  While changes
+ * are staged, a journal file exists in the directory containing the sequence number of the staged batch,
+ * which is one more than that of the last commit.  The coupler must be saved with the number returned by
+ * {@link #getSequence()}, which is the number of the staged batch if there is one.  If a run stops before
+ * committing, the next run calls {@link #recover(long)} with the sequence number from the saved coupler.
+ * If the coupler's number is at least the journal's, the coupler was saved with the staged changes, so
+ * they are committed; otherwise they are discarded.  The staged changes are visible to
+ * {@link #read(String)} in the run that made them, since they match the coupler in memory.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ContributionLog {
+
+    // FIELDS
+    /** log directory */
+    private File logDir;
+    /** journal file, present while changes are staged */
+    private File journal;
+    /** sequence number of the last commit */
+    private long sequence;
+    /** sequence number of the staged changes, or 0 if none are known */
+    private long stagedSequence;
+
+    /** suffix for projection files */
+    public static final String SUFFIX = ".rcl";
+    /** suffix for staged projection files */
+    private static final String NEW_SUFFIX = SUFFIX + ".new";
+    /** suffix for staged deletions */
+    private static final String DEL_SUFFIX = SUFFIX + ".del";
+    /** name of the journal file */
+    private static final String JOURNAL_NAME = "staged.jnl";
+
+    /**
+     * Open a contribution log, creating the directory if necessary.
+     *
+     * @param logDir	log directory
+     *
+     * @throws IOException
+     */
+    public ContributionLog(File logDir) throws IOException {
+        if (! logDir.isDirectory())
+            Files.createDirectories(logDir.toPath());
+        this.logDir = logDir;
+        this.journal = new File(logDir, JOURNAL_NAME);
+        this.sequence = 0;
+        this.stagedSequence = 0;
+    }
+
+    /**
+     * @return the file for a genome with the specified suffix
+     *
+     * @param genomeId	ID of the genome of interest
+     * @param suffix	suffix for the file
+     */
+    private File fileFor(String genomeId, String suffix) {
+        return new File(this.logDir, genomeId + suffix);
+    }
+
+    /**
+     * Create the journal file if it does not already exist.  The journal is written to a temporary file
+     * and renamed, so it is never found empty.
+     *
+     * @throws IOException
+     */
+    private synchronized void startStaging() throws IOException {
+        if (this.journal.exists()) {
+            if (this.stagedSequence == 0)
+                this.stagedSequence = this.readJournal();
+        } else {
+            this.stagedSequence = this.sequence + 1;
+            File tempFile = new File(this.logDir, JOURNAL_NAME + ".tmp");
+            Files.write(tempFile.toPath(), Long.toString(this.stagedSequence).getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile.toPath(), this.journal.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * @return the sequence number in the journal file
+     *
+     * @throws IOException
+     */
+    private long readJournal() throws IOException {
+        String text = new String(Files.readAllBytes(this.journal.toPath()), StandardCharsets.UTF_8).trim();
+        long retVal;
+        try {
+            retVal = Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid journal in contribution log " + this.logDir + ".");
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the sequence number to save with the coupler:  the number of the staged changes, if there
+     * 		   are any, or else the number of the last commit
+     */
+    public synchronized long getSequence() {
+        return (this.stagedSequence > 0 ? this.stagedSequence : this.sequence);
+    }
+
+    /**
+     * Stage a genome's projection for storage in the log, replacing any previous one.  The projection is
+     * written to a temporary file and renamed, so an interruption does not leave a partial entry.
+     *
+     * @param projection	projection to store
+     *
+     * @throws IOException
+     */
+    public void write(GenomeProjection projection) throws IOException {
+        String genomeId = projection.getGenomeId();
+        this.startStaging();
+        File tempFile = this.fileFor(genomeId, SUFFIX + ".tmp");
+        projection.save(tempFile);
+        Files.move(tempFile.toPath(), this.fileFor(genomeId, NEW_SUFFIX).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(this.fileFor(genomeId, DEL_SUFFIX).toPath());
+    }
+
+    /**
+     * @return the projection stored for a genome, including staged changes, or NULL if there is none
+     *
+     * @param genomeId	ID of the genome of interest
+     *
+     * @throws IOException
+     */
+    public GenomeProjection read(String genomeId) throws IOException {
+        GenomeProjection retVal = null;
+        File newFile = this.fileFor(genomeId, NEW_SUFFIX);
+        File inFile = this.fileFor(genomeId, SUFFIX);
+        if (newFile.exists())
+            retVal = GenomeProjection.load(newFile);
+        else if (! this.fileFor(genomeId, DEL_SUFFIX).exists() && inFile.exists())
+            retVal = GenomeProjection.load(inFile);
+        return retVal;
+    }
+
+    /**
+     * Stage the removal of a genome's projection from the log.
+     *
+     * @param genomeId	ID of the genome to remove
+     *
+     * @throws IOException
+     */
+    public void delete(String genomeId) throws IOException {
+        this.startStaging();
+        File delFile = this.fileFor(genomeId, DEL_SUFFIX);
+        if (! delFile.exists())
+            Files.createFile(delFile.toPath());
+        Files.deleteIfExists(this.fileFor(genomeId, NEW_SUFFIX).toPath());
+    }
+
+    /**
+     * Apply the staged changes.  This must be called after the coupler containing the changes has been
+     * saved.  The deletions are applied before the new projections.
+     *
+     * @throws IOException
+     */
+    public synchronized void commit() throws IOException {
+        if (this.journal.exists()) {
+            if (this.stagedSequence == 0)
+                this.stagedSequence = this.readJournal();
+            for (File delFile : this.staged(DEL_SUFFIX)) {
+                Files.deleteIfExists(this.fileFor(genomeIdOf(delFile, DEL_SUFFIX), SUFFIX).toPath());
+                Files.delete(delFile.toPath());
+            }
+            for (File newFile : this.staged(NEW_SUFFIX)) {
+                Files.move(newFile.toPath(), this.fileFor(genomeIdOf(newFile, NEW_SUFFIX), SUFFIX).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.delete(this.journal.toPath());
+            this.sequence = this.stagedSequence;
+        }
+        this.stagedSequence = 0;
+    }
+
+    /**
+     * Discard the staged changes.
+     *
+     * @throws IOException
+     */
+    public synchronized void rollback() throws IOException {
+        if (this.journal.exists()) {
+            for (File delFile : this.staged(DEL_SUFFIX))
+                Files.delete(delFile.toPath());
+            for (File newFile : this.staged(NEW_SUFFIX))
+                Files.delete(newFile.toPath());
+            Files.delete(this.journal.toPath());
+        }
+        this.stagedSequence = 0;
+    }
+
+    /**
+     * Resolve changes left staged by an interrupted run.  If the saved coupler's sequence number is at
+     * least the journal's, the coupler was saved with the changes, so they are committed.  Otherwise,
+     * they are discarded.  This must be called before any changes are staged.
+     *
+     * @param couplerSequence	log sequence number saved with the coupler to which the log belongs
+     *
+     * @return TRUE if staged changes were found, else FALSE
+     *
+     * @throws IOException
+     */
+    public synchronized boolean recover(long couplerSequence) throws IOException {
+        boolean retVal = this.journal.exists();
+        if (retVal) {
+            this.stagedSequence = this.readJournal();
+            if (couplerSequence >= this.stagedSequence)
+                this.commit();
+            else
+                this.rollback();
+        }
+        this.sequence = couplerSequence;
+        return retVal;
+    }
+
+    /**
+     * @return the staged files with the specified suffix
+     *
+     * @param suffix	suffix of the files desired
+     *
+     * @throws IOException
+     */
+    private File[] staged(String suffix) throws IOException {
+        File[] retVal = this.logDir.listFiles((dir, name) -> name.endsWith(suffix));
+        if (retVal == null)
+            throw new IOException("Cannot read contribution log directory " + this.logDir + ".");
+        return retVal;
+    }
+
+    /**
+     * @return the genome ID for a staged file
+     *
+     * @param file		staged file
+     * @param suffix	suffix of the file
+     */
+    private static String genomeIdOf(File file, String suffix) {
+        String name = file.getName();
+        return name.substring(0, name.length() - suffix.length());
+    }
+
+}
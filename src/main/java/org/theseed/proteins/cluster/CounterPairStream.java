@@ -0,0 +1,238 @@
+package org.theseed.proteins.cluster;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.theseed.proteins.Role;
+
+/**
+ * This pair stream presents the pairs from an in-memory role-coupling counter.  The qualifying pairs are
+ * selected using the usual thresholds and optional top-K limit, and then sorted into role ID order.
+ * The dictionary indices are the ranks of the role IDs among all the roles in the counter.  Only
+ * the keys of the selected pairs are copied, so the extra memory is eight bytes per pair.  If the counter
+ * has spilled pairs to disk, the counts of the selected pairs are copied as well, since they can no longer
+ * be looked up in the counter.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CounterPairStream extends PairStream {
+
+    // FIELDS
+    /** source counter */
+    private RoleCoupleCounter counter;
+    /** role indices, sorted by role ID */
+    private int[] order;
+    /** counts of the selected pairs if the counter has spilled to disk, otherwise NULL */
+    private PairCountTable selectedCounts;
+    /** sorted pair keys, with the rank of the first role in the high half and the second in the low half */
+    private long[] keys;
+    /** position of the current pair */
+    private int pos;
+    /** dictionary index of the first role of the current pair */
+    private int index1;
+    /** dictionary index of the second role of the current pair */
+    private int index2;
+    /** first role of the current pair */
+    private Role role1;
+    /** second role of the current pair */
+    private Role role2;
+
+    /**
+     * Create a pair stream for a role-coupling counter.
+     *
+     * @param counter		source counter
+     * @param minTogether	minimum acceptable togetherness fraction
+     * @param minCount		minimum acceptable occurrence count
+     * @param limit			maximum number of pairs to present, taking the most frequent; 0 for all
+     */
+    public CounterPairStream(RoleCoupleCounter counter, final double minTogether, final int minCount, int limit) {
+        this.counter = counter;
+        // Rank the roles by ID.
+        this.order = counter.sortedRoles();
+        final int[] rank = RoleCoupleCounter.invert(this.order);
+        // Select the qualifying pairs.
+        final int[] counts = counter.roleCounts;
+        final LongList selected = new LongList(limit > 0 ? limit : 1024);
+        final PairCountTable saved = (counter.isSpilled() ? new HashPairTable(limit > 0 ? limit : 1024) : null);
+        this.selectedCounts = saved;
+        final PairCountTable.Visitor collector = (r1, r2, count) -> {
+            int d1 = rank[r1];
+            int d2 = rank[r2];
+            selected.add(d1 <= d2 ? ((long) d1 << 32) | d2 : ((long) d2 << 32) | d1);
+            if (saved != null)
+                saved.add(r1, r2, count);
+        };
+        if (limit > 0) {
+            final PairHeap heap = new PairHeap(limit);
+            counter.forEachPair((r1, r2, count) -> {
+                if (count >= minCount && RoleCoupleCounter.togetherness(count, counts[r1], counts[r2]) >= minTogether)
+                    heap.offer(PairCountTable.pairKey(r1, r2), count);
+            });
+            heap.forEach(collector);
+        } else {
+            counter.forEachPair((r1, r2, count) -> {
+                if (count >= minCount && RoleCoupleCounter.togetherness(count, counts[r1], counts[r2]) >= minTogether)
+                    collector.visit(r1, r2, count);
+            });
+        }
+        this.keys = selected.toSortedArray();
+        this.pos = -1;
+    }
+
+    @Override
+    public boolean next() {
+        if (this.pos < this.keys.length)
+            this.pos++;
+        boolean retVal = (this.pos < this.keys.length);
+        if (retVal) {
+            long key = this.keys[this.pos];
+            this.index1 = (int) (key >>> 32);
+            this.index2 = (int) key;
+            this.role1 = this.counter.roleList.get(this.order[this.index1]);
+            this.role2 = this.counter.roleList.get(this.order[this.index2]);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of pairs in this stream
+     */
+    public int size() {
+        return this.keys.length;
+    }
+
+    /**
+     * @return the first role of the current pair
+     */
+    public Role getRoleObject1() {
+        return this.role1;
+    }
+
+    /**
+     * @return the second role of the current pair
+     */
+    public Role getRoleObject2() {
+        return this.role2;
+    }
+
+    @Override
+    public int getIndex1() {
+        return this.index1;
+    }
+
+    @Override
+    public int getIndex2() {
+        return this.index2;
+    }
+
+    @Override
+    public int getRoleTotal() {
+        return this.order.length;
+    }
+
+    @Override
+    public String getRoleId(int idx) {
+        return this.counter.roleList.get(this.order[idx]).getId();
+    }
+
+    @Override
+    public String getRoleName(int idx) {
+        return this.counter.roleList.get(this.order[idx]).getName();
+    }
+
+    @Override
+    public int getRoleCount(int idx) {
+        return this.counter.roleCounts[this.order[idx]];
+    }
+
+    @Override
+    public Map<String, String> getLedger() {
+        return this.counter.getLedger();
+    }
+
+    @Override
+    public String getRole1() {
+        return this.role1.getId();
+    }
+
+    @Override
+    public String getRole2() {
+        return this.role2.getId();
+    }
+
+    @Override
+    public int getCount() {
+        int retVal;
+        if (this.selectedCounts != null) {
+            retVal = this.selectedCounts.get(this.order[this.index1], this.order[this.index2]);
+        } else {
+            retVal = this.counter.getCount(this.role1, this.role2);
+        }
+        return retVal;
+    }
+
+    @Override
+    public int getRoleCount(String roleId) {
+        return this.counter.getCount(this.counter.getRole(roleId));
+    }
+
+    @Override
+    public double getTogetherness() {
+        return RoleCoupleCounter.togetherness(this.getCount(), this.counter.roleCounts[this.order[this.index1]],
+                this.counter.roleCounts[this.order[this.index2]]);
+    }
+
+    @Override
+    public int getGap() {
+        return this.counter.gap;
+    }
+
+    @Override
+    public void close() {
+        this.keys = new long[0];
+    }
+
+    /**
+     * Simple growable list of long integers.
+     */
+    private static class LongList {
+
+        /** array of values */
+        private long[] values;
+        /** number of values in use */
+        private int size;
+
+        /**
+         * Create a list with the specified initial capacity.
+         *
+         * @param capacity	initial capacity
+         */
+        protected LongList(int capacity) {
+            this.values = new long[Math.max(1, capacity)];
+            this.size = 0;
+        }
+
+        /**
+         * Add a value to the list.
+         *
+         * @param value		value to add
+         */
+        protected void add(long value) {
+            if (this.size >= this.values.length)
+                this.values = Arrays.copyOf(this.values, this.values.length * 2);
+            this.values[this.size++] = value;
+        }
+
+        /**
+         * @return the values in the list, sorted
+         */
+        protected long[] toSortedArray() {
+            long[] retVal = Arrays.copyOf(this.values, this.size);
+            Arrays.sort(retVal);
+            return retVal;
+        }
+
+    }
+
+}
@@ -0,0 +1,103 @@
+package org.theseed.proteins.cluster;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * This command converts a coupler file between the text and binary formats.  The input format is
+ * determined from the file contents.  The output format is determined by the output file name (binary
+ * if it ends in ".rcb", otherwise text) unless it is overridden by an option.
+ *
+ * -v			write progress messages to STDERR
+ *
+ * --binary		write the output in binary format
+ * --text		write the output in text format
+ *
+ * The positional parameters are the name of the input coupler file and the name of the output
+ * coupler file.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CouplerConvertProcessor implements ICommand {
+
+    // COMMAND LINE
+
+    /** help option */
+    @Option(name="-h", aliases={"--help"}, help=true)
+    private boolean help;
+
+    /** TRUE if we want progress messages */
+    @Option(name="-v", aliases= {"--verbose", "--debug"}, usage="display progress on STDERR")
+    private boolean debug;
+
+    /** force binary output */
+    @Option(name="--binary", forbids="--text", usage="write binary output")
+    private boolean binaryMode;
+
+    /** force text output */
+    @Option(name="--text", forbids="--binary", usage="write text output")
+    private boolean textMode;
+
+    /** input coupler file */
+    @Argument(index=0, metaVar="inFile", usage="input coupler file", required=true)
+    private File inFile;
+
+    /** output coupler file */
+    @Argument(index=1, metaVar="outFile", usage="output coupler file", required=true)
+    private File outFile;
+
+    @Override
+    public boolean parseCommand(String[] args) {
+        boolean retVal = false;
+        // Set the defaults.
+        this.debug = false;
+        this.binaryMode = false;
+        this.textMode = false;
+        // Parse the command line.
+        CmdLineParser parser = new CmdLineParser(this);
+        try {
+            parser.parseArgument(args);
+            if (this.help) {
+                parser.printUsage(System.err);
+            } else {
+                if (! this.inFile.exists()) {
+                    throw new FileNotFoundException(this.inFile.getPath() + " is not found.");
+                }
+                // Apply the default output format.
+                if (! this.binaryMode && ! this.textMode) {
+                    this.binaryMode = BinaryCouplerFile.isBinaryName(this.outFile);
+                }
+                retVal = true;
+            }
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            // For parameter errors, we display the command usage.
+            parser.printUsage(System.err);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        return retVal;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (debug) System.err.println("Loading coupler from " + this.inFile + ".");
+            RoleCoupleCounter coupler = RoleCoupleCounter.load(this.inFile, debug);
+            if (debug) System.err.println("Writing " + (this.binaryMode ? "binary" : "text") +
+                    " coupler to " + this.outFile + ".");
+            coupler.save(this.outFile, this.binaryMode);
+            if (debug) System.err.println(coupler.getPairTotal() + " pairs converted.");
+        } catch (IOException e) {
+            System.err.println("Error processing command: " + e.getMessage());
+        }
+    }
+
+}
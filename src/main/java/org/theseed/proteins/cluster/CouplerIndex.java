@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package org.theseed.proteins.cluster;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.theseed.proteins.Role;
+
+/**
+ * This is a read-only query index over a binary coupler file.  The pair table stays on disk in a
+ * memory-mapped buffer and is searched with a binary search, so opening even a very large coupler
+ * takes almost no time or heap.  Roles are located by ID in the sorted role dictionary; no role or
+ * count objects are created.  Because the whole file is mapped when the index is opened, queries still
+ * work after the index is closed; closing only releases the file handle.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CouplerIndex implements ICouplingQuery, Closeable {
+
+    // FIELDS
+    /** binary coupler file being indexed */
+    private BinaryCouplerFile coupler;
+
+    /**
+     * Open an index on a binary coupler file.
+     *
+     * @param inFile	binary coupler file to open
+     *
+     * @throws IOException
+     */
+    public CouplerIndex(File inFile) throws IOException {
+        this.coupler = new BinaryCouplerFile(inFile);
+    }
+
+    /**
+     * @return the dictionary index for a role, or -1 if the role is not in the coupler
+     *
+     * @param role	role of interest
+     */
+    private int findRole(Role role) {
+        return (role == null ? -1 : this.coupler.findRole(role.getId()));
+    }
+
+    /**
+     * @return the number of times a role appeared
+     *
+     * @param roleId	ID of the role of interest
+     */
+    public int getCount(String roleId) {
+        int idx = this.coupler.findRole(roleId);
+        return (idx < 0 ? 0 : this.coupler.getRoleCount(idx));
+    }
+
+    @Override
+    public int getCount(Role role) {
+        int idx = this.findRole(role);
+        return (idx < 0 ? 0 : this.coupler.getRoleCount(idx));
+    }
+
+    @Override
+    public int getCount(Role role1, Role role2) {
+        return this.pairCount(this.findRole(role1), this.findRole(role2));
+    }
+
+    /**
+     * @return the number of times a pair of roles appeared together
+     *
+     * @param roleId1	ID of the first role of interest
+     * @param roleId2	ID of the second role of interest
+     */
+    public int getCount(String roleId1, String roleId2) {
+        return this.pairCount(this.coupler.findRole(roleId1), this.coupler.findRole(roleId2));
+    }
+
+    /**
+     * @return the pair count for two dictionary indices, or 0 if either role is missing
+     *
+     * @param idx1	dictionary index of the first role, or -1 if it is not in the coupler
+     * @param idx2	dictionary index of the second role, or -1 if it is not in the coupler
+     */
+    private int pairCount(int idx1, int idx2) {
+        return (idx1 < 0 || idx2 < 0 ? 0 : this.coupler.findPair(idx1, idx2));
+    }
+
+    @Override
+    public double getTogetherness(Role role1, Role role2) {
+        return this.togetherness(this.findRole(role1), this.findRole(role2));
+    }
+
+    /**
+     * @return the strength of the specified coupling, that is, the fraction of times the two roles
+     * 		   occur together
+     *
+     * @param roleId1	ID of the first role of interest
+     * @param roleId2	ID of the second role of interest
+     */
+    public double getTogetherness(String roleId1, String roleId2) {
+        return this.togetherness(this.coupler.findRole(roleId1), this.coupler.findRole(roleId2));
+    }
+
+    /**
+     * @return the togetherness for two dictionary indices, or 0 if either role is missing
+     *
+     * @param idx1	dictionary index of the first role, or -1 if it is not in the coupler
+     * @param idx2	dictionary index of the second role, or -1 if it is not in the coupler
+     */
+    private double togetherness(int idx1, int idx2) {
+        double retVal = 0.0;
+        if (idx1 >= 0 && idx2 >= 0) {
+            retVal = RoleCoupleCounter.togetherness(this.coupler.findPair(idx1, idx2),
+                    this.coupler.getRoleCount(idx1), this.coupler.getRoleCount(idx2));
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the gap used to build the coupler
+     */
+    public int getGap() {
+        return this.coupler.getGap();
+    }
+
+    /**
+     * @return the number of roles in the coupler
+     */
+    public int getRoleTotal() {
+        return this.coupler.getRoleTotal();
+    }
+
+    /**
+     * @return the number of role pairs in the coupler
+     */
+    public long getPairTotal() {
+        return this.coupler.getPairTotal();
+    }
+
+    /**
+     * @return the genome ledger of the coupler, mapping each genome ID to its content hash
+     *
+     * @throws IOException
+     */
+    public Map<String, String> getLedger() throws IOException {
+        return this.coupler.getLedger();
+    }
+
+    /**
+     * @return a role-coupling counter containing the whole coupler, for queries the index cannot answer
+     *
+     * @throws IOException
+     */
+    public RoleCoupleCounter readCounter() throws IOException {
+        return this.coupler.readCounter();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.coupler.close();
+    }
+
+}
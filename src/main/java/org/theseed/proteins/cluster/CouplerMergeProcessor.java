@@ -0,0 +1,122 @@
+package org.theseed.proteins.cluster;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * This command merges partial coupler files built over disjoint genome directories, for example on
+ * different machines, into a single coupler.  The inputs must have the same gap and role set.  The
+ * merge is a streaming k-way merge, so binary inputs are never loaded into memory.  Text inputs are loaded
+ * one at a time and converted to temporary binary files before the merge.  The output format is
+ * determined by the output file name (binary if it ends in ".rcb", otherwise text) unless it is overridden
+ * by an option.
+ *
+ * -v			write progress messages to STDERR
+ *
+ * --binary		write the output in binary format
+ * --text		write the output in text format
+ * --tempDir	directory for the temporary files converted from text inputs (default is the system
+ * 				temporary directory)
+ *
+ * The positional parameters are the name of the output coupler file followed by the names of the input
+ * coupler files.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CouplerMergeProcessor implements ICommand {
+
+    // COMMAND LINE
+
+    /** help option */
+    @Option(name="-h", aliases={"--help"}, help=true)
+    private boolean help;
+
+    /** TRUE if we want progress messages */
+    @Option(name="-v", aliases= {"--verbose", "--debug"}, usage="display progress on STDERR")
+    private boolean debug;
+
+    /** force binary output */
+    @Option(name="--binary", forbids="--text", usage="write binary output")
+    private boolean binaryMode;
+
+    /** force text output */
+    @Option(name="--text", forbids="--binary", usage="write text output")
+    private boolean textMode;
+
+    /** directory for temporary files */
+    @Option(name="--tempDir", metaVar="/tmp", usage="directory for temporary files converted from text inputs")
+    private File tempDir;
+
+    /** output coupler file */
+    @Argument(index=0, metaVar="outFile", usage="output coupler file", required=true)
+    private File outFile;
+
+    /** input coupler files */
+    @Argument(index=1, metaVar="inFile1 inFile2 ...", multiValued=true, usage="input coupler files")
+    private List<File> inFiles;
+
+    @Override
+    public boolean parseCommand(String[] args) {
+        boolean retVal = false;
+        // Set the defaults.
+        this.debug = false;
+        this.binaryMode = false;
+        this.textMode = false;
+        this.tempDir = new File(System.getProperty("java.io.tmpdir"));
+        this.inFiles = new ArrayList<File>();
+        // Parse the command line.
+        CmdLineParser parser = new CmdLineParser(this);
+        try {
+            parser.parseArgument(args);
+            if (this.help) {
+                parser.printUsage(System.err);
+            } else {
+                if (this.inFiles.isEmpty()) {
+                    throw new FileNotFoundException("At least one input coupler file is required.");
+                }
+                if (! this.tempDir.isDirectory()) {
+                    throw new FileNotFoundException(this.tempDir.getPath() + " is not a valid directory.");
+                }
+                for (File inFile : this.inFiles) {
+                    if (! inFile.exists()) {
+                        throw new FileNotFoundException(inFile.getPath() + " is not found.");
+                    }
+                }
+                // Apply the default output format.
+                if (! this.binaryMode && ! this.textMode) {
+                    this.binaryMode = BinaryCouplerFile.isBinaryName(this.outFile);
+                }
+                retVal = true;
+            }
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            // For parameter errors, we display the command usage.
+            parser.printUsage(System.err);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        return retVal;
+    }
+
+    @Override
+    public void run() {
+        try (CouplerMerger merger = new CouplerMerger(this.inFiles, this.tempDir, debug)) {
+            if (debug) System.err.println("Merging " + this.inFiles.size() + " couplers into " +
+                    (this.binaryMode ? "binary" : "text") + " coupler " + this.outFile + ".");
+            long pairs = merger.write(this.outFile, this.binaryMode);
+            if (debug) System.err.println(pairs + " pairs written for " + merger.getGenomeTotal() + " genomes.");
+        } catch (IOException e) {
+            System.err.println("Error processing command: " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+package org.theseed.proteins.cluster;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * This class merges partial coupler files built independently from disjoint sets of genomes.  Each input
+ * is opened as a {@link PairStream}, and the pairs are combined with a k-way merge, summing the counts of
+ * pairs that appear in more than one input.  The merged pairs are written to the output as they are
+ * produced, so no input has to be held in memory.  A text input must be loaded to be sorted, so each one
+ * is converted to a temporary binary coupler file as it is opened, and only one is in memory at a time.
+ * The temporary files are deleted when the merger is closed.
+ *
+ * The inputs must be compatible:  they must have the same gap and the same set of role IDs, and no genome
+ * may appear in the ledger of more than one input.  The merged coupler does not belong to a contribution
+ * log, so no log sequence number is saved with its ledger.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CouplerMerger implements Closeable {
+
+    // FIELDS
+    /** input coupler files */
+    private List<File> inFiles;
+    /** input pair streams */
+    private List<PairStream> inputs;
+    /** directory for temporary files */
+    private File tempDir;
+    /** temporary binary files converted from text inputs */
+    private List<File> tempFiles;
+    /** common gap */
+    private int gap;
+    /** role IDs, sorted */
+    private String[] ids;
+    /** role names, in dictionary order */
+    private String[] names;
+    /** summed role occurrence counts, in dictionary order */
+    private int[] counts;
+    /** combined genome ledger */
+    private Map<String, String> ledger;
+
+    /**
+     * Open a set of coupler files for merging and verify they are compatible.  Temporary files are put
+     * in the system temporary directory.
+     *
+     * @param inFiles	list of input coupler files
+     * @param verbose	TRUE to write progress messages to STDERR
+     *
+     * @throws IOException
+     */
+    public CouplerMerger(List<File> inFiles, boolean verbose) throws IOException {
+        this(inFiles, new File(System.getProperty("java.io.tmpdir")), verbose);
+    }
+
+    /**
+     * Open a set of coupler files for merging and verify they are compatible.
+     *
+     * @param inFiles	list of input coupler files
+     * @param tempDir	directory for the binary files converted from text inputs
+     * @param verbose	TRUE to write progress messages to STDERR
+     *
+     * @throws IOException
+     */
+    public CouplerMerger(List<File> inFiles, File tempDir, boolean verbose) throws IOException {
+        if (inFiles.isEmpty())
+            throw new IllegalArgumentException("At least one coupler file is required for a merge.");
+        this.inFiles = inFiles;
+        this.inputs = new ArrayList<PairStream>(inFiles.size());
+        this.tempDir = tempDir;
+        this.tempFiles = new ArrayList<File>();
+        try {
+            for (File inFile : inFiles) {
+                if (verbose) System.err.println("Opening coupler " + inFile + ".");
+                this.inputs.add(this.openInput(inFile, verbose));
+            }
+            this.validate();
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a pair stream for an input coupler file.  A binary file is streamed directly.  A text file is
+     * loaded, written to a temporary binary file, and released, so that the text inputs are not all in
+     * memory at once.  For a multi-gap text file, the pairs for the widest gap are used.
+     *
+     * @param inFile	input coupler file
+     * @param verbose	TRUE to write progress messages to STDERR
+     *
+     * @return a pair stream for the input
+     *
+     * @throws IOException
+     */
+    private PairStream openInput(File inFile, boolean verbose) throws IOException {
+        File binFile = inFile;
+        if (! BinaryCouplerFile.isBinary(inFile)) {
+            RoleCoupleCounter coupler = RoleCoupleCounter.load(inFile, verbose);
+            if (coupler instanceof MultiGapCoupleCounter)
+                coupler = ((MultiGapCoupleCounter) coupler).forGap(coupler.gap);
+            binFile = File.createTempFile("merge", BinaryCouplerFile.SUFFIX, this.tempDir);
+            this.tempFiles.add(binFile);
+            if (verbose) System.err.println("Converting " + inFile + " to " + binFile + ".");
+            BinaryCouplerFile.save(coupler, binFile);
+        }
+        return new BinaryPairStream(binFile);
+    }
+
+    /**
+     * Verify the inputs are compatible and compute the combined role counts and ledger.
+     *
+     * @throws IOException
+     */
+    private void validate() throws IOException {
+        PairStream first = this.inputs.get(0);
+        this.gap = first.getGap();
+        final int roleTotal = first.getRoleTotal();
+        this.ids = new String[roleTotal];
+        this.names = new String[roleTotal];
+        this.counts = new int[roleTotal];
+        for (int i = 0; i < roleTotal; i++) {
+            this.ids[i] = first.getRoleId(i);
+            this.names[i] = first.getRoleName(i);
+        }
+        this.ledger = new LinkedHashMap<String, String>();
+        Map<String, File> sources = new HashMap<String, File>();
+        for (int k = 0; k < this.inputs.size(); k++) {
+            PairStream input = this.inputs.get(k);
+            File inFile = this.inFiles.get(k);
+            if (input.getGap() != this.gap)
+                throw new IOException(inFile + " has gap " + input.getGap() + ", but " + this.inFiles.get(0) +
+                        " has gap " + this.gap + ".");
+            if (input.getRoleTotal() != roleTotal)
+                throw new IOException(inFile + " has " + input.getRoleTotal() + " roles, but " +
+                        this.inFiles.get(0) + " has " + roleTotal + ".");
+            for (int i = 0; i < roleTotal; i++) {
+                if (! input.getRoleId(i).equals(this.ids[i]))
+                    throw new IOException("Role set in " + inFile + " does not match " + this.inFiles.get(0) +
+                            " at role " + this.ids[i] + ".");
+                this.counts[i] += input.getRoleCount(i);
+            }
+            for (Map.Entry<String, String> entry : input.getLedger().entrySet()) {
+                String genomeId = entry.getKey();
+                File other = sources.put(genomeId, inFile);
+                if (other != null)
+                    throw new IOException("Genome " + genomeId + " was counted in both " + other + " and " +
+                            inFile + ".");
+                this.ledger.put(genomeId, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the pair key for the current pair in a stream
+     *
+     * @param stream	pair stream of interest
+     */
+    private static long keyOf(PairStream stream) {
+        return ((long) stream.getIndex1() << 32) | stream.getIndex2();
+    }
+
+    /**
+     * Merge the input couplers and write the result.
+     *
+     * @param outFile	output coupler file
+     * @param binary	TRUE to write the binary format, FALSE to write the text format
+     *
+     * @return the number of pairs written
+     *
+     * @throws IOException
+     */
+    public long write(File outFile, boolean binary) throws IOException {
+        long retVal;
+        PriorityQueue<PairStream> queue = new PriorityQueue<PairStream>(this.inputs.size(),
+                (a, b) -> Long.compare(keyOf(a), keyOf(b)));
+        for (PairStream input : this.inputs) {
+            if (input.next())
+                queue.add(input);
+        }
+        try (CouplerWriter writer = CouplerWriter.create(outFile, binary, this.gap, this.ids, this.names,
+                this.counts)) {
+            while (! queue.isEmpty()) {
+                // Take the lowest pair and add in the same pair from all the other streams.
+                PairStream stream = queue.poll();
+                int role1 = stream.getIndex1();
+                int role2 = stream.getIndex2();
+                long key = keyOf(stream);
+                int count = stream.getCount();
+                if (stream.next())
+                    queue.add(stream);
+                while (! queue.isEmpty() && keyOf(queue.peek()) == key) {
+                    stream = queue.poll();
+                    count += stream.getCount();
+                    if (stream.next())
+                        queue.add(stream);
+                }
+                writer.writePair(role1, role2, count);
+            }
+            writer.writeLedger(this.ledger, 0);
+            retVal = writer.getPairTotal();
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of genomes in the combined ledger
+     */
+    public int getGenomeTotal() {
+        return this.ledger.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (PairStream input : this.inputs)
+                input.close();
+        } finally {
+            for (File tempFile : this.tempFiles)
+                tempFile.delete();
+        }
+    }
+
+}
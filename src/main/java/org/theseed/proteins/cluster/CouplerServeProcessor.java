@@ -0,0 +1,123 @@
+package org.theseed.proteins.cluster;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * This command loads a coupler file once and answers coupling queries over HTTP until it is killed.
+ * The queries are described in {@link CouplingServer}.  The coupler file is reloaded automatically when
+ * it is replaced.
+ *
+ * -v			write progress messages to STDERR
+ *
+ * --host		address on which to listen (default "localhost", so only local clients can connect)
+ * --port		port on which to listen (default 7870)
+ * --threads	number of request threads (default 4)
+ * --poll		number of seconds between checks for a new version of the coupler file (default 10,
+ * 				0 to never check)
+ *
+ * The positional parameter is the name of the coupler file.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CouplerServeProcessor implements ICommand {
+
+    // COMMAND LINE
+
+    /** help option */
+    @Option(name="-h", aliases={"--help"}, help=true)
+    private boolean help;
+
+    /** TRUE if we want progress messages */
+    @Option(name="-v", aliases= {"--verbose", "--debug"}, usage="display progress on STDERR")
+    private boolean debug;
+
+    /** listening address */
+    @Option(name="--host", metaVar="localhost", usage="address on which to listen")
+    private String host;
+
+    /** listening port */
+    @Option(name="--port", metaVar="7870", usage="port on which to listen")
+    private int port;
+
+    /** number of request threads */
+    @Option(name="--threads", metaVar="4", usage="number of request threads")
+    private int threads;
+
+    /** reload check interval */
+    @Option(name="--poll", metaVar="10", usage="seconds between checks for a new coupler file (0 = never)")
+    private int pollInterval;
+
+    /** coupler file */
+    @Argument(index=0, metaVar="coupler.ser", usage="coupler file to serve", required=true)
+    private File couplerFile;
+
+    @Override
+    public boolean parseCommand(String[] args) {
+        boolean retVal = false;
+        // Set the defaults.
+        this.debug = false;
+        this.host = "localhost";
+        this.port = 7870;
+        this.threads = 4;
+        this.pollInterval = 10;
+        // Parse the command line.
+        CmdLineParser parser = new CmdLineParser(this);
+        try {
+            parser.parseArgument(args);
+            if (this.help) {
+                parser.printUsage(System.err);
+            } else {
+                if (! this.couplerFile.exists()) {
+                    throw new FileNotFoundException(this.couplerFile.getPath() + " is not found.");
+                }
+                if (this.port < 0 || this.port > 65535) {
+                    throw new IllegalArgumentException("Invalid port number " + this.port + ".");
+                }
+                if (this.threads < 1) {
+                    throw new IllegalArgumentException("Thread count must be at least 1.");
+                }
+                if (this.pollInterval < 0) {
+                    throw new IllegalArgumentException("Poll interval cannot be negative.");
+                }
+                retVal = true;
+            }
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            // For parameter errors, we display the command usage.
+            parser.printUsage(System.err);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        return retVal;
+    }
+
+    @Override
+    public void run() {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        try {
+            final CouplingServer server = new CouplingServer(this.couplerFile, debug);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (debug) System.err.println("Stopping server.");
+                server.close();
+                stopped.countDown();
+            }));
+            server.start(new InetSocketAddress(this.host, this.port), this.threads, this.pollInterval);
+            stopped.await();
+        } catch (IOException e) {
+            System.err.println("Error processing command: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.err.println("Server interrupted.");
+        }
+    }
+
+}
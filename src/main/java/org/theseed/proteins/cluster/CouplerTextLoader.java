@@ -0,0 +1,396 @@
+/**
+ *
+ */
+package org.theseed.proteins.cluster;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class loads a role-coupling counter from the text format written by
+ * {@link RoleCoupleCounter#saveText(File)}.  It reads the file through a large byte buffer and splits
+ * the lines itself, so no regular expressions are involved.  The numeric columns are parsed directly
+ * from the bytes, and the role IDs in the pair table are matched against a byte-keyed table of the
+ * roles, so the only strings built are for the role table itself.
+ *
+ * The file consists of a heading line beginning with the gap, a role table header, the role table,
+ * a pair table header, and the pair table.  This may be followed by a ledger header and a table of
+ * genome IDs and content hashes.  The ledger header may have a third column containing the sequence
+ * number of the last contribution log commit reflected in the counts.  In the role and pair tables, a
+ * line that does not begin with a number is treated as a section header.  The togetherness column of
+ * the pair table is ignored, since it can be computed from the counts.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CouplerTextLoader implements AutoCloseable {
+
+    // FIELDS
+    /** input stream */
+    private InputStream inStream;
+    /** input buffer */
+    private byte[] buffer;
+    /** position of the next unread byte in the buffer */
+    private int bufPos;
+    /** number of valid bytes in the buffer */
+    private int bufLen;
+    /** current line */
+    private byte[] line;
+    /** length of the current line */
+    private int lineLen;
+    /** start positions of the fields in the current line */
+    private int[] fieldStart;
+    /** end positions of the fields in the current line */
+    private int[] fieldEnd;
+    /** number of fields in the current line */
+    private int fieldCount;
+    /** number of lines read */
+    private long lineCount;
+    /** role ID keys in the role lookup table */
+    private byte[][] idKeys;
+    /** role indices in the role lookup table */
+    private int[] idValues;
+    /** number of roles in the role lookup table */
+    private int idCount;
+
+    /** size of the input buffer */
+    private static final int BUFFER_SIZE = 1 << 20;
+    /** first column heading of the ledger section */
+    private static final String LEDGER_ID_COLUMN = "genome_id";
+    /** maximum number of fields we split out of a line */
+    private static final int MAX_FIELDS = 4;
+
+    /**
+     * Open a text coupler file for loading.
+     *
+     * @param inFile	file to load
+     *
+     * @throws IOException
+     */
+    public CouplerTextLoader(File inFile) throws IOException {
+        this.inStream = new FileInputStream(inFile);
+        this.buffer = new byte[BUFFER_SIZE];
+        this.bufPos = 0;
+        this.bufLen = 0;
+        this.line = new byte[256];
+        this.lineLen = 0;
+        this.fieldStart = new int[MAX_FIELDS];
+        this.fieldEnd = new int[MAX_FIELDS];
+        this.fieldCount = 0;
+        this.lineCount = 0;
+        this.idKeys = new byte[64][];
+        this.idValues = new int[64];
+        this.idCount = 0;
+    }
+
+    /**
+     * Load a role-coupling counter from the specified text file.
+     *
+     * @param inFile	input file
+     * @param verbose	TRUE to write the load rate to STDERR
+     *
+     * @return a new role-coupling counter read from the file
+     *
+     * @throws IOException
+     */
+    public static RoleCoupleCounter load(File inFile, boolean verbose) throws IOException {
+        long start = System.currentTimeMillis();
+        try (CouplerTextLoader loader = new CouplerTextLoader(inFile)) {
+            RoleCoupleCounter retVal = loader.read();
+            if (verbose) {
+                double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+                System.err.format("%d lines read from %s in %4.2f seconds (%1.0f lines/second).%n",
+                        loader.lineCount, inFile, seconds, loader.lineCount / seconds);
+            }
+            return retVal;
+        }
+    }
+
+    /**
+     * Read the coupler data from the file.
+     *
+     * @return a new role-coupling counter containing the file data
+     *
+     * @throws IOException
+     */
+    private RoleCoupleCounter read() throws IOException {
+        // Read the gap from the heading line.
+        if (! this.nextLine() || ! this.isNumeric())
+            throw new IOException("Missing gap value in coupler file.");
+        RoleCoupleCounter retVal = new RoleCoupleCounter(this.intField(0));
+        // Skip the role table header.
+        if (! this.nextLine())
+            throw new IOException("Missing role table in coupler file.");
+        // Loop through the role table.
+        boolean more = this.nextLine();
+        while (more && this.isNumeric()) {
+            if (this.fieldCount < 3)
+                throw new IOException("Invalid role record at line " + this.lineCount + ".");
+            String roleId = this.stringField(1);
+            retVal.addRole(roleId, this.stringField(2), this.intField(0));
+            this.intern(1, retVal.findIndex(retVal.getRole(roleId)));
+            more = this.nextLine();
+        }
+        // The current line, if any, is the pair table header.  Loop through the pair table.
+        PairCountTable table = retVal.pairCounts;
+        more = this.nextLine();
+        while (more && this.isNumeric()) {
+            if (this.fieldCount < 3)
+                throw new IOException("Invalid pair record at line " + this.lineCount + ".");
+            int role1 = this.lookup(1);
+            int role2 = this.lookup(2);
+            table.add(role1, role2, this.intField(0));
+            more = this.nextLine();
+        }
+        // The current line, if any, is the ledger header.  Loop through the ledger.
+        if (more) {
+            if (! this.stringField(0).equals(LEDGER_ID_COLUMN))
+                throw new IOException("Unexpected data at line " + this.lineCount + ".");
+            if (this.fieldCount > 2)
+                retVal.setLogSequence(RoleCoupleCounter.parseLogSequence(this.stringField(2)));
+            while (this.nextLine()) {
+                if (this.lineLen > 0)
+                    retVal.recordGenome(this.stringField(0), (this.fieldCount > 1 ? this.stringField(1) : ""));
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Read the next line into the line buffer and locate its fields.
+     *
+     * @return TRUE if a line was read, FALSE at end of file
+     *
+     * @throws IOException
+     */
+    private boolean nextLine() throws IOException {
+        this.lineLen = 0;
+        boolean found = false;
+        boolean eof = false;
+        while (! found && ! eof) {
+            if (this.bufPos >= this.bufLen) {
+                this.bufLen = this.inStream.read(this.buffer);
+                this.bufPos = 0;
+                if (this.bufLen <= 0) {
+                    this.bufLen = 0;
+                    eof = true;
+                }
+            }
+            if (! eof) {
+                // Find the end of the line in the buffer.
+                int end = this.bufPos;
+                while (end < this.bufLen && this.buffer[end] != '\n')
+                    end++;
+                this.append(this.bufPos, end - this.bufPos);
+                if (end < this.bufLen) {
+                    found = true;
+                    end++;
+                }
+                this.bufPos = end;
+            }
+        }
+        boolean retVal = (found || this.lineLen > 0);
+        if (retVal) {
+            this.lineCount++;
+            if (this.lineLen > 0 && this.line[this.lineLen - 1] == '\r')
+                this.lineLen--;
+            this.split();
+        }
+        return retVal;
+    }
+
+    /**
+     * Append bytes from the input buffer to the line buffer.
+     *
+     * @param pos	start position in the input buffer
+     * @param len	number of bytes to copy
+     */
+    private void append(int pos, int len) {
+        int needed = this.lineLen + len;
+        if (needed > this.line.length)
+            this.line = Arrays.copyOf(this.line, Math.max(needed, this.line.length * 2));
+        System.arraycopy(this.buffer, pos, this.line, this.lineLen, len);
+        this.lineLen = needed;
+    }
+
+    /**
+     * Locate the tab-delimited fields in the current line.  The last field gets the remainder of the line.
+     */
+    private void split() {
+        int pos = 0;
+        this.fieldCount = 0;
+        while (this.fieldCount < MAX_FIELDS) {
+            this.fieldStart[this.fieldCount] = pos;
+            while (pos < this.lineLen && this.line[pos] != '\t')
+                pos++;
+            this.fieldEnd[this.fieldCount] = pos;
+            this.fieldCount++;
+            if (pos >= this.lineLen)
+                break;
+            pos++;
+        }
+        if (this.fieldCount == MAX_FIELDS)
+            this.fieldEnd[MAX_FIELDS - 1] = this.lineLen;
+    }
+
+    /**
+     * @return TRUE if the first field of the current line is an integer
+     */
+    private boolean isNumeric() {
+        int pos = this.fieldStart[0];
+        int end = this.fieldEnd[0];
+        if (pos < end && this.line[pos] == '-')
+            pos++;
+        boolean retVal = (pos < end);
+        while (retVal && pos < end) {
+            byte c = this.line[pos];
+            retVal = (c >= '0' && c <= '9');
+            pos++;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the integer value of a field in the current line
+     *
+     * @param idx	index of the field
+     *
+     * @throws IOException
+     */
+    private int intField(int idx) throws IOException {
+        int pos = this.fieldStart[idx];
+        int end = this.fieldEnd[idx];
+        boolean negative = false;
+        if (pos < end && this.line[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        if (pos >= end)
+            throw new IOException("Missing number at line " + this.lineCount + ".");
+        int retVal = 0;
+        while (pos < end) {
+            int digit = this.line[pos] - '0';
+            if (digit < 0 || digit > 9)
+                throw new IOException("Invalid number at line " + this.lineCount + ".");
+            retVal = retVal * 10 + digit;
+            pos++;
+        }
+        return (negative ? -retVal : retVal);
+    }
+
+    /**
+     * @return the string value of a field in the current line
+     *
+     * @param idx	index of the field
+     */
+    private String stringField(int idx) {
+        int pos = this.fieldStart[idx];
+        return new String(this.line, pos, this.fieldEnd[idx] - pos, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the hash code of a field in the current line
+     *
+     * @param idx	index of the field
+     */
+    private int fieldHash(int idx) {
+        int retVal = 0;
+        for (int pos = this.fieldStart[idx]; pos < this.fieldEnd[idx]; pos++)
+            retVal = retVal * 31 + this.line[pos];
+        return retVal ^ (retVal >>> 16);
+    }
+
+    /**
+     * @return TRUE if a field in the current line matches the specified key
+     *
+     * @param idx	index of the field
+     * @param key	key bytes to compare
+     */
+    private boolean fieldEquals(int idx, byte[] key) {
+        int pos = this.fieldStart[idx];
+        int len = this.fieldEnd[idx] - pos;
+        boolean retVal = (len == key.length);
+        for (int i = 0; retVal && i < len; i++)
+            retVal = (this.line[pos + i] == key[i]);
+        return retVal;
+    }
+
+    /**
+     * @return the lookup-table slot for a field in the current line; this is either the slot containing
+     * 		   the field's value or the empty slot where it belongs
+     *
+     * @param idx	index of the field
+     */
+    private int slot(int idx) {
+        int mask = this.idKeys.length - 1;
+        int retVal = this.fieldHash(idx) & mask;
+        while (this.idKeys[retVal] != null && ! this.fieldEquals(idx, this.idKeys[retVal]))
+            retVal = (retVal + 1) & mask;
+        return retVal;
+    }
+
+    /**
+     * Store a role ID from the current line in the lookup table.
+     *
+     * @param idx		index of the field containing the role ID
+     * @param roleIdx	index of the role in the counter
+     */
+    private void intern(int idx, int roleIdx) {
+        if ((this.idCount + 1) * 2 > this.idKeys.length) {
+            // Double the table size.
+            byte[][] oldKeys = this.idKeys;
+            int[] oldValues = this.idValues;
+            int mask = oldKeys.length * 2 - 1;
+            this.idKeys = new byte[oldKeys.length * 2][];
+            this.idValues = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                byte[] key = oldKeys[i];
+                if (key != null) {
+                    int hash = 0;
+                    for (byte b : key)
+                        hash = hash * 31 + b;
+                    int pos = (hash ^ (hash >>> 16)) & mask;
+                    while (this.idKeys[pos] != null)
+                        pos = (pos + 1) & mask;
+                    this.idKeys[pos] = key;
+                    this.idValues[pos] = oldValues[i];
+                }
+            }
+        }
+        int pos = this.slot(idx);
+        if (this.idKeys[pos] == null) {
+            this.idKeys[pos] = Arrays.copyOfRange(this.line, this.fieldStart[idx], this.fieldEnd[idx]);
+            this.idCount++;
+        }
+        this.idValues[pos] = roleIdx;
+    }
+
+    /**
+     * @return the role index for the role ID in a field of the current line
+     *
+     * @param idx	index of the field containing the role ID
+     */
+    private int lookup(int idx) {
+        int pos = this.slot(idx);
+        if (this.idKeys[pos] == null)
+            throw new IllegalArgumentException("No role found with ID " + this.stringField(idx) + ".");
+        return this.idValues[pos];
+    }
+
+    /**
+     * @return the number of lines read so far
+     */
+    public long getLineCount() {
+        return this.lineCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.inStream.close();
+    }
+
+}
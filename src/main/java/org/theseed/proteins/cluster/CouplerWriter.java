@@ -0,0 +1,116 @@
+package org.theseed.proteins.cluster;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * This is the base class for writing a coupler file one pair at a time, without building a counter in
+ * memory.  The role dictionary is specified when the writer is created, sorted by role ID.  The pairs
+ * are then written using dictionary indices, with the first index never greater than the second.  The
+ * binary format requires the pairs to be presented in index order; the text format accepts any order.
+ * Finally, the genome ledger is written, and the writer is closed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class CouplerWriter implements Closeable {
+
+    // FIELDS
+    /** maximum gap between neighbors */
+    protected int gap;
+    /** role IDs, sorted */
+    protected String[] ids;
+    /** role names, in dictionary order */
+    protected String[] names;
+    /** role occurrence counts, in dictionary order */
+    protected int[] counts;
+    /** number of pairs written */
+    protected long pairTotal;
+
+    /**
+     * Construct a coupler writer.
+     *
+     * @param gap		maximum gap between neighbors
+     * @param ids		role IDs, sorted
+     * @param names		role names, in dictionary order
+     * @param counts	role occurrence counts, in dictionary order
+     */
+    protected CouplerWriter(int gap, String[] ids, String[] names, int[] counts) {
+        this.gap = gap;
+        this.ids = ids;
+        this.names = names;
+        this.counts = counts;
+        this.pairTotal = 0;
+    }
+
+    /**
+     * Create a coupler writer.
+     *
+     * @param outFile	output file
+     * @param binary	TRUE for the binary format, FALSE for the text format
+     * @param gap		maximum gap between neighbors
+     * @param ids		role IDs, sorted
+     * @param names		role names, in dictionary order
+     * @param counts	role occurrence counts, in dictionary order
+     *
+     * @return a writer for the specified format
+     *
+     * @throws IOException
+     */
+    public static CouplerWriter create(File outFile, boolean binary, int gap, String[] ids, String[] names,
+            int[] counts) throws IOException {
+        CouplerWriter retVal;
+        if (binary) {
+            retVal = new BinaryCouplerWriter(outFile, gap, ids, names, counts);
+        } else {
+            retVal = new TextCouplerWriter(outFile, gap, ids, names, counts);
+        }
+        return retVal;
+    }
+
+    /**
+     * Write a role pair.
+     *
+     * @param role1		dictionary index of the first role
+     * @param role2		dictionary index of the second role (must not be less than the first)
+     * @param count		number of times the pair occurred
+     *
+     * @throws IOException
+     */
+    public void writePair(int role1, int role2, int count) throws IOException {
+        this.write(role1, role2, count);
+        this.pairTotal++;
+    }
+
+    /**
+     * Write a role pair to the output.
+     *
+     * @param role1		dictionary index of the first role
+     * @param role2		dictionary index of the second role
+     * @param count		number of times the pair occurred
+     *
+     * @throws IOException
+     */
+    protected abstract void write(int role1, int role2, int count) throws IOException;
+
+    /**
+     * Write the genome ledger.  This must be called after all the pairs are written.
+     *
+     * @param ledger		map of genome IDs to content hashes
+     * @param logSequence	sequence number of the last contribution log commit reflected in the counts,
+     * 						or 0 if there is none
+     *
+     * @throws IOException
+     */
+    public abstract void writeLedger(Map<String, String> ledger, long logSequence) throws IOException;
+
+    /**
+     * @return the number of pairs written
+     */
+    public long getPairTotal() {
+        return this.pairTotal;
+    }
+
+}
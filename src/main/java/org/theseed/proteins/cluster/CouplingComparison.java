@@ -0,0 +1,135 @@
+package org.theseed.proteins.cluster;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class compares role pairs against one or more reference couplers using a merge-join.  Each
+ * reference is opened as a {@link PairStream}.  The pairs to check must be presented in the same role
+ * ID order as the streams, so each reference only has to move forward; it is never searched.  For a
+ * binary reference, the memory used is independent of the number of pairs in the file.
+ *
+ * For each pair and reference, the comparison computes the togetherness and pair count in the reference,
+ * the number of times the two roles occurred apart, and a failure flag.  A pair fails if its
+ * togetherness in the reference is below the minimum and the two roles occurred often enough in the
+ * reference to make the comparison meaningful.  If neither role occurred in the reference, the
+ * comparison is empty.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CouplingComparison implements Closeable {
+
+    // FIELDS
+    /** reference pair streams */
+    private List<PairStream> references;
+    /** TRUE for each reference stream that is not exhausted */
+    private boolean[] active;
+    /** minimum togetherness for a pair to pass */
+    private double minTogether;
+    /** minimum number of role occurrences for a failure to count */
+    private int minCount;
+    /** number of failures for each reference */
+    private int[] failures;
+
+    /**
+     * Open a comparison against a list of reference coupler files.
+     *
+     * @param files			list of reference coupler files
+     * @param minTogether	minimum togetherness for a pair to pass
+     * @param minCount		minimum number of role occurrences in a reference for a failure to count
+     * @param verbose		TRUE to write progress messages to STDERR
+     *
+     * @throws IOException
+     */
+    public CouplingComparison(List<File> files, double minTogether, int minCount, boolean verbose)
+            throws IOException {
+        this.minTogether = minTogether;
+        this.minCount = minCount;
+        this.references = new ArrayList<PairStream>(files.size());
+        try {
+            for (File file : files) {
+                if (verbose) System.err.println("Opening comparison coupler " + file + ".");
+                this.references.add(PairStream.open(file, verbose));
+            }
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+        final int n = this.references.size();
+        this.active = new boolean[n];
+        this.failures = new int[n];
+        for (int i = 0; i < n; i++)
+            this.active[i] = this.references.get(i).next();
+    }
+
+    /**
+     * @return the number of reference couplers
+     */
+    public int size() {
+        return this.references.size();
+    }
+
+    /**
+     * @return the gap used to build a reference coupler
+     *
+     * @param i		index of the reference of interest
+     */
+    public int getGap(int i) {
+        return this.references.get(i).getGap();
+    }
+
+    /**
+     * @return the number of failures found in a reference coupler
+     *
+     * @param i		index of the reference of interest
+     */
+    public int getFailures(int i) {
+        return this.failures[i];
+    }
+
+    /**
+     * Compare a pair against all the reference couplers.  The pairs must be presented in role ID order.
+     *
+     * @param role1		ID of the first role (must be less than or equal to the second)
+     * @param role2		ID of the second role
+     * @param results	array to receive the comparison data, one per reference
+     *
+     * @throws IOException
+     */
+    public void compare(String role1, String role2, CouplingReport.Comparison[] results) throws IOException {
+        final int n = this.references.size();
+        for (int i = 0; i < n; i++) {
+            PairStream reference = this.references.get(i);
+            // Move this reference up to the pair.
+            while (this.active[i] && reference.compareTo(role1, role2) < 0)
+                this.active[i] = reference.next();
+            int otherPairCount = 0;
+            if (this.active[i] && reference.compareTo(role1, role2) == 0)
+                otherPairCount = reference.getCount();
+            // Note we ignore the result if neither role appeared in the reference.
+            int count1 = reference.getRoleCount(role1);
+            int count2 = reference.getRoleCount(role2);
+            int appearances = count1 + count2;
+            if (appearances > 0) {
+                double otherFrac = RoleCoupleCounter.togetherness(otherPairCount, count1, count2);
+                boolean failure = (otherFrac < this.minTogether && appearances >= this.minCount);
+                if (failure)
+                    this.failures[i]++;
+                results[i].set(otherFrac, otherPairCount, appearances - otherPairCount, failure);
+            } else {
+                results[i].clear();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (PairStream reference : this.references)
+            reference.close();
+    }
+
+}
@@ -0,0 +1,289 @@
+package org.theseed.proteins.cluster;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * This class collects progress metrics for a coupling run.  It keeps counters for the genomes, contigs,
+ * and features processed, and a timer for each phase of the run.  All the counters are atomic, so a
+ * single metrics object can be shared by the counting threads.  Because of this, the phase times are
+ * the total time spent by all threads, which can be greater than the elapsed time.
+ *
+ * Optionally, a snapshot of the metrics can be written as a line of JSON at a fixed interval.  Each
+ * snapshot contains the elapsed time, the counters and rates, the number of distinct pairs, the heap in
+ * use, and the phase times in seconds.  A final snapshot is written when the metrics are closed.  At the
+ * end of the run, a summary table can be printed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CouplingMetrics implements Closeable {
+
+    /**
+     * Enumeration of the timed phases.
+     */
+    public static enum Phase {
+        /** loading coupler files */
+        LOAD,
+        /** parsing genome files */
+        PARSE,
+        /** counting couplings */
+        COUNT,
+        /** merging counter shards */
+        MERGE,
+        /** selecting and sorting pairs for output */
+        SORT,
+        /** writing the report */
+        REPORT,
+        /** saving the coupler */
+        SAVE;
+
+        /**
+         * @return the name of this phase for output
+         */
+        public String label() {
+            return this.name().toLowerCase();
+        }
+    }
+
+    // FIELDS
+    /** start time of the run, in nanoseconds */
+    private long startTime;
+    /** number of genomes counted */
+    private AtomicLong genomes;
+    /** number of contigs counted */
+    private AtomicLong contigs;
+    /** number of features counted */
+    private AtomicLong features;
+    /** number of genomes skipped because they were already counted */
+    private AtomicLong skipped;
+    /** number of genomes that could not be read */
+    private AtomicLong errors;
+    /** total nanoseconds spent in each phase */
+    private AtomicLongArray phaseNanos;
+    /** number of times each phase was entered */
+    private AtomicLongArray phaseCalls;
+    /** source for the number of distinct pairs */
+    private volatile LongSupplier pairSource;
+    /** snapshot output stream, or NULL if snapshots are off */
+    private PrintStream snapshotStream;
+    /** TRUE if the snapshot stream should be closed at the end */
+    private boolean ownStream;
+    /** snapshot timer, or NULL if snapshots are off */
+    private ScheduledExecutorService timer;
+
+    /**
+     * Create a new, empty metrics object.  The run's elapsed time is measured from this point.
+     */
+    public CouplingMetrics() {
+        this.startTime = System.nanoTime();
+        this.genomes = new AtomicLong();
+        this.contigs = new AtomicLong();
+        this.features = new AtomicLong();
+        this.skipped = new AtomicLong();
+        this.errors = new AtomicLong();
+        final int n = Phase.values().length;
+        this.phaseNanos = new AtomicLongArray(n);
+        this.phaseCalls = new AtomicLongArray(n);
+        this.pairSource = () -> 0L;
+        this.snapshotStream = null;
+        this.ownStream = false;
+        this.timer = null;
+    }
+
+    /**
+     * Start writing periodic snapshots.
+     *
+     * @param outFile	output file for the snapshots, or NULL (or "-") to write them to STDERR
+     * @param interval	number of seconds between snapshots
+     *
+     * @throws FileNotFoundException
+     */
+    public void startSnapshots(File outFile, int interval) throws FileNotFoundException {
+        if (outFile == null || outFile.getPath().equals("-")) {
+            this.snapshotStream = System.err;
+            this.ownStream = false;
+        } else {
+            this.snapshotStream = new PrintStream(new FileOutputStream(outFile), true);
+            this.ownStream = true;
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread retVal = new Thread(r, "coupling-metrics");
+            retVal.setDaemon(true);
+            return retVal;
+        });
+        this.timer.scheduleAtFixedRate(() -> this.writeSnapshot(), interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Specify the source for the distinct pair count.
+     *
+     * @param pairSource	function that returns the current number of distinct pairs
+     */
+    public void setPairSource(LongSupplier pairSource) {
+        this.pairSource = pairSource;
+    }
+
+    /**
+     * @return the start time for a phase timer
+     */
+    public long startTimer() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time spent in a phase.
+     *
+     * @param phase		phase being timed
+     * @param start		start time returned by {@link #startTimer()}
+     */
+    public void stopTimer(Phase phase, long start) {
+        this.phaseNanos.addAndGet(phase.ordinal(), System.nanoTime() - start);
+        this.phaseCalls.incrementAndGet(phase.ordinal());
+    }
+
+    /**
+     * Record a counted genome.
+     *
+     * @param contigCount	number of contigs in the genome
+     * @param featureCount	number of features in the genome
+     */
+    public void recordGenome(int contigCount, int featureCount) {
+        this.genomes.incrementAndGet();
+        this.contigs.addAndGet(contigCount);
+        this.features.addAndGet(featureCount);
+    }
+
+    /**
+     * Record a genome skipped because it was already counted.
+     */
+    public void recordSkip() {
+        this.skipped.incrementAndGet();
+    }
+
+    /**
+     * Record a genome that could not be read.
+     */
+    public void recordError() {
+        this.errors.incrementAndGet();
+    }
+
+    /**
+     * @return the number of genomes counted
+     */
+    public long getGenomes() {
+        return this.genomes.get();
+    }
+
+    /**
+     * @return the number of features counted
+     */
+    public long getFeatures() {
+        return this.features.get();
+    }
+
+    /**
+     * @return the number of seconds spent in a phase
+     *
+     * @param phase		phase of interest
+     */
+    public double getSeconds(Phase phase) {
+        return this.phaseNanos.get(phase.ordinal()) / 1e9;
+    }
+
+    /**
+     * @return the number of seconds since the metrics were created
+     */
+    public double getElapsed() {
+        return (System.nanoTime() - this.startTime) / 1e9;
+    }
+
+    /**
+     * @return a JSON string describing the current state of the metrics
+     */
+    public String snapshot() {
+        double elapsed = this.getElapsed();
+        long genomeCount = this.genomes.get();
+        long featureCount = this.features.get();
+        Runtime runtime = Runtime.getRuntime();
+        StringBuilder retVal = new StringBuilder(400);
+        retVal.append(String.format(Locale.ROOT, "{\"elapsed\":%.3f,\"genomes\":%d,\"genomesPerSec\":%.3f," +
+                "\"contigs\":%d,\"features\":%d,\"featuresPerSec\":%.1f,\"skipped\":%d,\"errors\":%d," +
+                "\"pairs\":%d,\"heapUsed\":%d,\"heapMax\":%d,\"phases\":{",
+                elapsed, genomeCount, rate(genomeCount, elapsed), this.contigs.get(), featureCount,
+                rate(featureCount, elapsed), this.skipped.get(), this.errors.get(), this.pairSource.getAsLong(),
+                runtime.totalMemory() - runtime.freeMemory(), runtime.maxMemory()));
+        String delim = "";
+        for (Phase phase : Phase.values()) {
+            retVal.append(delim).append(String.format(Locale.ROOT, "\"%s\":%.3f", phase.label(),
+                    this.getSeconds(phase)));
+            delim = ",";
+        }
+        retVal.append("}}");
+        return retVal.toString();
+    }
+
+    /**
+     * @return a rate per second, or 0 if no time has elapsed
+     *
+     * @param count		number of items processed
+     * @param seconds	number of seconds elapsed
+     */
+    private static double rate(long count, double seconds) {
+        return (seconds > 0 ? count / seconds : 0.0);
+    }
+
+    /**
+     * Write a snapshot to the snapshot stream.
+     */
+    private synchronized void writeSnapshot() {
+        if (this.snapshotStream != null)
+            this.snapshotStream.println(this.snapshot());
+    }
+
+    /**
+     * Print a summary table of the metrics.
+     *
+     * @param out	output stream for the table
+     */
+    public void printSummary(PrintStream out) {
+        double elapsed = this.getElapsed();
+        out.println("Phase      Calls      Seconds  Percent");
+        for (Phase phase : Phase.values()) {
+            double seconds = this.getSeconds(phase);
+            out.format(Locale.ROOT, "%-8s %7d %12.3f %7.1f%%%n", phase.label(), this.phaseCalls.get(phase.ordinal()),
+                    seconds, (elapsed > 0 ? seconds * 100 / elapsed : 0.0));
+        }
+        out.format(Locale.ROOT, "%-8s %7s %12.3f%n", "elapsed", "", elapsed);
+        out.format(Locale.ROOT, "%d genomes (%.2f/second), %d contigs, %d features (%.1f/second), %d skipped, " +
+                "%d errors, %d distinct pairs.%n", this.genomes.get(), rate(this.genomes.get(), elapsed),
+                this.contigs.get(), this.features.get(), rate(this.features.get(), elapsed), this.skipped.get(),
+                this.errors.get(), this.pairSource.getAsLong());
+    }
+
+    /**
+     * Stop the snapshots, writing a final one.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.timer != null) {
+            this.timer.shutdownNow();
+            this.timer = null;
+            this.writeSnapshot();
+            if (this.ownStream)
+                this.snapshotStream.close();
+            this.snapshotStream = null;
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package org.theseed.proteins.cluster;
+
+import org.theseed.proteins.Role;
+
+/**
+ * This object describes a partner of a role:  the partner role, the number of times the two roles
+ * occurred together, and the togetherness of the pair.  Partners sort strongest first, that is, by
+ * descending togetherness, then by descending count, and finally by role ID.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CouplingPartner implements Comparable<CouplingPartner> {
+
+    // FIELDS
+    /** partner role */
+    private Role role;
+    /** number of times the roles occurred together */
+    private int count;
+    /** togetherness of the pair */
+    private double togetherness;
+
+    /**
+     * Create a partner descriptor.
+     *
+     * @param role			partner role
+     * @param count			number of times the roles occurred together
+     * @param togetherness	togetherness of the pair
+     */
+    public CouplingPartner(Role role, int count, double togetherness) {
+        this.role = role;
+        this.count = count;
+        this.togetherness = togetherness;
+    }
+
+    /**
+     * @return the partner role
+     */
+    public Role getRole() {
+        return this.role;
+    }
+
+    /**
+     * @return the number of times the roles occurred together
+     */
+    public int getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return the togetherness of the pair
+     */
+    public double getTogetherness() {
+        return this.togetherness;
+    }
+
+    @Override
+    public int compareTo(CouplingPartner other) {
+        int retVal = Double.compare(other.togetherness, this.togetherness);
+        if (retVal == 0) {
+            retVal = other.count - this.count;
+            if (retVal == 0)
+                retVal = this.role.getId().compareTo(other.role.getId());
+        }
+        return retVal;
+    }
+
+}
@@ -0,0 +1,297 @@
+package org.theseed.proteins.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This is the base class for the coupling report writers.  A report contains one row per role pair.
+ * Every row has the two role IDs, the togetherness fraction, and the pair count.  In a comparison
+ * report, a row also has a block of comparison columns for each reference coupler:  the togetherness
+ * and pair count in the reference, the number of other occurrences of the two roles, and a failure
+ * flag.  A comparison block is empty for a pair whose roles never occurred in the reference.
+ *
+ * Reports are written through a large buffer, and can be formatted as tab-delimited text, compressed
+ * tab-delimited text, or a binary columnar file.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class CouplingReport implements Closeable {
+
+    /** output buffer size */
+    protected static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Enumeration of the report formats.
+     */
+    public static enum Format {
+        /** tab-delimited text */
+        TSV("tsv"),
+        /** GZIP-compressed tab-delimited text */
+        TSV_GZ("tsv.gz"),
+        /** binary columnar file */
+        BIN("bin");
+
+        /** name of the format on the command line */
+        private String name;
+
+        private Format(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the format with the specified name
+         *
+         * @param name	name of the desired format
+         */
+        public static Format fromName(String name) {
+            Format retVal = null;
+            for (Format format : Format.values()) {
+                if (format.name.equalsIgnoreCase(name))
+                    retVal = format;
+            }
+            if (retVal == null)
+                throw new IllegalArgumentException("Invalid report format \"" + name + "\".");
+            return retVal;
+        }
+
+        /**
+         * @return the default format for an output file, based on its name
+         *
+         * @param outFile	output file, or NULL for the standard output
+         */
+        public static Format forFile(File outFile) {
+            Format retVal = TSV;
+            if (outFile != null) {
+                String name = outFile.getName();
+                if (name.endsWith(".gz")) {
+                    retVal = TSV_GZ;
+                } else if (name.endsWith(".bin")) {
+                    retVal = BIN;
+                }
+            }
+            return retVal;
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+
+    }
+
+    /**
+     * This class holds the comparison data for a pair against a single reference coupler.
+     */
+    public static class Comparison {
+
+        /** TRUE if the roles were found in the reference */
+        private boolean found;
+        /** togetherness fraction in the reference */
+        private double frac;
+        /** number of times the roles occurred together in the reference */
+        private int count;
+        /** number of times the roles occurred apart in the reference */
+        private int other;
+        /** TRUE if the pair failed the comparison */
+        private boolean failure;
+
+        /**
+         * Create an empty comparison.
+         */
+        public Comparison() {
+            this.clear();
+        }
+
+        /**
+         * Mark this comparison as empty, because the roles were not found in the reference.
+         */
+        public void clear() {
+            this.found = false;
+            this.frac = 0.0;
+            this.count = 0;
+            this.other = 0;
+            this.failure = false;
+        }
+
+        /**
+         * Store the comparison data.
+         *
+         * @param frac		togetherness fraction in the reference
+         * @param count		number of times the roles occurred together in the reference
+         * @param other		number of times the roles occurred apart in the reference
+         * @param failure	TRUE if the pair failed the comparison
+         */
+        public void set(double frac, int count, int other, boolean failure) {
+            this.found = true;
+            this.frac = frac;
+            this.count = count;
+            this.other = other;
+            this.failure = failure;
+        }
+
+        /**
+         * @return TRUE if the roles were found in the reference
+         */
+        public boolean isFound() {
+            return this.found;
+        }
+
+        /**
+         * @return the togetherness fraction in the reference
+         */
+        public double getFrac() {
+            return this.frac;
+        }
+
+        /**
+         * @return the number of times the roles occurred together in the reference
+         */
+        public int getCount() {
+            return this.count;
+        }
+
+        /**
+         * @return the number of times the roles occurred apart in the reference
+         */
+        public int getOther() {
+            return this.other;
+        }
+
+        /**
+         * @return TRUE if the pair failed the comparison
+         */
+        public boolean isFailure() {
+            return this.failure;
+        }
+
+    }
+
+    // FIELDS
+    /** number of reference couplers (0 if this is not a comparison report) */
+    private int references;
+    /** number of rows written */
+    private long rows;
+
+    /**
+     * Construct a coupling report.
+     *
+     * @param references	number of reference couplers (0 if this is not a comparison report)
+     */
+    protected CouplingReport(int references) {
+        this.references = references;
+        this.rows = 0;
+    }
+
+    /**
+     * Create a coupling report.
+     *
+     * @param format		format of the report
+     * @param outFile		output file, or NULL to write to the standard output
+     * @param references	number of reference couplers (0 if this is not a comparison report)
+     *
+     * @return a report writer for the specified format
+     *
+     * @throws IOException
+     */
+    public static CouplingReport create(Format format, File outFile, int references) throws IOException {
+        OutputStream out;
+        if (outFile == null) {
+            // The standard output is flushed at the end, but never closed.
+            out = new FilterOutputStream(System.out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    this.out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    this.flush();
+                }
+            };
+        } else {
+            out = new FileOutputStream(outFile);
+        }
+        CouplingReport retVal;
+        switch (format) {
+        case BIN :
+            retVal = new BinaryCouplingReport(new BufferedOutputStream(out, BUFFER_SIZE), references);
+            break;
+        case TSV_GZ :
+            retVal = new TextCouplingReport(out, true, references);
+            break;
+        default :
+            retVal = new TextCouplingReport(out, false, references);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of reference couplers (0 if this is not a comparison report)
+     */
+    public int getReferences() {
+        return this.references;
+    }
+
+    /**
+     * @return the number of rows written
+     */
+    public long getRows() {
+        return this.rows;
+    }
+
+    /**
+     * Write a row without comparison data.  In a comparison report, the comparison blocks are left empty.
+     *
+     * @param role1		ID of the first role
+     * @param role2		ID of the second role
+     * @param together	togetherness fraction
+     * @param count		number of times the roles occurred together
+     *
+     * @throws IOException
+     */
+    public void write(String role1, String role2, double together, int count) throws IOException {
+        this.writeRow(role1, role2, together, count, null);
+        this.rows++;
+    }
+
+    /**
+     * Write a row with comparison data.
+     *
+     * @param role1			ID of the first role
+     * @param role2			ID of the second role
+     * @param together		togetherness fraction
+     * @param count			number of times the roles occurred together
+     * @param others		array of comparison data, one per reference coupler
+     *
+     * @throws IOException
+     */
+    public void write(String role1, String role2, double together, int count, Comparison[] others)
+            throws IOException {
+        if (others.length != this.references)
+            throw new IllegalArgumentException("Expected " + this.references + " comparisons but found " +
+                    others.length + ".");
+        this.writeRow(role1, role2, together, count, others);
+        this.rows++;
+    }
+
+    /**
+     * Write a row of the report.
+     *
+     * @param role1			ID of the first role
+     * @param role2			ID of the second role
+     * @param together		togetherness fraction
+     * @param count			number of times the roles occurred together
+     * @param others		array of comparison data, one per reference coupler, or NULL if there is none
+     *
+     * @throws IOException
+     */
+    protected abstract void writeRow(String role1, String role2, double together, int count,
+            Comparison[] others) throws IOException;
+
+}
@@ -0,0 +1,549 @@
+package org.theseed.proteins.cluster;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class is a resident query service for a coupler file.  The coupler is loaded once and queries are
+ * answered over HTTP.  All responses are tab-delimited text with no headers.  The following requests are
+ * supported.  Roles are specified by ID.
+ *
+ * GET /count?role=A					the occurrence count of role A:  "A count"
+ * GET /pair?role1=A&amp;role2=B		the pair count and togetherness of A and B:  "A B count togetherness"
+ * GET /partners?role=A				the partners of A, strongest first:  "A B count togetherness" for each
+ * 									partner B; optional parameters are "minScore" (default 0), "minCount"
+ * 									(default 1), and "top" (default 0, meaning all)
+ * POST /batch						the request body contains one query per line, either a single role ID
+ * 									(answered as /count) or two tab-delimited role IDs (answered as /pair);
+ * 									there is one response line for each query line, in order
+ * GET /status						information about the loaded coupler, as key/value lines
+ * POST /reload						reload the coupler file immediately
+ *
+ * The loaded coupler is never modified, so any number of requests can read it at once.  A binary coupler
+ * file is opened as a {@link CouplerIndex}, so count, pair, and batch requests are answered from the
+ * memory-mapped file and the server starts almost at once.  The whole coupler, with its partner index,
+ * is only loaded for partner requests, the first time one arrives.  A text coupler file is loaded
+ * whole, and its partner index is built before it goes into service.  Either way, partner requests take
+ * time proportional to the role's degree.  The current version is held in an atomic reference, and
+ * each request takes the reference once, so a batch is always answered from a single version of the
+ * coupler.  The coupler file is checked periodically; when it is replaced, the new
+ * version is loaded in the background and swapped in, and requests in progress finish using the old one.
+ * The coupling processor saves the coupler by renaming a temporary file, so a partial file is never seen.
+ * This also matters for binary files, which stay mapped while they are served:  a file rewritten in
+ * place would change under the requests reading it.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CouplingServer implements AutoCloseable {
+
+    // FIELDS
+    /** coupler file */
+    private File couplerFile;
+    /** current coupler version */
+    private AtomicReference<Version> current;
+    /** HTTP server */
+    private HttpServer server;
+    /** request thread pool */
+    private ExecutorService workers;
+    /** file-watching thread */
+    private ScheduledExecutorService watcher;
+    /** TRUE to write progress messages to STDERR */
+    private boolean debug;
+
+    /**
+     * This class represents a loaded version of the coupler file.
+     */
+    public static class Version implements AutoCloseable {
+
+        /** index over the binary coupler file, or NULL if the file is text */
+        private CouplerIndex index;
+        /** loaded coupler, or NULL if it has not been needed yet */
+        private volatile RoleCoupleCounter coupler;
+        /** modification time of the file when it was loaded */
+        private long modified;
+        /** length of the file when it was loaded */
+        private long length;
+        /** time at which the coupler was loaded */
+        private long loadTime;
+
+        /**
+         * Load a version of the coupler file.
+         *
+         * @param couplerFile	coupler file to load
+         *
+         * @throws IOException
+         */
+        protected Version(File couplerFile) throws IOException {
+            this.modified = couplerFile.lastModified();
+            this.length = couplerFile.length();
+            this.index = null;
+            this.coupler = null;
+            if (BinaryCouplerFile.isBinary(couplerFile)) {
+                this.index = new CouplerIndex(couplerFile);
+            } else {
+                this.coupler = RoleCoupleCounter.load(couplerFile);
+                // Build the partner index before the version goes into service.
+                this.coupler.getPartnerIndex();
+            }
+            this.loadTime = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the whole coupler, loading it from the index if it has not been needed before
+         *
+         * @throws IOException
+         */
+        public RoleCoupleCounter getCoupler() throws IOException {
+            RoleCoupleCounter retVal = this.coupler;
+            if (retVal == null) {
+                synchronized (this) {
+                    retVal = this.coupler;
+                    if (retVal == null) {
+                        retVal = this.index.readCounter();
+                        retVal.getPartnerIndex();
+                        this.coupler = retVal;
+                    }
+                }
+            }
+            return retVal;
+        }
+
+        /**
+         * @return the number of times a role appeared
+         *
+         * @param roleId	ID of the role of interest
+         */
+        public int getCount(String roleId) {
+            int retVal;
+            if (this.index != null)
+                retVal = this.index.getCount(roleId);
+            else
+                retVal = this.coupler.getCount(this.coupler.getRole(roleId));
+            return retVal;
+        }
+
+        /**
+         * @return the number of times a pair of roles appeared together
+         *
+         * @param roleId1	ID of the first role of interest
+         * @param roleId2	ID of the second role of interest
+         */
+        public int getCount(String roleId1, String roleId2) {
+            int retVal;
+            if (this.index != null)
+                retVal = this.index.getCount(roleId1, roleId2);
+            else
+                retVal = this.coupler.getCount(this.coupler.getRole(roleId1), this.coupler.getRole(roleId2));
+            return retVal;
+        }
+
+        /**
+         * @return the strength of the specified coupling
+         *
+         * @param roleId1	ID of the first role of interest
+         * @param roleId2	ID of the second role of interest
+         */
+        public double getTogetherness(String roleId1, String roleId2) {
+            double retVal;
+            if (this.index != null)
+                retVal = this.index.getTogetherness(roleId1, roleId2);
+            else
+                retVal = this.coupler.getTogetherness(this.coupler.getRole(roleId1), this.coupler.getRole(roleId2));
+            return retVal;
+        }
+
+        /**
+         * @return the gap used to build the coupler
+         */
+        public int getGap() {
+            return (this.index != null ? this.index.getGap() : this.coupler.gap);
+        }
+
+        /**
+         * @return the number of roles in the coupler
+         */
+        public int getRoleTotal() {
+            return (this.index != null ? this.index.getRoleTotal() : this.coupler.getRoleCounts().size());
+        }
+
+        /**
+         * @return the number of role pairs in the coupler
+         */
+        public long getPairTotal() {
+            return (this.index != null ? this.index.getPairTotal() : this.coupler.getPairTotal());
+        }
+
+        /**
+         * @return the number of genomes in the coupler's ledger
+         *
+         * @throws IOException
+         */
+        public int getGenomeTotal() throws IOException {
+            return (this.index != null ? this.index.getLedger().size() : this.coupler.getLedger().size());
+        }
+
+        /**
+         * Release the coupler file.  Because the index keeps the whole file mapped, requests still
+         * using this version can finish after it is closed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (this.index != null)
+                this.index.close();
+        }
+
+        /**
+         * @return TRUE if the coupler file has changed since this version was loaded
+         *
+         * @param couplerFile	coupler file to check
+         */
+        public boolean isStale(File couplerFile) {
+            return couplerFile.lastModified() != this.modified || couplerFile.length() != this.length;
+        }
+
+    }
+
+    /**
+     * Load a coupler file for serving.  The server is not started.
+     *
+     * @param couplerFile	coupler file to serve
+     * @param debug			TRUE to write progress messages to STDERR
+     *
+     * @throws IOException
+     */
+    public CouplingServer(File couplerFile, boolean debug) throws IOException {
+        this.couplerFile = couplerFile;
+        this.debug = debug;
+        if (debug) System.err.println("Loading coupler from " + couplerFile + ".");
+        this.current = new AtomicReference<Version>(new Version(couplerFile));
+        this.server = null;
+        this.workers = null;
+        this.watcher = null;
+    }
+
+    /**
+     * Start serving requests.
+     *
+     * @param address	socket address on which to listen
+     * @param threads	number of request threads
+     * @param interval	number of seconds between checks of the coupler file, or 0 to never check
+     *
+     * @throws IOException
+     */
+    public void start(InetSocketAddress address, int threads, int interval) throws IOException {
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext("/count", (exchange) -> this.handle(exchange, this::count));
+        this.server.createContext("/pair", (exchange) -> this.handle(exchange, this::pair));
+        this.server.createContext("/partners", (exchange) -> this.handle(exchange, this::partners));
+        this.server.createContext("/batch", (exchange) -> this.handle(exchange, "POST", this::batch));
+        this.server.createContext("/status", (exchange) -> this.handle(exchange, this::status));
+        this.server.createContext("/reload", (exchange) -> this.handle(exchange, "POST", this::reload));
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.server.setExecutor(this.workers);
+        this.server.start();
+        if (interval > 0) {
+            this.watcher = Executors.newSingleThreadScheduledExecutor();
+            this.watcher.scheduleWithFixedDelay(this::checkFile, interval, interval, TimeUnit.SECONDS);
+        }
+        if (debug) System.err.println("Serving " + this.couplerFile + " on port " + this.getPort() + ".");
+    }
+
+    /**
+     * @return the port on which the server is listening
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * @return the current version of the coupler
+     */
+    public Version getVersion() {
+        return this.current.get();
+    }
+
+    /**
+     * Reload the coupler file if it has changed.  An error loading the new version is reported, and the
+     * old version stays in use.
+     */
+    public void checkFile() {
+        if (this.current.get().isStale(this.couplerFile)) {
+            try {
+                this.load();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("WARNING: error reloading " + this.couplerFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Load the coupler file and make it the current version.
+     *
+     * @throws IOException
+     */
+    public void load() throws IOException {
+        if (debug) System.err.println("Reloading coupler from " + this.couplerFile + ".");
+        Version old = this.current.getAndSet(new Version(this.couplerFile));
+        old.close();
+    }
+
+    /**
+     * This interface describes a request handler.  The handler computes the response text from the
+     * current coupler version and the request.
+     */
+    private interface Handler {
+
+        /**
+         * @return the response text for a request
+         *
+         * @param version	coupler version to query
+         * @param params	map of query parameter names to values
+         * @param exchange	HTTP exchange for the request
+         *
+         * @throws IOException
+         */
+        String respond(Version version, Map<String, String> params, HttpExchange exchange) throws IOException;
+
+    }
+
+    /**
+     * Process a request that accepts any method.
+     *
+     * @param exchange	HTTP exchange for the request
+     * @param handler	handler to compute the response
+     *
+     * @throws IOException
+     */
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        this.handle(exchange, null, handler);
+    }
+
+    /**
+     * Process a request.  A request with the wrong method produces a 405 response, and errors in the
+     * parameters produce a 400 response.  Any other failure produces a 500 response, so the client is
+     * never left without an answer.
+     *
+     * @param exchange	HTTP exchange for the request
+     * @param method	required request method, or NULL if any method is allowed
+     * @param handler	handler to compute the response
+     *
+     * @throws IOException
+     */
+    private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        int status = 200;
+        String text;
+        if (method != null && ! method.equals(exchange.getRequestMethod())) {
+            status = 405;
+            text = "Method " + exchange.getRequestMethod() + " not allowed; use " + method + ".\n";
+            exchange.getResponseHeaders().set("Allow", method);
+        } else {
+            try {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                text = handler.respond(this.current.get(), params, exchange);
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                text = e.getMessage() + "\n";
+            } catch (IOException | RuntimeException e) {
+                status = 500;
+                text = "Error processing request: " + e + "\n";
+                if (debug) e.printStackTrace(System.err);
+            }
+        }
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @return a map of the parameters in a URL query string
+     *
+     * @param query		raw query string, or NULL if there is none
+     *
+     * @throws UnsupportedEncodingException
+     */
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> retVal = new HashMap<String, String>();
+        if (query != null && ! query.isEmpty()) {
+            for (String part : query.split("&")) {
+                int eq = part.indexOf('=');
+                String name = (eq < 0 ? part : part.substring(0, eq));
+                String value = (eq < 0 ? "" : part.substring(eq + 1));
+                retVal.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the value of a required parameter
+     *
+     * @param params	parameter map
+     * @param name		name of the parameter
+     */
+    private static String required(Map<String, String> params, String name) {
+        String retVal = params.get(name);
+        if (retVal == null || retVal.isEmpty())
+            throw new IllegalArgumentException("Missing required parameter \"" + name + "\".");
+        return retVal;
+    }
+
+    /**
+     * @return the numeric value of an optional parameter
+     *
+     * @param params		parameter map
+     * @param name			name of the parameter
+     * @param defaultValue	value to use if the parameter is not present
+     */
+    private static double number(Map<String, String> params, String name, double defaultValue) {
+        double retVal = defaultValue;
+        String value = params.get(name);
+        if (value != null && ! value.isEmpty()) {
+            try {
+                retVal = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number \"" + value + "\" for parameter \"" + name + "\".");
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the response line for a role count query
+     *
+     * @param version	coupler version to query
+     * @param roleId	ID of the role
+     */
+    private static String countLine(Version version, String roleId) {
+        return roleId + "\t" + version.getCount(roleId) + "\n";
+    }
+
+    /**
+     * @return the response line for a pair query
+     *
+     * @param version	coupler version to query
+     * @param roleId1	ID of the first role
+     * @param roleId2	ID of the second role
+     */
+    private static String pairLine(Version version, String roleId1, String roleId2) {
+        return roleId1 + "\t" + roleId2 + "\t" + version.getCount(roleId1, roleId2) + "\t" +
+                version.getTogetherness(roleId1, roleId2) + "\n";
+    }
+
+    /**
+     * Answer a role count query.
+     */
+    private String count(Version version, Map<String, String> params, HttpExchange exchange) {
+        return countLine(version, required(params, "role"));
+    }
+
+    /**
+     * Answer a pair query.
+     */
+    private String pair(Version version, Map<String, String> params, HttpExchange exchange) {
+        return pairLine(version, required(params, "role1"), required(params, "role2"));
+    }
+
+    /**
+     * Answer a partner query.
+     */
+    private String partners(Version version, Map<String, String> params, HttpExchange exchange)
+            throws IOException {
+        String roleId = required(params, "role");
+        double minTogether = number(params, "minScore", 0.0);
+        int minCount = Math.max(1, (int) number(params, "minCount", 1));
+        int top = (int) number(params, "top", 0);
+        RoleCoupleCounter coupler = version.getCoupler();
+        List<CouplingPartner> found = coupler.getPartners(coupler.getRole(roleId), minTogether, minCount);
+        int n = (top > 0 ? Math.min(top, found.size()) : found.size());
+        StringBuilder retVal = new StringBuilder(n * 40);
+        for (int i = 0; i < n; i++) {
+            CouplingPartner partner = found.get(i);
+            retVal.append(roleId).append('\t').append(partner.getRole().getId()).append('\t')
+                    .append(partner.getCount()).append('\t').append(partner.getTogetherness()).append('\n');
+        }
+        return retVal.toString();
+    }
+
+    /**
+     * Answer a batch of queries from the request body.
+     */
+    private String batch(Version version, Map<String, String> params, HttpExchange exchange) throws IOException {
+        StringBuilder retVal = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(),
+                StandardCharsets.UTF_8))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] roleIds = line.trim().split("\t");
+                if (roleIds.length == 1 && ! roleIds[0].isEmpty())
+                    retVal.append(countLine(version, roleIds[0]));
+                else if (roleIds.length == 2)
+                    retVal.append(pairLine(version, roleIds[0], roleIds[1]));
+                else
+                    throw new IllegalArgumentException("Invalid batch query \"" + line + "\".");
+            }
+        }
+        return retVal.toString();
+    }
+
+    /**
+     * Describe the current coupler version.
+     */
+    private String status(Version version, Map<String, String> params, HttpExchange exchange)
+            throws IOException {
+        return "file\t" + this.couplerFile + "\n" +
+                "gap\t" + version.getGap() + "\n" +
+                "roles\t" + version.getRoleTotal() + "\n" +
+                "pairs\t" + version.getPairTotal() + "\n" +
+                "genomes\t" + version.getGenomeTotal() + "\n" +
+                "loaded\t" + version.loadTime + "\n";
+    }
+
+    /**
+     * Reload the coupler file on request.
+     */
+    private String reload(Version version, Map<String, String> params, HttpExchange exchange) throws IOException {
+        this.load();
+        return "reloaded\t" + this.current.get().loadTime + "\n";
+    }
+
+    /**
+     * Stop the server.  Requests in progress are given a second to finish.
+     */
+    @Override
+    public void close() {
+        if (this.watcher != null)
+            this.watcher.shutdownNow();
+        if (this.server != null) {
+            this.server.stop(1);
+            this.workers.shutdown();
+        }
+        try {
+            this.current.get().close();
+        } catch (IOException e) {
+            System.err.println("WARNING: error closing " + this.couplerFile + ": " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,356 @@
+package org.theseed.proteins.cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.theseed.genome.Genome;
+
+/**
+ * This class reads genomes ahead of the counting stage.  One or more reader threads pull genome entries
+ * from a {@link GenomeSource}, parse them, and put them in a bounded queue for the consumer.  The depth of the
+ * queue is the prefetch limit.  In addition, the total number of features in parsed genomes that have
+ * not yet been released by the consumer is capped, so that a run of very large genomes does not
+ * exhaust memory.  The decoded text of a GTO is only held by a reader while it parses the genome, so
+ * the text in memory is limited by the number of reader threads.  (The raw bytes of an archive entry
+ * stay with its item, so they are limited by the prefetch depth.)
+ *
+ * The consumer calls {@link #take()} to get the next item and {@link #release(Item)} when it is done
+ * counting it.  The items do not necessarily arrive in the order of the input files.  A genome that
+ * fails to parse is delivered as an item containing the error, so the consumer can report it and go on.
+ * When the source is exhausted and all its entries have been delivered, {@link #take()} returns NULL.
+ * It also returns NULL once the pipeline is closed, so a consumer never waits on a closed pipeline.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class GenomePipeline implements AutoCloseable {
+
+    // FIELDS
+    /** source of entries waiting to be read */
+    private GenomeSource pending;
+    /** parsed genomes waiting to be counted */
+    private BlockingQueue<Item> ready;
+    /** feature permits for parsed genomes */
+    private Semaphore featureLimit;
+    /** maximum number of features held at one time */
+    private int maxFeatures;
+    /** number of reader threads that have not yet finished */
+    private int activeReaders;
+    /** TRUE if the readers should stop reading */
+    private volatile boolean closing;
+    /** TRUE if the pipeline has been closed */
+    private volatile boolean closed;
+    /** error reading the source, or NULL if there was none */
+    private volatile IOException sourceError;
+    /** reader thread pool */
+    private ExecutorService readers;
+
+    /** number of milliseconds to wait on the queue before checking whether the pipeline is closed */
+    private static final long POLL_INTERVAL = 200;
+
+    /**
+     * This interface describes the object that reads a genome from a file.  The loader fills in the
+     * genome (and optionally a content hash) in the item, or a cached projection in place of the genome.
+     * If it leaves both NULL, the entry is considered skipped.
+     */
+    public interface Loader {
+
+        /**
+         * Load the genome for an item.
+         *
+         * @param item	item to load; the entry is already filled in
+         *
+         * @throws IOException
+         */
+        void load(Item item) throws IOException;
+
+    }
+
+    /**
+     * This class represents a single genome entry passing through the pipeline.
+     */
+    public static class Item {
+
+        /** input genome entry */
+        private GenomeSource.Entry entry;
+        /** parsed genome, or NULL if the file was skipped */
+        private Genome genome;
+        /** content hash of the file */
+        private String hash;
+        /** error encountered parsing the file, or NULL if there was none */
+        private Exception error;
+        /** number of feature permits held */
+        private int permits;
+        /** TRUE if the genome replaces a version already counted */
+        private boolean replacing;
+        /** cached projection of the genome, or NULL if there is none */
+        private GenomeProjection projection;
+
+        /**
+         * Create an item for a genome entry.
+         *
+         * @param entry		input genome entry
+         */
+        protected Item(GenomeSource.Entry entry) {
+            this.entry = entry;
+            this.genome = null;
+            this.hash = "";
+            this.error = null;
+            this.permits = 0;
+            this.replacing = false;
+            this.projection = null;
+        }
+
+        /**
+         * @return the input genome entry
+         */
+        public GenomeSource.Entry getEntry() {
+            return this.entry;
+        }
+
+        /**
+         * @return the parsed genome, or NULL if the file was skipped or failed
+         */
+        public Genome getGenome() {
+            return this.genome;
+        }
+
+        /**
+         * @param genome 	the parsed genome to store
+         */
+        public void setGenome(Genome genome) {
+            this.genome = genome;
+        }
+
+        /**
+         * @return the content hash of the file (empty if none was computed)
+         */
+        public String getHash() {
+            return this.hash;
+        }
+
+        /**
+         * @param hash 	the content hash to store
+         */
+        public void setHash(String hash) {
+            this.hash = hash;
+        }
+
+        /**
+         * @return the error encountered parsing the file, or NULL if it was parsed successfully
+         */
+        public Exception getError() {
+            return this.error;
+        }
+
+        /**
+         * @return TRUE if the genome replaces a version already counted
+         */
+        public boolean isReplacing() {
+            return this.replacing;
+        }
+
+        /**
+         * @param replacing 	TRUE if the genome replaces a version already counted
+         */
+        public void setReplacing(boolean replacing) {
+            this.replacing = replacing;
+        }
+
+        /**
+         * @return the cached projection of the genome, or NULL if the genome must be counted directly
+         */
+        public GenomeProjection getProjection() {
+            return this.projection;
+        }
+
+        /**
+         * @param projection 	the cached projection of the genome, used in place of the parsed genome
+         */
+        public void setProjection(GenomeProjection projection) {
+            this.projection = projection;
+        }
+
+    }
+
+    /**
+     * Start a pipeline to read the specified genome files.
+     *
+     * @param files			list of genome files to read
+     * @param loader		object used to read each genome
+     * @param threads		number of reader threads
+     * @param prefetch		maximum number of parsed genomes waiting in the queue
+     * @param maxFeatures	maximum number of features in parsed genomes not yet released
+     */
+    public GenomePipeline(List<File> files, Loader loader, int threads, int prefetch, int maxFeatures) {
+        this(new GenomeSource.FileSource(files), loader, Math.min(threads, Math.max(1, files.size())), prefetch,
+                maxFeatures);
+    }
+
+    /**
+     * Start a pipeline to read the genomes in a source.  The source is not closed by the pipeline.
+     *
+     * @param source		source of the genome entries to read
+     * @param loader		object used to read each genome
+     * @param threads		number of reader threads
+     * @param prefetch		maximum number of parsed genomes waiting in the queue
+     * @param maxFeatures	maximum number of features in parsed genomes not yet released
+     */
+    public GenomePipeline(GenomeSource source, Loader loader, int threads, int prefetch, int maxFeatures) {
+        if (threads < 1 || prefetch < 1 || maxFeatures < 1)
+            throw new IllegalArgumentException("Invalid genome pipeline limits.");
+        this.pending = source;
+        this.closing = false;
+        this.closed = false;
+        this.sourceError = null;
+        this.ready = new ArrayBlockingQueue<Item>(prefetch);
+        this.maxFeatures = maxFeatures;
+        this.featureLimit = new Semaphore(maxFeatures);
+        this.activeReaders = threads;
+        this.readers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++)
+            this.readers.execute(() -> this.read(loader));
+        this.readers.shutdown();
+    }
+
+    /**
+     * Reader thread loop.  Parse genome entries until the source is exhausted or the pipeline is closed.
+     * When the loop ends, for any reason, an item with no entry is queued to tell the consumer this reader
+     * is done.  If the reader fails with an unexpected error, the error is treated as a source error, so
+     * the other readers stop and the consumer is told.
+     *
+     * @param loader	object used to read each genome
+     */
+    private void read(Loader loader) {
+        try {
+            GenomeSource.Entry entry = this.nextEntry();
+            while (entry != null) {
+                Item item = new Item(entry);
+                try {
+                    loader.load(item);
+                } catch (IOException | RuntimeException e) {
+                    item.genome = null;
+                    item.projection = null;
+                    item.error = e;
+                }
+                int features = 0;
+                if (item.genome != null)
+                    features = item.genome.getFeatures().size();
+                else if (item.projection != null)
+                    features = item.projection.getFeatureTotal();
+                if (features > 0) {
+                    // A genome bigger than the whole limit is allowed through by itself.
+                    item.permits = Math.min(features, this.maxFeatures);
+                    this.featureLimit.acquire(item.permits);
+                }
+                this.ready.put(item);
+                entry = this.nextEntry();
+            }
+        } catch (InterruptedException e) {
+            // Here the pipeline is being closed.
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException | Error e) {
+            this.sourceError = new IOException("Genome reader failed: " + e.toString(), e);
+            this.closing = true;
+        } finally {
+            this.finishReader();
+        }
+    }
+
+    /**
+     * Queue the item that tells the consumer a reader is done.  If the queue is full, we keep trying until
+     * there is room or the pipeline is closed, in which case no consumer is waiting for the item.
+     */
+    private void finishReader() {
+        boolean queued = false;
+        while (! queued && ! this.closed) {
+            try {
+                queued = this.ready.offer(new Item(null), POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Here the pipeline is being closed.  Keep the interrupt status for the thread pool.
+                Thread.currentThread().interrupt();
+                queued = this.ready.offer(new Item(null));
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the next entry from the source, or NULL if there are no more
+     *
+     * An error reading the source itself stops all the readers, since the rest of the source cannot be
+     * read.  The error is thrown to the consumer when the last reader finishes.
+     */
+    private GenomeSource.Entry nextEntry() {
+        GenomeSource.Entry retVal = null;
+        if (! this.closing) {
+            try {
+                retVal = this.pending.next();
+            } catch (IOException e) {
+                this.sourceError = e;
+                this.closing = true;
+            } catch (RuntimeException e) {
+                this.sourceError = new IOException(e.getMessage(), e);
+                this.closing = true;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the next genome item, or NULL if all the entries have been delivered or the pipeline has
+     * 		   been closed
+     *
+     * @throws InterruptedException
+     * @throws UncheckedIOException if the source could not be read
+     */
+    public Item take() throws InterruptedException {
+        Item retVal = null;
+        synchronized (this) {
+            while (retVal == null && this.activeReaders > 0 && ! this.closed) {
+                retVal = this.ready.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (retVal != null && retVal.entry == null) {
+                    // This reader has finished.
+                    this.activeReaders--;
+                    retVal = null;
+                }
+            }
+        }
+        if (retVal == null && this.sourceError != null)
+            throw new UncheckedIOException("Error reading genome source: " + this.sourceError.getMessage(),
+                    this.sourceError);
+        return retVal;
+    }
+
+    /**
+     * Release the memory held by an item.  This must be called after the consumer is done with the
+     * genome, so that the readers can parse more.
+     *
+     * @param item	item to release
+     */
+    public void release(Item item) {
+        this.featureLimit.release(item.permits);
+        item.permits = 0;
+        item.genome = null;
+        item.projection = null;
+    }
+
+    /**
+     * Stop the reader threads.  Any consumer waiting for an item is released.
+     */
+    @Override
+    public void close() {
+        this.closing = true;
+        this.closed = true;
+        this.readers.shutdownNow();
+    }
+
+}
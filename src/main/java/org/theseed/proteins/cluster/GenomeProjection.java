@@ -0,0 +1,364 @@
+package org.theseed.proteins.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds the part of a genome that matters for coupling counts:  for each contig, the left and
+ * right positions of the features with useful roles, in order by left position, and the IDs of those
+ * roles.  Replaying a projection through a counter produces exactly the same counts as the original
+ * genome, for any gap, so a projection can be used to subtract a genome's contribution when the genome
+ * itself is no longer available.
+ *
+ * The role IDs are kept in a local dictionary, and the feature data is packed into primitive arrays, so
+ * a projection is much smaller than the genome.  It can be saved to and loaded from a compact binary file,
+ * which is read through a memory map.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class GenomeProjection {
+
+    // FIELDS
+    /** ID of the genome */
+    private String genomeId;
+    /** total number of features in the genome, including those with no useful roles */
+    private int featureTotal;
+    /** role IDs, in local dictionary order */
+    private List<String> roleIds;
+    /** map of role IDs to local dictionary indices */
+    private Map<String, Integer> roleMap;
+    /** index of the first feature of each contig; the entry past the last contig is the feature count */
+    private int[] contigStarts;
+    /** number of contigs */
+    private int contigCount;
+    /** left positions of the features */
+    private int[] lefts;
+    /** right positions of the features */
+    private int[] rights;
+    /** position in the role array of the first role of each feature; the entry past the last feature is
+     *  the end of the role data */
+    private int[] roleStarts;
+    /** number of features */
+    private int featureCount;
+    /** local role indices for all the features */
+    private int[] roles;
+
+    /** magic number for projection files */
+    private static final int MAGIC = 0x52435047;
+    /** projection file format version */
+    private static final int VERSION = 1;
+
+    /**
+     * Create an empty projection for a genome.
+     *
+     * @param genomeId	ID of the genome
+     */
+    public GenomeProjection(String genomeId) {
+        this.genomeId = genomeId;
+        this.featureTotal = 0;
+        this.roleIds = new ArrayList<String>();
+        this.roleMap = new HashMap<String, Integer>();
+        this.contigStarts = new int[17];
+        this.contigCount = 0;
+        this.lefts = new int[64];
+        this.rights = new int[64];
+        this.roleStarts = new int[65];
+        this.featureCount = 0;
+        this.roles = new int[128];
+    }
+
+    /**
+     * Start a new contig.  Subsequent features will belong to it.
+     */
+    public void addContig() {
+        if (this.contigCount + 1 >= this.contigStarts.length)
+            this.contigStarts = Arrays.copyOf(this.contigStarts, this.contigStarts.length * 2);
+        this.contigStarts[this.contigCount] = this.featureCount;
+        this.contigCount++;
+        this.contigStarts[this.contigCount] = this.featureCount;
+    }
+
+    /**
+     * Add a feature to the current contig.  The features in a contig must be added in order by left
+     * position.
+     *
+     * @param left		left position of the feature
+     * @param right		right position of the feature
+     * @param ids		IDs of the feature's useful roles
+     */
+    public void addFeature(int left, int right, String[] ids) {
+        if (this.featureCount >= this.lefts.length) {
+            int newSize = this.lefts.length * 2;
+            this.lefts = Arrays.copyOf(this.lefts, newSize);
+            this.rights = Arrays.copyOf(this.rights, newSize);
+            this.roleStarts = Arrays.copyOf(this.roleStarts, newSize + 1);
+        }
+        int start = this.roleStarts[this.featureCount];
+        int end = start + ids.length;
+        if (end > this.roles.length)
+            this.roles = Arrays.copyOf(this.roles, Math.max(end, this.roles.length * 2));
+        for (int i = 0; i < ids.length; i++) {
+            Integer idx = this.roleMap.get(ids[i]);
+            if (idx == null) {
+                idx = this.roleIds.size();
+                this.roleIds.add(ids[i]);
+                this.roleMap.put(ids[i], idx);
+            }
+            this.roles[start + i] = idx;
+        }
+        this.lefts[this.featureCount] = left;
+        this.rights[this.featureCount] = right;
+        this.featureCount++;
+        this.roleStarts[this.featureCount] = end;
+        this.contigStarts[this.contigCount] = this.featureCount;
+    }
+
+    /**
+     * Specify the total number of features in the genome, including those with no useful roles.
+     *
+     * @param featureTotal	total number of features
+     */
+    public void setFeatureTotal(int featureTotal) {
+        this.featureTotal = featureTotal;
+    }
+
+    /**
+     * @return the ID of the genome
+     */
+    public String getGenomeId() {
+        return this.genomeId;
+    }
+
+    /**
+     * @return the total number of features in the genome, including those with no useful roles
+     */
+    public int getFeatureTotal() {
+        return this.featureTotal;
+    }
+
+    /**
+     * @return the number of roles in the local dictionary
+     */
+    public int getRoleTotal() {
+        return this.roleIds.size();
+    }
+
+    /**
+     * @return the ID of a role in the local dictionary
+     *
+     * @param idx	local index of the role
+     */
+    public String getRoleId(int idx) {
+        return this.roleIds.get(idx);
+    }
+
+    /**
+     * @return the number of contigs
+     */
+    public int getContigTotal() {
+        return this.contigCount;
+    }
+
+    /**
+     * @return the index of the first feature in a contig
+     *
+     * @param contig	index of the contig, or the contig count to get the end of the last contig
+     */
+    public int getContigStart(int contig) {
+        return this.contigStarts[contig];
+    }
+
+    /**
+     * @return the left position of a feature
+     *
+     * @param feat	index of the feature
+     */
+    public int getLeft(int feat) {
+        return this.lefts[feat];
+    }
+
+    /**
+     * @return the right position of a feature
+     *
+     * @param feat	index of the feature
+     */
+    public int getRight(int feat) {
+        return this.rights[feat];
+    }
+
+    /**
+     * @return the position in the role data of the first role of a feature
+     *
+     * @param feat	index of the feature, or the feature count to get the end of the role data
+     */
+    public int getRoleStart(int feat) {
+        return this.roleStarts[feat];
+    }
+
+    /**
+     * @return the local index of a role in the role data
+     *
+     * @param pos	position in the role data
+     */
+    public int getRole(int pos) {
+        return this.roles[pos];
+    }
+
+    /**
+     * Save this projection to a file.
+     *
+     * @param outFile	output file
+     *
+     * @throws IOException
+     */
+    public void save(File outFile) throws IOException {
+        try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(outFile)))) {
+            this.write(outStream);
+        }
+    }
+
+    /**
+     * Write this projection to an output stream.
+     *
+     * @param outStream		output stream
+     *
+     * @throws IOException
+     */
+    public void write(DataOutputStream outStream) throws IOException {
+        outStream.writeInt(MAGIC);
+        outStream.writeInt(VERSION);
+        outStream.writeUTF(this.genomeId);
+        outStream.writeInt(this.featureTotal);
+        outStream.writeInt(this.roleIds.size());
+        for (String roleId : this.roleIds)
+            outStream.writeUTF(roleId);
+        outStream.writeInt(this.contigCount);
+        for (int c = 1; c <= this.contigCount; c++)
+            outStream.writeInt(this.contigStarts[c] - this.contigStarts[c-1]);
+        for (int f = 0; f < this.featureCount; f++) {
+            outStream.writeInt(this.lefts[f]);
+            outStream.writeInt(this.rights[f]);
+            int start = this.roleStarts[f];
+            int end = this.roleStarts[f+1];
+            outStream.writeShort(end - start);
+            for (int r = start; r < end; r++)
+                outStream.writeInt(this.roles[r]);
+        }
+    }
+
+    /**
+     * Load a projection from a file.  The file is memory-mapped and decoded directly from the mapped buffer.
+     *
+     * @param inFile	input file
+     *
+     * @return the projection read from the file
+     *
+     * @throws IOException
+     */
+    public static GenomeProjection load(File inFile) throws IOException {
+        GenomeProjection retVal;
+        try (FileChannel channel = FileChannel.open(inFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            retVal = read(buffer, inFile.getPath());
+        }
+        return retVal;
+    }
+
+    /**
+     * Read a projection from a buffer.  The buffer is positioned after the projection when done.
+     *
+     * @param buffer	buffer positioned at the start of the projection
+     * @param source	name of the projection's source, for error messages
+     *
+     * @return the projection read from the buffer
+     *
+     * @throws IOException
+     */
+    public static GenomeProjection read(ByteBuffer buffer, String source) throws IOException {
+        GenomeProjection retVal;
+        try {
+            if (buffer.getInt() != MAGIC)
+                throw new IOException(source + " is not a genome projection file.");
+            int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported projection file version " + version + " in " + source + ".");
+            retVal = new GenomeProjection(readString(buffer));
+            retVal.featureTotal = buffer.getInt();
+            int roleTotal = buffer.getInt();
+            String[] ids = new String[roleTotal];
+            for (int i = 0; i < roleTotal; i++) {
+                ids[i] = readString(buffer);
+                retVal.roleIds.add(ids[i]);
+                retVal.roleMap.put(ids[i], i);
+            }
+            int contigTotal = buffer.getInt();
+            int[] sizes = new int[contigTotal];
+            int featureTotal = 0;
+            for (int c = 0; c < contigTotal; c++) {
+                sizes[c] = buffer.getInt();
+                featureTotal += sizes[c];
+            }
+            // Size the arrays exactly, since we know the feature count.
+            retVal.contigStarts = new int[contigTotal + 1];
+            retVal.lefts = new int[featureTotal];
+            retVal.rights = new int[featureTotal];
+            retVal.roleStarts = new int[featureTotal + 1];
+            for (int c = 0; c < contigTotal; c++) {
+                retVal.addContig();
+                for (int f = 0; f < sizes[c]; f++) {
+                    int feat = retVal.featureCount;
+                    retVal.lefts[feat] = buffer.getInt();
+                    retVal.rights[feat] = buffer.getInt();
+                    int n = buffer.getShort();
+                    int start = retVal.roleStarts[feat];
+                    if (start + n > retVal.roles.length)
+                        retVal.roles = Arrays.copyOf(retVal.roles, Math.max(start + n, retVal.roles.length * 2));
+                    for (int r = 0; r < n; r++) {
+                        int idx = buffer.getInt();
+                        if (idx < 0 || idx >= roleTotal)
+                            throw new IOException("Invalid role index in " + source + ".");
+                        retVal.roles[start + r] = idx;
+                    }
+                    retVal.featureCount++;
+                    retVal.roleStarts[retVal.featureCount] = start + n;
+                    retVal.contigStarts[retVal.contigCount] = retVal.featureCount;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Premature end of projection in " + source + ".");
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a string written by {@link DataOutputStream#writeUTF(String)}
+     *
+     * Role and genome IDs never contain null or supplementary characters, so the modified UTF-8 used by
+     * the data streams is the same as standard UTF-8.
+     *
+     * @param buffer	buffer positioned at the string
+     */
+    private static String readString(ByteBuffer buffer) {
+        int len = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[len];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
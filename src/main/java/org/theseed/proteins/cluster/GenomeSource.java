@@ -0,0 +1,557 @@
+package org.theseed.proteins.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.theseed.genome.Genome;
+
+/**
+ * This class is a stream of genome entries read from some kind of storage.  A genome source can be a
+ * directory of GTO files, or a tar archive (optionally gzipped) containing GTO files.  In both cases,
+ * the individual GTO files may themselves be gzipped (".gto.gz").  The genome ID of each entry is
+ * computed from its file name.
+ *
+ * The entries are delivered one at a time by {@link #next()}, which is thread-safe, so several reader
+ * threads can pull from the same source.  An archive is never extracted to disk:  each entry's bytes are
+ * read into memory as it is delivered, and the entry is parsed (and if necessary decompressed) later by
+ * whichever thread reads it.  Only the archive stream itself is read serially.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class GenomeSource implements Closeable {
+
+    // FIELDS
+    /** entry read ahead by {@link #hasNext()}, or NULL if none */
+    private Entry peeked;
+
+    /** suffix for GTO files */
+    public static final String GTO_SUFFIX = ".gto";
+    /** suffix for compressed GTO files */
+    public static final String GZ_SUFFIX = ".gto.gz";
+
+    /**
+     * This class represents a single genome in a source.
+     */
+    public static abstract class Entry {
+
+        /** name of the entry, for messages */
+        private String name;
+        /** ID of the genome */
+        private String genomeId;
+
+        /**
+         * Create an entry.
+         *
+         * @param name		name of the entry
+         * @param genomeId	ID of the genome
+         */
+        protected Entry(String name, String genomeId) {
+            this.name = name;
+            this.genomeId = genomeId;
+        }
+
+        /**
+         * @return the name of the entry
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return the ID of the genome
+         */
+        public String getGenomeId() {
+            return this.genomeId;
+        }
+
+        /**
+         * @return a stream for the raw bytes of the entry, as they are stored
+         *
+         * @throws IOException
+         */
+        public abstract InputStream open() throws IOException;
+
+        /**
+         * @return a string that changes whenever the stored entry changes, computed without parsing it
+         */
+        public abstract String getSignature();
+
+        /**
+         * @return the genome in this entry
+         *
+         * @throws IOException
+         */
+        public Genome read() throws IOException {
+            Genome retVal;
+            try (InputStream in = this.open()) {
+                InputStream genomeStream = (this.name.endsWith(GZ_SUFFIX) ? new GZIPInputStream(in, 1 << 16) : in);
+                retVal = parse(genomeStream, this.name);
+            }
+            return retVal;
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+
+    }
+
+    /**
+     * This is an entry for a GTO file on disk.
+     */
+    public static class FileEntry extends Entry {
+
+        /** GTO file */
+        private File file;
+
+        /**
+         * Create an entry for a GTO file.
+         *
+         * @param file	GTO file, possibly compressed
+         */
+        public FileEntry(File file) {
+            super(file.getPath(), genomeIdOf(file.getName()));
+            this.file = file;
+        }
+
+        /**
+         * @return the GTO file
+         */
+        public File getFile() {
+            return this.file;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new BufferedInputStream(new FileInputStream(this.file), 1 << 16);
+        }
+
+        /**
+         * @return the length and modification time of the file
+         */
+        @Override
+        public String getSignature() {
+            return this.file.length() + ":" + this.file.lastModified();
+        }
+
+        @Override
+        public Genome read() throws IOException {
+            Genome retVal;
+            if (this.getName().endsWith(GZ_SUFFIX))
+                retVal = super.read();
+            else
+                retVal = new Genome(this.file);
+            return retVal;
+        }
+
+    }
+
+    /**
+     * This is an entry whose bytes have already been read into memory.
+     */
+    public static class BufferEntry extends Entry {
+
+        /** bytes of the entry */
+        private byte[] data;
+
+        /**
+         * Create an entry from a buffer.
+         *
+         * @param name		name of the entry
+         * @param data		bytes of the entry, possibly compressed
+         */
+        public BufferEntry(String name, byte[] data) {
+            super(name, genomeIdOf(name));
+            this.data = data;
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(this.data);
+        }
+
+        /**
+         * @return the length and CRC-32 checksum of the data
+         */
+        @Override
+        public String getSignature() {
+            CRC32 crc = new CRC32();
+            crc.update(this.data, 0, this.data.length);
+            return this.data.length + ":" + Long.toHexString(crc.getValue());
+        }
+
+    }
+
+    /**
+     * This source delivers a list of GTO files.
+     */
+    public static class FileSource extends GenomeSource {
+
+        /** files to deliver */
+        private List<File> files;
+        /** index of the next file */
+        private int pos;
+
+        /**
+         * Create a source from a list of GTO files.
+         *
+         * @param files		list of files to deliver
+         */
+        public FileSource(List<File> files) {
+            this.files = files;
+            this.pos = 0;
+        }
+
+        /**
+         * Create a source for the GTO files in a directory, in order by name.
+         *
+         * @param dirFile	directory to scan
+         *
+         * @throws IOException
+         */
+        public FileSource(File dirFile) throws IOException {
+            this(new ArrayList<File>(Arrays.asList(listGenomes(dirFile))));
+            this.files.sort(null);
+        }
+
+        /**
+         * @return the GTO files in a directory
+         *
+         * @param dirFile	directory to scan
+         *
+         * @throws IOException
+         */
+        private static File[] listGenomes(File dirFile) throws IOException {
+            File[] retVal = dirFile.listFiles((dir, name) -> isGenomeName(name));
+            if (retVal == null)
+                throw new IOException("Cannot list genome directory " + dirFile + ".");
+            return retVal;
+        }
+
+        @Override
+        protected Entry fetch() {
+            Entry retVal = null;
+            if (this.pos < this.files.size()) {
+                retVal = new FileEntry(this.files.get(this.pos));
+                this.pos++;
+            }
+            return retVal;
+        }
+
+        @Override
+        public void close() { }
+
+    }
+
+    /**
+     * This source delivers the GTO files in a tar archive, which may be gzipped.  Entries that are not GTO
+     * files are ignored.
+     */
+    public static class ArchiveSource extends GenomeSource {
+
+        /** archive input stream */
+        private TarArchiveInputStream tarStream;
+        /** name of the archive, for messages */
+        private String archiveName;
+
+        /**
+         * Open a tar archive.
+         *
+         * @param archiveFile	archive file to read
+         *
+         * @throws IOException
+         */
+        public ArchiveSource(File archiveFile) throws IOException {
+            InputStream in = new BufferedInputStream(new FileInputStream(archiveFile), 1 << 16);
+            try {
+                String name = archiveFile.getName();
+                if (name.endsWith(".gz") || name.endsWith(".tgz"))
+                    in = new GZIPInputStream(in, 1 << 16);
+                this.tarStream = new TarArchiveInputStream(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            this.archiveName = archiveFile.getPath();
+        }
+
+        @Override
+        protected Entry fetch() throws IOException {
+            Entry retVal = null;
+            TarArchiveEntry tarEntry = this.tarStream.getNextTarEntry();
+            while (retVal == null && tarEntry != null) {
+                if (tarEntry.isFile() && isGenomeName(tarEntry.getName())) {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) Math.max(tarEntry.getSize(), 32));
+                    copy(this.tarStream, buffer);
+                    retVal = new BufferEntry(this.archiveName + ":" + tarEntry.getName(), buffer.toByteArray());
+                } else {
+                    tarEntry = this.tarStream.getNextTarEntry();
+                }
+            }
+            return retVal;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.tarStream.close();
+        }
+
+    }
+
+    /**
+     * This source delivers the entries of several sources in sequence.  An entry whose genome ID has already
+     * been delivered is skipped with a warning.
+     */
+    public static class ChainSource extends GenomeSource {
+
+        /** sources to chain */
+        private List<GenomeSource> sources;
+        /** index of the current source */
+        private int pos;
+        /** IDs of the genomes already delivered */
+        private Set<String> genomeIds;
+
+        /**
+         * Chain a list of sources together.
+         *
+         * @param sources	sources to chain, in order
+         */
+        public ChainSource(List<GenomeSource> sources) {
+            this.sources = sources;
+            this.pos = 0;
+            this.genomeIds = new HashSet<String>();
+        }
+
+        @Override
+        protected Entry fetch() throws IOException {
+            Entry retVal = null;
+            while (retVal == null && this.pos < this.sources.size()) {
+                retVal = this.sources.get(this.pos).next();
+                if (retVal == null) {
+                    this.pos++;
+                } else if (! this.genomeIds.add(retVal.getGenomeId())) {
+                    System.err.println("WARNING: duplicate genome " + retVal.getGenomeId() + " in " +
+                            retVal.getName() + " skipped.");
+                    retVal = null;
+                }
+            }
+            return retVal;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException error = null;
+            for (GenomeSource source : this.sources) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+
+    }
+
+    /**
+     * This source delivers at most a fixed number of entries from another source.  It is used to break a
+     * source into checkpoint batches.  Closing it does not close the underlying source.
+     */
+    public static class BatchSource extends GenomeSource {
+
+        /** underlying source */
+        private GenomeSource parent;
+        /** number of entries left to deliver */
+        private int remaining;
+
+        /**
+         * Create a batch from a source.
+         *
+         * @param parent	underlying source
+         * @param limit		maximum number of entries to deliver
+         */
+        public BatchSource(GenomeSource parent, int limit) {
+            this.parent = parent;
+            this.remaining = limit;
+        }
+
+        @Override
+        protected Entry fetch() throws IOException {
+            Entry retVal = null;
+            if (this.remaining > 0) {
+                retVal = this.parent.next();
+                if (retVal != null)
+                    this.remaining--;
+            }
+            return retVal;
+        }
+
+        @Override
+        public void close() { }
+
+    }
+
+    /**
+     * @return the next entry from the underlying storage, or NULL if there are no more
+     *
+     * @throws IOException
+     */
+    protected abstract Entry fetch() throws IOException;
+
+    /**
+     * @return the next entry in this source, or NULL if there are no more
+     *
+     * @throws IOException
+     */
+    public synchronized Entry next() throws IOException {
+        Entry retVal = this.peeked;
+        if (retVal != null)
+            this.peeked = null;
+        else
+            retVal = this.fetch();
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if there is another entry in this source
+     *
+     * @throws IOException
+     */
+    public synchronized boolean hasNext() throws IOException {
+        if (this.peeked == null)
+            this.peeked = this.fetch();
+        return (this.peeked != null);
+    }
+
+    /**
+     * @return a genome source for a directory or archive file
+     *
+     * @param inFile	directory or archive to read
+     *
+     * @throws IOException
+     */
+    public static GenomeSource open(File inFile) throws IOException {
+        GenomeSource retVal;
+        if (inFile.isDirectory())
+            retVal = new FileSource(inFile);
+        else if (isArchiveName(inFile.getName()))
+            retVal = new ArchiveSource(inFile);
+        else
+            throw new IOException(inFile + " is not a genome directory or archive.");
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the specified file can be opened as a genome source
+     *
+     * @param inFile	file to check
+     */
+    public static boolean isValid(File inFile) {
+        return inFile.isDirectory() || inFile.isFile() && isArchiveName(inFile.getName());
+    }
+
+    /**
+     * @return TRUE if the file name is that of a tar archive
+     *
+     * @param name	file name to check
+     */
+    public static boolean isArchiveName(String name) {
+        return name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    /**
+     * @return TRUE if the file name is that of a GTO file, compressed or not
+     *
+     * @param name	file name to check
+     */
+    public static boolean isGenomeName(String name) {
+        return name.endsWith(GTO_SUFFIX) || name.endsWith(GZ_SUFFIX);
+    }
+
+    /**
+     * @return the genome ID for a GTO file name, which may include a path
+     *
+     * @param name	file name of interest
+     */
+    public static String genomeIdOf(String name) {
+        String retVal = name.substring(name.lastIndexOf('/') + 1);
+        if (retVal.endsWith(GZ_SUFFIX))
+            retVal = retVal.substring(0, retVal.length() - GZ_SUFFIX.length());
+        else if (retVal.endsWith(GTO_SUFFIX))
+            retVal = retVal.substring(0, retVal.length() - GTO_SUFFIX.length());
+        return retVal;
+    }
+
+    /**
+     * @return a genome parsed from a stream of GTO text
+     *
+     * The GTO is parsed by the same JSON loader the genome library uses for GTO files on disk.  Its text is
+     * held in memory only while it is being parsed, so each reader thread of a {@link GenomePipeline} holds
+     * at most one GTO text at a time, while the parsed genomes are limited by the pipeline's feature cap.
+     *
+     * @param in		input stream containing the GTO
+     * @param name		name of the genome's source, for messages
+     *
+     * @throws IOException
+     */
+    private static Genome parse(InputStream in, String name) throws IOException {
+        String json = readText(in);
+        Genome retVal;
+        try {
+            retVal = Genome.fromJson(json);
+        } catch (Exception e) {
+            throw new IOException("Error parsing genome in " + name + ": " + e.getMessage(), e);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the text in an input stream, decoded as UTF-8
+     *
+     * The text is decoded directly from the read buffer, which can be reclaimed as soon as this method
+     * returns.
+     *
+     * @param in	input stream to read (not closed)
+     *
+     * @throws IOException
+     */
+    private static String readText(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 20);
+        copy(in, buffer);
+        return buffer.toString(StandardCharsets.UTF_8.name());
+    }
+
+    /**
+     * Copy all the bytes from an input stream to a buffer.  The input stream is not closed.
+     *
+     * @param in		input stream
+     * @param buffer	output buffer
+     *
+     * @throws IOException
+     */
+    private static void copy(InputStream in, ByteArrayOutputStream buffer) throws IOException {
+        byte[] chunk = new byte[1 << 16];
+        for (int len = in.read(chunk); len >= 0; len = in.read(chunk))
+            buffer.write(chunk, 0, len);
+    }
+
+}
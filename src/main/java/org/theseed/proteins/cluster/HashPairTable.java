@@ -0,0 +1,192 @@
+/**
+ *
+ */
+package org.theseed.proteins.cluster;
+
+import java.util.Arrays;
+
+/**
+ * This is a pair-count table for large role sets.  It is an open-addressed hash table with linear
+ * probing that maps a long pair key (see {@link PairCountTable#pairKey}) to an integer count.  Only
+ * pairs that actually occur take up space.  A pair whose count drops to zero is removed using
+ * backward-shift deletion, so no tombstones are needed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class HashPairTable extends PairCountTable {
+
+    // FIELDS
+    /** array of keys */
+    private long[] keys;
+    /** array of counts, parallel to the keys */
+    private int[] values;
+    /** number of occupied slots */
+    private int size;
+    /** number of occupied slots at which the table is expanded */
+    private int threshold;
+
+    /** key value for an empty slot */
+    private static final long EMPTY = -1L;
+    /** maximum load factor */
+    private static final double LOAD_FACTOR = 0.6;
+    /** maximum capacity (the largest power of 2 that can be an array length) */
+    private static final int MAX_CAPACITY = 1 << 30;
+    /** maximum number of pairs the table can hold */
+    public static final int MAX_PAIRS = (int) (MAX_CAPACITY * LOAD_FACTOR);
+
+    /**
+     * Create a new, empty hash table.
+     *
+     * @param expected	expected number of pairs (values above {@link #MAX_PAIRS} are treated as the maximum)
+     */
+    public HashPairTable(int expected) {
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * LOAD_FACTOR < expected)
+            capacity <<= 1;
+        this.allocate(capacity);
+        this.size = 0;
+    }
+
+    /**
+     * Allocate empty key and value arrays of the specified capacity.
+     *
+     * @param capacity	new table capacity (must be a power of 2)
+     */
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        Arrays.fill(this.keys, EMPTY);
+        this.values = new int[capacity];
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * @return the home slot for a key
+     *
+     * @param key	key to hash
+     */
+    private int slot(long key) {
+        // This is the finalizer from MurmurHash3, which spreads the role indices across all the bits.
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & (this.keys.length - 1);
+    }
+
+    /**
+     * @return the slot containing the key, or the empty slot where it would be inserted
+     *
+     * @param key	key to find
+     */
+    private int find(long key) {
+        int mask = this.keys.length - 1;
+        int retVal = this.slot(key);
+        while (this.keys[retVal] != EMPTY && this.keys[retVal] != key)
+            retVal = (retVal + 1) & mask;
+        return retVal;
+    }
+
+    @Override
+    public int get(int role1, int role2) {
+        int pos = this.find(pairKey(role1, role2));
+        return this.values[pos];
+    }
+
+    @Override
+    public void add(int role1, int role2, int count) {
+        long key = pairKey(role1, role2);
+        int pos = this.find(key);
+        if (this.keys[pos] == EMPTY) {
+            if (count != 0) {
+                this.keys[pos] = key;
+                this.values[pos] = count;
+                this.size++;
+                if (this.size > this.threshold) {
+                    if (this.keys.length >= MAX_CAPACITY)
+                        throw new IllegalStateException("Too many role pairs for an in-memory table; use " +
+                                "--maxMemory to spill pairs to disk.");
+                    this.rehash(this.keys.length << 1);
+                }
+            }
+        } else {
+            int sum = this.values[pos] + count;
+            if (sum != 0) {
+                this.values[pos] = sum;
+            } else {
+                this.remove(pos);
+            }
+        }
+    }
+
+    /**
+     * Remove the entry in the specified slot, shifting later members of its probe chain backward.
+     *
+     * @param pos	slot to empty
+     */
+    private void remove(int pos) {
+        int mask = this.keys.length - 1;
+        int hole = pos;
+        int next = (hole + 1) & mask;
+        while (this.keys[next] != EMPTY) {
+            int home = this.slot(this.keys[next]);
+            // Move the entry into the hole if its home slot is not cyclically between the hole and
+            // its current position.
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                this.keys[hole] = this.keys[next];
+                this.values[hole] = this.values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        this.keys[hole] = EMPTY;
+        this.values[hole] = 0;
+        this.size--;
+    }
+
+    /**
+     * Rebuild the table with a new capacity.
+     *
+     * @param capacity	new capacity (must be a power of 2)
+     */
+    private void rehash(int capacity) {
+        long[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        this.allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != EMPTY) {
+                int pos = this.find(key);
+                this.keys[pos] = key;
+                this.values[pos] = oldValues[i];
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public long memoryUsed() {
+        return 12L * this.keys.length;
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < this.keys.length; i++) {
+            long key = this.keys[i];
+            if (key != EMPTY)
+                visitor.visit((int) key, (int) (key >>> 32), this.values[i]);
+        }
+    }
+
+    @Override
+    public PairCountTable grow(int roles) {
+        return this;
+    }
+
+}
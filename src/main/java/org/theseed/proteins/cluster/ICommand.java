@@ -0,0 +1,26 @@
+package org.theseed.proteins.cluster;
+
+/**
+ * This interface describes a command that can be invoked from the main application.  The command
+ * object parses its own command-line parameters and then runs.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public interface ICommand {
+
+    /**
+     * Parse command-line options to specify the parameters of this object.
+     *
+     * @param args	an array of the command-line parameters and options
+     *
+     * @return TRUE if successful, FALSE if the parameters are invalid
+     */
+    public boolean parseCommand(String[] args);
+
+    /**
+     * Execute the operation indicated by the parameters.
+     */
+    public void run();
+
+}
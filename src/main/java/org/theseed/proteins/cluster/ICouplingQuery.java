@@ -0,0 +1,38 @@
+package org.theseed.proteins.cluster;
+
+import org.theseed.proteins.Role;
+
+/**
+ * This interface describes an object that can answer queries about role couplings.  It is implemented
+ * by the role-coupling counter itself and by read-only indexes over coupler files.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public interface ICouplingQuery {
+
+    /**
+     * @return the number of times a role appeared
+     *
+     * @param role	role of interest
+     */
+    public int getCount(Role role);
+
+    /**
+     * @return the number of times a pair of roles appeared together
+     *
+     * @param role1	first role of interest
+     * @param role2	second role of interest
+     */
+    public int getCount(Role role1, Role role2);
+
+    /**
+     * @return the strength of the specified coupling, that is, the fraction of times the two roles
+     * 		   occur together
+     *
+     * @param role1	first role of interest
+     * @param role2 second role of interest
+     */
+    public double getTogetherness(Role role1, Role role2);
+
+}
@@ -0,0 +1,24 @@
+package org.theseed.proteins.cluster;
+
+import org.theseed.proteins.Role;
+
+/**
+ * This interface describes an object that processes role couplings one at a time as they are
+ * streamed out of a coupler.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public interface ICouplingVisitor {
+
+    /**
+     * Process a single coupling.
+     *
+     * @param role1			first role of the pair
+     * @param role2			second role of the pair
+     * @param count			number of times the roles occurred together
+     * @param togetherness	fraction of times the roles occurred together
+     */
+    public void visit(Role role1, Role role2, int count, double togetherness);
+
+}
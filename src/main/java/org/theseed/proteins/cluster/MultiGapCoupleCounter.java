@@ -0,0 +1,417 @@
+package org.theseed.proteins.cluster;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.theseed.proteins.Role;
+import org.theseed.proteins.RoleMap;
+
+/**
+ * This role-coupling counter counts the couplings for a whole ladder of gaps in a single pass over the
+ * genomes.  It behaves as an ordinary counter for the largest gap in the ladder.  In addition, each pair
+ * occurrence is recorded in a bucket according to the distance between the neighbors, so that the count
+ * for any smaller gap in the ladder is the sum of the buckets up to that gap.  A normal counter for any
+ * of the gaps can be extracted using {@link #forGap(int)}.
+ *
+ * A multi-gap counter is saved in an extended text format.  The header line contains the largest gap, the
+ * usual title, and the gap ladder as a comma-delimited list.  Each pair record contains the usual count,
+ * role IDs, and togetherness for the largest gap, followed by the count for each of the smaller gaps in
+ * ladder order.  Because the extra data is in additional columns, a multi-gap file can also be read by
+ * the ordinary text loader as a counter for the largest gap.  There is no binary multi-gap format.
+ *
+ * If a memory limit is specified, it applies only to the table for the largest gap.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class MultiGapCoupleCounter extends RoleCoupleCounter {
+
+    // FIELDS
+    /** gap ladder, in ascending order */
+    private int[] gaps;
+    /** pair counts for each distance bucket except the last */
+    private PairCountTable[] buckets;
+
+    /** title string in the header line */
+    private static final String TITLE = "Role-Coupling Database";
+
+    /**
+     * Create a multi-gap role-coupling counter for the specified roles and gaps.
+     *
+     * @param goodRoles	role map containing the acceptable roles
+     * @param gaps		array of gaps to count
+     */
+    public MultiGapCoupleCounter(RoleMap goodRoles, int[] gaps) {
+        super(goodRoles, ladder(gaps)[gaps.length - 1]);
+        this.setupGaps(gaps);
+    }
+
+    /**
+     * Create a multi-gap role-coupling counter with no predefined roles.
+     *
+     * @param gaps		array of gaps to count
+     */
+    protected MultiGapCoupleCounter(int[] gaps) {
+        super(ladder(gaps)[gaps.length - 1]);
+        this.setupGaps(gaps);
+    }
+
+    /**
+     * @return a sorted copy of a gap ladder, after verifying it is valid
+     *
+     * @param gaps	array of gaps to check
+     */
+    private static int[] ladder(int[] gaps) {
+        if (gaps.length == 0)
+            throw new IllegalArgumentException("At least one gap is required.");
+        int[] retVal = Arrays.copyOf(gaps, gaps.length);
+        Arrays.sort(retVal);
+        for (int i = 0; i < retVal.length; i++) {
+            if (retVal[i] < 0 || (i > 0 && retVal[i] == retVal[i-1]))
+                throw new IllegalArgumentException("Gaps must be distinct and nonnegative.");
+        }
+        return retVal;
+    }
+
+    /**
+     * Initialize the gap ladder and the bucket tables.
+     *
+     * @param gaps		array of gaps to count
+     */
+    private void setupGaps(int[] gaps) {
+        this.gaps = ladder(gaps);
+        this.buckets = new PairCountTable[this.gaps.length - 1];
+        for (int i = 0; i < this.buckets.length; i++)
+            this.buckets[i] = PairCountTable.create(this.roleList.size());
+    }
+
+    /**
+     * @return an array of gaps parsed from a comma-delimited string
+     *
+     * @param gapString		comma-delimited list of gaps
+     */
+    public static int[] parseGaps(String gapString) {
+        TreeSet<Integer> gapSet = new TreeSet<Integer>();
+        for (String gap : gapString.split(",")) {
+            try {
+                gapSet.add(Integer.valueOf(gap.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid gap \"" + gap + "\".");
+            }
+        }
+        int[] retVal = new int[gapSet.size()];
+        int i = 0;
+        for (int gap : gapSet)
+            retVal[i++] = gap;
+        return ladder(retVal);
+    }
+
+    @Override
+    protected int indexOf(Role role) {
+        int retVal = super.indexOf(role);
+        // The bucket tables are NULL while the superclass constructor is running.
+        if (this.buckets != null) {
+            int roles = this.roleList.size();
+            for (int i = 0; i < this.buckets.length; i++)
+                this.buckets[i] = this.buckets[i].grow(roles);
+        }
+        return retVal;
+    }
+
+    @Override
+    protected void countSweep(ContigSweep contigSweep, int delta) {
+        contigSweep.count(this.gaps, this.roleCounts, this.pairCounts, this.buckets, delta);
+    }
+
+    @Override
+    protected ContigTally createTally() {
+        return new ContigTally(this.roleList.size(), this.buckets.length);
+    }
+
+    @Override
+    protected void countSweep(ContigSweep contigSweep, ContigTally tally, int delta) {
+        contigSweep.count(this.gaps, tally.getRoleCounts(), tally.getPairCounts(), tally.getBuckets(), delta);
+    }
+
+    @Override
+    protected void addTally(ContigTally tally) {
+        super.addTally(tally);
+        PairCountTable[] tallyBuckets = tally.getBuckets();
+        for (int i = 0; i < this.buckets.length; i++)
+            ContigTally.addTable(this.buckets[i], tallyBuckets[i]);
+    }
+
+    /**
+     * @return a copy of the gap ladder, in ascending order
+     */
+    public int[] getGaps() {
+        return Arrays.copyOf(this.gaps, this.gaps.length);
+    }
+
+    /**
+     * @return the position of a gap in the ladder
+     *
+     * @param gap	gap of interest
+     */
+    private int gapIndex(int gap) {
+        int retVal = Arrays.binarySearch(this.gaps, gap);
+        if (retVal < 0)
+            throw new IllegalArgumentException("Gap " + gap + " is not one of the counted gaps " +
+                    Arrays.toString(this.gaps) + ".");
+        return retVal;
+    }
+
+    /**
+     * @return the number of times a pair of roles appeared together within the specified gap
+     *
+     * @param role1		first role of interest
+     * @param role2		second role of interest
+     * @param gap		gap of interest (must be in the ladder)
+     */
+    public int getCount(Role role1, Role role2, int gap) {
+        int k = this.gapIndex(gap);
+        int retVal;
+        if (k == this.buckets.length) {
+            retVal = this.getCount(role1, role2);
+        } else {
+            retVal = 0;
+            int idx1 = this.findIndex(role1);
+            int idx2 = this.findIndex(role2);
+            if (idx1 >= 0 && idx2 >= 0) {
+                for (int b = 0; b <= k; b++)
+                    retVal += this.buckets[b].get(idx1, idx2);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the togetherness of a pair of roles for the specified gap
+     *
+     * @param role1		first role of interest
+     * @param role2		second role of interest
+     * @param gap		gap of interest (must be in the ladder)
+     */
+    public double getTogetherness(Role role1, Role role2, int gap) {
+        return togetherness(this.getCount(role1, role2, gap), this.getCount(role1), this.getCount(role2));
+    }
+
+    /**
+     * Extract an ordinary counter for one of the gaps in the ladder.  The new counter has the same roles,
+     * role counts, and ledger as this one.
+     *
+     * @param gap	gap of interest (must be in the ladder)
+     *
+     * @return a single-gap counter containing the counts for the specified gap
+     */
+    public RoleCoupleCounter forGap(int gap) {
+        int k = this.gapIndex(gap);
+        RoleCoupleCounter retVal = new RoleCoupleCounter(gap);
+        retVal.setMetrics(this.getMetrics());
+        // Because the new counter is empty, the role indices will match ours.
+        for (int i = 0; i < this.roleList.size(); i++) {
+            Role role = this.roleList.get(i);
+            retVal.addRole(role.getId(), role.getName(), this.roleCounts[i]);
+        }
+        retVal.expectPairs(k == this.buckets.length ? this.getPairTotal() : this.buckets[k].size());
+        final PairCountTable table = retVal.pairCounts;
+        if (k == this.buckets.length) {
+            this.forEachPair((r1, r2, count) -> table.add(r1, r2, count));
+        } else {
+            for (int b = 0; b <= k; b++)
+                this.buckets[b].forEach((r1, r2, count) -> table.add(r1, r2, count));
+        }
+        for (Map.Entry<String, String> entry : this.getLedger().entrySet())
+            retVal.recordGenome(entry.getKey(), entry.getValue());
+        retVal.setLogSequence(this.getLogSequence());
+        return retVal;
+    }
+
+    @Override
+    public RoleCoupleCounter createShard() {
+        MultiGapCoupleCounter retVal = new MultiGapCoupleCounter(this.usefulRoles, this.gaps);
+        retVal.setCacheLimit(this.getResolutionCache().getLimit());
+        retVal.setMetrics(this.getMetrics());
+        retVal.setContigPool(this.getContigPool());
+        return retVal;
+    }
+
+    /**
+     * Add the counts from another multi-gap counter to this one.  The other counter must have the same
+     * gap ladder.
+     *
+     * @param other		multi-gap counter whose counts are to be added
+     */
+    @Override
+    public void merge(RoleCoupleCounter other) {
+        if (! (other instanceof MultiGapCoupleCounter) || ! Arrays.equals(((MultiGapCoupleCounter) other).gaps,
+                this.gaps))
+            throw new IllegalArgumentException("Cannot merge couplers with different gap ladders.");
+        MultiGapCoupleCounter multi = (MultiGapCoupleCounter) other;
+        super.merge(multi);
+        final int[] idxMap = new int[multi.roleList.size()];
+        for (int i = 0; i < idxMap.length; i++)
+            idxMap[i] = this.findIndex(multi.roleList.get(i));
+        for (int b = 0; b < this.buckets.length; b++) {
+            final PairCountTable bucket = this.buckets[b];
+            multi.buckets[b].forEach((r1, r2, count) -> bucket.add(idxMap[r1], idxMap[r2], count));
+        }
+    }
+
+    /**
+     * Save this counter in the multi-gap text format.
+     *
+     * @param outFile	output file
+     * @param binary	must be FALSE, since there is no binary multi-gap format
+     *
+     * @throws IOException
+     */
+    @Override
+    public void save(File outFile, boolean binary) throws IOException {
+        if (binary)
+            throw new IOException("Multi-gap couplers can only be saved in text format.");
+        super.save(outFile, false);
+    }
+
+    /**
+     * Save this counter in the multi-gap text format.
+     *
+     * @param outFile	output file
+     *
+     * @throws IOException
+     */
+    @Override
+    public void saveText(File outFile) throws IOException {
+        final int last = this.buckets.length;
+        try (PrintWriter writer = new PrintWriter(outFile)) {
+            StringBuilder ladder = new StringBuilder();
+            StringBuilder columns = new StringBuilder("count\trole1_id\trole2_id\ttogetherness");
+            for (int i = 0; i <= last; i++) {
+                if (i > 0) ladder.append(',');
+                ladder.append(this.gaps[i]);
+                if (i < last)
+                    columns.append("\tcount_").append(this.gaps[i]);
+            }
+            writer.format("%d\t%s\t%s%n", this.gap, TITLE, ladder);
+            writer.println("count\trole_id\trole_name");
+            for (int i = 0; i < this.roleList.size(); i++) {
+                Role role = this.roleList.get(i);
+                writer.format("%d\t%s\t%s%n", this.roleCounts[i], role.getId(), role.getName());
+            }
+            writer.println(columns);
+            this.forEachPair((r1, r2, count) -> {
+                writer.format("%d\t%s\t%s\t%4.2g", count, this.roleList.get(r1).getId(),
+                        this.roleList.get(r2).getId(), togetherness(count, this.roleCounts[r1], this.roleCounts[r2]));
+                int sum = 0;
+                for (int b = 0; b < last; b++) {
+                    sum += this.buckets[b].get(r1, r2);
+                    writer.print('\t');
+                    writer.print(sum);
+                }
+                writer.println();
+            });
+            Map<String, String> ledger = this.getLedger();
+            if (this.hasLedgerSection()) {
+                writer.println(ledgerHeading(this.getLogSequence()));
+                for (Map.Entry<String, String> entry : ledger.entrySet())
+                    writer.format("%s\t%s%n", entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return TRUE if the specified file is in the multi-gap text format
+     *
+     * @param inFile	file to check
+     *
+     * @throws IOException
+     */
+    public static boolean isMultiGap(File inFile) throws IOException {
+        boolean retVal = false;
+        try (BufferedReader reader = new BufferedReader(new FileReader(inFile))) {
+            String line = reader.readLine();
+            if (line != null) {
+                String[] fields = line.split("\t");
+                retVal = (fields.length >= 3 && fields[2].matches("\\d+(,\\d+)*"));
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the first field of a line is an integer
+     *
+     * @param fields	fields of the line
+     */
+    private static boolean isNumeric(String[] fields) {
+        return fields[0].matches("-?\\d+");
+    }
+
+    /**
+     * Load a multi-gap counter from a file in the multi-gap text format.
+     *
+     * @param inFile	input file
+     *
+     * @return a new multi-gap counter read from the file
+     *
+     * @throws IOException
+     */
+    public static MultiGapCoupleCounter load(File inFile) throws IOException {
+        MultiGapCoupleCounter retVal;
+        try (BufferedReader reader = new BufferedReader(new FileReader(inFile))) {
+            String line = reader.readLine();
+            String[] fields = (line == null ? new String[0] : line.split("\t"));
+            if (fields.length < 3)
+                throw new IOException("Missing gap ladder in " + inFile + ".");
+            retVal = new MultiGapCoupleCounter(parseGaps(fields[2]));
+            final int last = retVal.buckets.length;
+            // Skip the role table header and read the roles.
+            reader.readLine();
+            line = reader.readLine();
+            while (line != null && isNumeric(fields = line.split("\t"))) {
+                if (fields.length < 3)
+                    throw new IOException("Invalid role record in " + inFile + ": " + line);
+                retVal.addRole(fields[1], fields[2], Integer.parseInt(fields[0]));
+                line = reader.readLine();
+            }
+            // The current line, if any, is the pair table header.  Read the pairs.
+            line = (line == null ? null : reader.readLine());
+            while (line != null && isNumeric(fields = line.split("\t"))) {
+                if (fields.length < 4 + last)
+                    throw new IOException("Invalid pair record in " + inFile + ": " + line);
+                int idx1 = retVal.findIndex(retVal.getRole(fields[1]));
+                int idx2 = retVal.findIndex(retVal.getRole(fields[2]));
+                if (idx1 < 0 || idx2 < 0)
+                    throw new IOException("Unknown role in pair record in " + inFile + ": " + line);
+                retVal.pairCounts.add(idx1, idx2, Integer.parseInt(fields[0]));
+                int prev = 0;
+                for (int b = 0; b < last; b++) {
+                    int sum = Integer.parseInt(fields[4 + b]);
+                    retVal.buckets[b].add(idx1, idx2, sum - prev);
+                    prev = sum;
+                }
+                line = reader.readLine();
+            }
+            // The current line, if any, is the ledger header, which may contain the log sequence number.
+            if (line != null) {
+                fields = line.split("\t");
+                if (fields.length > 2)
+                    retVal.setLogSequence(parseLogSequence(fields[2]));
+                while ((line = reader.readLine()) != null) {
+                    if (! line.isEmpty()) {
+                        fields = line.split("\t");
+                        retVal.recordGenome(fields[0], (fields.length > 1 ? fields[1] : ""));
+                    }
+                }
+            }
+        }
+        return retVal;
+    }
+
+}
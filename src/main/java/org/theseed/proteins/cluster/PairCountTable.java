@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package org.theseed.proteins.cluster;
+
+/**
+ * This is the base class for the primitive pair-count tables used by the role-coupling counter.
+ * Roles are identified by dense integer indices, and a pair of roles is always stored with the
+ * lower index first, so that the pair (i, j) and the pair (j, i) share a single count.
+ *
+ * Small role sets use a triangular integer array, which needs no hashing at all.  Large role sets
+ * use an open-addressed hash table with long keys, which only spends memory on pairs that actually
+ * occur.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class PairCountTable {
+
+    /** maximum number of roles for which a triangular table is used */
+    public static final int TRIANGLE_LIMIT = 2048;
+
+    /**
+     * Interface for visiting the nonzero pairs in a table.
+     */
+    public interface Visitor {
+
+        /**
+         * Process a single pair.
+         *
+         * @param role1		index of the first role (always less than or equal to the second)
+         * @param role2		index of the second role
+         * @param count		number of times the pair occurred
+         */
+        public void visit(int role1, int role2, int count);
+
+    }
+
+    /**
+     * @return a pair-count table appropriate for the specified number of roles
+     *
+     * @param roles		expected number of roles
+     */
+    public static PairCountTable create(int roles) {
+        PairCountTable retVal;
+        if (roles <= TRIANGLE_LIMIT) {
+            retVal = new TriangularPairTable(roles);
+        } else {
+            retVal = new HashPairTable(1024);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the count for the specified pair of roles
+     *
+     * @param role1		index of the first role
+     * @param role2		index of the second role
+     */
+    public abstract int get(int role1, int role2);
+
+    /**
+     * Add to the count for the specified pair of roles.
+     *
+     * @param role1		index of the first role
+     * @param role2		index of the second role
+     * @param count		amount to add to the count
+     */
+    public abstract void add(int role1, int role2, int count);
+
+    /**
+     * @return the number of pairs with nonzero counts
+     */
+    public abstract int size();
+
+    /**
+     * @return the approximate number of bytes used by this table
+     */
+    public abstract long memoryUsed();
+
+    /**
+     * Pass every pair with a nonzero count to the specified visitor.  The pairs are presented in no
+     * particular order.
+     *
+     * @param visitor	visitor to receive the pairs
+     */
+    public abstract void forEach(Visitor visitor);
+
+    /**
+     * Prepare this table to hold the specified number of roles.
+     *
+     * @param roles		number of roles that must be accommodated
+     *
+     * @return a table holding the same counts that can accommodate the specified number of roles;
+     * 		   this will be the same table unless it needed to be converted to a different type
+     */
+    public abstract PairCountTable grow(int roles);
+
+    /**
+     * @return a long integer key for a pair of role indices, with the lower index in the low-order half
+     *
+     * @param role1		index of the first role
+     * @param role2		index of the second role
+     */
+    public static long pairKey(int role1, int role2) {
+        long retVal;
+        if (role1 <= role2) {
+            retVal = ((long) role2 << 32) | role1;
+        } else {
+            retVal = ((long) role1 << 32) | role2;
+        }
+        return retVal;
+    }
+
+}
@@ -0,0 +1,138 @@
+package org.theseed.proteins.cluster;
+
+/**
+ * This class keeps the K most frequent role pairs offered to it.  It is a bounded min-heap keyed on
+ * the pair count, so the least frequent pair kept is always at the root and can be replaced in
+ * logarithmic time.  Pairs are identified by their {@link PairCountTable#pairKey(int, int)} keys,
+ * and ties are broken in favor of the lower key, so the result does not depend on the order in which
+ * the pairs are offered.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PairHeap {
+
+    // FIELDS
+    /** pair keys in heap order */
+    private long[] keys;
+    /** pair counts in heap order */
+    private int[] counts;
+    /** number of pairs in the heap */
+    private int size;
+
+    /**
+     * Create a heap to hold the specified number of pairs.
+     *
+     * @param limit		maximum number of pairs to keep
+     */
+    public PairHeap(int limit) {
+        if (limit < 1)
+            throw new IllegalArgumentException("Heap limit must be at least 1.");
+        this.keys = new long[limit];
+        this.counts = new int[limit];
+        this.size = 0;
+    }
+
+    /**
+     * Offer a pair to the heap.
+     *
+     * @param key		pair key
+     * @param count		number of times the pair occurred
+     *
+     * @return TRUE if the pair was kept, else FALSE
+     */
+    public boolean offer(long key, int count) {
+        boolean retVal = true;
+        if (this.size < this.keys.length) {
+            int i = this.size;
+            this.size++;
+            this.keys[i] = key;
+            this.counts[i] = count;
+            this.siftUp(i);
+        } else if (this.less(this.counts[0], this.keys[0], count, key)) {
+            this.keys[0] = key;
+            this.counts[0] = count;
+            this.siftDown(0);
+        } else {
+            retVal = false;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the first pair ranks below the second
+     *
+     * @param count1	count of the first pair
+     * @param key1		key of the first pair
+     * @param count2	count of the second pair
+     * @param key2		key of the second pair
+     */
+    private boolean less(int count1, long key1, int count2, long key2) {
+        return (count1 < count2 || count1 == count2 && key1 > key2);
+    }
+
+    /**
+     * Move an entry up toward the root until the heap property is restored.
+     *
+     * @param i		index of the entry to move
+     */
+    private void siftUp(int i) {
+        long key = this.keys[i];
+        int count = this.counts[i];
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (! this.less(count, key, this.counts[parent], this.keys[parent]))
+                break;
+            this.keys[i] = this.keys[parent];
+            this.counts[i] = this.counts[parent];
+            i = parent;
+        }
+        this.keys[i] = key;
+        this.counts[i] = count;
+    }
+
+    /**
+     * Move an entry down away from the root until the heap property is restored.
+     *
+     * @param i		index of the entry to move
+     */
+    private void siftDown(int i) {
+        long key = this.keys[i];
+        int count = this.counts[i];
+        int half = this.size >> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < this.size
+                    && this.less(this.counts[right], this.keys[right], this.counts[child], this.keys[child]))
+                child = right;
+            if (! this.less(this.counts[child], this.keys[child], count, key))
+                break;
+            this.keys[i] = this.keys[child];
+            this.counts[i] = this.counts[child];
+            i = child;
+        }
+        this.keys[i] = key;
+        this.counts[i] = count;
+    }
+
+    /**
+     * @return the number of pairs in the heap
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Visit the pairs in the heap, in no particular order.
+     *
+     * @param visitor	visitor to receive the role indices and count of each pair
+     */
+    public void forEach(PairCountTable.Visitor visitor) {
+        for (int i = 0; i < this.size; i++) {
+            long key = this.keys[i];
+            visitor.visit((int) (key & 0xFFFFFFFFL), (int) (key >>> 32), this.counts[i]);
+        }
+    }
+
+}
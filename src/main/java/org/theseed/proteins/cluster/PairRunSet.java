@@ -0,0 +1,321 @@
+package org.theseed.proteins.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * This class manages the sorted run files used when a role-coupling counter's pair table outgrows its
+ * memory budget.  Each time the table is spilled, its pairs are sorted into dictionary order (that is,
+ * by the ranks of the role IDs) and written to a new run file, after which the table can be cleared.
+ * When the pairs are needed, the runs and the in-memory remainder are combined with a k-way merge,
+ * summing the counts of pairs that appear in more than one place.
+ *
+ * Each run record contains the two role indices and the count.  The indices are the counter's own role
+ * indices, ordered so that the first role has the lower ID.  If roles are added to the counter after a
+ * run is written, the ranks of the old roles change, but their relative order does not, so the run is
+ * still sorted when its indices are converted to the new ranks.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PairRunSet implements Closeable {
+
+    // FIELDS
+    /** directory for the run files */
+    private File tempDir;
+    /** list of run files written */
+    private List<File> runs;
+    /** total number of pair records spilled */
+    private long spilled;
+
+    /** size of the I/O buffer for each run file */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * This interface receives the merged pairs.
+     */
+    public interface Sink {
+
+        /**
+         * Process a merged pair.
+         *
+         * @param role1		counter index of the role with the lower ID
+         * @param role2		counter index of the role with the higher ID
+         * @param count		total count for the pair
+         *
+         * @throws IOException
+         */
+        public void accept(int role1, int role2, int count) throws IOException;
+
+    }
+
+    /**
+     * This is the base class for a sorted source of pairs in the merge.
+     */
+    private static abstract class Cursor {
+
+        /** merge key of the current pair, in rank space */
+        protected long key;
+        /** counter index of the first role of the current pair */
+        protected int role1;
+        /** counter index of the second role of the current pair */
+        protected int role2;
+        /** count of the current pair */
+        protected int count;
+
+        /**
+         * Advance to the next pair.
+         *
+         * @return TRUE if there is a next pair, FALSE if the source is exhausted
+         *
+         * @throws IOException
+         */
+        protected abstract boolean next() throws IOException;
+
+        /**
+         * Release any resources held by this cursor.
+         *
+         * @throws IOException
+         */
+        protected void close() throws IOException { }
+
+    }
+
+    /**
+     * This cursor reads the pairs from a run file.
+     */
+    private static class RunCursor extends Cursor {
+
+        /** input stream for the run file */
+        private DataInputStream inStream;
+        /** map of counter indices to ranks */
+        private int[] rank;
+
+        /**
+         * Open a run file.
+         *
+         * @param runFile	run file to read
+         * @param rank		map of counter indices to ranks
+         *
+         * @throws IOException
+         */
+        protected RunCursor(File runFile, int[] rank) throws IOException {
+            this.inStream = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), BUFFER_SIZE));
+            this.rank = rank;
+        }
+
+        @Override
+        protected boolean next() throws IOException {
+            boolean retVal = true;
+            try {
+                this.role1 = this.inStream.readInt();
+                this.role2 = this.inStream.readInt();
+                this.count = this.inStream.readInt();
+                this.key = ((long) this.rank[this.role1] << 32) | this.rank[this.role2];
+            } catch (EOFException e) {
+                retVal = false;
+            }
+            return retVal;
+        }
+
+        @Override
+        protected void close() throws IOException {
+            this.inStream.close();
+        }
+
+    }
+
+    /**
+     * This cursor presents the pairs in a pair table in sorted order.
+     */
+    private static class TableCursor extends Cursor {
+
+        /** source table */
+        private PairCountTable table;
+        /** sorted merge keys of the pairs in the table */
+        private long[] keys;
+        /** map of ranks to counter indices */
+        private int[] order;
+        /** position of the current key */
+        private int pos;
+
+        /**
+         * Prepare to present the pairs in a table.
+         *
+         * @param table		source table
+         * @param rank		map of counter indices to ranks
+         * @param order		map of ranks to counter indices
+         */
+        protected TableCursor(PairCountTable table, int[] rank, int[] order) {
+            this.table = table;
+            this.keys = sortedKeys(table, rank);
+            this.order = order;
+            this.pos = -1;
+        }
+
+        @Override
+        protected boolean next() {
+            this.pos++;
+            boolean retVal = (this.pos < this.keys.length);
+            if (retVal) {
+                this.key = this.keys[this.pos];
+                this.role1 = this.order[(int) (this.key >>> 32)];
+                this.role2 = this.order[(int) this.key];
+                this.count = this.table.get(this.role1, this.role2);
+            }
+            return retVal;
+        }
+
+    }
+
+    /**
+     * Create an empty run set.
+     *
+     * @param tempDir	directory for the run files
+     */
+    public PairRunSet(File tempDir) {
+        this.tempDir = tempDir;
+        this.runs = new ArrayList<File>();
+        this.spilled = 0;
+    }
+
+    /**
+     * @return the merge keys of the pairs in a table, sorted
+     *
+     * A merge key has the lower rank in the high-order half, so that the keys sort by first role and
+     * then by second role.
+     *
+     * @param table		source table
+     * @param rank		map of counter indices to ranks
+     */
+    private static long[] sortedKeys(PairCountTable table, final int[] rank) {
+        final long[] retVal = new long[table.size()];
+        final int[] fill = new int[] { 0 };
+        table.forEach((r1, r2, count) -> {
+            int d1 = rank[r1];
+            int d2 = rank[r2];
+            retVal[fill[0]++] = (d1 <= d2 ? ((long) d1 << 32) | d2 : ((long) d2 << 32) | d1);
+        });
+        Arrays.sort(retVal);
+        return retVal;
+    }
+
+    /**
+     * Write the pairs in a table to a new run file.  The caller can then clear the table.
+     *
+     * @param table		table to spill
+     * @param rank		map of counter indices to ranks
+     * @param order		map of ranks to counter indices
+     *
+     * @throws IOException
+     */
+    public void spill(PairCountTable table, int[] rank, int[] order) throws IOException {
+        File runFile = File.createTempFile("pairs", ".run", this.tempDir);
+        runFile.deleteOnExit();
+        this.runs.add(runFile);
+        long[] keys = sortedKeys(table, rank);
+        try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(runFile), BUFFER_SIZE))) {
+            for (long key : keys) {
+                int role1 = order[(int) (key >>> 32)];
+                int role2 = order[(int) key];
+                outStream.writeInt(role1);
+                outStream.writeInt(role2);
+                outStream.writeInt(table.get(role1, role2));
+            }
+        }
+        this.spilled += keys.length;
+    }
+
+    /**
+     * Merge the runs with the pairs remaining in memory and pass the combined pairs to a sink in
+     * dictionary order.  Pairs whose counts sum to zero are skipped.
+     *
+     * @param table		table of pairs remaining in memory
+     * @param rank		map of counter indices to ranks
+     * @param order		map of ranks to counter indices
+     * @param sink		object to receive the merged pairs
+     *
+     * @throws IOException
+     */
+    public void merge(PairCountTable table, int[] rank, int[] order, Sink sink) throws IOException {
+        List<Cursor> cursors = new ArrayList<Cursor>(this.runs.size() + 1);
+        try {
+            for (File runFile : this.runs)
+                cursors.add(new RunCursor(runFile, rank));
+            cursors.add(new TableCursor(table, rank, order));
+            PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(cursors.size(),
+                    (a, b) -> Long.compare(a.key, b.key));
+            for (Cursor cursor : cursors) {
+                if (cursor.next())
+                    queue.add(cursor);
+            }
+            while (! queue.isEmpty()) {
+                // Take the lowest pair and add in the same pair from all the other sources.
+                Cursor cursor = queue.poll();
+                long key = cursor.key;
+                int role1 = cursor.role1;
+                int role2 = cursor.role2;
+                int count = cursor.count;
+                if (cursor.next())
+                    queue.add(cursor);
+                while (! queue.isEmpty() && queue.peek().key == key) {
+                    cursor = queue.poll();
+                    count += cursor.count;
+                    if (cursor.next())
+                        queue.add(cursor);
+                }
+                if (count != 0)
+                    sink.accept(role1, role2, count);
+            }
+        } finally {
+            for (Cursor cursor : cursors)
+                cursor.close();
+        }
+    }
+
+    /**
+     * @return the number of run files written
+     */
+    public int size() {
+        return this.runs.size();
+    }
+
+    /**
+     * @return the directory for the run files
+     */
+    public File getTempDir() {
+        return this.tempDir;
+    }
+
+    /**
+     * @return the total number of pair records spilled to the run files
+     */
+    public long getSpilled() {
+        return this.spilled;
+    }
+
+    /**
+     * Delete the run files.
+     */
+    @Override
+    public void close() {
+        for (File runFile : this.runs)
+            runFile.delete();
+        this.runs.clear();
+        this.spilled = 0;
+    }
+
+}
@@ -0,0 +1,147 @@
+package org.theseed.proteins.cluster;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * This is the base class for a stream of role pairs in a fixed order.  The pairs are presented sorted by
+ * the first role ID and then the second, and in each pair the first role ID is less than or equal to the
+ * second.  Because every stream uses the same order, two or more streams can be joined or merged in a
+ * single pass.
+ *
+ * A stream starts before the first pair.  Each call to {@link #next()} moves to the next pair, after
+ * which the pair's role IDs and counts can be retrieved.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class PairStream implements Closeable {
+
+    /**
+     * Open a pair stream for a coupler file.  A binary coupler file is streamed directly from disk.  A
+     * text coupler file must be loaded into memory first.
+     *
+     * @param inFile	coupler file to stream
+     * @param verbose	TRUE to write load statistics to STDERR
+     *
+     * @return a pair stream for all the pairs in the file
+     *
+     * @throws IOException
+     */
+    public static PairStream open(File inFile, boolean verbose) throws IOException {
+        PairStream retVal;
+        if (BinaryCouplerFile.isBinary(inFile)) {
+            retVal = new BinaryPairStream(inFile);
+        } else {
+            retVal = new CounterPairStream(RoleCoupleCounter.load(inFile, verbose), 0.0, 0, 0);
+        }
+        return retVal;
+    }
+
+    /**
+     * Move to the next pair.
+     *
+     * @return TRUE if there is a next pair, FALSE if the stream is exhausted
+     *
+     * @throws IOException
+     */
+    public abstract boolean next() throws IOException;
+
+    /**
+     * @return the ID of the first role in the current pair
+     */
+    public abstract String getRole1();
+
+    /**
+     * @return the ID of the second role in the current pair
+     */
+    public abstract String getRole2();
+
+    /**
+     * @return the number of times the current pair occurred
+     */
+    public abstract int getCount();
+
+    /**
+     * @return the number of times the specified role occurred, or 0 if it is not in the coupler
+     *
+     * @param roleId	ID of the role of interest
+     */
+    public abstract int getRoleCount(String roleId);
+
+    /**
+     * @return the dictionary index of the first role in the current pair
+     *
+     * The dictionary index of a role is its position in the sorted list of the coupler's role IDs, so the
+     * pairs are also in order by dictionary index.
+     */
+    public abstract int getIndex1();
+
+    /**
+     * @return the dictionary index of the second role in the current pair
+     */
+    public abstract int getIndex2();
+
+    /**
+     * @return the number of roles in the coupler's dictionary
+     */
+    public abstract int getRoleTotal();
+
+    /**
+     * @return the ID of the role at the specified dictionary index
+     *
+     * @param idx	dictionary index of the role
+     */
+    public abstract String getRoleId(int idx);
+
+    /**
+     * @return the name of the role at the specified dictionary index
+     *
+     * @param idx	dictionary index of the role
+     */
+    public abstract String getRoleName(int idx);
+
+    /**
+     * @return the occurrence count of the role at the specified dictionary index
+     *
+     * @param idx	dictionary index of the role
+     */
+    public abstract int getRoleCount(int idx);
+
+    /**
+     * @return the coupler's genome ledger, mapping each genome ID to its content hash
+     *
+     * @throws IOException
+     */
+    public abstract Map<String, String> getLedger() throws IOException;
+
+    /**
+     * @return the gap used to build the coupler
+     */
+    public abstract int getGap();
+
+    /**
+     * @return the togetherness fraction for the current pair
+     */
+    public double getTogetherness() {
+        return RoleCoupleCounter.togetherness(this.getCount(), this.getRoleCount(this.getRole1()),
+                this.getRoleCount(this.getRole2()));
+    }
+
+    /**
+     * @return a negative number if the current pair sorts before the specified pair, 0 if it is the same,
+     * 		   and a positive number if it sorts after
+     *
+     * @param role1		ID of the first role in the pair of interest
+     * @param role2		ID of the second role in the pair of interest
+     */
+    public int compareTo(String role1, String role2) {
+        int retVal = this.getRole1().compareTo(role1);
+        if (retVal == 0)
+            retVal = this.getRole2().compareTo(role2);
+        return retVal;
+    }
+
+}
@@ -0,0 +1,219 @@
+package org.theseed.proteins.cluster;
+
+/**
+ * This is an adjacency index over the pairs of a role-coupling counter.  For each role index, it holds
+ * the indices of the role's partners, the pair counts, and the togetherness values, in primitive arrays
+ * laid out in compressed sparse row form:  the entries for role r are at positions starts[r] through
+ * starts[r+1] - 1.  Each role's entries are sorted strongest first (descending togetherness, then
+ * descending count, then ascending partner index), so a search for partners above a togetherness
+ * threshold can stop at the first entry below it.  Each pair is stored twice, once for each role, except
+ * that a role paired with itself is stored once.
+ *
+ * The index is a snapshot.  It does not change when the counter does.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PartnerIndex {
+
+    // FIELDS
+    /** position of the first entry for each role; the entry past the last role is the entry count */
+    private int[] starts;
+    /** partner role index for each entry */
+    private int[] partners;
+    /** pair count for each entry */
+    private int[] counts;
+    /** togetherness for each entry */
+    private double[] strengths;
+
+    /** segment size below which an insertion sort is used */
+    private static final int SMALL_SORT = 12;
+
+    /**
+     * This interface describes an object that receives partner entries.
+     */
+    public interface Visitor {
+
+        /**
+         * Process a partner entry.
+         *
+         * @param partner		index of the partner role
+         * @param count			number of times the roles occurred together
+         * @param together		togetherness of the pair
+         */
+        void visit(int partner, int count, double together);
+
+    }
+
+    /**
+     * Build the index for a role-coupling counter.  The pairs are scanned twice, once to compute the
+     * number of partners of each role and once to fill in the entries.
+     *
+     * @param counter	counter whose pairs are to be indexed
+     */
+    protected PartnerIndex(RoleCoupleCounter counter) {
+        final int roleTotal = counter.roleList.size();
+        final int[] roleCounts = counter.roleCounts;
+        this.starts = new int[roleTotal + 1];
+        counter.forEachPair((r1, r2, count) -> {
+            if (count > 0) {
+                this.starts[r1 + 1]++;
+                if (r2 != r1)
+                    this.starts[r2 + 1]++;
+            }
+        });
+        for (int r = 0; r < roleTotal; r++)
+            this.starts[r + 1] += this.starts[r];
+        final int entryTotal = this.starts[roleTotal];
+        this.partners = new int[entryTotal];
+        this.counts = new int[entryTotal];
+        this.strengths = new double[entryTotal];
+        final int[] next = new int[roleTotal];
+        System.arraycopy(this.starts, 0, next, 0, roleTotal);
+        counter.forEachPair((r1, r2, count) -> {
+            if (count > 0) {
+                double together = RoleCoupleCounter.togetherness(count, roleCounts[r1], roleCounts[r2]);
+                this.store(next[r1]++, r2, count, together);
+                if (r2 != r1)
+                    this.store(next[r2]++, r1, count, together);
+            }
+        });
+        for (int r = 0; r < roleTotal; r++)
+            this.sort(this.starts[r], this.starts[r + 1] - 1);
+    }
+
+    /**
+     * Store an entry.
+     *
+     * @param pos			position of the entry
+     * @param partner		index of the partner role
+     * @param count			pair count
+     * @param together		togetherness of the pair
+     */
+    private void store(int pos, int partner, int count, double together) {
+        this.partners[pos] = partner;
+        this.counts[pos] = count;
+        this.strengths[pos] = together;
+    }
+
+    /**
+     * @return a negative number if the first entry is stronger than the second, a positive number if it
+     * 		   is weaker, and 0 if they are the same
+     *
+     * @param i		position of the first entry
+     * @param j		position of the second entry
+     */
+    private int compare(int i, int j) {
+        int retVal = Double.compare(this.strengths[j], this.strengths[i]);
+        if (retVal == 0) {
+            retVal = Integer.compare(this.counts[j], this.counts[i]);
+            if (retVal == 0)
+                retVal = Integer.compare(this.partners[i], this.partners[j]);
+        }
+        return retVal;
+    }
+
+    /**
+     * Exchange two entries.
+     *
+     * @param i		position of the first entry
+     * @param j		position of the second entry
+     */
+    private void swap(int i, int j) {
+        int p = this.partners[i];
+        this.partners[i] = this.partners[j];
+        this.partners[j] = p;
+        int c = this.counts[i];
+        this.counts[i] = this.counts[j];
+        this.counts[j] = c;
+        double s = this.strengths[i];
+        this.strengths[i] = this.strengths[j];
+        this.strengths[j] = s;
+    }
+
+    /**
+     * Sort a range of entries strongest first.  This is a quicksort with a median-of-three pivot that
+     * recurses on the smaller side, so the stack depth is logarithmic.
+     *
+     * @param lo	position of the first entry in the range
+     * @param hi	position of the last entry in the range
+     */
+    private void sort(int lo, int hi) {
+        while (hi - lo >= SMALL_SORT) {
+            int mid = (lo + hi) >>> 1;
+            if (this.compare(mid, lo) < 0) this.swap(mid, lo);
+            if (this.compare(hi, lo) < 0) this.swap(hi, lo);
+            if (this.compare(hi, mid) < 0) this.swap(hi, mid);
+            // Now the pivot is at mid.  Park it at hi - 1 and partition the range between.
+            this.swap(mid, hi - 1);
+            int pivot = hi - 1;
+            int i = lo;
+            int j = hi - 1;
+            for (;;) {
+                do i++; while (this.compare(i, pivot) < 0);
+                do j--; while (this.compare(pivot, j) < 0);
+                if (i >= j) break;
+                this.swap(i, j);
+            }
+            this.swap(i, pivot);
+            if (i - lo < hi - i) {
+                this.sort(lo, i - 1);
+                lo = i + 1;
+            } else {
+                this.sort(i + 1, hi);
+                hi = i - 1;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && this.compare(j, j - 1) < 0; j--)
+                this.swap(j, j - 1);
+        }
+    }
+
+    /**
+     * Pass the partners of a role with a togetherness and count at or above the specified amounts to a
+     * visitor, strongest first.  The time taken is proportional to the number of partners examined, which
+     * is never more than the number of partners of the role.
+     *
+     * @param role			index of the role whose partners are desired
+     * @param minTogether	minimum acceptable togetherness fraction
+     * @param minCount		minimum acceptable occurrence count
+     * @param visitor		visitor to receive the partners
+     */
+    public void forPartners(int role, double minTogether, int minCount, Visitor visitor) {
+        if (role >= 0 && role < this.starts.length - 1) {
+            final int end = this.starts[role + 1];
+            for (int i = this.starts[role]; i < end && this.strengths[i] >= minTogether; i++) {
+                if (this.counts[i] >= minCount)
+                    visitor.visit(this.partners[i], this.counts[i], this.strengths[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of partners of a role
+     *
+     * @param role		index of the role of interest
+     */
+    public int getDegree(int role) {
+        int retVal = 0;
+        if (role >= 0 && role < this.starts.length - 1)
+            retVal = this.starts[role + 1] - this.starts[role];
+        return retVal;
+    }
+
+    /**
+     * @return the number of roles indexed
+     */
+    public int getRoleTotal() {
+        return this.starts.length - 1;
+    }
+
+    /**
+     * @return the approximate number of bytes used by this index
+     */
+    public long memoryUsed() {
+        return 4L * this.starts.length + 16L * this.partners.length;
+    }
+
+}
@@ -0,0 +1,192 @@
+package org.theseed.proteins.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.theseed.proteins.Role;
+
+/**
+ * This class manages a directory of cached genome projections, so that later runs over the same genomes
+ * (for example, with a different gap or different thresholds) can count them without parsing the GTO
+ * files.  Each cache file holds a {@link GenomeProjection} preceded by two signatures:  one for the role
+ * set used to build it, and one for the stored genome entry it came from.  A cache file whose signatures
+ * do not match the current role set and genome entry is ignored, and is replaced when the genome is
+ * parsed again, so changing the role file or the genome invalidates the cache automatically.
+ *
+ * The cache files are named from the genome ID with the suffix ".rcp", and are read through a memory map.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ProjectionCache {
+
+    // FIELDS
+    /** cache directory */
+    private File cacheDir;
+    /** signature of the role set */
+    private String roleSignature;
+    /** number of genomes found in the cache */
+    private AtomicInteger hits;
+    /** number of genomes not found in the cache, or found out of date */
+    private AtomicInteger misses;
+
+    /** suffix for cache files */
+    public static final String SUFFIX = ".rcp";
+    /** magic number for cache files */
+    private static final int MAGIC = 0x52435043;
+
+    /**
+     * Open a projection cache for a role set, creating the directory if necessary.
+     *
+     * @param cacheDir			cache directory
+     * @param roleSignature		signature of the role set, from {@link #roleSignature(RoleCoupleCounter)}
+     *
+     * @throws IOException
+     */
+    public ProjectionCache(File cacheDir, String roleSignature) throws IOException {
+        if (! cacheDir.isDirectory())
+            Files.createDirectories(cacheDir.toPath());
+        this.cacheDir = cacheDir;
+        this.roleSignature = roleSignature;
+        this.hits = new AtomicInteger();
+        this.misses = new AtomicInteger();
+    }
+
+    /**
+     * @return the cache file for a genome
+     *
+     * @param genomeId	ID of the genome of interest
+     */
+    private File fileFor(String genomeId) {
+        return new File(this.cacheDir, genomeId + SUFFIX);
+    }
+
+    /**
+     * @return the cached projection for a genome entry, or NULL if there is none or it is out of date
+     *
+     * @param entry		genome entry whose projection is desired
+     *
+     * @throws IOException
+     */
+    public GenomeProjection read(GenomeSource.Entry entry) throws IOException {
+        GenomeProjection retVal = null;
+        File inFile = this.fileFor(entry.getGenomeId());
+        if (inFile.exists()) {
+            try (FileChannel channel = FileChannel.open(inFile.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() >= 4 && buffer.getInt() == MAGIC && readString(buffer).equals(this.roleSignature)
+                        && readString(buffer).equals(entry.getSignature()))
+                    retVal = GenomeProjection.read(buffer, inFile.getPath());
+            }
+        }
+        if (retVal == null)
+            this.misses.incrementAndGet();
+        else
+            this.hits.incrementAndGet();
+        return retVal;
+    }
+
+    /**
+     * Store the projection for a genome entry in the cache, replacing any previous one.  The projection
+     * is written to a temporary file and renamed, so an interruption does not leave a partial entry.
+     *
+     * @param entry			genome entry from which the projection was built
+     * @param projection	projection to store
+     *
+     * @throws IOException
+     */
+    public void write(GenomeSource.Entry entry, GenomeProjection projection) throws IOException {
+        File outFile = this.fileFor(entry.getGenomeId());
+        File tempFile = new File(this.cacheDir, entry.getGenomeId() + SUFFIX + ".tmp");
+        try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)))) {
+            outStream.writeInt(MAGIC);
+            outStream.writeUTF(this.roleSignature);
+            outStream.writeUTF(entry.getSignature());
+            projection.write(outStream);
+        }
+        Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return a string read from a buffer, or an empty string if the buffer does not contain one
+     *
+     * @param buffer	buffer positioned at a string written by {@link DataOutputStream#writeUTF(String)}
+     */
+    private static String readString(ByteBuffer buffer) {
+        String retVal = "";
+        if (buffer.remaining() >= 2) {
+            int len = buffer.getShort() & 0xFFFF;
+            if (buffer.remaining() >= len) {
+                byte[] bytes = new byte[len];
+                buffer.get(bytes);
+                retVal = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a signature for the role set of a counter, which changes if any role is added, removed, or
+     * 		   renamed, or if the counter counts all roles instead of only the ones in its role map
+     *
+     * @param counter	counter whose role set is to be described
+     */
+    public static String roleSignature(RoleCoupleCounter counter) {
+        List<String> lines = new ArrayList<String>(counter.usefulRoles.size());
+        for (Role role : counter.usefulRoles.objectValues())
+            lines.add(role.getId() + "\t" + role.getName());
+        lines.sort(null);
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 digest not available.", e);
+        }
+        md5.update((counter.isAllRoles() ? "all\n" : "map\n").getBytes(StandardCharsets.UTF_8));
+        for (String line : lines) {
+            md5.update(line.getBytes(StandardCharsets.UTF_8));
+            md5.update((byte) '\n');
+        }
+        StringBuilder retVal = new StringBuilder(32);
+        for (byte b : md5.digest())
+            retVal.append(String.format("%02x", b));
+        return retVal.toString();
+    }
+
+    /**
+     * @return the number of genomes found in the cache
+     */
+    public int getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of genomes not found in the cache or found out of date
+     */
+    public int getMisses() {
+        return this.misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return this.cacheDir + ": " + this.hits + " hits, " + this.misses + " misses";
+    }
+
+}
@@ -6,11 +6,18 @@ package org.theseed.proteins.cluster;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Scanner;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import org.theseed.counters.CountMap;
 import org.theseed.counters.PairCounter;
@@ -18,6 +25,7 @@ import org.theseed.genome.Contig;
 import org.theseed.genome.Feature;
 import org.theseed.genome.FeatureList;
 import org.theseed.genome.Genome;
+import org.theseed.genome.Location;
 import org.theseed.proteins.Role;
 import org.theseed.proteins.RoleMap;
 
@@ -25,21 +33,56 @@ import org.theseed.proteins.RoleMap;
  * This class counts functionally-coupled roles in genomes.  After a sufficient number of genomes have
  * been counted, it can be used to produce a list of useful functional couplings.
  *
+ * Each useful role is assigned a dense integer index.  The role occurrence counts are kept in an integer
+ * array indexed by role, and the pair counts are kept in a {@link PairCountTable}.  The counter also keeps
+ * a ledger of the genomes it has absorbed.
+ *
  * @author Bruce Parrello
  *
  */
-public class RoleCoupleCounter {
+public class RoleCoupleCounter implements ICouplingQuery {
 
     // FIELDS
-    /** counting map for coupled roles */
-    PairCounter<Role> roleCounts;
     /** table of interesting roles */
     RoleMap usefulRoles;
     /** maximum gap between neighbors */
     int gap;
+    /** list of indexed roles, in index order */
+    List<Role> roleList;
+    /** map of role IDs to role indices */
+    private Map<String, Integer> roleIndex;
+    /** occurrence counts for the roles, by role index */
+    int[] roleCounts;
+    /** counts for the role pairs */
+    PairCountTable pairCounts;
+    /** ledger of genomes counted, mapping each genome ID to its content hash */
+    private Map<String, String> ledger;
+    /** sequence number of the last contribution log commit reflected in the counts, or 0 if none */
+    private long logSequence;
+    /** compact feature data for the contig being counted */
+    private ContigSweep sweep;
+    /** cache of function strings resolved to role indices */
+    private RoleResolutionCache resolver;
+    /** TRUE if the role set has changed since the resolution cache was reset */
+    private boolean resolverStale;
+    /** progress metrics */
+    private CouplingMetrics metrics;
+    /** maximum number of bytes for the pair table, or 0 for no limit */
+    private long memoryLimit;
+    /** run files for spilled pairs, or NULL if there is no memory limit */
+    private PairRunSet runs;
+    /** TRUE if every role found in a function should be counted, not just the ones in the role map */
+    private boolean allRoles;
+    /** adjacency index of the pairs, or NULL if it has not been built since the counts last changed */
+    private volatile PartnerIndex partnerIndex;
+    /** pool for counting the contigs of a genome in parallel, or NULL to count them serially */
+    private ForkJoinPool contigPool;
+
+    /** minimum number of features in a group of contigs counted by a single task */
+    private static final int TASK_FEATURES = 4096;
 
-    /** delimiter pattern for the scanner */
-    public static final Pattern DELIM_PATTERN = Pattern.compile("\\t|\\r?\\n");
+    /** heading for the ledger section of the text format */
+    public static final String LEDGER_HEADER = "genome_id\tcontent_hash";
 
     /**
      * Create a role-coupling counter for the specified roles with the specified feature gap.
@@ -48,9 +91,13 @@ public class RoleCoupleCounter {
      * @param gap		maximum distance between neighboring roles
      */
     public RoleCoupleCounter(RoleMap goodRoles, int gap) {
-        this.roleCounts = new PairCounter<Role>();
         this.usefulRoles = goodRoles;
         this.gap = gap;
+        Collection<Role> roles = goodRoles.objectValues();
+        this.setupIndex(roles.size());
+        for (Role role : roles) {
+            this.indexOf(role);
+        }
     }
 
     /**
@@ -59,9 +106,83 @@ public class RoleCoupleCounter {
      * @param gap	maximum distance between neighboring roles
      */
     protected RoleCoupleCounter(int gap) {
-        this.roleCounts = new PairCounter<Role>();
         this.usefulRoles = new RoleMap();
         this.gap = gap;
+        this.setupIndex(0);
+    }
+
+    /**
+     * Initialize the role index and the count tables.
+     *
+     * @param roles		expected number of roles
+     */
+    private void setupIndex(int roles) {
+        this.ledger = new LinkedHashMap<String, String>();
+        this.logSequence = 0;
+        this.sweep = new ContigSweep();
+        this.resolver = new RoleResolutionCache(RoleResolutionCache.DEFAULT_LIMIT);
+        this.resolverStale = true;
+        this.metrics = new CouplingMetrics();
+        this.memoryLimit = 0;
+        this.runs = null;
+        this.allRoles = false;
+        this.contigPool = null;
+        this.roleList = new ArrayList<Role>(roles);
+        this.roleIndex = new HashMap<String, Integer>(roles * 2 + 1);
+        this.roleCounts = new int[Math.max(roles, 16)];
+        this.pairCounts = PairCountTable.create(roles);
+    }
+
+    /**
+     * @return the index of the specified role, assigning a new one if the role has not been seen
+     *
+     * @param role	role whose index is desired
+     */
+    protected int indexOf(Role role) {
+        Integer retVal = this.roleIndex.get(role.getId());
+        if (retVal == null) {
+            retVal = this.roleList.size();
+            this.roleList.add(role);
+            this.roleIndex.put(role.getId(), retVal);
+            if (retVal >= this.roleCounts.length)
+                this.roleCounts = Arrays.copyOf(this.roleCounts, this.roleCounts.length * 2);
+            this.pairCounts = this.pairCounts.grow(this.roleList.size());
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the index of the specified role, or -1 if the role has no index
+     *
+     * @param role	role whose index is desired
+     */
+    protected int findIndex(Role role) {
+        int retVal = -1;
+        if (role != null) {
+            Integer idx = this.roleIndex.get(role.getId());
+            if (idx != null)
+                retVal = idx;
+        }
+        return retVal;
+    }
+
+    /**
+     * Prepare the pair table for the specified number of pairs.  This is only effective if the
+     * table is empty.
+     *
+     * @param pairs		expected number of pairs
+     */
+    void expectPairs(int pairs) {
+        if (this.pairCounts instanceof HashPairTable && this.pairCounts.size() == 0)
+            this.pairCounts = new HashPairTable(pairs);
+    }
+
+    /**
+     * @return the number of distinct role pairs with nonzero counts in memory (if the pair table has
+     * 		   been spilled, this does not include the pairs on disk)
+     */
+    public int getPairTotal() {
+        return this.pairCounts.size();
     }
 
     /**
@@ -74,7 +195,9 @@ public class RoleCoupleCounter {
     protected void addRole(String roleId, String roleName, int count) {
         Role newRole = new Role(roleId, roleName);
         this.usefulRoles.register(newRole);
-        this.roleCounts.recordOccurrences(newRole, count);
+        this.resolverStale = true;
+        int idx = this.indexOf(newRole);
+        this.roleCounts[idx] += count;
     }
 
     /**
@@ -87,7 +210,7 @@ public class RoleCoupleCounter {
     protected void addPair(String roleId1, String roleId2, int count) {
         Role role1 = this.getRoleById(roleId1);
         Role role2 = this.getRoleById(roleId2);
-        this.roleCounts.recordPairings(role1, role2, count);
+        this.pairCounts.add(this.indexOf(role1), this.indexOf(role2), count);
     }
 
     /**
@@ -107,39 +230,796 @@ public class RoleCoupleCounter {
     /**
      * Count the couplings in the specified genome.
      *
+     * Each contig is loaded into a compact sweep structure, resolving each feature's useful roles only
+     * once.  The resolution goes through a cache keyed on the function string, since most function
+     * strings occur in many genomes.  The sweep then moves a window along the features in order of left
+     * position, pairing each feature's roles with the roles of the features that follow it within the gap
+     * distance.
+     *
      * @param genome	genome of interest
      */
     public void countCouplings(Genome genome) {
+        this.countCouplings(genome, 1);
+    }
+
+    /**
+     * Subtract the couplings in the specified genome.  The genome must have been counted previously,
+     * using the same role set.  This does not remove the genome from the ledger.
+     *
+     * @param genome	genome of interest
+     */
+    public void uncountCouplings(Genome genome) {
+        this.countCouplings(genome, -1);
+    }
+
+    /**
+     * Add or subtract the couplings in the specified genome.
+     *
+     * @param genome	genome of interest
+     * @param delta		1 to add the couplings, -1 to subtract them
+     */
+    private void countCouplings(Genome genome, int delta) {
+        long start = this.metrics.startTimer();
+        if (this.contigPool != null && genome.getContigs().size() > 1) {
+            // The resolution cache is not thread-safe, so the roles are resolved before the contigs are split.
+            this.countProjection(this.project(genome), delta, start);
+        } else {
+            this.countSerial(genome, delta, start);
+        }
+    }
+
+    /**
+     * Add or subtract the couplings in the specified genome one contig at a time.
+     *
+     * @param genome	genome of interest
+     * @param delta		1 to add the couplings, -1 to subtract them
+     * @param start		start time of the count, for the metrics
+     */
+    private void countSerial(Genome genome, int delta, long start) {
+        if (this.resolverStale)
+            this.resetResolver();
+        int contigCount = 0;
+        int featureCount = 0;
         for (Contig contig : genome.getContigs()) {
             FeatureList contigFeatures = genome.getContigFeatures(contig.getId());
-            // Use the position object to move through the features in the contig.
+            this.sweep.clear();
+            contigCount++;
             FeatureList.Position position = contigFeatures.new Position();
             while (position.hasNext()) {
                 Feature current = position.next();
-                // Get this feature's roles.
-                Collection<Role> currentRoles = current.getUsefulRoles(this.usefulRoles);
-                if (currentRoles.size() > 0) {
-                    // We have useful roles.  Find the other features in the area.
-                    Collection<Feature> neighbors = position.within(this.gap);
-                    // Extract the other feature roles.
-                    ArrayList<Role> neighborRoles = new ArrayList<Role>(neighbors.size() + 4);
-                    for (Feature feat : neighbors) {
-                        neighborRoles.addAll(feat.getUsefulRoles(this.usefulRoles));
-                    }
-                    // Now we loop through our roles, counting the neighbor roles.
-                    for (Role role : currentRoles) {
-                        roleCounts.recordOccurrence(role, neighborRoles);
-                    }
+                featureCount++;
+                int[] currentRoles = this.resolve(current);
+                if (currentRoles.length > 0) {
+                    Location loc = current.getLocation();
+                    this.sweep.add(loc.getLeft(), loc.getRight(), currentRoles, currentRoles.length);
                 }
             }
+            this.countSweep(this.sweep, delta);
         }
+        this.metrics.stopTimer(CouplingMetrics.Phase.COUNT, start);
+        if (delta > 0)
+            this.metrics.recordGenome(contigCount, featureCount);
+        this.partnerIndex = null;
+        this.checkMemory();
+    }
+
+    /**
+     * @return a projection of the specified genome containing the positions and useful roles of its
+     * 		   features, which can be replayed later to count or uncount the genome
+     *
+     * @param genome	genome of interest
+     */
+    public GenomeProjection project(Genome genome) {
+        if (this.resolverStale)
+            this.resetResolver();
+        GenomeProjection retVal = new GenomeProjection(genome.getId());
+        int featureCount = 0;
+        for (Contig contig : genome.getContigs()) {
+            FeatureList contigFeatures = genome.getContigFeatures(contig.getId());
+            retVal.addContig();
+            FeatureList.Position position = contigFeatures.new Position();
+            while (position.hasNext()) {
+                Feature current = position.next();
+                featureCount++;
+                int[] currentRoles = this.resolve(current);
+                if (currentRoles.length > 0) {
+                    String[] ids = new String[currentRoles.length];
+                    for (int i = 0; i < ids.length; i++)
+                        ids[i] = this.roleList.get(currentRoles[i]).getId();
+                    Location loc = current.getLocation();
+                    retVal.addFeature(loc.getLeft(), loc.getRight(), ids);
+                }
+            }
+        }
+        retVal.setFeatureTotal(featureCount);
+        return retVal;
+    }
+
+    /**
+     * Count the couplings in a genome projection.
+     *
+     * @param projection	projection of the genome of interest
+     */
+    public void countCouplings(GenomeProjection projection) {
+        this.countCouplings(projection, 1);
+    }
+
+    /**
+     * Subtract the couplings in a genome projection.  The genome must have been counted previously.  This
+     * does not remove the genome from the ledger.
+     *
+     * @param projection	projection of the genome of interest
+     */
+    public void uncountCouplings(GenomeProjection projection) {
+        this.countCouplings(projection, -1);
+    }
+
+    /**
+     * Add or subtract the couplings in a genome projection.  Roles in the projection that are not in this
+     * counter's role map are ignored, as are roles that have never been counted when subtracting.
+     *
+     * @param projection	projection of the genome of interest
+     * @param delta			1 to add the couplings, -1 to subtract them
+     */
+    private void countCouplings(GenomeProjection projection, int delta) {
+        this.countProjection(projection, delta, this.metrics.startTimer());
+    }
+
+    /**
+     * Add or subtract the couplings in a genome projection.  If there is a contig pool and more than one
+     * contig, the contigs are counted in parallel.
+     *
+     * @param projection	projection of the genome of interest
+     * @param delta			1 to add the couplings, -1 to subtract them
+     * @param start			start time of the count, for the metrics
+     */
+    private void countProjection(GenomeProjection projection, int delta, long start) {
+        final int roleTotal = projection.getRoleTotal();
+        int[] idxMap = new int[roleTotal];
+        for (int i = 0; i < roleTotal; i++) {
+            String roleId = projection.getRoleId(i);
+            Integer idx = this.roleIndex.get(roleId);
+            if (idx == null && delta > 0) {
+                Role role = this.getRole(roleId);
+                if (role != null)
+                    idx = this.indexOf(role);
+            }
+            idxMap[i] = (idx == null ? -1 : idx);
+        }
+        final int contigTotal = projection.getContigTotal();
+        if (this.contigPool != null && contigTotal > 1) {
+            ContigTally tally = this.contigPool.invoke(new ContigTask(projection, idxMap, 0, contigTotal, delta));
+            this.addTally(tally);
+        } else {
+            int[] buffer = new int[Math.max(roleTotal, 1)];
+            for (int c = 0; c < contigTotal; c++) {
+                buffer = loadContig(this.sweep, projection, c, idxMap, buffer);
+                this.countSweep(this.sweep, delta);
+            }
+        }
+        this.metrics.stopTimer(CouplingMetrics.Phase.COUNT, start);
+        if (delta > 0)
+            this.metrics.recordGenome(contigTotal, projection.getFeatureTotal());
+        this.partnerIndex = null;
+        this.checkMemory();
+    }
+
+    /**
+     * Load a contig from a genome projection into a contig sweep.
+     *
+     * @param contigSweep	sweep to load
+     * @param projection	projection containing the contig
+     * @param c				index of the contig in the projection
+     * @param idxMap		map from the projection's role numbers to our role indices (-1 for roles to skip)
+     * @param buffer		work buffer for a feature's role indices
+     *
+     * @return the work buffer, which is enlarged if a feature has more roles than it can hold
+     */
+    private static int[] loadContig(ContigSweep contigSweep, GenomeProjection projection, int c, int[] idxMap,
+            int[] buffer) {
+        contigSweep.clear();
+        final int end = projection.getContigStart(c + 1);
+        for (int f = projection.getContigStart(c); f < end; f++) {
+            int n = 0;
+            for (int r = projection.getRoleStart(f); r < projection.getRoleStart(f + 1); r++) {
+                int idx = idxMap[projection.getRole(r)];
+                if (idx >= 0) {
+                    if (n >= buffer.length)
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    buffer[n++] = idx;
+                }
+            }
+            if (n > 0)
+                contigSweep.add(projection.getLeft(f), projection.getRight(f), buffer, n);
+        }
+        return buffer;
+    }
+
+    /**
+     * This task counts a range of contigs in a genome projection into a tally.  A range with enough
+     * features is split in half, and the tally for the second half is merged into the tally for the first,
+     * so the way the counts are combined depends only on the projection.
+     */
+    private class ContigTask extends RecursiveTask<ContigTally> {
+
+        /** serialization ID */
+        private static final long serialVersionUID = 1L;
+        /** projection being counted */
+        private final GenomeProjection projection;
+        /** map from the projection's role numbers to the counter's role indices */
+        private final int[] idxMap;
+        /** index of the first contig in the range */
+        private final int lo;
+        /** index past the last contig in the range */
+        private final int hi;
+        /** 1 to add the couplings, -1 to subtract them */
+        private final int delta;
+
+        /**
+         * Create a task to count a range of contigs.
+         *
+         * @param projection	projection being counted
+         * @param idxMap		map from the projection's role numbers to the counter's role indices
+         * @param lo			index of the first contig in the range
+         * @param hi			index past the last contig in the range
+         * @param delta			1 to add the couplings, -1 to subtract them
+         */
+        protected ContigTask(GenomeProjection projection, int[] idxMap, int lo, int hi, int delta) {
+            this.projection = projection;
+            this.idxMap = idxMap;
+            this.lo = lo;
+            this.hi = hi;
+            this.delta = delta;
+        }
+
+        @Override
+        protected ContigTally compute() {
+            ContigTally retVal;
+            int features = this.projection.getContigStart(this.hi) - this.projection.getContigStart(this.lo);
+            if (this.hi - this.lo > 1 && features > TASK_FEATURES) {
+                int mid = (this.lo + this.hi) >>> 1;
+                ContigTask left = new ContigTask(this.projection, this.idxMap, this.lo, mid, this.delta);
+                ContigTask right = new ContigTask(this.projection, this.idxMap, mid, this.hi, this.delta);
+                left.fork();
+                ContigTally rightTally = right.compute();
+                retVal = left.join();
+                retVal.merge(rightTally);
+            } else {
+                retVal = RoleCoupleCounter.this.createTally();
+                ContigSweep contigSweep = new ContigSweep();
+                int[] buffer = new int[16];
+                for (int c = this.lo; c < this.hi; c++) {
+                    buffer = loadContig(contigSweep, this.projection, c, this.idxMap, buffer);
+                    RoleCoupleCounter.this.countSweep(contigSweep, retVal, this.delta);
+                }
+            }
+            return retVal;
+        }
+
+    }
+
+    /**
+     * @return an empty tally for counting contigs apart from this counter
+     */
+    protected ContigTally createTally() {
+        return new ContigTally(this.roleList.size(), 0);
+    }
+
+    /**
+     * Add or subtract the couplings in a loaded contig sweep to a tally.
+     *
+     * @param contigSweep	sweep containing the contig's features
+     * @param tally			tally to receive the counts
+     * @param delta			1 to add the couplings, -1 to subtract them
+     */
+    protected void countSweep(ContigSweep contigSweep, ContigTally tally, int delta) {
+        contigSweep.count(this.gap, tally.getRoleCounts(), tally.getPairCounts(), delta);
+    }
+
+    /**
+     * Add the counts in a tally to this counter.
+     *
+     * @param tally		tally whose counts are to be added
+     */
+    protected void addTally(ContigTally tally) {
+        int[] counts = tally.getRoleCounts();
+        for (int i = 0; i < counts.length; i++)
+            this.roleCounts[i] += counts[i];
+        ContigTally.addTable(this.pairCounts, tally.getPairCounts());
+    }
+
+    /**
+     * Add or subtract the couplings in a loaded contig sweep.
+     *
+     * @param contigSweep	sweep containing the contig's features
+     * @param delta			1 to add the couplings, -1 to subtract them
+     */
+    protected void countSweep(ContigSweep contigSweep, int delta) {
+        contigSweep.count(this.gap, this.roleCounts, this.pairCounts, delta);
+    }
+
+    /**
+     * @return the indices of a feature's useful roles
+     *
+     * @param feat	feature whose roles are desired
+     */
+    private int[] resolve(Feature feat) {
+        String function = feat.getFunction();
+        int[] retVal;
+        if (this.resolver.reject(function)) {
+            retVal = RoleResolutionCache.NO_ROLES;
+        } else {
+            retVal = this.resolver.get(function);
+            if (retVal == null) {
+                Collection<Role> roles = (this.allRoles ? this.rolesOf(function)
+                        : feat.getUsefulRoles(this.usefulRoles));
+                retVal = new int[roles.size()];
+                int i = 0;
+                for (Role role : roles)
+                    retVal[i++] = this.indexOf(role);
+                this.resolver.put(function, retVal);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return all the roles in a function string, adding any new ones to the role map
+     *
+     * Hypothetical proteins are not considered roles.
+     *
+     * @param function	function string to parse
+     */
+    private List<Role> rolesOf(String function) {
+        String[] names = Feature.rolesOfFunction(function);
+        List<Role> retVal = new ArrayList<Role>(names.length);
+        for (String name : names) {
+            if (! name.isEmpty() && ! name.toLowerCase().contains("hypothetical"))
+                retVal.add(this.usefulRoles.findOrInsert(name));
+        }
+        return retVal;
+    }
+
+    /**
+     * Clear the resolution cache and recompute its length filter from the current role set.  A function
+     * must be at least as long as the matchable part of the shortest useful role name, as measured by
+     * {@link RoleResolutionCache#matchLength(String)}.  If all roles are being counted, there is no length
+     * filter.
+     */
+    private void resetResolver() {
+        int minLength = (this.allRoles ? 0 : Integer.MAX_VALUE);
+        for (Role role : this.usefulRoles.objectValues()) {
+            int len = RoleResolutionCache.matchLength(role.getName());
+            if (len < minLength)
+                minLength = len;
+        }
+        this.resolver.reset(minLength == Integer.MAX_VALUE ? 0 : minLength);
+        this.resolverStale = false;
+    }
+
+    /**
+     * Specify the maximum number of function strings to keep in the role resolution cache.
+     *
+     * @param limit		maximum number of cache entries
+     */
+    public void setCacheLimit(int limit) {
+        this.resolver = new RoleResolutionCache(limit);
+        this.resolverStale = true;
+    }
+
+    /**
+     * @return the role resolution cache, for statistics
+     */
+    public RoleResolutionCache getResolutionCache() {
+        return this.resolver;
+    }
+
+    /**
+     * Specify the metrics object for recording this counter's progress.  The metrics object can be
+     * shared with other counters.
+     *
+     * @param metrics	metrics object to use
+     */
+    public void setMetrics(CouplingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the metrics object recording this counter's progress
+     */
+    public CouplingMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Specify whether all the roles found in the feature functions should be counted.  If so, new roles
+     * are added to the role map as they are found.
+     *
+     * @param allRoles	TRUE to count all roles, FALSE to count only the roles in the role map
+     */
+    public void setAllRoles(boolean allRoles) {
+        this.allRoles = allRoles;
+        this.resolverStale = true;
+    }
+
+    /**
+     * @return TRUE if all the roles found in the feature functions are counted, FALSE if only the roles in
+     * 		   the role map are counted
+     */
+    public boolean isAllRoles() {
+        return this.allRoles;
+    }
+
+    /**
+     * Specify a fork-join pool for counting the contigs of a genome in parallel.  The pool can be shared
+     * with other counters.  When a pool is present, the roles of a genome with several contigs are resolved
+     * serially into a {@link GenomeProjection}, and then groups of contigs are counted by separate tasks
+     * into {@link ContigTally} objects.  The tallies are combined in contig order, so the results are the
+     * same as a serial count.
+     *
+     * @param pool		pool to use, or NULL to count the contigs serially
+     */
+    public void setContigPool(ForkJoinPool pool) {
+        this.contigPool = pool;
+    }
+
+    /**
+     * @return the pool for counting contigs in parallel, or NULL if they are counted serially
+     */
+    public ForkJoinPool getContigPool() {
+        return this.contigPool;
+    }
+
+    /**
+     * Put this counter in approximate mode, keeping the pair counts in a fixed-size sketch.  This must be
+     * done before any pairs are counted.  In approximate mode, only the candidate strong pairs can be
+     * listed; they can then be counted exactly by a counter from {@link #createCandidateCounter}.
+     *
+     * @param memory	number of bytes to use for the sketch and the candidate pairs
+     */
+    public void setSketch(long memory) {
+        if (this.pairCounts.size() > 0)
+            throw new IllegalStateException("Cannot switch to a sketch after pairs have been counted.");
+        this.pairCounts = new SketchPairTable(memory, SketchPairTable.DEFAULT_DEPTH);
+    }
+
+    /**
+     * @return the sketch holding the pair counts, or NULL if this counter is not in approximate mode
+     */
+    public SketchPairTable getSketch() {
+        return (this.pairCounts instanceof SketchPairTable ? (SketchPairTable) this.pairCounts : null);
+    }
+
+    /**
+     * Create an empty counter for the second pass of an approximate run.  The new counter uses the roles
+     * found by this one, and counts only the pairs whose estimated counts pass the specified thresholds.
+     * Because the estimates are never too low, every pair that truly passes the thresholds and is a
+     * candidate in this counter will be counted.
+     *
+     * @param minTogether	minimum acceptable togetherness fraction
+     * @param minCount		minimum acceptable occurrence count
+     *
+     * @return a new, empty exact counter restricted to the candidate pairs
+     */
+    public RoleCoupleCounter createCandidateCounter(final double minTogether, final int minCount) {
+        final RoleCoupleCounter retVal = new RoleCoupleCounter(this.usefulRoles, this.gap);
+        retVal.setCacheLimit(this.resolver.getLimit());
+        retVal.setMetrics(this.metrics);
+        retVal.setContigPool(this.contigPool);
+        final CandidatePairTable table = new CandidatePairTable(this.pairCounts.size());
+        this.forEachPair((r1, r2, count) -> {
+            if (count >= minCount && togetherness(count, this.roleCounts[r1], this.roleCounts[r2]) >= minTogether)
+                table.addCandidate(retVal.findIndex(this.roleList.get(r1)), retVal.findIndex(this.roleList.get(r2)));
+        });
+        retVal.pairCounts = table;
+        return retVal;
+    }
+
+    /**
+     * Specify a memory limit for the pair table.  When the table grows past the limit, it is written to
+     * a sorted run file and cleared.  The pair scans used for saving and reporting merge the runs with the
+     * pairs remaining in memory, so they produce the same results as an unlimited counter, but queries for
+     * individual pairs are not supported once the table has been spilled.  Only the hash-based pair table
+     * is ever spilled, since the triangular table does not shrink when cleared.  Shards created for
+     * parallel counting each get an equal share of the limit and their own run files.
+     *
+     * @param limit		maximum number of bytes for the pair table, or 0 for no limit
+     * @param tempDir	directory for the run files
+     */
+    public void setMemoryLimit(long limit, File tempDir) {
+        this.memoryLimit = limit;
+        if (limit > 0 && this.runs == null)
+            this.runs = new PairRunSet(tempDir);
+    }
+
+    /**
+     * @return TRUE if some of the pair counts have been spilled to disk
+     */
+    public boolean isSpilled() {
+        return (this.runs != null && this.runs.size() > 0);
+    }
+
+    /**
+     * @return the spilled run files, or NULL if there is no memory limit
+     */
+    public PairRunSet getRuns() {
+        return this.runs;
+    }
+
+    /**
+     * Delete the spilled run files.  The spilled pair counts are lost, so this should only be done when
+     * the counter is no longer needed.
+     */
+    public void deleteRuns() {
+        if (this.runs != null)
+            this.runs.close();
+    }
+
+    /**
+     * Spill the pair table to disk if it has grown past the memory limit.
+     */
+    private void checkMemory() {
+        if (this.memoryLimit > 0 && this.pairCounts instanceof HashPairTable &&
+                this.pairCounts.memoryUsed() > this.memoryLimit) {
+            int[] order = this.sortedRoles();
+            try {
+                this.runs.spill(this.pairCounts, invert(order), order);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.pairCounts = new HashPairTable(1024);
+        }
+    }
+
+    /**
+     * @return the role indices, sorted by role ID; that is, the array maps each dictionary rank to a
+     * 		   role index
+     */
+    int[] sortedRoles() {
+        final int roleTotal = this.roleList.size();
+        Integer[] sorted = new Integer[roleTotal];
+        for (int i = 0; i < roleTotal; i++)
+            sorted[i] = i;
+        Arrays.sort(sorted, Comparator.comparing(i -> this.roleList.get(i).getId()));
+        int[] retVal = new int[roleTotal];
+        for (int i = 0; i < roleTotal; i++)
+            retVal[i] = sorted[i];
+        return retVal;
+    }
+
+    /**
+     * @return the inverse of a permutation array
+     *
+     * @param order		array to invert
+     */
+    static int[] invert(int[] order) {
+        int[] retVal = new int[order.length];
+        for (int i = 0; i < order.length; i++)
+            retVal[order[i]] = i;
+        return retVal;
+    }
+
+    /**
+     * Pass every pair with a nonzero count to a visitor, including the pairs spilled to disk.  If nothing
+     * has been spilled, the pairs are presented in no particular order; otherwise they are presented in
+     * dictionary order.
+     *
+     * @param visitor	visitor to receive the pairs
+     */
+    void forEachPair(PairCountTable.Visitor visitor) {
+        if (! this.isSpilled()) {
+            this.pairCounts.forEach(visitor);
+        } else {
+            int[] order = this.sortedRoles();
+            try {
+                this.runs.merge(this.pairCounts, invert(order), order, (r1, r2, count) -> visitor.visit(r1, r2, count));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Pass every pair with a nonzero count to a sink in dictionary order, including the pairs spilled
+     * to disk.  In each pair, the role with the lower ID comes first.
+     *
+     * @param rank		map of role indices to dictionary ranks
+     * @param order		map of dictionary ranks to role indices
+     * @param sink		object to receive the pairs
+     *
+     * @throws IOException
+     */
+    void forEachSorted(int[] rank, int[] order, PairRunSet.Sink sink) throws IOException {
+        PairRunSet source = (this.runs != null ? this.runs : new PairRunSet(null));
+        source.merge(this.pairCounts, rank, order, sink);
+    }
+
+    /**
+     * Insure the pair table has not been spilled, so that individual pairs can be queried.
+     */
+    private void checkResident() {
+        if (this.isSpilled())
+            throw new IllegalStateException("Pair counts have been spilled to disk and cannot be queried " +
+                    "individually.");
+    }
+
+    /**
+     * Create an empty counter that can be used to count genomes in parallel with this one.  The shard
+     * shares this counter's role map, gap, and metrics, and its results can be folded back in using
+     * {@link #merge}.
+     *
+     * @return a new, empty counter compatible with this one
+     */
+    public RoleCoupleCounter createShard() {
+        RoleCoupleCounter retVal = new RoleCoupleCounter(this.usefulRoles, this.gap);
+        retVal.setCacheLimit(this.resolver.getLimit());
+        retVal.setMetrics(this.metrics);
+        retVal.setAllRoles(this.allRoles);
+        retVal.setContigPool(this.contigPool);
+        return retVal;
+    }
+
+    /**
+     * Create an empty counter that can be used to count genomes in parallel with this one, as one of a
+     * group of shards.  If this counter has a memory limit, the shard gets an equal share of it and its own
+     * run files in the same directory, so that the shards together stay within the limit.
+     *
+     * @param shards	number of shards in the group
+     *
+     * @return a new, empty counter compatible with this one
+     */
+    public RoleCoupleCounter createShard(int shards) {
+        RoleCoupleCounter retVal = this.createShard();
+        if (this.memoryLimit > 0)
+            retVal.setMemoryLimit(Math.max(this.memoryLimit / shards, 1), this.runs.getTempDir());
+        return retVal;
+    }
+
+    /**
+     * Add the counts from another role-coupling counter to this one.  The other counter must have
+     * the same gap.  Any roles in the other counter not already known to this one will be added.
+     *
+     * @param other	role-coupling counter whose counts are to be added
+     */
+    public void merge(RoleCoupleCounter other) {
+        if (other.gap != this.gap)
+            throw new IllegalArgumentException("Cannot merge couplers with gaps " + this.gap + " and " +
+                    other.gap + ".");
+        long start = this.metrics.startTimer();
+        // Map the other counter's role indices to ours.
+        final int[] idxMap = new int[other.roleList.size()];
+        for (int i = 0; i < idxMap.length; i++) {
+            Role role = other.roleList.get(i);
+            if (this.getRole(role.getId()) == null) {
+                this.usefulRoles.register(role);
+                this.resolverStale = true;
+            }
+            idxMap[i] = this.indexOf(role);
+            this.roleCounts[idxMap[i]] += other.roleCounts[i];
+        }
+        other.forEachPair((r1, r2, count) -> {
+            this.pairCounts.add(idxMap[r1], idxMap[r2], count);
+            this.checkMemory();
+        });
+        this.ledger.putAll(other.ledger);
+        this.logSequence = Math.max(this.logSequence, other.logSequence);
+        this.resolver.addStats(other.resolver);
+        this.metrics.stopTimer(CouplingMetrics.Phase.MERGE, start);
+        this.partnerIndex = null;
+    }
+
+    /**
+     * Record that a genome has been counted.  The ledger keeps a genome from being counted twice when a
+     * directory is repeated or an interrupted run is resumed.
+     *
+     * @param genomeId	ID of the genome counted
+     * @param hash		content hash of the genome, or an empty string if none was computed
+     */
+    public void recordGenome(String genomeId, String hash) {
+        this.ledger.put(genomeId, hash);
+    }
+
+    /**
+     * Remove a genome from the ledger.  This does not change the counts.
+     *
+     * @param genomeId	ID of the genome to remove
+     *
+     * @return TRUE if the genome was in the ledger, else FALSE
+     */
+    public boolean removeGenome(String genomeId) {
+        return (this.ledger.remove(genomeId) != null);
+    }
+
+    /**
+     * @return TRUE if the specified genome has been counted
+     *
+     * @param genomeId	ID of the genome of interest
+     */
+    public boolean isCounted(String genomeId) {
+        return this.ledger.containsKey(genomeId);
+    }
+
+    /**
+     * @return the content hash recorded for a genome, an empty string if no hash was recorded, or NULL
+     * 		   if the genome has not been counted
+     *
+     * @param genomeId	ID of the genome of interest
+     */
+    public String getLedgerHash(String genomeId) {
+        return this.ledger.get(genomeId);
+    }
+
+    /**
+     * @return an unmodifiable view of the genome ledger, mapping each genome ID to its content hash
+     */
+    public Map<String, String> getLedger() {
+        return Collections.unmodifiableMap(this.ledger);
+    }
+
+    /**
+     * @return the sequence number of the last contribution log commit reflected in the counts, or 0 if
+     * 		   none is known
+     */
+    public long getLogSequence() {
+        return this.logSequence;
+    }
+
+    /**
+     * Specify the sequence number of the last contribution log commit reflected in the counts.  This is
+     * saved with the ledger, so that an interrupted run can tell whether the saved coupler includes the
+     * changes staged in the log.
+     *
+     * @param logSequence	sequence number to store
+     */
+    public void setLogSequence(long logSequence) {
+        this.logSequence = logSequence;
+    }
+
+    /**
+     * @return TRUE if a ledger section needs to be saved with this counter
+     */
+    protected boolean hasLedgerSection() {
+        return (this.ledger.size() > 0 || this.logSequence > 0);
+    }
+
+    /**
+     * @return the heading line for the ledger section of a text coupler file
+     *
+     * The heading has a third column containing the contribution log sequence number, if there is one.
+     *
+     * @param logSequence	contribution log sequence number, or 0 if there is none
+     */
+    public static String ledgerHeading(long logSequence) {
+        return (logSequence > 0 ? LEDGER_HEADER + "\t" + logSequence : LEDGER_HEADER);
+    }
+
+    /**
+     * @return the contribution log sequence number from the third column of a ledger heading
+     *
+     * @param value		text of the column
+     *
+     * @throws IOException
+     */
+    public static long parseLogSequence(String value) throws IOException {
+        long retVal;
+        try {
+            retVal = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid contribution log sequence number \"" + value + "\" in ledger heading.");
+        }
+        return retVal;
     }
 
     /**
      * @return a collection of counts for the roles that appeared, sorted from most frequent to least
      */
     public List<CountMap<Role>.Count> getRoleCounts() {
-        return this.roleCounts.sortedItemCounts();
+        PairCounter<Role> counter = new PairCounter<Role>();
+        for (int i = 0; i < this.roleList.size(); i++) {
+            if (this.roleCounts[i] != 0)
+                counter.recordOccurrences(this.roleList.get(i), this.roleCounts[i]);
+        }
+        return counter.sortedItemCounts();
     }
 
     /**
@@ -147,8 +1027,10 @@ public class RoleCoupleCounter {
      *
      * @param role	role of interest
      */
+    @Override
     public int getCount(Role role) {
-        return this.roleCounts.getCount(role);
+        int idx = this.findIndex(role);
+        return (idx < 0 ? 0 : this.roleCounts[idx]);
     }
 
     /**
@@ -157,15 +1039,22 @@ public class RoleCoupleCounter {
      * @param role1	first role of interest
      * @param role2	second role of interest
      */
+    @Override
     public int getCount(Role role1, Role role2) {
-        return this.roleCounts.getCount(role1, role2);
+        this.checkResident();
+        int retVal = 0;
+        int idx1 = this.findIndex(role1);
+        int idx2 = this.findIndex(role2);
+        if (idx1 >= 0 && idx2 >= 0)
+            retVal = this.pairCounts.get(idx1, idx2);
+        return retVal;
     }
 
     /**
      * @return a list of counts for the role pairs that appeared, sorted from most frequent to least
      */
     public List<PairCounter<Role>.Count> getPairCounts() {
-        return this.roleCounts.sortedCounts(0.0, 0);
+        return this.getPairCounts(0.0, 0);
     }
 
     /**
@@ -175,8 +1064,136 @@ public class RoleCoupleCounter {
      * @param minTogether	minimum acceptable togetherness fraction
      * @param minCount		minimum acceptable occurrence count
      */
-    public List<PairCounter<Role>.Count> getPairCounts(double minTogether, int minCount) {
-        return this.roleCounts.sortedCounts(minTogether, minCount);
+    public List<PairCounter<Role>.Count> getPairCounts(final double minTogether, final int minCount) {
+        // Build a pair counter containing only the qualifying pairs and the roles in them.  Each role's
+        // full occurrence count is recorded so the togetherness values come out right.
+        final PairCounter<Role> counter = new PairCounter<Role>();
+        final boolean[] recorded = new boolean[this.roleList.size()];
+        this.forEachPair((r1, r2, count) -> {
+            if (count >= minCount && togetherness(count, this.roleCounts[r1], this.roleCounts[r2]) >= minTogether) {
+                this.recordRole(counter, recorded, r1);
+                this.recordRole(counter, recorded, r2);
+                counter.recordPairings(this.roleList.get(r1), this.roleList.get(r2), count);
+            }
+        });
+        return counter.sortedCounts(minTogether, minCount);
+    }
+
+    /**
+     * @return a list of counts for the most frequent role pairs with a togetherness and count higher
+     * 		   than the specified amounts, sorted from most frequent to least frequent
+     *
+     * Only the best pairs are kept during the scan, so the memory used is proportional to the limit
+     * rather than to the number of qualifying pairs.
+     *
+     * @param minTogether	minimum acceptable togetherness fraction
+     * @param minCount		minimum acceptable occurrence count
+     * @param limit			maximum number of pairs to return
+     */
+    public List<PairCounter<Role>.Count> getTopPairs(final double minTogether, final int minCount, int limit) {
+        final PairHeap heap = new PairHeap(limit);
+        this.forEachPair((r1, r2, count) -> {
+            if (count >= minCount && togetherness(count, this.roleCounts[r1], this.roleCounts[r2]) >= minTogether)
+                heap.offer(PairCountTable.pairKey(r1, r2), count);
+        });
+        final PairCounter<Role> counter = new PairCounter<Role>();
+        final boolean[] recorded = new boolean[this.roleList.size()];
+        heap.forEach((r1, r2, count) -> {
+            this.recordRole(counter, recorded, r1);
+            this.recordRole(counter, recorded, r2);
+            counter.recordPairings(this.roleList.get(r1), this.roleList.get(r2), count);
+        });
+        return counter.sortedCounts(minTogether, minCount);
+    }
+
+    /**
+     * Pass the role pairs with a togetherness and count at or above the specified amounts to a visitor.
+     * The pairs are presented in no particular order, and no intermediate list is built, so this is the
+     * fastest way to stream the couplings.
+     *
+     * @param minTogether	minimum acceptable togetherness fraction
+     * @param minCount		minimum acceptable occurrence count
+     * @param visitor		visitor to receive the qualifying pairs
+     */
+    public void visitPairs(final double minTogether, final int minCount, final ICouplingVisitor visitor) {
+        this.forEachPair((r1, r2, count) -> {
+            if (count >= minCount) {
+                double together = togetherness(count, this.roleCounts[r1], this.roleCounts[r2]);
+                if (together >= minTogether)
+                    visitor.visit(this.roleList.get(r1), this.roleList.get(r2), count, together);
+            }
+        });
+    }
+
+    /**
+     * @return the partners of a role with a togetherness and count at or above the specified amounts,
+     * 		   strongest first
+     *
+     * The partners come from the adjacency index, which is built on the first call after the counts
+     * change, so the time taken is proportional to the number of partners of the role.  Partners with
+     * the same togetherness and count are in order by role index.
+     *
+     * @param role			role whose partners are desired
+     * @param minTogether	minimum acceptable togetherness fraction
+     * @param minCount		minimum acceptable occurrence count
+     */
+    public List<CouplingPartner> getPartners(Role role, final double minTogether, final int minCount) {
+        final List<CouplingPartner> retVal = new ArrayList<CouplingPartner>();
+        final int idx = this.findIndex(role);
+        if (idx >= 0) {
+            this.getPartnerIndex().forPartners(idx, minTogether, minCount, (partner, count, together) ->
+                    retVal.add(new CouplingPartner(this.roleList.get(partner), count, together)));
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the adjacency index of the pairs, building it if it is not current
+     *
+     * The index is built only once even if several threads ask for it at the same time.  Once built, it
+     * is kept until the counts change.
+     */
+    public PartnerIndex getPartnerIndex() {
+        PartnerIndex retVal = this.partnerIndex;
+        if (retVal == null) {
+            synchronized (this) {
+                retVal = this.partnerIndex;
+                if (retVal == null) {
+                    retVal = new PartnerIndex(this);
+                    this.partnerIndex = retVal;
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Record a role's occurrence count in a pair counter if it has not already been recorded.
+     *
+     * @param counter	target pair counter
+     * @param recorded	array of flags indicating which roles have been recorded
+     * @param idx		index of the role to record
+     */
+    private void recordRole(PairCounter<Role> counter, boolean[] recorded, int idx) {
+        if (! recorded[idx]) {
+            counter.recordOccurrences(this.roleList.get(idx), this.roleCounts[idx]);
+            recorded[idx] = true;
+        }
+    }
+
+    /**
+     * @return the togetherness fraction for a pair
+     *
+     * @param pairCount		number of times the roles occurred together
+     * @param count1		number of times the first role occurred
+     * @param count2		number of times the second role occurred
+     */
+    public static double togetherness(int pairCount, int count1, int count2) {
+        double retVal = 0.0;
+        int total = count1 + count2 - pairCount;
+        if (total > 0)
+            retVal = ((double) pairCount) / total;
+        return retVal;
     }
 
     /**
@@ -186,11 +1203,14 @@ public class RoleCoupleCounter {
      * @param role1	first role of interest
      * @param role2 second role of interest
      */
+    @Override
     public double getTogetherness(Role role1, Role role2) {
-        PairCounter<Role>.Count counter = this.roleCounts.getPairCount(role1, role2);
+        this.checkResident();
         double retVal = 0.0;
-        if (counter != null) {
-            retVal = counter.togetherness();
+        int idx1 = this.findIndex(role1);
+        int idx2 = this.findIndex(role2);
+        if (idx1 >= 0 && idx2 >= 0) {
+            retVal = togetherness(this.pairCounts.get(idx1, idx2), this.roleCounts[idx1], this.roleCounts[idx2]);
         }
         return retVal;
     }
@@ -203,16 +1223,51 @@ public class RoleCoupleCounter {
     }
 
     /**
-     * Save this role-coupling counter to the specified file.  The counter data is saved as a text
-     * file to permit easy manipulation in other languages. The basic file format consists of a
+     * Save this role-coupling counter to the specified file.  If the file name ends with
+     * {@link BinaryCouplerFile#SUFFIX}, it is saved in the binary format; otherwise, it is saved
+     * as text.
+     *
+     * @param outFile	output file
+     *
+     * @throws IOException
+     */
+    public void save(File outFile) throws IOException {
+        this.save(outFile, BinaryCouplerFile.isBinaryName(outFile));
+    }
+
+    /**
+     * Save this role-coupling counter to the specified file in the specified format.
+     *
+     * @param outFile	output file
+     * @param binary	TRUE to use the binary format, FALSE to use the text format
+     *
+     * @throws IOException
+     */
+    public void save(File outFile, boolean binary) throws IOException {
+        long start = this.metrics.startTimer();
+        if (binary) {
+            BinaryCouplerFile.save(this, outFile);
+        } else {
+            this.saveText(outFile);
+        }
+        this.metrics.stopTimer(CouplingMetrics.Phase.SAVE, start);
+    }
+
+    /**
+     * Save this role-coupling counter to the specified file in text format.  The counter data is saved
+     * as a text file to permit easy manipulation in other languages. The basic file format consists of a
      * header record with the gap, a line of column labels, then one record per useful role (count, ID, name),
      * a line of more column labels, then one record per role pair (count, ID1, ID2, togetherness).
+     * The role pairs are written in no particular order.
+     * If any genomes are in the ledger, or a contribution log sequence number is known, this is followed
+     * by a ledger heading (with the sequence number in a third column) and one record per genome (ID,
+     * content hash).
      *
      * @param outFile	output file
      *
      * @throws IOException
      */
-    public void save(File outFile) throws IOException {
+    public void saveText(File outFile) throws IOException {
         PrintWriter writer = new PrintWriter(outFile);
         writer.format("%d\tRole-Coupling Database%n", this.gap);
         writer.println("count\trole_id\trole_name%n");
@@ -221,16 +1276,20 @@ public class RoleCoupleCounter {
             writer.format("%d\t%s\t%s%n", this.getCount(role), role.getId(), role.getName());
         }
         writer.println("role1_id\trole2_id\tcount\ttogetherness");
-        List<PairCounter<Role>.Count> sortedCounts = this.getPairCounts();
-        for (PairCounter<Role>.Count count : sortedCounts) {
-            writer.format("%d\t%s\t%s\t%4.2g%n", count.getCount(), count.getKey1().getId(),
-                    count.getKey2().getId(), count.togetherness());
+        this.visitPairs(0.0, 0, (role1, role2, count, together) ->
+                writer.format("%d\t%s\t%s\t%4.2g%n", count, role1.getId(), role2.getId(), together));
+        if (this.hasLedgerSection()) {
+            writer.println(ledgerHeading(this.logSequence));
+            for (Map.Entry<String, String> entry : this.ledger.entrySet()) {
+                writer.format("%s\t%s%n", entry.getKey(), entry.getValue());
+            }
         }
         writer.close();
     }
 
     /**
-     * Load a role-coupling counter from the specified file.
+     * Load a role-coupling counter from the specified file.  The file format (text or binary) is
+     * determined from the file contents.
      *
      * @param inFile	input file
      *
@@ -239,35 +1298,29 @@ public class RoleCoupleCounter {
      * @throws IOException
      */
     public static RoleCoupleCounter load(File inFile) throws IOException {
-        Scanner reader = new Scanner(inFile);
-        reader.useDelimiter(DELIM_PATTERN);
-        // Read the gap number and skip the rest of the heading line
-        int gap = reader.nextInt();
-        RoleCoupleCounter retVal = new RoleCoupleCounter(gap);
-        reader.nextLine();
-        // Skip the role table header.
-        reader.nextLine();
-        // Loop through the role table.
-        while (reader.hasNextInt()) {
-            int count = reader.nextInt();
-            String roleId = reader.next();
-            String roleDesc = reader.next();
-            retVal.addRole(roleId, roleDesc, count);
-        }
-        // Skip the end-of-line token on the last line.
-        reader.nextLine();
-        // Skip the pair table header.
-        reader.nextLine();
-        // Loop through the pair table.
-        while (reader.hasNextInt()) {
-            int count = reader.nextInt();
-            String roleId1 = reader.next();
-            String roleId2 = reader.next();
-            retVal.addPair(roleId1, roleId2, count);
-            // Skip the togetherness number.
-            reader.nextLine();
+        return load(inFile, false);
+    }
+
+    /**
+     * Load a role-coupling counter from the specified file.  The file format (text, multi-gap text, or
+     * binary) is determined from the file contents.
+     *
+     * @param inFile	input file
+     * @param verbose	TRUE to write load statistics to STDERR
+     *
+     * @return a new role-coupling counter read from the file
+     *
+     * @throws IOException
+     */
+    public static RoleCoupleCounter load(File inFile, boolean verbose) throws IOException {
+        RoleCoupleCounter retVal;
+        if (BinaryCouplerFile.isBinary(inFile)) {
+            retVal = BinaryCouplerFile.load(inFile);
+        } else if (MultiGapCoupleCounter.isMultiGap(inFile)) {
+            retVal = MultiGapCoupleCounter.load(inFile);
+        } else {
+            retVal = CouplerTextLoader.load(inFile, verbose);
         }
-        reader.close();
         return retVal;
     }
 
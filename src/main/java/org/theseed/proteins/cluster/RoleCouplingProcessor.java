@@ -3,8 +3,24 @@ package org.theseed.proteins.cluster;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
@@ -12,13 +28,12 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.theseed.counters.PairCounter;
 import org.theseed.genome.Genome;
-import org.theseed.genome.GenomeDirectory;
 import org.theseed.proteins.Role;
 import org.theseed.proteins.RoleMap;
 
 /**
- * This is the primary class for processing role couplings.  It reads genomes from a
- * directory, runs them through the coupler, and then saves the coupler to a file.
+ * This is the primary class for processing role couplings.  It reads genomes from
+ * directories or archives, runs them through the coupler, and then saves the coupler to a file.
  * It accepts the following command-line parameters.
  *
  * -t			minimum togetherness threshold for two features to be considered
@@ -27,22 +42,110 @@ import org.theseed.proteins.RoleMap;
  * 				(default 10)
  * -v			write progress messages to STDERR
  *
+ * --binary	save the coupler file in binary format; otherwise, the coupler file is saved in
+ * 				binary format only if its name ends in ".rcb"
+ *
+ * --threads	number of worker threads to use for counting genomes (default 1); each worker
+ * 				counts into its own coupler shard, and the shards are merged at the end
+ *
+ * --contigThreads	number of threads used to count the contigs of a single genome in parallel (default 0,
+ * 				meaning each genome's contigs are counted serially); this helps with fragmented genomes
+ * 				that have many contigs, and the counts are the same as a serial count
+ *
+ * --hash		compute a content hash for each genome file and store it in the coupler's
+ * 				genome ledger; a genome whose file has changed since it was counted is reported
+ *
+ * --top		report only this many of the most frequent qualifying pairs (default 0, meaning all)
+ *
+ * --unsorted	report the qualifying pairs in no particular order; the output starts immediately
+ * 				and no list of pairs is built
+ *
+ * --format	format of the output report:  "tsv" for tab-delimited text, "tsv.gz" for compressed
+ * 				tab-delimited text, or "bin" for a binary columnar file (default is based on the
+ * 				output file name, or "tsv" for the standard output)
+ *
+ * --output		name of the file for the output report (default is the standard output)
+ *
+ * --metrics	name of a file to receive periodic progress snapshots in JSON-lines format, or "-"
+ * 				to write them to STDERR; a summary table of the metrics is written to STDERR at the
+ * 				end of the run if this option or "-v" is specified
+ *
+ * --metricsInterval	number of seconds between metrics snapshots (default 60)
+ *
+ * --cacheSize	maximum number of function strings to keep in the role resolution cache
+ * 				(default 200000)
+ *
+ * --maxMemory	maximum number of megabytes to use for the pair counts (default 0, meaning no limit);
+ * 				when the pair table grows past this limit it is spilled to a sorted run file and
+ * 				cleared, and the runs are merged back in when the coupler is saved or reported; with
+ * 				multiple counting threads, each thread's shard gets an equal share of the limit
+ *
+ * --tempDir	directory for the spilled run files (default is the system temporary directory)
+ *
+ * --reportGap	gap to use for the report when the coupler counts multiple gaps (default is the
+ * 				largest gap)
+ *
+ * --sketch		count the pairs approximately, using this many megabytes for a count-min sketch of the
+ * 				pair counts and a table of candidate strong pairs (default 0, meaning count exactly);
+ * 				this requires "--create", a single thread, and no checkpoints; if no role file is
+ * 				specified, all the roles found in the feature functions are counted
+ *
+ * --exact		in sketch mode, make a second pass through the genomes to count the surviving candidate
+ * 				pairs exactly before reporting
+ *
+ * --log		name of a directory for the contribution log; a projection of each genome counted is
+ * 				stored in the log, so that the genome's counts can later be removed or replaced
+ * 				without rebuilding the coupler
+ *
+ * --replace	recount genomes that are already in the coupler, subtracting the old version's counts
+ * 				using the contribution log; if "--hash" is specified, only genomes whose files have
+ * 				changed are recounted; this requires "--log"
+ *
+ * --remove		name of a file containing the IDs of genomes to remove from the coupler, one per line
+ * 				in the first column; the counts are subtracted using the contribution log; this
+ * 				requires "--log" and cannot be used with "--create"
+ *
+ * --cache		name of a directory for cached genome projections; a genome whose projection is in the
+ * 				cache and up to date is counted from the projection instead of being parsed, and the
+ * 				projection of every genome parsed is stored; a projection is out of date if the role
+ * 				set or the genome file has changed; this cannot be used with "--sketch"
+ *
+ * --checkpoint	number of genomes to process between checkpoint saves of the coupler file
+ * 				(default 0, meaning no checkpoints)
+ *
+ * --prefetch	number of parsed genomes to queue ahead of the counting stage (default 0, meaning
+ * 				genomes are parsed by the counting threads themselves); when prefetching, a genome
+ * 				that cannot be parsed is reported and skipped instead of stopping the run
+ *
+ * --readers	number of reader threads used to parse genomes when prefetching (default 2)
+ *
+ * --maxFeatures	maximum number of features held in prefetched genomes at one time
+ * 				(default 2000000)
+ *
  * --create		create a new coupling table in the specified coupler file; otherwise,
  * 				if the coupler file exists it will be loaded before the new genome
  * 				directory is processed
  *
  * --compare	compare the coupling results to the coupler in a specified file;
  * 				for every coupling in our results file that exceeds the threshold,
- * 				we want to insure it exceeds the threshold in the specified file
+ * 				we want to insure it exceeds the threshold in the specified file;
+ * 				this option can be repeated to compare against several files, in which
+ * 				case the comparison columns are repeated for each; the report pairs are
+ * 				merge-joined against the files in role ID order, but written in the usual
+ * 				order, and a binary coupler file is streamed from disk without being loaded
  *
- * If "--create" is specified, the following options are required; otherwise they
- * are ignored.
+ * If "--create" is specified, the following options are required (except that the role file is
+ * optional in sketch mode); otherwise they are ignored.
  *
  * -g			the maximum distance allowed for two features to be considered
  * 				neighbors (default 500)
  * -R			name of a file containing the useful roles; the file is tab-delimited,
  * 				each record containing a role ID and a role name
  *
+ * --gaps		comma-delimited list of gaps to count in a single pass (overrides "-g"); the pairs are
+ * 				counted for the largest gap, and also bucketed by neighbor distance so that the counts
+ * 				for every listed gap are kept in the coupler file, which must be in text format
+ *
  * If "--compare" is specified, the following options are also used.
  *
  * -n			minimum number of role occurrences for a pair to be considered in
@@ -50,22 +153,46 @@ import org.theseed.proteins.RoleMap;
  * -u			minimum togetherness threshold for two features to be considered
  * 				coupled in the comparison (default 0.70)
  *
- * The positional parameters are the name of the coupler file and the name of a
- * directory containing the genomes to process.  If "--create" is specified, the
+ * The positional parameters are the name of the coupler file and the names of one or more
+ * genome sources.  A genome source is either a directory of GTO files or a tar archive
+ * (".tar", ".tar.gz", or ".tgz") containing GTO files; in either case, the individual GTO files
+ * may be gzipped (".gto.gz").  Archives are streamed and never extracted to disk.  If a genome
+ * ID occurs in more than one source, only the first occurrence is used.  If "--create" is specified, the
  * coupler file will be used for output only; otherwise, it will be read in to
  * initialize the coupler and the new genomes will be incorporated into it before
  * the coupler is written back out.
  *
+ * The coupler keeps a ledger of the genomes it has counted.  The genome ID is taken from
+ * the GTO file name (without the ".gto" or ".gto.gz" suffix), and a genome already in the
+ * ledger is skipped without being parsed.  An interrupted run that saved checkpoints can
+ * therefore be resumed by rerunning it without "--create".
+ *
  * @author Bruce Parrello
  *
  */
-public class RoleCouplingProcessor {
+public class RoleCouplingProcessor implements ICommand {
 
     // FIELDS
     /** current coupler database */
     private RoleCoupleCounter coupler;
     /** role map for create mode */
     private RoleMap roleSet;
+    /** progress metrics */
+    private CouplingMetrics metrics;
+    /** contribution log, or NULL if none is kept */
+    private ContributionLog contributions;
+    /** projection cache, or NULL if none is used */
+    private ProjectionCache projections;
+    /** pool for counting contigs in parallel, or NULL if none is used */
+    private ForkJoinPool contigPool;
+    /** shards currently counting genomes and not yet merged */
+    private List<RoleCoupleCounter> liveShards;
+    /** output report writer */
+    private CouplingReport report;
+    /** output report format */
+    private CouplingReport.Format reportFormat;
+    /** number of pairs reported */
+    private int totalCount;
 
     // COMMAND LINE
 
@@ -107,24 +234,193 @@ public class RoleCouplingProcessor {
             usage="minimum number of times coupled features found for valid comparison")
     private int otherCount;
 
+    /** number of counting threads */
+    @Option(name="--threads", metaVar="8", usage="number of worker threads for counting")
+    private int threads;
+
+    /** number of contig-counting threads */
+    @Option(name="--contigThreads", metaVar="8", usage="number of threads for counting the contigs of a genome")
+    private int contigThreads;
+
+    /** content hash flag */
+    @Option(name="--hash", usage="store a content hash for each genome counted")
+    private boolean hashMode;
+
+    /** checkpoint interval */
+    @Option(name="--checkpoint", metaVar="1000", usage="number of genomes between checkpoint saves")
+    private int checkpoint;
+
+    /** prefetch queue depth */
+    @Option(name="--prefetch", metaVar="8", usage="number of parsed genomes to queue ahead of counting")
+    private int prefetch;
+
+    /** number of reader threads for prefetching */
+    @Option(name="--readers", metaVar="2", usage="number of genome reader threads when prefetching")
+    private int readers;
+
+    /** memory cap for prefetching */
+    @Option(name="--maxFeatures", metaVar="2000000", usage="maximum number of features in prefetched genomes")
+    private int maxFeatures;
+
+    /** metrics snapshot file */
+    @Option(name="--metrics", metaVar="metrics.jsonl", usage="file for periodic metrics snapshots (- for STDERR)")
+    private File metricsFile;
+
+    /** metrics snapshot interval */
+    @Option(name="--metricsInterval", metaVar="60", usage="number of seconds between metrics snapshots")
+    private int metricsInterval;
+
+    /** role resolution cache limit */
+    @Option(name="--cacheSize", metaVar="200000", usage="maximum number of cached function strings")
+    private int cacheSize;
+
+    /** pair table memory limit, in megabytes */
+    @Option(name="--maxMemory", metaVar="4096", usage="maximum megabytes for pair counts before spilling to disk")
+    private int maxMemory;
+
+    /** directory for spilled pair runs */
+    @Option(name="--tempDir", metaVar="/tmp", usage="directory for spilled pair runs")
+    private File tempDir;
+
+    /** gap ladder for multi-gap counting */
+    @Option(name="--gaps", metaVar="100,250,500,1000,2000", usage="list of gaps to count in one pass (create only)")
+    private String gapList;
+
+    /** gap to report */
+    @Option(name="--reportGap", metaVar="500", usage="gap to use for the report when multiple gaps are counted")
+    private int reportGap;
+
+    /** gap ladder, or NULL for a single gap */
+    private int[] gaps;
+
+    /** sketch memory, in megabytes */
+    @Option(name="--sketch", metaVar="1024", usage="count pairs approximately using this many megabytes")
+    private int sketchMemory;
+
+    /** second exact pass flag */
+    @Option(name="--exact", usage="in sketch mode, count the candidate pairs exactly in a second pass")
+    private boolean exactPass;
+
+    /** contribution log directory */
+    @Option(name="--log", metaVar="logDir", usage="directory for the per-genome contribution log")
+    private File logDir;
+
+    /** projection cache directory */
+    @Option(name="--cache", metaVar="cacheDir", forbids={"--sketch"}, usage="directory for cached genome projections")
+    private File cacheDir;
+
+    /** replace-genome flag */
+    @Option(name="--replace", depends={"--log"}, usage="recount genomes already in the coupler")
+    private boolean replaceMode;
+
+    /** file of genomes to remove */
+    @Option(name="--remove", metaVar="remove.tbl", depends={"--log"}, forbids={"--create"},
+            usage="file of IDs for genomes to remove from the coupler")
+    private File removeFile;
+
+    /** binary output flag */
+    @Option(name="--binary", usage="save coupler file in binary format")
+    private boolean binaryMode;
+
+    /** maximum number of pairs to report */
+    @Option(name="--top", metaVar="1000", forbids={"--unsorted"}, usage="report only the most frequent pairs")
+    private int top;
+
+    /** unsorted output flag */
+    @Option(name="--unsorted", usage="report the pairs in no particular order as they are found")
+    private boolean unsorted;
+
+    /** report format */
+    @Option(name="--format", metaVar="tsv", usage="output report format (tsv, tsv.gz, or bin)")
+    private String formatName;
+
+    /** report output file */
+    @Option(name="--output", aliases={"-o"}, metaVar="report.tsv", usage="output report file (default STDOUT)")
+    private File outFile;
+
     /** creation / reuse flag */
     @Option(name="--create", usage="create new coupler file")
     private boolean createMode;
 
     /** compare option */
-    @Option(name="--compare", usage="compare results to another coupler file")
-    private File compareFile;
+    @Option(name="--compare", usage="compare results to another coupler file (may be repeated)")
+    private List<File> compareFiles;
 
     /** coupler file */
     @Argument(index=0, metaVar="coupler.ser", usage="name of coupler file",
             required=true)
     private File couplerFile;
 
-    /** input genome directories */
-    @Argument(index=1, metaVar="genomeDir1 genomeDir2 ...", multiValued=true,
-            usage="directory of input genomes")
+    /** input genome directories and archives */
+    @Argument(index=1, metaVar="genomeDir1 genomes2.tar.gz ...", multiValued=true,
+            usage="directory or tar archive of input genomes")
     private List<File> genomeDirs;
 
+    /**
+     * This object holds a line of a comparison report while the comparison data is computed.
+     */
+    private static class ReportRow {
+
+        /** first role of the pair, as reported */
+        private Role role1;
+        /** second role of the pair, as reported */
+        private Role role2;
+        /** number of times the roles occurred together */
+        private int count;
+        /** togetherness fraction */
+        private double together;
+        /** comparison data for each comparison coupler */
+        private CouplingReport.Comparison[] results;
+
+        /**
+         * Create a report line for a pair.
+         *
+         * @param role1		first role of the pair
+         * @param role2		second role of the pair
+         * @param count		number of times the roles occurred together
+         * @param together	togetherness fraction
+         */
+        private ReportRow(Role role1, Role role2, int count, double together) {
+            this.role1 = role1;
+            this.role2 = role2;
+            this.count = count;
+            this.together = together;
+        }
+
+        /**
+         * @return the lower of the two role IDs
+         */
+        private String getLowId() {
+            String id1 = this.role1.getId();
+            String id2 = this.role2.getId();
+            return (id1.compareTo(id2) <= 0 ? id1 : id2);
+        }
+
+        /**
+         * @return the higher of the two role IDs
+         */
+        private String getHighId() {
+            String id1 = this.role1.getId();
+            String id2 = this.role2.getId();
+            return (id1.compareTo(id2) <= 0 ? id2 : id1);
+        }
+
+        /**
+         * @return a negative number if the first row's pair precedes the second's in role ID order, a
+         * 		   positive number if it follows, and 0 if the pairs are the same
+         *
+         * @param row1	first row to compare
+         * @param row2	second row to compare
+         */
+        private static int compareIds(ReportRow row1, ReportRow row2) {
+            int retVal = row1.getLowId().compareTo(row2.getLowId());
+            if (retVal == 0)
+                retVal = row1.getHighId().compareTo(row2.getHighId());
+            return retVal;
+        }
+
+    }
+
     /**
      * Parse command-line options to specify the parameters of this object.
      *
@@ -132,18 +428,45 @@ public class RoleCouplingProcessor {
      *
      * @return TRUE if successful, FALSE if the parameters are invalid
      */
+    @Override
     public boolean parseCommand(String[] args) {
         boolean retVal = false;
         // Set the defaults.
         this.gap = 500;
         this.debug = false;
         this.roleFile = null;
-        this.compareFile = null;
+        this.compareFiles = new ArrayList<File>();
         this.togetherness = 0.80;
         this.minCount = 10;
         this.otherCount = 20;
         this.otherTogetherness = 0.70;
         this.createMode = false;
+        this.threads = 1;
+        this.contigThreads = 0;
+        this.binaryMode = false;
+        this.hashMode = false;
+        this.checkpoint = 0;
+        this.prefetch = 0;
+        this.readers = 2;
+        this.maxFeatures = 2000000;
+        this.cacheSize = RoleResolutionCache.DEFAULT_LIMIT;
+        this.top = 0;
+        this.maxMemory = 0;
+        this.sketchMemory = 0;
+        this.gapList = null;
+        this.gaps = null;
+        this.reportGap = 0;
+        this.exactPass = false;
+        this.logDir = null;
+        this.cacheDir = null;
+        this.replaceMode = false;
+        this.removeFile = null;
+        this.tempDir = new File(System.getProperty("java.io.tmpdir"));
+        this.metricsFile = null;
+        this.metricsInterval = 60;
+        this.unsorted = false;
+        this.formatName = null;
+        this.outFile = null;
         this.genomeDirs = new ArrayList<File>();
         // Parse the command line.
         CmdLineParser parser = new CmdLineParser(this);
@@ -159,22 +482,92 @@ public class RoleCouplingProcessor {
                         throw new FileNotFoundException("Coupler file must exist unless --create is specified.");
                     }
                 } else {
-                    // If we are creating, then get the role file.
-                    if (this.roleFile == null) {
-                        throw new IllegalArgumentException("Role file required in create mode.");
-                    } else {
+                    // If we are creating, then get the role file.  In sketch mode, we can count all roles.
+                    if (this.roleFile != null) {
                         this.roleSet = RoleMap.load(this.roleFile);
+                    } else if (this.sketchMemory > 0) {
+                        this.roleSet = new RoleMap();
+                    } else {
+                        throw new IllegalArgumentException("Role file required in create mode.");
+                    }
+                }
+                if (this.gapList != null) {
+                    if (! this.createMode) {
+                        throw new IllegalArgumentException("The gap list can only be specified in create mode.");
+                    }
+                    this.gaps = MultiGapCoupleCounter.parseGaps(this.gapList);
+                    if (this.binaryMode || BinaryCouplerFile.isBinaryName(this.couplerFile)) {
+                        throw new IllegalArgumentException("Multi-gap couplers must be saved in text format.");
+                    }
+                    if (this.sketchMemory > 0) {
+                        throw new IllegalArgumentException("Multi-gap counting cannot be done in sketch mode.");
+                    }
+                }
+                if (this.reportGap < 0) {
+                    throw new IllegalArgumentException("Report gap cannot be negative.");
+                }
+                if (this.sketchMemory < 0) {
+                    throw new IllegalArgumentException("Sketch memory cannot be negative.");
+                } else if (this.sketchMemory > 0) {
+                    if (! this.createMode || this.threads > 1 || this.checkpoint > 0) {
+                        throw new IllegalArgumentException("Sketch mode requires --create, one thread, and no " +
+                                "checkpoints.");
+                    }
+                    if (this.logDir != null) {
+                        throw new IllegalArgumentException("A contribution log cannot be kept in sketch mode.");
                     }
+                } else if (this.exactPass) {
+                    throw new IllegalArgumentException("The exact pass is only used in sketch mode.");
                 }
-                // Insure the genome directories are valid.
+                if (this.threads < 1) {
+                    throw new IllegalArgumentException("Thread count must be at least 1.");
+                }
+                if (this.contigThreads < 0) {
+                    throw new IllegalArgumentException("Contig thread count cannot be negative.");
+                }
+                if (this.cacheSize < 1) {
+                    throw new IllegalArgumentException("Cache size must be at least 1.");
+                }
+                if (this.checkpoint < 0) {
+                    throw new IllegalArgumentException("Checkpoint interval cannot be negative.");
+                }
+                if (this.metricsInterval < 1) {
+                    throw new IllegalArgumentException("Metrics interval must be at least 1 second.");
+                }
+                if (this.top < 0) {
+                    throw new IllegalArgumentException("Top pair limit cannot be negative.");
+                }
+                if (this.formatName == null) {
+                    this.reportFormat = CouplingReport.Format.forFile(this.outFile);
+                } else {
+                    this.reportFormat = CouplingReport.Format.fromName(this.formatName);
+                }
+                if (this.prefetch < 0) {
+                    throw new IllegalArgumentException("Prefetch depth cannot be negative.");
+                }
+                if (this.readers < 1 || this.maxFeatures < 1) {
+                    throw new IllegalArgumentException("Reader count and feature limit must be at least 1.");
+                }
+                if (this.maxMemory < 0) {
+                    throw new IllegalArgumentException("Memory limit cannot be negative.");
+                }
+                if (this.maxMemory > 0 && ! this.tempDir.isDirectory()) {
+                    throw new FileNotFoundException(this.tempDir.getPath() + " is not a valid directory.");
+                }
+                if (this.removeFile != null && ! this.removeFile.canRead()) {
+                    throw new FileNotFoundException(this.removeFile.getPath() + " is not found or unreadable.");
+                }
+                // Insure the genome sources are valid.
                 for (File genomeDir : genomeDirs) {
-                    if (! genomeDir.isDirectory()) {
-                        throw new FileNotFoundException(genomeDir.getPath() + " is not a valid directory.");
+                    if (! GenomeSource.isValid(genomeDir)) {
+                        throw new FileNotFoundException(genomeDir.getPath() + " is not a valid directory or archive.");
                     }
                 }
-                // Insure the compare file exists.
-                if (this.compareFile != null && ! this.compareFile.exists()) {
-                    throw new FileNotFoundException(this.compareFile.getPath() + " is not found.");
+                // Insure the compare files exist.
+                for (File compareFile : this.compareFiles) {
+                    if (! compareFile.exists()) {
+                        throw new FileNotFoundException(compareFile.getPath() + " is not found.");
+                    }
                 }
                 // We made it this far, we can run the application.
                 retVal = true;
@@ -192,84 +585,586 @@ public class RoleCouplingProcessor {
     /**
      * Excute the operation indicated by the parameters.
      */
+    @Override
     public void run() {
+        this.metrics = new CouplingMetrics();
         try {
+            if (this.metricsFile != null)
+                this.metrics.startSnapshots(this.metricsFile, this.metricsInterval);
             // Start by loading the coupler.  We create a blank if we are in create mode; otherwise we
             // read it.
             if (this.createMode) {
                 if (debug) System.err.println("Initializing new coupling counter.");
-                this.coupler = new RoleCoupleCounter(this.roleSet, this.gap);
+                if (this.gaps != null) {
+                    this.coupler = new MultiGapCoupleCounter(this.roleSet, this.gaps);
+                } else {
+                    this.coupler = new RoleCoupleCounter(this.roleSet, this.gap);
+                }
+                if (this.sketchMemory > 0) {
+                    this.coupler.setSketch(this.sketchMemory * 1048576L);
+                    this.coupler.setAllRoles(this.roleFile == null);
+                }
             } else {
                 if (debug) System.err.println("Loading coupling counter from " + this.couplerFile.getPath() + ".");
-                this.coupler = RoleCoupleCounter.load(this.couplerFile);
+                long start = this.metrics.startTimer();
+                this.coupler = RoleCoupleCounter.load(this.couplerFile, debug);
+                this.metrics.stopTimer(CouplingMetrics.Phase.LOAD, start);
             }
-            // Loop through the genome directories, adding their data to the coupling counts.
-            for (File dirFile : this.genomeDirs) {
-                if (debug) System.err.println("Processing genome directory " + dirFile.getPath() + ".");
-                GenomeDirectory genomeDir = new GenomeDirectory(dirFile.getPath());
-                for (Genome genome : genomeDir) {
-                    if (debug) System.err.println("Parsing genome " + genome + ".");
-                    this.coupler.countCouplings(genome);
+            this.coupler.setCacheLimit(this.cacheSize);
+            if (this.maxMemory > 0)
+                this.coupler.setMemoryLimit(this.maxMemory * 1048576L, this.tempDir);
+            this.coupler.setMetrics(this.metrics);
+            if (this.contigThreads > 0) {
+                if (debug) System.err.println("Counting contigs with " + this.contigThreads + " threads.");
+                this.contigPool = new ForkJoinPool(this.contigThreads);
+                this.coupler.setContigPool(this.contigPool);
+            }
+            if (this.logDir != null) {
+                if (debug) System.err.println("Using contribution log in " + this.logDir + ".");
+                this.contributions = new ContributionLog(this.logDir);
+                if (this.contributions.recover(this.coupler.getLogSequence()))
+                    System.err.println("Resolved changes left in contribution log " + this.logDir +
+                            " by an interrupted run.");
+            }
+            if (this.cacheDir != null) {
+                if (debug) System.err.println("Using projection cache in " + this.cacheDir + ".");
+                this.projections = new ProjectionCache(this.cacheDir, ProjectionCache.roleSignature(this.coupler));
+            }
+            if (this.removeFile != null)
+                this.removeGenomes();
+            this.countGenomes();
+            if (debug) System.err.println("Role resolution cache: " + this.coupler.getResolutionCache());
+            if (debug && this.projections != null) System.err.println("Projection cache " + this.projections + ".");
+            SketchPairTable sketch = this.coupler.getSketch();
+            if (sketch != null) {
+                if (debug) System.err.println(this.coupler.getRoleCounts().size() + " roles counted in " +
+                        sketch + ".");
+                if (this.exactPass) {
+                    // Count the candidates that pass the thresholds on their estimates exactly.
+                    this.coupler = this.coupler.createCandidateCounter(this.togetherness, this.minCount);
+                    if (debug) System.err.println("Counting candidate pairs exactly in second pass.");
+                    this.countGenomes();
                 }
             }
             // Save the coupling data.
             if (debug) System.err.println("Saving coupling data to " + this.couplerFile.getPath() + ".");
-            this.coupler.save(this.couplerFile);
-            // If we have a comparison file, read it in here.  Note we will also track the number of
-            // compare failures.
-            int failureCount = 0;
-            int totalCount = 0;
-            RoleCoupleCounter comparator = null;
-            if (this.compareFile != null) {
-                if (debug) System.err.println("Loading comparator from " + this.compareFile + ".");
-                comparator = RoleCoupleCounter.load(this.compareFile);
+            this.saveCoupler();
+            // If we have multiple gaps, extract the one to report.
+            if (this.coupler instanceof MultiGapCoupleCounter) {
+                MultiGapCoupleCounter multi = (MultiGapCoupleCounter) this.coupler;
+                if (this.reportGap > 0 && this.reportGap != multi.gap) {
+                    if (debug) System.err.println("Extracting counts for gap " + this.reportGap + ".");
+                    this.coupler = multi.forGap(this.reportGap);
+                }
+            } else if (this.reportGap > 0 && this.reportGap != this.coupler.gap) {
+                throw new IllegalArgumentException("Coupler only has counts for gap " + this.coupler.gap + ".");
             }
-            // Write the data that meets the thresholds.
-            if (debug) System.err.println("Writing output.");
-            // Compute the headers based on whether or not there is a comparison.
-            if (comparator != null) {
-                System.out.println("role_id1\trole_id2\tfraction\tcount\totherFrac\totherCount\totherFound\tfailure");
+            // Write the data that meets the thresholds.  The report writer puts out the headers based on
+            // the number of comparison files.
+            this.totalCount = 0;
+            if (debug) System.err.println("Writing " + this.reportFormat + " output" +
+                    (this.outFile == null ? "" : " to " + this.outFile) + ".");
+            if (! this.compareFiles.isEmpty()) {
+                this.reportComparison();
             } else {
-                System.out.println("role_id1\trole_id2\tfraction\tcount");
+                this.report = CouplingReport.create(this.reportFormat, this.outFile, 0);
+                if (this.unsorted) {
+                    // Stream the pairs directly from the coupler.
+                    long start = this.metrics.startTimer();
+                    this.coupler.visitPairs(this.togetherness, this.minCount, this::reportPair);
+                    this.report.close();
+                    this.metrics.stopTimer(CouplingMetrics.Phase.REPORT, start);
+                } else {
+                    long start = this.metrics.startTimer();
+                    List<PairCounter<Role>.Count> goodPairs = (this.top > 0 ?
+                            this.coupler.getTopPairs(this.togetherness, this.minCount, this.top) :
+                            this.coupler.getPairCounts(this.togetherness, this.minCount));
+                    this.metrics.stopTimer(CouplingMetrics.Phase.SORT, start);
+                    start = this.metrics.startTimer();
+                    for (PairCounter<Role>.Count goodPair : goodPairs) {
+                        this.reportPair(goodPair.getKey1(), goodPair.getKey2(), goodPair.getCount(),
+                                goodPair.togetherness());
+                    }
+                    this.report.close();
+                    this.metrics.stopTimer(CouplingMetrics.Phase.REPORT, start);
+                }
+            }
+            if (debug) System.err.println(this.totalCount + " couplings found.");
+        } catch (IOException e) {
+            // Percolate the error.
+            System.err.println("Error processing command: " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            System.err.println("Error processing command: " + e.getCause().getMessage());
+        } finally {
+            if (this.coupler != null) {
+                if (debug && this.coupler.isSpilled())
+                    System.err.println(this.coupler.getRuns().getSpilled() + " pair records spilled to " +
+                            this.coupler.getRuns().size() + " run files.");
+                this.coupler.deleteRuns();
+            }
+            if (this.contigPool != null)
+                this.contigPool.shutdown();
+            this.metrics.close();
+            if (debug || this.metricsFile != null)
+                this.metrics.printSummary(System.err);
+        }
+    }
+
+    /**
+     * Write a line of the output report for a role pair.
+     *
+     * @param role1			first role of the pair
+     * @param role2			second role of the pair
+     * @param count			number of times the roles occurred together
+     * @param together		fraction of times the roles occurred together
+     */
+    private void reportPair(Role role1, Role role2, int count, double together) {
+        try {
+            this.totalCount++;
+            this.report.write(role1.getId(), role2.getId(), together, count);
+        } catch (IOException e) {
+            // This method is used as a coupling visitor, so it cannot throw a checked exception.
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write the output report with comparison data.  The qualifying pairs are collected in the same order
+     * as an ordinary report.  A copy of the list is sorted into role ID order and merge-joined against each
+     * comparison coupler, so the comparison couplers are read in a single pass and never searched.  The
+     * report is then written in the original order.
+     *
+     * @throws IOException
+     */
+    private void reportComparison() throws IOException {
+        long start = this.metrics.startTimer();
+        final List<ReportRow> rows = new ArrayList<ReportRow>();
+        if (this.unsorted) {
+            this.coupler.visitPairs(this.togetherness, this.minCount,
+                    (role1, role2, count, together) -> rows.add(new ReportRow(role1, role2, count, together)));
+        } else {
+            List<PairCounter<Role>.Count> goodPairs = (this.top > 0 ?
+                    this.coupler.getTopPairs(this.togetherness, this.minCount, this.top) :
+                    this.coupler.getPairCounts(this.togetherness, this.minCount));
+            for (PairCounter<Role>.Count goodPair : goodPairs)
+                rows.add(new ReportRow(goodPair.getKey1(), goodPair.getKey2(), goodPair.getCount(),
+                        goodPair.togetherness()));
+        }
+        ReportRow[] sorted = rows.toArray(new ReportRow[rows.size()]);
+        Arrays.sort(sorted, ReportRow::compareIds);
+        this.metrics.stopTimer(CouplingMetrics.Phase.SORT, start);
+        start = this.metrics.startTimer();
+        try (CouplingComparison comparison = new CouplingComparison(this.compareFiles, this.otherTogetherness,
+                    this.otherCount, debug)) {
+            final int n = comparison.size();
+            for (int i = 0; i < n; i++) {
+                if (comparison.getGap(i) != this.coupler.gap)
+                    System.err.println("WARNING: " + this.compareFiles.get(i) + " was built with gap " +
+                            comparison.getGap(i) + ", but this coupler uses gap " + this.coupler.gap + ".");
             }
-            List<PairCounter<Role>.Count> goodPairs = this.coupler.getPairCounts(this.togetherness, this.minCount);
-            for (PairCounter<Role>.Count goodPair : goodPairs) {
-                System.out.format("%s\t%s\t%4.2g\t%d", goodPair.getKey1().getId(), goodPair.getKey2().getId(),
-                        goodPair.togetherness(), goodPair.getCount());
-                totalCount++;
-                if (comparator == null) {
-                    // No comparison.  End the line.
-                    System.out.println();
+            for (ReportRow row : sorted) {
+                row.results = new CouplingReport.Comparison[n];
+                for (int i = 0; i < n; i++)
+                    row.results[i] = new CouplingReport.Comparison();
+                comparison.compare(row.getLowId(), row.getHighId(), row.results);
+            }
+            try (CouplingReport report = CouplingReport.create(this.reportFormat, this.outFile, n)) {
+                for (ReportRow row : rows) {
+                    report.write(row.role1.getId(), row.role2.getId(), row.together, row.count, row.results);
+                    this.totalCount++;
+                }
+            }
+            if (debug) {
+                for (int i = 0; i < n; i++)
+                    System.err.println("Failure count for comparison with " + this.compareFiles.get(i) + " is " +
+                            comparison.getFailures(i) + ".");
+            }
+        }
+        this.metrics.stopTimer(CouplingMetrics.Phase.REPORT, start);
+    }
+
+    /**
+     * Count the genomes in the input sources.  We process them in batches, saving a checkpoint after
+     * each batch.
+     *
+     * @throws IOException
+     */
+    private void countGenomes() throws IOException {
+        this.liveShards = new CopyOnWriteArrayList<RoleCoupleCounter>();
+        this.metrics.setPairSource(this::countPairs);
+        try (GenomeSource genomes = this.openGenomes()) {
+            int done = 0;
+            while (genomes.hasNext()) {
+                GenomeSource batch = (this.checkpoint > 0 ? new GenomeSource.BatchSource(genomes, this.checkpoint) :
+                        genomes);
+                if (this.prefetch > 0) {
+                    this.countPipelined(batch);
+                } else if (this.threads > 1) {
+                    this.countParallel(batch);
                 } else {
-                    // Comparison required.  Get the count.  Note we ignore the result if neither
-                    // role appeared in the sample.
-                    int otherPairCount = comparator.getCount(goodPair.getKey1(), goodPair.getKey2());
-                    int appearances = comparator.getCount(goodPair.getKey1()) +
-                            comparator.getCount(goodPair.getKey2());
-                    if (appearances > 0) {
-                        double otherFrac = comparator.getTogetherness(goodPair.getKey1(), goodPair.getKey2());
-                        int otherRoleCount = appearances - otherPairCount;
-                        String errorFlag = "";
-                        if (otherFrac < this.otherTogetherness && appearances >= this.otherCount) {
-                            errorFlag = "Y";
-                            failureCount++;
-                        }
-                        System.out.format("\t%4.2g\t%d\t%d\t%s%n", otherFrac, otherPairCount, otherRoleCount,
-                                errorFlag);
+                    for (GenomeSource.Entry entry = batch.next(); entry != null; entry = batch.next()) {
+                        this.countEntry(entry, this.coupler, this.coupler.getLedger());
+                    }
+                }
+                if (genomes.hasNext()) {
+                    done += this.checkpoint;
+                    if (debug) System.err.println("Checkpointing after " + done + " genomes.");
+                    this.saveCoupler();
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the coupler to the coupler file.  The coupler is written to a temporary file which is then
+     * renamed, so an interruption during the save does not destroy the previous version.  The changes
+     * staged in the contribution log are committed only after the coupler is in place, so the log always
+     * agrees with the saved coupler.  The coupler is saved with the log's sequence number, so that if the
+     * run stops before the commit, the next run can tell the coupler contains the staged changes.
+     *
+     * @throws IOException
+     */
+    private void saveCoupler() throws IOException {
+        File tempFile = new File(this.couplerFile.getPath() + ".tmp");
+        if (this.contributions != null)
+            this.coupler.setLogSequence(this.contributions.getSequence());
+        this.coupler.save(tempFile, this.binaryMode || BinaryCouplerFile.isBinaryName(this.couplerFile));
+        Files.move(tempFile.toPath(), this.couplerFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        if (this.contributions != null)
+            this.contributions.commit();
+    }
+
+    /**
+     * @return a source for the genomes in all the input directories and archives, with duplicate genome
+     * 		   IDs removed
+     *
+     * @throws IOException
+     */
+    private GenomeSource openGenomes() throws IOException {
+        List<GenomeSource> sources = new ArrayList<GenomeSource>(this.genomeDirs.size());
+        try {
+            for (File dirFile : this.genomeDirs) {
+                if (debug) System.err.println("Processing genome source " + dirFile.getPath() + ".");
+                sources.add(GenomeSource.open(dirFile));
+            }
+        } catch (IOException e) {
+            for (GenomeSource source : sources)
+                source.close();
+            throw e;
+        }
+        return new GenomeSource.ChainSource(sources);
+    }
+
+    /**
+     * Count a genome entry into the specified counter.  The genome is skipped if it is already in the
+     * specified ledger.  Otherwise, it is parsed, counted, and recorded in the target counter's ledger.
+     *
+     * @param entry		genome source entry
+     * @param target	counter into which the genome should be counted
+     * @param counted	map of genome IDs already counted to their content hashes
+     *
+     * @throws IOException
+     */
+    private void countEntry(GenomeSource.Entry entry, RoleCoupleCounter target, Map<String, String> counted)
+            throws IOException {
+        GenomePipeline.Item item = new GenomePipeline.Item(entry);
+        this.loadGenome(item, counted);
+        this.countGenome(item, target);
+    }
+
+    /**
+     * Read the genome for a pipeline item.  The genome is left unread if it is already in the ledger.
+     * If its projection is in the projection cache, the projection is read instead of the genome.
+     *
+     * @param item		pipeline item containing the genome entry
+     * @param counted	map of genome IDs already counted to their content hashes
+     *
+     * @throws IOException
+     */
+    private void loadGenome(GenomePipeline.Item item, Map<String, String> counted) throws IOException {
+        GenomeSource.Entry entry = item.getEntry();
+        String genomeId = entry.getGenomeId();
+        String hash = (this.hashMode ? entryHash(entry) : "");
+        item.setHash(hash);
+        String oldHash = counted.get(genomeId);
+        if (oldHash != null && this.replaceMode && (hash.isEmpty() || oldHash.isEmpty() || ! hash.equals(oldHash))) {
+            if (debug) System.err.println("Genome " + genomeId + " will be replaced.");
+            item.setReplacing(true);
+            oldHash = null;
+        }
+        if (oldHash != null) {
+            this.metrics.recordSkip();
+            if (! hash.isEmpty() && ! oldHash.isEmpty() && ! hash.equals(oldHash)) {
+                System.err.println("WARNING: genome " + genomeId + " has changed since it was counted.  Skipped.");
+            } else if (debug) {
+                System.err.println("Genome " + genomeId + " already counted.");
+            }
+        } else {
+            long start = this.metrics.startTimer();
+            GenomeProjection projection = (this.projections == null ? null : this.projections.read(entry));
+            if (projection != null) {
+                this.metrics.stopTimer(CouplingMetrics.Phase.PARSE, start);
+                if (debug) System.err.println("Using cached projection for genome " + genomeId + ".");
+                item.setProjection(projection);
+            } else {
+                Genome genome = entry.read();
+                this.metrics.stopTimer(CouplingMetrics.Phase.PARSE, start);
+                if (debug) System.err.println("Parsing genome " + genome + ".");
+                item.setGenome(genome);
+            }
+        }
+    }
+
+    /**
+     * Count the genome for a pipeline item into the specified counter and record it in the counter's
+     * ledger.  If the genome failed to parse, a warning is written instead.  If the genome replaces an
+     * old version, the old version's counts are subtracted first.  If we are keeping a contribution log,
+     * the genome's projection is stored in it.  If the item holds a cached projection instead of a genome,
+     * the projection is counted.  If we are keeping a projection cache, the projection of a parsed genome
+     * is stored in it.
+     *
+     * @param item		pipeline item containing the genome
+     * @param target	counter into which the genome should be counted
+     */
+    private void countGenome(GenomePipeline.Item item, RoleCoupleCounter target) {
+        Genome genome = item.getGenome();
+        GenomeProjection projection = item.getProjection();
+        if (item.getError() != null) {
+            this.metrics.recordError();
+            System.err.println("WARNING: error reading " + item.getEntry() + ": " + item.getError().getMessage() +
+                    "  Skipped.");
+        } else if (genome != null || projection != null) {
+            String genomeId = item.getEntry().getGenomeId();
+            try {
+                if (projection == null && (this.contributions != null || this.projections != null)) {
+                    projection = target.project(genome);
+                    if (this.projections != null)
+                        this.projections.write(item.getEntry(), projection);
+                }
+                boolean ok = true;
+                if (item.isReplacing()) {
+                    GenomeProjection old = this.contributions.read(genomeId);
+                    if (old == null) {
+                        System.err.println("WARNING: genome " + genomeId + " is not in the contribution log " +
+                                "and cannot be replaced.  Skipped.");
+                        ok = false;
                     } else {
-                        System.out.println();
+                        if (debug) System.err.println("Removing old version of genome " + genomeId + ".");
+                        target.uncountCouplings(old);
                     }
+                }
+                if (ok) {
+                    if (projection == null) {
+                        target.countCouplings(genome);
+                    } else {
+                        target.countCouplings(projection);
+                        if (this.contributions != null)
+                            this.contributions.write(projection);
+                    }
+                    target.recordGenome(genomeId, item.getHash());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
 
+    /**
+     * Remove the genomes listed in the remove file from the coupler.  Each genome's counts are subtracted
+     * using its projection in the contribution log, and then it is deleted from the ledger and the log.
+     *
+     * @throws IOException
+     */
+    private void removeGenomes() throws IOException {
+        int removed = 0;
+        for (String line : Files.readAllLines(this.removeFile.toPath())) {
+            String genomeId = line.split("\t", 2)[0].trim();
+            if (! genomeId.isEmpty()) {
+                GenomeProjection old = this.contributions.read(genomeId);
+                if (! this.coupler.isCounted(genomeId)) {
+                    System.err.println("WARNING: genome " + genomeId + " is not in the coupler.");
+                } else if (old == null) {
+                    System.err.println("WARNING: genome " + genomeId + " is not in the contribution log " +
+                            "and cannot be removed.");
+                } else {
+                    if (debug) System.err.println("Removing genome " + genomeId + ".");
+                    this.coupler.uncountCouplings(old);
+                    this.coupler.removeGenome(genomeId);
+                    this.contributions.delete(genomeId);
+                    removed++;
                 }
             }
-            if (debug && comparator != null) {
-                System.err.println("Failure count for comparison is " + failureCount + ".");
+        }
+        if (debug) System.err.println(removed + " genomes removed.");
+    }
+
+    /**
+     * @return the MD5 hash of a genome entry's stored contents, as a hexadecimal string
+     *
+     * @param entry		genome entry to hash
+     *
+     * @throws IOException
+     */
+    private static String entryHash(GenomeSource.Entry entry) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 digest not available.", e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new DigestInputStream(entry.open(), md5)) {
+            int len = in.read(buffer);
+            while (len >= 0)
+                len = in.read(buffer);
+        }
+        StringBuilder retVal = new StringBuilder(32);
+        for (byte b : md5.digest())
+            retVal.append(String.format("%02x", b));
+        return retVal.toString();
+    }
+
+    /**
+     * Count genomes using multiple worker threads.  Each worker pulls genome entries from the shared
+     * source and counts them into its own shard of the coupler.  When all the genomes are processed, the
+     * shards are merged into the main coupler.  Because the counts are simple sums, the result is the
+     * same as a single-threaded run.  Because the main coupler's ledger changes as the shards are merged,
+     * the workers check a copy of it.
+     *
+     * @param batch		source of the genomes to count
+     *
+     * @throws IOException
+     */
+    private void countParallel(GenomeSource batch) throws IOException {
+        if (debug) System.err.println("Counting genomes with " + this.threads + " threads.");
+        final Map<String, String> counted = new HashMap<String, String>(this.coupler.getLedger());
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        try {
+            List<Future<RoleCoupleCounter>> shards = new ArrayList<Future<RoleCoupleCounter>>(this.threads);
+            for (int i = 0; i < this.threads; i++) {
+                shards.add(executor.submit(() -> {
+                    RoleCoupleCounter shard = this.createShard();
+                    for (GenomeSource.Entry entry = batch.next(); entry != null; entry = batch.next()) {
+                        this.countEntry(entry, shard, counted);
+                    }
+                    return shard;
+                }));
             }
-            if (debug) System.err.println(totalCount + " couplings found.");
-        } catch (IOException e) {
-            // Percolate the error.
-            System.err.println("Error processing command: " + e.getMessage());
+            // Merge the shards in a fixed order.
+            for (Future<RoleCoupleCounter> shard : shards) {
+                this.mergeShard(shard.get());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Counting interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error counting genomes: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            // On failure, this interrupts the workers still running.  On success, they are all done.
+            executor.shutdownNow();
+            this.liveShards.clear();
         }
     }
 
+    /**
+     * Count genomes using a reader pipeline.  Reader threads parse the genomes into a bounded queue,
+     * and the counting threads consume them.  With a single counting thread, the genomes are counted
+     * directly into the main coupler; otherwise, each counting thread has its own shard, as in
+     * {@link #countParallel(GenomeSource)}.  Because the main coupler's ledger may change during counting, the
+     * readers check a copy of it.
+     *
+     * @param batch		source of the genomes to count
+     *
+     * @throws IOException
+     */
+    private void countPipelined(GenomeSource batch) throws IOException {
+        final Map<String, String> counted = new HashMap<String, String>(this.coupler.getLedger());
+        if (debug) System.err.println("Reading genomes with " + this.readers + " readers.");
+        ExecutorService executor = null;
+        try (GenomePipeline pipeline = new GenomePipeline(batch, (item) -> this.loadGenome(item, counted),
+                this.readers, this.prefetch, this.maxFeatures)) {
+            if (this.threads <= 1) {
+                this.drain(pipeline, this.coupler);
+            } else {
+                executor = Executors.newFixedThreadPool(this.threads);
+                List<Future<RoleCoupleCounter>> shards = new ArrayList<Future<RoleCoupleCounter>>(this.threads);
+                for (int i = 0; i < this.threads; i++) {
+                    shards.add(executor.submit(() -> {
+                        RoleCoupleCounter shard = this.createShard();
+                        this.drain(pipeline, shard);
+                        return shard;
+                    }));
+                }
+                // Merge the shards in a fixed order.
+                for (Future<RoleCoupleCounter> shard : shards) {
+                    this.mergeShard(shard.get());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Counting interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error counting genomes: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            // On failure, this interrupts the consumers still running.  On success, they are all done.
+            if (executor != null)
+                executor.shutdownNow();
+            this.liveShards.clear();
+        }
+    }
+
+    /**
+     * Merge a finished shard into the main coupler and delete its spilled run files.
+     *
+     * @param shard		shard to merge
+     */
+    private void mergeShard(RoleCoupleCounter shard) {
+        try {
+            this.coupler.merge(shard);
+        } finally {
+            this.liveShards.remove(shard);
+            shard.deleteRuns();
+        }
+    }
+
+    /**
+     * @return a new shard of the main coupler for a counting thread, registered as live so its pairs are
+     * 		   included in the progress metrics
+     */
+    private RoleCoupleCounter createShard() {
+        RoleCoupleCounter retVal = this.coupler.createShard(this.threads);
+        this.liveShards.add(retVal);
+        return retVal;
+    }
+
+    /**
+     * @return the number of pairs in the main coupler plus the number in each live shard
+     *
+     * While shards are counting, a pair found in more than one of them is counted more than once, so the
+     * result is an upper bound on the distinct pairs.  Once the shards are merged, it is exact.
+     */
+    private long countPairs() {
+        long retVal = this.coupler.getPairTotal();
+        for (RoleCoupleCounter shard : this.liveShards)
+            retVal += shard.getPairTotal();
+        return retVal;
+    }
+
+    /**
+     * Count all the remaining genomes in a pipeline into the specified counter.  Each item is released
+     * even if counting it fails, so the readers are never left waiting for feature permits.
+     *
+     * @param pipeline	genome pipeline to drain
+     * @param target	counter into which the genomes should be counted
+     *
+     * @throws InterruptedException
+     */
+    private void drain(GenomePipeline pipeline, RoleCoupleCounter target) throws InterruptedException {
+        for (GenomePipeline.Item item = pipeline.take(); item != null; item = pipeline.take()) {
+            try {
+                this.countGenome(item, target);
+            } finally {
+                pipeline.release(item);
+            }
+        }
+    }
 }
@@ -0,0 +1,201 @@
+/**
+ *
+ */
+package org.theseed.proteins.cluster;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * This class caches the results of resolving functional assignment strings to useful roles.  The same
+ * few hundred thousand function strings occur over and over in a large genome collection, and parsing
+ * each one into roles and looking the roles up is far more expensive than a hash lookup.
+ *
+ * The cache maps each function string to an array of role indices.  It holds a limited number of
+ * entries, and when it is full the least recently used entry is evicted.  A function string that is
+ * too short to contain any useful role is rejected before it reaches the cache at all.  The length bound
+ * is computed with {@link #matchLength(String)}, which ignores the parts of a role name (EC and TC numbers,
+ * comments, punctuation) that role matching ignores.
+ *
+ * The cache must be cleared whenever the set of useful roles changes.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RoleResolutionCache {
+
+    // FIELDS
+    /** map of function strings to role index arrays */
+    private LinkedHashMap<String, int[]> cache;
+    /** maximum number of entries */
+    private int limit;
+    /** minimum length of a function that can contain a useful role */
+    private int minLength;
+    /** number of successful lookups */
+    private long hits;
+    /** number of failed lookups */
+    private long misses;
+    /** number of functions rejected by the length filter */
+    private long rejects;
+    /** number of entries evicted */
+    private long evictions;
+
+    /** default maximum number of entries */
+    public static final int DEFAULT_LIMIT = 200000;
+    /** empty role index array */
+    public static final int[] NO_ROLES = new int[0];
+    /** pattern for the EC and TC numbers and comments ignored when matching role names */
+    private static final Pattern IGNORED = Pattern.compile("\\(\\s*(?:EC|TC)\\s[^)]*\\)|\\s[#!].*");
+
+    /**
+     * Create a new, empty resolution cache.
+     *
+     * @param limit		maximum number of entries to keep
+     */
+    public RoleResolutionCache(int limit) {
+        this.limit = limit;
+        this.minLength = 0;
+        this.cache = new LinkedHashMap<String, int[]>(1024, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+                boolean retVal = (this.size() > RoleResolutionCache.this.limit);
+                if (retVal)
+                    RoleResolutionCache.this.evictions++;
+                return retVal;
+            }
+        };
+    }
+
+    /**
+     * Remove all entries and specify the minimum length of a function that can contain a useful role.
+     * This is called whenever the set of useful roles changes.
+     *
+     * @param minLength		length of the shortest useful role name
+     */
+    public void reset(int minLength) {
+        this.cache.clear();
+        this.minLength = minLength;
+    }
+
+    /**
+     * @return the number of letters in the part of a role name used for matching
+     *
+     * Role matching ignores EC and TC numbers, comments, case, and punctuation, so a function string that
+     * matches a role can have fewer characters than the role's full name.  The letters of the remaining
+     * text are always present in a matching function, so their count is a safe lower bound on its length.
+     *
+     * @param name	role name to measure
+     */
+    public static int matchLength(String name) {
+        String text = IGNORED.matcher(name).replaceAll("");
+        int retVal = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isLetter(text.charAt(i)))
+                retVal++;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the function string cannot contain a useful role
+     *
+     * @param function	function string to check
+     */
+    public boolean reject(String function) {
+        boolean retVal = (function == null || function.length() < this.minLength);
+        if (retVal)
+            this.rejects++;
+        return retVal;
+    }
+
+    /**
+     * @return the role indices for a function string, or NULL if it is not in the cache
+     *
+     * @param function	function string to look up
+     */
+    public int[] get(String function) {
+        int[] retVal = this.cache.get(function);
+        if (retVal == null) {
+            this.misses++;
+        } else {
+            this.hits++;
+        }
+        return retVal;
+    }
+
+    /**
+     * Store the role indices for a function string.
+     *
+     * @param function	function string resolved
+     * @param roles		indices of the useful roles in the function
+     */
+    public void put(String function, int[] roles) {
+        this.cache.put(function, (roles.length == 0 ? NO_ROLES : roles));
+    }
+
+    /**
+     * Add the statistics from another cache to this one.
+     *
+     * @param other		cache whose statistics are to be added
+     */
+    public void addStats(RoleResolutionCache other) {
+        this.hits += other.hits;
+        this.misses += other.misses;
+        this.rejects += other.rejects;
+        this.evictions += other.evictions;
+    }
+
+    /**
+     * @return the maximum number of entries
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * @return the number of entries in the cache
+     */
+    public int size() {
+        return this.cache.size();
+    }
+
+    /**
+     * @return the number of successful lookups
+     */
+    public long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return the number of failed lookups
+     */
+    public long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return the number of functions rejected by the length filter
+     */
+    public long getRejects() {
+        return this.rejects;
+    }
+
+    /**
+     * @return the number of entries evicted
+     */
+    public long getEvictions() {
+        return this.evictions;
+    }
+
+    @Override
+    public String toString() {
+        long lookups = this.hits + this.misses;
+        double hitRate = (lookups == 0 ? 0.0 : this.hits * 100.0 / lookups);
+        return String.format("%d hits, %d misses (%4.1f%% hit rate), %d rejected, %d evicted, %d cached.",
+                this.hits, this.misses, hitRate, this.rejects, this.evictions, this.cache.size());
+    }
+
+}
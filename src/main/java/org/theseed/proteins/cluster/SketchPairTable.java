@@ -0,0 +1,306 @@
+package org.theseed.proteins.cluster;
+
+/**
+ * This is an approximate pair count table that uses a fixed amount of memory no matter how many roles
+ * are counted.  The pair counts are kept in a count-min sketch, and a Space-Saving heavy-hitters
+ * structure keeps the candidate pairs most likely to be strong couplings.  Only the candidates can be
+ * enumerated.
+ *
+ * The error bounds are in terms of N, the total of all the pair increments.  With a sketch of width w
+ * and depth d, a pair's estimated count is never less than its true count, and with probability at
+ * least 1 - e<sup>-d</sup> it is no more than the true count plus eN/w.  With k candidate slots, every
+ * pair whose true count exceeds N/k is guaranteed to be a candidate, and a candidate's Space-Saving count
+ * overestimates its true count by at most N/k.  The count reported for a candidate is the smaller of
+ * its two estimates.  Since the togetherness increases with the pair count, a pair that passes the
+ * thresholds exactly will also pass them using the estimates, so filtering the candidates produces no
+ * false negatives among the pairs tracked.
+ *
+ * Counts can only be added, never subtracted.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SketchPairTable extends PairCountTable {
+
+    // FIELDS
+    /** number of hash rows in the sketch */
+    private int depth;
+    /** number of cells in each sketch row (a power of two) */
+    private int width;
+    /** sketch cells, row by row */
+    private int[] cells;
+    /** total of all the pair increments */
+    private long total;
+    /** maximum number of candidate pairs */
+    private int capacity;
+    /** number of candidate slots in use */
+    private int used;
+    /** pair key for each candidate slot */
+    private long[] keys;
+    /** Space-Saving count for each candidate slot */
+    private int[] counts;
+    /** maximum overestimate for each candidate slot */
+    private int[] errors;
+    /** min-heap of candidate slots, ordered by count */
+    private int[] heap;
+    /** position of each candidate slot in the heap */
+    private int[] heapPos;
+    /** map of candidate pair keys to slot numbers plus one */
+    private HashPairTable slots;
+
+    /** default number of hash rows */
+    public static final int DEFAULT_DEPTH = 4;
+    /** approximate number of bytes used by each candidate slot, including its map entry */
+    private static final int CANDIDATE_BYTES = 64;
+
+    /**
+     * Create a sketch table using the specified amount of memory.  Half the memory goes to the sketch and
+     * half to the candidates.
+     *
+     * @param memory	number of bytes to use
+     * @param depth		number of hash rows in the sketch
+     */
+    public SketchPairTable(long memory, int depth) {
+        if (depth < 1)
+            throw new IllegalArgumentException("Sketch depth must be at least 1.");
+        long half = memory / 2;
+        long rowCells = half / (4L * depth);
+        int w = 16;
+        while (w * 2L <= rowCells && w < (1 << 28) / depth)
+            w <<= 1;
+        this.depth = depth;
+        this.width = w;
+        this.cells = new int[depth * w];
+        this.total = 0;
+        this.capacity = (int) Math.max(16, Math.min(half / CANDIDATE_BYTES, Integer.MAX_VALUE / 4));
+        this.used = 0;
+        this.keys = new long[this.capacity];
+        this.counts = new int[this.capacity];
+        this.errors = new int[this.capacity];
+        this.heap = new int[this.capacity];
+        this.heapPos = new int[this.capacity];
+        this.slots = new HashPairTable(this.capacity);
+    }
+
+    /**
+     * @return the hash of a pair key for a sketch row
+     *
+     * The row hashes are formed from two independent hashes of the key, so the key is only mixed once.
+     *
+     * @param h1	first hash of the key
+     * @param h2	second hash of the key
+     * @param row	sketch row
+     */
+    private int cell(int h1, int h2, int row) {
+        return row * this.width + ((h1 + row * h2) & (this.width - 1));
+    }
+
+    /**
+     * @return the mixed bits of a pair key
+     *
+     * @param key	pair key to hash
+     */
+    private static long mix(long key) {
+        // This is the finalizer from MurmurHash3.
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return the sketch estimate for a pair key
+     *
+     * @param key	pair key of interest
+     */
+    private int estimate(long key) {
+        long h = mix(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        int retVal = Integer.MAX_VALUE;
+        for (int row = 0; row < this.depth; row++) {
+            int value = this.cells[this.cell(h1, h2, row)];
+            if (value < retVal)
+                retVal = value;
+        }
+        return retVal;
+    }
+
+    @Override
+    public int get(int role1, int role2) {
+        long key = pairKey(role1, role2);
+        int retVal = this.estimate(key);
+        int slot = this.slots.get(role1, role2) - 1;
+        if (slot >= 0 && this.counts[slot] < retVal)
+            retVal = this.counts[slot];
+        return retVal;
+    }
+
+    @Override
+    public void add(int role1, int role2, int count) {
+        if (count < 0)
+            throw new UnsupportedOperationException("Counts cannot be subtracted from a sketch.");
+        if (count > 0) {
+            long key = pairKey(role1, role2);
+            // Update the sketch.
+            long h = mix(key);
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32) | 1;
+            for (int row = 0; row < this.depth; row++)
+                this.cells[this.cell(h1, h2, row)] += count;
+            this.total += count;
+            // Update the candidates.
+            int slot = this.slots.get(role1, role2) - 1;
+            if (slot >= 0) {
+                this.counts[slot] += count;
+                this.siftDown(this.heapPos[slot]);
+            } else if (this.used < this.capacity) {
+                slot = this.used;
+                this.used++;
+                this.keys[slot] = key;
+                this.counts[slot] = count;
+                this.errors[slot] = 0;
+                this.heap[slot] = slot;
+                this.heapPos[slot] = slot;
+                this.slots.add(role1, role2, slot + 1);
+                this.siftUp(slot);
+            } else {
+                // Replace the candidate with the lowest count.  The new pair inherits its count as error.
+                slot = this.heap[0];
+                long oldKey = this.keys[slot];
+                this.slots.add((int) oldKey, (int) (oldKey >>> 32), -(slot + 1));
+                this.keys[slot] = key;
+                this.errors[slot] = this.counts[slot];
+                this.counts[slot] += count;
+                this.slots.add(role1, role2, slot + 1);
+                this.siftDown(0);
+            }
+        }
+    }
+
+    /**
+     * Move a heap entry toward the root until its parent's count is no greater.
+     *
+     * @param pos	heap position of the entry
+     */
+    private void siftUp(int pos) {
+        int slot = this.heap[pos];
+        int count = this.counts[slot];
+        while (pos > 0) {
+            int parent = (pos - 1) >> 1;
+            int other = this.heap[parent];
+            if (this.counts[other] <= count) break;
+            this.heap[pos] = other;
+            this.heapPos[other] = pos;
+            pos = parent;
+        }
+        this.heap[pos] = slot;
+        this.heapPos[slot] = pos;
+    }
+
+    /**
+     * Move a heap entry toward the leaves until its children's counts are no less.
+     *
+     * @param pos	heap position of the entry
+     */
+    private void siftDown(int pos) {
+        int slot = this.heap[pos];
+        int count = this.counts[slot];
+        int half = this.used >> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            if (child + 1 < this.used && this.counts[this.heap[child + 1]] < this.counts[this.heap[child]])
+                child++;
+            int other = this.heap[child];
+            if (count <= this.counts[other]) break;
+            this.heap[pos] = other;
+            this.heapPos[other] = pos;
+            pos = child;
+        }
+        this.heap[pos] = slot;
+        this.heapPos[slot] = pos;
+    }
+
+    /**
+     * @return the number of candidate pairs
+     */
+    @Override
+    public int size() {
+        return this.used;
+    }
+
+    @Override
+    public long memoryUsed() {
+        return 4L * this.cells.length + 28L * this.capacity + this.slots.memoryUsed();
+    }
+
+    /**
+     * Pass each candidate pair to the visitor.  The count is the smaller of the sketch estimate and the
+     * Space-Saving count.
+     *
+     * @param visitor	visitor to receive the candidates
+     */
+    @Override
+    public void forEach(Visitor visitor) {
+        for (int slot = 0; slot < this.used; slot++) {
+            long key = this.keys[slot];
+            int count = Math.min(this.counts[slot], this.estimate(key));
+            visitor.visit((int) key, (int) (key >>> 32), count);
+        }
+    }
+
+    @Override
+    public PairCountTable grow(int roles) {
+        return this;
+    }
+
+    /**
+     * @return the total of all the pair increments
+     */
+    public long getTotal() {
+        return this.total;
+    }
+
+    /**
+     * @return the sketch error bound (eN/w) on the overestimate of any pair count
+     */
+    public double getSketchError() {
+        return Math.E * this.total / this.width;
+    }
+
+    /**
+     * @return the probability that a pair count exceeds the sketch error bound
+     */
+    public double getFailureProbability() {
+        return Math.exp(-this.depth);
+    }
+
+    /**
+     * @return the candidate error bound (N/k); any pair whose count exceeds this is a candidate
+     */
+    public double getCandidateError() {
+        return ((double) this.total) / this.capacity;
+    }
+
+    /**
+     * @return the maximum overestimate recorded for a candidate pair, or -1 if it is not a candidate
+     *
+     * @param role1		index of the first role
+     * @param role2		index of the second role
+     */
+    public int getError(int role1, int role2) {
+        int slot = this.slots.get(role1, role2) - 1;
+        return (slot < 0 ? -1 : this.errors[slot]);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d x %d sketch with %d of %d candidates, N = %d, sketch error %.1f " +
+                "(p = %.3f), candidate error %.1f", this.depth, this.width, this.used, this.capacity, this.total,
+                this.getSketchError(), this.getFailureProbability(), this.getCandidateError());
+    }
+
+}
@@ -0,0 +1,65 @@
+package org.theseed.proteins.cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * This class writes a coupler file in the text format one pair at a time.  The format is the same as
+ * the one produced by {@link RoleCoupleCounter#saveText(File)}.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TextCouplerWriter extends CouplerWriter {
+
+    // FIELDS
+    /** output writer */
+    private PrintWriter writer;
+
+    /**
+     * Open a text coupler file for output and write the role section.
+     *
+     * @param outFile	output file
+     * @param gap		maximum gap between neighbors
+     * @param ids		role IDs, sorted
+     * @param names		role names, in dictionary order
+     * @param counts	role occurrence counts, in dictionary order
+     *
+     * @throws IOException
+     */
+    public TextCouplerWriter(File outFile, int gap, String[] ids, String[] names, int[] counts)
+            throws IOException {
+        super(gap, ids, names, counts);
+        this.writer = new PrintWriter(outFile);
+        this.writer.format("%d\tRole-Coupling Database%n", gap);
+        this.writer.println("count\trole_id\trole_name%n");
+        for (int i = 0; i < ids.length; i++)
+            this.writer.format("%d\t%s\t%s%n", counts[i], ids[i], names[i]);
+        this.writer.println("role1_id\trole2_id\tcount\ttogetherness");
+    }
+
+    @Override
+    protected void write(int role1, int role2, int count) {
+        this.writer.format("%d\t%s\t%s\t%4.2g%n", count, this.ids[role1], this.ids[role2],
+                RoleCoupleCounter.togetherness(count, this.counts[role1], this.counts[role2]));
+    }
+
+    @Override
+    public void writeLedger(Map<String, String> ledger, long logSequence) {
+        if (ledger.size() > 0 || logSequence > 0) {
+            this.writer.println(RoleCoupleCounter.ledgerHeading(logSequence));
+            for (Map.Entry<String, String> entry : ledger.entrySet())
+                this.writer.format("%s\t%s%n", entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.writer.close();
+        if (this.writer.checkError())
+            throw new IOException("Error writing text coupler file.");
+    }
+
+}
@@ -0,0 +1,88 @@
+package org.theseed.proteins.cluster;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This report writer produces the tab-delimited coupling report, optionally GZIP-compressed.  The
+ * columns are the same as those of the original report written to the standard output.  When there is
+ * more than one reference coupler, the comparison columns are repeated for each, with the reference
+ * number appended to the column names.  Empty comparison blocks at the end of a line are omitted.
+ * The lines are assembled in a reusable builder and written through a large buffer, so nothing is
+ * flushed until the buffer fills.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TextCouplingReport extends CouplingReport {
+
+    // FIELDS
+    /** output writer */
+    private Writer writer;
+    /** line buffer */
+    private StringBuilder line;
+
+    /**
+     * Create a text report.
+     *
+     * @param out		output stream
+     * @param gzip			TRUE to compress the output
+     * @param references	number of reference couplers (0 if this is not a comparison report)
+     *
+     * @throws IOException
+     */
+    public TextCouplingReport(OutputStream out, boolean gzip, int references) throws IOException {
+        super(references);
+        if (gzip)
+            out = new GZIPOutputStream(out, BUFFER_SIZE / 16);
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.line = new StringBuilder(100);
+        StringBuilder header = new StringBuilder("role_id1\trole_id2\tfraction\tcount");
+        for (int i = 1; i <= references; i++) {
+            String suffix = (references > 1 ? Integer.toString(i) : "");
+            header.append("\totherFrac").append(suffix).append("\totherCount").append(suffix)
+                    .append("\totherFound").append(suffix).append("\tfailure").append(suffix);
+        }
+        header.append('\n');
+        this.writer.append(header);
+    }
+
+    @Override
+    protected void writeRow(String role1, String role2, double together, int count, Comparison[] others)
+            throws IOException {
+        StringBuilder buffer = this.line;
+        buffer.setLength(0);
+        buffer.append(role1).append('\t').append(role2).append('\t').append(String.format("%4.2g", together))
+                .append('\t').append(count);
+        if (others != null) {
+            // Find the last nonempty comparison block.  Empty blocks after it are omitted.
+            int last = others.length - 1;
+            while (last >= 0 && ! others[last].isFound())
+                last--;
+            for (int i = 0; i <= last; i++) {
+                Comparison other = others[i];
+                if (! other.isFound()) {
+                    buffer.append("\t\t\t\t");
+                } else {
+                    buffer.append('\t').append(String.format("%4.2g", other.getFrac())).append('\t')
+                            .append(other.getCount()).append('\t').append(other.getOther()).append('\t');
+                    if (other.isFailure())
+                        buffer.append('Y');
+                }
+            }
+        }
+        buffer.append('\n');
+        this.writer.append(buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.writer.close();
+    }
+
+}
@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package org.theseed.proteins.cluster;
+
+import java.util.Arrays;
+
+/**
+ * This is a pair-count table for small role sets.  The counts are stored in a single integer array
+ * laid out as the lower triangle of the role-by-role matrix, including the diagonal.  The pair (i, j)
+ * with i <= j is stored at position j(j+1)/2 + i.  Because this position does not depend on the
+ * number of roles, the table can be extended without moving the existing counts.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TriangularPairTable extends PairCountTable {
+
+    // FIELDS
+    /** array of counts */
+    private int[] counts;
+    /** number of roles currently accommodated */
+    private int roles;
+    /** number of nonzero counts */
+    private int size;
+
+    /**
+     * Create a new, empty triangular table.
+     *
+     * @param roles		number of roles to accommodate
+     */
+    public TriangularPairTable(int roles) {
+        this.roles = roles;
+        this.counts = new int[cells(roles)];
+        this.size = 0;
+    }
+
+    /**
+     * @return the number of array cells needed for the specified number of roles
+     *
+     * @param roles		number of roles in the table
+     */
+    private static int cells(int roles) {
+        return roles * (roles + 1) / 2;
+    }
+
+    /**
+     * @return the array position for the specified pair of roles, or -1 if the pair is out of range
+     *
+     * @param role1		index of the first role
+     * @param role2		index of the second role
+     */
+    private int position(int role1, int role2) {
+        int lo = role1;
+        int hi = role2;
+        if (lo > hi) {
+            lo = role2;
+            hi = role1;
+        }
+        int retVal = -1;
+        if (lo >= 0 && hi < this.roles) {
+            retVal = hi * (hi + 1) / 2 + lo;
+        }
+        return retVal;
+    }
+
+    @Override
+    public int get(int role1, int role2) {
+        int pos = this.position(role1, role2);
+        return (pos < 0 ? 0 : this.counts[pos]);
+    }
+
+    @Override
+    public void add(int role1, int role2, int count) {
+        int pos = this.position(role1, role2);
+        if (pos < 0)
+            throw new IndexOutOfBoundsException("Role index out of range for pair table.");
+        int old = this.counts[pos];
+        int sum = old + count;
+        this.counts[pos] = sum;
+        if (old == 0 && sum != 0) {
+            this.size++;
+        } else if (old != 0 && sum == 0) {
+            this.size--;
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public long memoryUsed() {
+        return 4L * this.counts.length;
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        int pos = 0;
+        for (int hi = 0; hi < this.roles; hi++) {
+            for (int lo = 0; lo <= hi; lo++) {
+                int count = this.counts[pos];
+                if (count != 0)
+                    visitor.visit(lo, hi, count);
+                pos++;
+            }
+        }
+    }
+
+    @Override
+    public PairCountTable grow(int roles) {
+        PairCountTable retVal = this;
+        if (roles > TRIANGLE_LIMIT) {
+            // Too big for a triangle.  Convert to a hash table.
+            HashPairTable newTable = new HashPairTable(this.size * 2);
+            this.forEach((r1, r2, count) -> newTable.add(r1, r2, count));
+            retVal = newTable;
+        } else if (roles > this.roles) {
+            int needed = cells(roles);
+            if (needed > this.counts.length) {
+                // Grow geometrically so that adding roles one at a time is not quadratic.
+                int newRoles = Math.min(TRIANGLE_LIMIT, Math.max(roles, this.roles * 2));
+                this.counts = Arrays.copyOf(this.counts, cells(newRoles));
+            }
+            this.roles = roles;
+        }
+        return retVal;
+    }
+
+}
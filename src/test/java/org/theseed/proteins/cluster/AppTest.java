@@ -8,18 +8,43 @@ import junit.framework.TestSuite;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 
 import org.theseed.counters.CountMap;
 import org.theseed.counters.PairCounter;
 import org.theseed.genome.Contig;
 import org.theseed.genome.Feature;
+import org.theseed.genome.FeatureList;
 import org.theseed.genome.Genome;
 import org.theseed.proteins.Role;
 import org.theseed.proteins.RoleMap;
@@ -177,7 +202,1488 @@ public class AppTest
         }
     }
 
+    /**
+     * @return a small fake genome for coupling tests
+     */
+    private static Genome fakeGenome() {
+        Genome retVal = new Genome("12345.6", "Bacillus praestrigiae Narnia", "Bacteria", 11);
+        retVal.addContig(new Contig("con1", "agct", 11));
+        retVal.addFeature(new Feature("fig|12345.6.peg.1",  "Role 1", "con1", "+",  100,  300));
+        retVal.addFeature(new Feature("fig|12345.6.peg.2",  "Role 2", "con1", "-",  100,  400));
+        retVal.addFeature(new Feature("fig|12345.6.peg.3",  "Role 3", "con1", "+",  200,  500));
+        retVal.addFeature(new Feature("fig|12345.6.peg.4",  "Role 4", "con1", "-", 1000, 1200));
+        retVal.addFeature(new Feature("fig|12345.6.peg.5",  "Role 5", "con1", "+", 1010, 1300));
+        retVal.addFeature(new Feature("fig|12345.6.peg.6",  "Role 6 / Role 1", "con1", "-", 3300, 4000));
+        retVal.addFeature(new Feature("fig|12345.6.peg.7",  "Role 2 # comment", "con1", "-", 5000, 5100));
+        retVal.addFeature(new Feature("fig|12345.6.peg.8",  "Role 3 @ Role X", "con1", "+", 5150, 5200));
+        retVal.addFeature(new Feature("fig|12345.6.peg.9",  "Role 1", "con1", "+", 5250, 5400));
+        retVal.addFeature(new Feature("fig|12345.6.peg.10", "Role 2", "con1", "-", 5401, 5450));
+        return retVal;
+    }
+
+    /**
+     * @return the role map used for the fake genome
+     */
+    private static RoleMap fakeRoles() {
+        RoleMap retVal = new RoleMap();
+        retVal.register("Role 1", "Role 2", "Role 3", "Role 4", "Role 5", "Role 6");
+        return retVal;
+    }
+
+    /**
+     * Verify that a counter matches another counter exactly.
+     *
+     * @param label		label for assertion messages
+     * @param expected	counter with the expected results
+     * @param actual	counter to check
+     */
+    private static void assertSameCounts(String label, RoleCoupleCounter expected, RoleCoupleCounter actual) {
+        List<CountMap<Role>.Count> oldRoles = expected.getRoleCounts();
+        assertEquals(label + ": role lists differ", oldRoles.size(), actual.getRoleCounts().size());
+        for (CountMap<Role>.Count oldCount : oldRoles) {
+            assertEquals(label + ": count wrong for " + oldCount.getKey().getId(), oldCount.getCount(),
+                    actual.getCount(oldCount.getKey()));
+        }
+        List<PairCounter<Role>.Count> oldPairs = expected.getPairCounts();
+        assertEquals(label + ": pair lists differ", oldPairs.size(), actual.getPairCounts().size());
+        for (PairCounter<Role>.Count oldCount : oldPairs) {
+            assertEquals(label + ": count wrong for " + oldCount.getKey1().getId() + "/" + oldCount.getKey2().getId(),
+                    oldCount.getCount(), actual.getCount(oldCount.getKey1(), oldCount.getKey2()));
+        }
+    }
+
+    /**
+     * Test merging coupler shards.
+     */
+    public void testMerge() {
+        Genome genome = fakeGenome();
+        RoleCoupleCounter serial = new RoleCoupleCounter(fakeRoles(), 100);
+        serial.countCouplings(genome);
+        serial.countCouplings(genome);
+        serial.countCouplings(genome);
+        RoleCoupleCounter main = new RoleCoupleCounter(fakeRoles(), 100);
+        RoleCoupleCounter shard1 = main.createShard();
+        RoleCoupleCounter shard2 = main.createShard();
+        shard1.countCouplings(genome);
+        shard2.countCouplings(genome);
+        shard2.countCouplings(genome);
+        main.merge(shard1);
+        main.merge(shard2);
+        assertSameCounts("Merge", serial, main);
+        Role role1 = main.getRole("Role1n1");
+        assertEquals("r1 count wrong after merge", 9, main.getCount(role1));
+        try {
+            main.merge(new RoleCoupleCounter(fakeRoles(), 200));
+            fail("Merged incompatible gaps.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Test the primitive pair-count tables against a simple map.
+     */
+    public void testPairTables() {
+        Random rand = new Random(1234);
+        PairCountTable tri = PairCountTable.create(100);
+        assertTrue("Small table is not triangular.", tri instanceof TriangularPairTable);
+        PairCountTable hash = new HashPairTable(10);
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        for (int i = 0; i < 20000; i++) {
+            int r1 = rand.nextInt(100);
+            int r2 = rand.nextInt(100);
+            // Mostly add, but sometimes subtract so that entries are removed.
+            int delta = (rand.nextInt(5) == 0 ? -1 : 1);
+            long key = PairCountTable.pairKey(r1, r2);
+            int old = expected.getOrDefault(key, 0);
+            if (old + delta >= 0) {
+                expected.put(key, old + delta);
+                tri.add(r1, r2, delta);
+                hash.add(r2, r1, delta);
+            }
+        }
+        int nonZero = 0;
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            long key = entry.getKey();
+            int r1 = (int) key;
+            int r2 = (int) (key >>> 32);
+            assertEquals("Triangle count wrong.", (int) entry.getValue(), tri.get(r2, r1));
+            assertEquals("Hash count wrong.", (int) entry.getValue(), hash.get(r1, r2));
+            if (entry.getValue() != 0) nonZero++;
+        }
+        assertEquals("Triangle size wrong.", nonZero, tri.size());
+        assertEquals("Hash size wrong.", nonZero, hash.size());
+        final int[] visited = new int[1];
+        hash.forEach((r1, r2, count) -> {
+            assertThat("Pair out of order.", r1, lessThanOrEqualTo(r2));
+            assertEquals("Visited count wrong.", (int) expected.get(PairCountTable.pairKey(r1, r2)), count);
+            visited[0]++;
+        });
+        assertEquals("Wrong number of pairs visited.", nonZero, visited[0]);
+        // Grow the triangle past the limit and verify it converts.
+        PairCountTable grown = tri.grow(PairCountTable.TRIANGLE_LIMIT + 1);
+        assertTrue("Large table is not hashed.", grown instanceof HashPairTable);
+        assertEquals("Converted size wrong.", nonZero, grown.size());
+        tri.forEach((r1, r2, count) -> assertEquals("Converted count wrong.", count, grown.get(r1, r2)));
+    }
+
+    /**
+     * Test the binary coupler format.
+     *
+     * @throws IOException
+     */
+    public void testBinary() throws IOException {
+        Genome genome = fakeGenome();
+        RoleCoupleCounter counter = new RoleCoupleCounter(fakeRoles(), 100);
+        counter.countCouplings(genome);
+        counter.countCouplings(genome);
+        File binFile = new File("src/test", "couples.rcb");
+        counter.save(binFile);
+        assertTrue("Binary file not detected.", BinaryCouplerFile.isBinary(binFile));
+        RoleCoupleCounter loaded = RoleCoupleCounter.load(binFile);
+        assertSameCounts("Binary load", counter, loaded);
+        try (BinaryCouplerFile reader = new BinaryCouplerFile(binFile)) {
+            assertEquals("Wrong gap in binary file.", 100, reader.getGap());
+            assertEquals("Wrong pair total.", counter.getPairTotal(), reader.getPairTotal());
+            for (int i = 1; i < reader.getRoleTotal(); i++)
+                assertThat("Dictionary out of order.", reader.getRoleId(i), greaterThan(reader.getRoleId(i - 1)));
+            for (long i = 0; i < reader.getPairTotal(); i++) {
+                assertThat("Pair roles out of order.", reader.getRole1(i), lessThanOrEqualTo(reader.getRole2(i)));
+                if (i > 0) {
+                    long prevKey = ((long) reader.getRole1(i - 1) << 32) | reader.getRole2(i - 1);
+                    long key = ((long) reader.getRole1(i) << 32) | reader.getRole2(i);
+                    assertThat("Pairs out of order.", key, greaterThan(prevKey));
+                }
+            }
+        }
+        // Query the binary file through an index.
+        try (CouplerIndex index = new CouplerIndex(binFile)) {
+            assertEquals("Index gap wrong.", 100, index.getGap());
+            for (CountMap<Role>.Count count : counter.getRoleCounts()) {
+                Role role = count.getKey();
+                assertEquals("Index role count wrong for " + role.getId(), count.getCount(), index.getCount(role));
+                assertEquals("Index ID count wrong for " + role.getId(), count.getCount(), index.getCount(role.getId()));
+                for (CountMap<Role>.Count count2 : counter.getRoleCounts()) {
+                    Role role2 = count2.getKey();
+                    assertEquals("Index pair count wrong.", counter.getCount(role, role2), index.getCount(role2, role));
+                    assertEquals("Index togetherness wrong.", counter.getTogetherness(role, role2),
+                            index.getTogetherness(role, role2), 0.00001);
+                    assertEquals("Index ID pair count wrong.", counter.getCount(role, role2),
+                            index.getCount(role.getId(), role2.getId()));
+                    assertEquals("Index ID togetherness wrong.", counter.getTogetherness(role, role2),
+                            index.getTogetherness(role.getId(), role2.getId()), 0.00001);
+                }
+            }
+            Role missing = new Role("RoleZn1", "Role Z");
+            assertEquals("Missing role count wrong.", 0, index.getCount(missing));
+            assertEquals("Missing pair count wrong.", 0, index.getCount(missing, counter.getRole("Role1n1")));
+            assertEquals("Null role count wrong.", 0, index.getCount((Role) null));
+            // The mapped file can still be queried after the index is closed.
+            index.close();
+            assertEquals("Closed index role count wrong.", counter.getCount(counter.getRole("Role1n1")),
+                    index.getCount("Role1n1"));
+            assertSameCounts("Index load", counter, index.readCounter());
+        }
+        // Convert to text and back.
+        File textFile = new File("src/test", "couples2.ser");
+        loaded.save(textFile);
+        assertFalse("Text file detected as binary.", BinaryCouplerFile.isBinary(textFile));
+        assertSameCounts("Text conversion", counter, RoleCoupleCounter.load(textFile));
+    }
 
+    /**
+     * Test the text loader on a hand-built file with DOS line endings.
+     *
+     * @throws IOException
+     */
+    public void testTextLoader() throws IOException {
+        File textFile = new File("src/test", "couples3.ser");
+        try (PrintWriter writer = new PrintWriter(textFile)) {
+            writer.print("250\tRole-Coupling Database\r\n");
+            writer.print("count\trole_id\trole_name%n\r\n");
+            writer.print("12\tRoleA\tRole A\r\n");
+            writer.print("0\tRoleB\tRole B with spaces\r\n");
+            writer.print("7\tRoleC\tRole C\r\n");
+            writer.print("role1_id\trole2_id\tcount\ttogetherness\r\n");
+            writer.print("5\tRoleA\tRoleC\t0.36\r\n");
+            writer.print("3\tRoleC\tRoleC\t0.27");
+        }
+        RoleCoupleCounter loaded = RoleCoupleCounter.load(textFile);
+        Role roleA = loaded.getRole("RoleA");
+        Role roleB = loaded.getRole("RoleB");
+        Role roleC = loaded.getRole("RoleC");
+        assertEquals("Wrong role name.", "Role B with spaces", roleB.getName());
+        assertEquals("Wrong A count.", 12, loaded.getCount(roleA));
+        assertEquals("Wrong B count.", 0, loaded.getCount(roleB));
+        assertEquals("Wrong C count.", 7, loaded.getCount(roleC));
+        assertEquals("Wrong A/C count.", 5, loaded.getCount(roleC, roleA));
+        assertEquals("Wrong C/C count.", 3, loaded.getCount(roleC, roleC));
+        assertEquals("Wrong A/B count.", 0, loaded.getCount(roleA, roleB));
+        assertEquals("Wrong pair total.", 2, loaded.getPairTotal());
+    }
 
+    /**
+     * Test the genome ledger.
+     *
+     * @throws IOException
+     */
+    public void testLedger() throws IOException {
+        Genome genome = fakeGenome();
+        RoleCoupleCounter counter = new RoleCoupleCounter(fakeRoles(), 100);
+        counter.countCouplings(genome);
+        counter.recordGenome("12345.6", "abcdef");
+        RoleCoupleCounter shard = counter.createShard();
+        shard.countCouplings(genome);
+        shard.recordGenome("12345.7", "");
+        counter.merge(shard);
+        assertTrue("Genome 1 not counted.", counter.isCounted("12345.6"));
+        assertTrue("Genome 2 not merged.", counter.isCounted("12345.7"));
+        assertFalse("Genome 3 counted.", counter.isCounted("12345.8"));
+        assertEquals("Wrong hash for genome 1.", "abcdef", counter.getLedgerHash("12345.6"));
+        assertEquals("Wrong hash for genome 2.", "", counter.getLedgerHash("12345.7"));
+        assertNull("Hash found for genome 3.", counter.getLedgerHash("12345.8"));
+        File[] saveFiles = new File[] { new File("src/test", "ledger.ser"), new File("src/test", "ledger.rcb") };
+        for (File saveFile : saveFiles) {
+            counter.save(saveFile);
+            RoleCoupleCounter loaded = RoleCoupleCounter.load(saveFile);
+            assertSameCounts("Ledger load from " + saveFile, counter, loaded);
+            assertEquals("Ledger wrong after load from " + saveFile, counter.getLedger(), loaded.getLedger());
+        }
+    }
+
+    /**
+     * @return a random genome for coupling tests
+     *
+     * @param rand		random number generator
+     * @param roles		role map containing the roles to use
+     * @param contigs	number of contigs
+     * @param features	number of features per contig
+     */
+    private static Genome randomGenome(Random rand, RoleMap roles, int contigs, int features) {
+        Genome retVal = new Genome("100.1", "Random genome", "Bacteria", 11);
+        List<Role> roleList = new ArrayList<Role>(roles.objectValues());
+        int fid = 1;
+        for (int c = 1; c <= contigs; c++) {
+            String contigId = "con" + c;
+            retVal.addContig(new Contig(contigId, "agct", 11));
+            int pos = 1;
+            for (int f = 0; f < features; f++) {
+                // Allow overlaps and features with no useful roles.
+                pos += rand.nextInt(600) - 100;
+                if (pos < 1) pos = 1;
+                int len = 100 + rand.nextInt(1500);
+                String function;
+                switch (rand.nextInt(4)) {
+                case 0 :
+                    function = "hypothetical protein";
+                    break;
+                case 1 :
+                    function = roleList.get(rand.nextInt(roleList.size())).getName() + " / " +
+                            roleList.get(rand.nextInt(roleList.size())).getName();
+                    break;
+                default :
+                    function = roleList.get(rand.nextInt(roleList.size())).getName();
+                }
+                retVal.addFeature(new Feature("fig|100.1.peg." + fid, function, contigId,
+                        (rand.nextBoolean() ? "+" : "-"), pos, pos + len));
+                fid++;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Test the sweep-line counter against the neighbor search in the feature list.
+     */
+    public void testSweep() {
+        Random rand = new Random(42);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 40; i++)
+            roles.register("Random role " + i);
+        Genome genome = randomGenome(rand, roles, 5, 400);
+        for (int gap : new int[] { 0, 500, 5000 }) {
+            // Count the couplings the original way.
+            PairCounter<Role> expected = new PairCounter<Role>();
+            for (Contig contig : genome.getContigs()) {
+                FeatureList contigFeatures = genome.getContigFeatures(contig.getId());
+                FeatureList.Position position = contigFeatures.new Position();
+                while (position.hasNext()) {
+                    Feature current = position.next();
+                    Collection<Role> currentRoles = current.getUsefulRoles(roles);
+                    if (currentRoles.size() > 0) {
+                        List<Role> neighborRoles = new ArrayList<Role>();
+                        for (Feature feat : position.within(gap))
+                            neighborRoles.addAll(feat.getUsefulRoles(roles));
+                        for (Role role : currentRoles)
+                            expected.recordOccurrence(role, neighborRoles);
+                    }
+                }
+            }
+            RoleCoupleCounter counter = new RoleCoupleCounter(roles, gap);
+            counter.countCouplings(genome);
+            for (Role role1 : roles.objectValues()) {
+                assertEquals("Role count wrong for gap " + gap, expected.getCount(role1), counter.getCount(role1));
+                for (Role role2 : roles.objectValues()) {
+                    assertEquals("Pair count wrong for gap " + gap, expected.getCount(role1, role2),
+                            counter.getCount(role1, role2));
+                }
+            }
+        }
+    }
+
+    /**
+     * Test the role resolution cache.
+     */
+    public void testResolutionCache() {
+        RoleResolutionCache cache = new RoleResolutionCache(2);
+        cache.reset(5);
+        assertTrue("Null function not rejected.", cache.reject(null));
+        assertTrue("Short function not rejected.", cache.reject("abc"));
+        assertFalse("Long function rejected.", cache.reject("abcdef"));
+        assertNull("Empty cache returned a value.", cache.get("abcdef"));
+        cache.put("abcdef", new int[] { 1, 2 });
+        cache.put("ghijkl", new int[0]);
+        assertSame("Empty roles not shared.", RoleResolutionCache.NO_ROLES, cache.get("ghijkl"));
+        assertEquals("Wrong role count.", 2, cache.get("abcdef").length);
+        cache.put("mnopqr", new int[] { 3 });
+        assertEquals("Cache too big.", 2, cache.size());
+        assertNull("Least recently used entry not evicted.", cache.get("ghijkl"));
+        assertEquals("Wrong hits.", 2, cache.getHits());
+        assertEquals("Wrong misses.", 2, cache.getMisses());
+        assertEquals("Wrong rejects.", 2, cache.getRejects());
+        assertEquals("Wrong evictions.", 1, cache.getEvictions());
+        // Verify a tiny cache in the counter does not change the counts.
+        Random rand = new Random(99);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 20; i++)
+            roles.register("Random role " + i);
+        Genome genome = randomGenome(rand, roles, 3, 300);
+        RoleCoupleCounter big = new RoleCoupleCounter(roles, 500);
+        big.countCouplings(genome);
+        RoleCoupleCounter small = new RoleCoupleCounter(roles, 500);
+        small.setCacheLimit(2);
+        small.countCouplings(genome);
+        assertSameCounts("Small cache", big, small);
+        assertThat("No evictions in small cache.", small.getResolutionCache().getEvictions(), greaterThan(0L));
+        assertThat("No hits in big cache.", big.getResolutionCache().getHits(), greaterThan(0L));
+        // Verify the length filter ignores the parts of a role name that matching ignores.
+        assertEquals("Wrong EC match length.", 9, RoleResolutionCache.matchLength("Alpha-beta (EC 1.1.1.17)"));
+        assertEquals("Wrong TC match length.", 7, RoleResolutionCache.matchLength("Symport (TC 2.A.1.4.1)"));
+        assertEquals("Wrong comment match length.", 6, RoleResolutionCache.matchLength("Kinase # frameshift"));
+        RoleMap ecRoles = new RoleMap();
+        for (int i = 1; i <= 5; i++)
+            ecRoles.register("Random role " + i);
+        ecRoles.register("Kinase (EC 2.7.1.11)");
+        RoleCoupleCounter ecCounter = new RoleCoupleCounter(ecRoles, 500);
+        ecCounter.countCouplings(randomGenome(rand, ecRoles, 1, 20));
+        assertFalse("Function without EC number rejected.", ecCounter.getResolutionCache().reject("kinase"));
+        assertTrue("Short function not rejected by counter.", ecCounter.getResolutionCache().reject("kin"));
+    }
+
+    /**
+     * Test the genome prefetch pipeline.
+     *
+     * @throws InterruptedException
+     */
+    public void testPipeline() throws InterruptedException {
+        Random rand = new Random(1234);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 20; i++)
+            roles.register("Random role " + i);
+        Map<String, Genome> genomes = new HashMap<String, Genome>();
+        List<File> files = new ArrayList<File>();
+        RoleCoupleCounter expected = new RoleCoupleCounter(roles, 500);
+        for (int i = 1; i <= 12; i++) {
+            String name = "g" + i + ".gto";
+            files.add(new File(name));
+            Genome genome = randomGenome(rand, roles, 2, 50);
+            genomes.put(name, genome);
+            // Genome 5 will fail and genome 7 will be skipped.
+            if (i != 5 && i != 7)
+                expected.countCouplings(genome);
+        }
+        GenomePipeline.Loader loader = (item) -> {
+            String name = item.getEntry().getName();
+            if (name.equals("g5.gto"))
+                throw new IOException("Bad genome.");
+            if (! name.equals("g7.gto"))
+                item.setGenome(genomes.get(name));
+        };
+        RoleCoupleCounter actual = new RoleCoupleCounter(roles, 500);
+        int errors = 0;
+        int skipped = 0;
+        int found = 0;
+        // The feature limit is smaller than a genome, so the readers have to take turns.
+        try (GenomePipeline pipeline = new GenomePipeline(files, loader, 3, 2, 60)) {
+            for (GenomePipeline.Item item = pipeline.take(); item != null; item = pipeline.take()) {
+                found++;
+                if (item.getError() != null) {
+                    errors++;
+                    assertThat("Wrong genome failed.", item.getEntry().getName(), equalTo("g5.gto"));
+                } else if (item.getGenome() == null) {
+                    skipped++;
+                    assertThat("Wrong genome skipped.", item.getEntry().getName(), equalTo("g7.gto"));
+                } else {
+                    actual.countCouplings(item.getGenome());
+                }
+                pipeline.release(item);
+            }
+        }
+        assertEquals("Wrong number of items.", 12, found);
+        assertEquals("Wrong number of errors.", 1, errors);
+        assertEquals("Wrong number of skips.", 1, skipped);
+        assertSameCounts("Pipeline", expected, actual);
+        // A reader that dies must still let the consumer finish, and the failure must be reported.
+        GenomePipeline.Loader crashLoader = (item) -> {
+            String name = item.getEntry().getName();
+            if (name.equals("g3.gto"))
+                throw new AssertionError("Reader crash.");
+            item.setGenome(genomes.get(name));
+        };
+        boolean reported = false;
+        try (GenomePipeline pipeline = new GenomePipeline(files, crashLoader, 2, 2, 60)) {
+            for (GenomePipeline.Item item = pipeline.take(); item != null; item = pipeline.take())
+                pipeline.release(item);
+        } catch (UncheckedIOException e) {
+            reported = true;
+        }
+        assertTrue("Reader crash not reported.", reported);
+        // Closing the pipeline must release a consumer that has not drained it.
+        GenomePipeline pipeline = new GenomePipeline(files, loader, 2, 1, 60);
+        assertNotNull("No item before close.", pipeline.take());
+        pipeline.close();
+        assertNull("Item delivered after close.", pipeline.take());
+    }
+
+    /**
+     * Test the streaming and top-K pair selection.
+     */
+    public void testTopPairs() {
+        // Verify the heap keeps the most frequent pairs, breaking ties on the lower key.
+        PairHeap heap = new PairHeap(3);
+        int[] counts = new int[] { 5, 9, 1, 9, 7, 3, 9, 2 };
+        for (int i = 0; i < counts.length; i++)
+            heap.offer(PairCountTable.pairKey(i, 100), counts[i]);
+        assertEquals("Wrong heap size.", 3, heap.size());
+        final Map<Integer, Integer> kept = new HashMap<Integer, Integer>();
+        heap.forEach((r1, r2, count) -> kept.put(r1, count));
+        assertThat("Wrong pairs kept.", kept.keySet(), containsInAnyOrder(1, 3, 6));
+        // Compare the selection methods on a random coupler.
+        Random rand = new Random(4321);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 30; i++)
+            roles.register("Random role " + i);
+        RoleCoupleCounter coupler = new RoleCoupleCounter(roles, 1000);
+        for (int i = 0; i < 5; i++)
+            coupler.countCouplings(randomGenome(rand, roles, 3, 200));
+        List<PairCounter<Role>.Count> all = coupler.getPairCounts(0.05, 3);
+        assertThat("Too few pairs for test.", all.size(), greaterThan(20));
+        final List<String> visited = new ArrayList<String>();
+        coupler.visitPairs(0.05, 3, (role1, role2, count, together) -> {
+            assertThat("Visited pair below threshold.", count, greaterThanOrEqualTo(3));
+            assertEquals("Wrong togetherness.", coupler.getTogetherness(role1, role2), together, 1e-9);
+            visited.add(role1.getId() + "/" + role2.getId());
+        });
+        assertEquals("Wrong number of visited pairs.", all.size(), visited.size());
+        List<PairCounter<Role>.Count> top = coupler.getTopPairs(0.05, 3, 10);
+        assertEquals("Wrong number of top pairs.", 10, top.size());
+        for (int i = 0; i < 10; i++) {
+            PairCounter<Role>.Count pair = top.get(i);
+            assertEquals("Wrong count at top position " + i + ".", all.get(i).getCount(), pair.getCount());
+            assertEquals("Wrong togetherness at top position " + i + ".",
+                    coupler.getTogetherness(pair.getKey1(), pair.getKey2()), pair.togetherness(), 1e-9);
+        }
+        assertEquals("Wrong number of pairs with big limit.", all.size(),
+                coupler.getTopPairs(0.05, 3, all.size() + 10).size());
+    }
+
+    /**
+     * Test the report writers.
+     *
+     * @throws IOException
+     */
+    public void testReport() throws IOException {
+        File textFile = new File("src/test", "report.tsv.tmp");
+        File gzFile = new File("src/test", "report.gz.tmp");
+        File binFile = new File("src/test", "report.bin.tmp");
+        File copyFile = new File("src/test", "report.copy.tmp");
+        try {
+            assertEquals("Wrong default format.", CouplingReport.Format.TSV_GZ,
+                    CouplingReport.Format.forFile(new File("report.tsv.gz")));
+            assertEquals("Wrong named format.", CouplingReport.Format.BIN, CouplingReport.Format.fromName("bin"));
+            for (int refs : new int[] { 0, 1, 3 }) {
+                CouplingReport[] reports = new CouplingReport[] {
+                        CouplingReport.create(CouplingReport.Format.TSV, textFile, refs),
+                        CouplingReport.create(CouplingReport.Format.TSV_GZ, gzFile, refs),
+                        CouplingReport.create(CouplingReport.Format.BIN, binFile, refs) };
+                CouplingReport.Comparison[] others = new CouplingReport.Comparison[refs];
+                for (int r = 0; r < refs; r++)
+                    others[r] = new CouplingReport.Comparison();
+                // Write enough rows to span several binary row groups.
+                int rows = BinaryCouplingReport.GROUP_ROWS * 2 + 17;
+                for (CouplingReport report : reports) {
+                    for (int i = 0; i < rows; i++) {
+                        String role1 = "Role" + (i % 100);
+                        String role2 = "Role" + (i % 37);
+                        if (refs > 0 && i % 3 == 0) {
+                            for (int r = 0; r < refs; r++) {
+                                if ((i + r) % 4 == 0) {
+                                    others[r].clear();
+                                } else {
+                                    others[r].set((i % 7) / 7.0, i % 5 + r, i % 11, i % 2 == 0);
+                                }
+                            }
+                            report.write(role1, role2, (i % 10) / 10.0, i, others);
+                        } else {
+                            report.write(role1, role2, (i % 10) / 10.0, i);
+                        }
+                    }
+                    assertEquals("Wrong row count.", rows, report.getRows());
+                    report.close();
+                }
+                try (CouplingReport copy = CouplingReport.create(CouplingReport.Format.TSV, copyFile, refs)) {
+                    BinaryCouplingReport.copy(binFile, copy);
+                }
+                List<String> expected = Files.readAllLines(textFile.toPath());
+                assertEquals("Wrong number of text lines.", rows + 1, expected.size());
+                if (refs == 1) {
+                    assertThat("Wrong comparison header.", expected.get(0), endsWith("failure"));
+                    assertThat("Wrong empty comparison line.", expected.get(1), equalTo("Role0\tRole0\t 0.0\t0"));
+                    assertThat("Wrong comparison line.", expected.get(4), equalTo("Role3\tRole3\t0.30\t3\t0.43\t3\t3\t"));
+                } else if (refs == 3) {
+                    assertThat("Wrong multi-comparison header.", expected.get(0), endsWith("failure3"));
+                    assertThat("Wrong partial comparison line.", expected.get(1),
+                            equalTo("Role0\tRole0\t 0.0\t0\t\t\t\t\t 0.0\t1\t0\tY\t 0.0\t2\t0\tY"));
+                }
+                assertEquals("Binary report copy mismatch.", expected, Files.readAllLines(copyFile.toPath()));
+                List<String> unzipped;
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(new FileInputStream(gzFile))))) {
+                    unzipped = reader.lines().collect(Collectors.toList());
+                }
+                assertEquals("Compressed report mismatch.", expected, unzipped);
+            }
+        } finally {
+            for (File file : new File[] { textFile, gzFile, binFile, copyFile })
+                file.delete();
+        }
+    }
+
+    /**
+     * Test the merge-join comparison against multiple reference couplers.
+     *
+     * @throws IOException
+     */
+    public void testComparison() throws IOException {
+        Random rand = new Random(2468);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 40; i++)
+            roles.register("Random role " + i);
+        RoleCoupleCounter ours = new RoleCoupleCounter(roles, 800);
+        for (int i = 0; i < 4; i++)
+            ours.countCouplings(randomGenome(rand, roles, 3, 150));
+        // The second reference uses only some of the roles, so some comparisons will be empty.
+        RoleMap fewRoles = new RoleMap();
+        for (int i = 1; i <= 20; i++)
+            fewRoles.register("Random role " + i);
+        RoleCoupleCounter ref1 = new RoleCoupleCounter(roles, 800);
+        RoleCoupleCounter ref2 = new RoleCoupleCounter(fewRoles, 800);
+        for (int i = 0; i < 3; i++) {
+            Genome genome = randomGenome(rand, roles, 2, 150);
+            ref1.countCouplings(genome);
+            ref2.countCouplings(genome);
+        }
+        File binFile = new File("src/test", "compare1.rcb");
+        File textFile = new File("src/test", "compare2.ser");
+        ref1.save(binFile);
+        ref2.save(textFile);
+        List<ICouplingQuery> queries = Arrays.asList(ref1, ref2);
+        CouplingReport.Comparison[] results = new CouplingReport.Comparison[] { new CouplingReport.Comparison(),
+                new CouplingReport.Comparison() };
+        int pairCount = 0;
+        int[] failures = new int[2];
+        String prev = "";
+        try (CouplingComparison comparison = new CouplingComparison(Arrays.asList(binFile, textFile), 0.3, 5, false);
+                CounterPairStream pairs = new CounterPairStream(ours, 0.0, 2, 0)) {
+            assertEquals("Wrong number of references.", 2, comparison.size());
+            assertEquals("Wrong reference gap.", 800, comparison.getGap(0));
+            while (pairs.next()) {
+                pairCount++;
+                String role1 = pairs.getRole1();
+                String role2 = pairs.getRole2();
+                assertThat("Roles out of order.", role1, lessThanOrEqualTo(role2));
+                String current = role1 + "\t" + role2;
+                assertThat("Pairs out of order.", current, greaterThan(prev));
+                prev = current;
+                Role r1 = ours.getRole(role1);
+                Role r2 = ours.getRole(role2);
+                assertEquals("Wrong pair count.", ours.getCount(r1, r2), pairs.getCount());
+                assertEquals("Wrong togetherness.", ours.getTogetherness(r1, r2), pairs.getTogetherness(), 1e-9);
+                comparison.compare(role1, role2, results);
+                for (int i = 0; i < 2; i++) {
+                    ICouplingQuery query = queries.get(i);
+                    int appearances = query.getCount(r1) + query.getCount(r2);
+                    assertEquals("Wrong found flag for " + current + " in " + i + ".", appearances > 0,
+                            results[i].isFound());
+                    if (appearances > 0) {
+                        int other = query.getCount(r1, r2);
+                        assertEquals("Wrong other count for " + current + " in " + i + ".", other,
+                                results[i].getCount());
+                        assertEquals("Wrong other found for " + current + " in " + i + ".", appearances - other,
+                                results[i].getOther());
+                        double frac = query.getTogetherness(r1, r2);
+                        assertEquals("Wrong other frac for " + current + " in " + i + ".", frac,
+                                results[i].getFrac(), 1e-9);
+                        boolean failure = (frac < 0.3 && appearances >= 5);
+                        assertEquals("Wrong failure flag.", failure, results[i].isFailure());
+                        if (failure)
+                            failures[i]++;
+                    }
+                }
+            }
+            assertEquals("Wrong number of pairs.", ours.getPairCounts(0.0, 2).size(), pairCount);
+            assertEquals("Wrong failures for binary.", failures[0], comparison.getFailures(0));
+            assertEquals("Wrong failures for text.", failures[1], comparison.getFailures(1));
+            assertThat("No failures found.", failures[0], greaterThan(0));
+        }
+        // Verify a top-K stream has the right size.
+        try (CounterPairStream pairs = new CounterPairStream(ours, 0.0, 2, 7)) {
+            assertEquals("Wrong top-K stream size.", 7, pairs.size());
+        }
+    }
+
+    /**
+     * Test the k-way merge of partial coupler files.
+     *
+     * @throws IOException
+     */
+    public void testMergeFiles() throws IOException {
+        Random rand = new Random(1357);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 30; i++)
+            roles.register("Random role " + i);
+        RoleCoupleCounter full = new RoleCoupleCounter(roles, 600);
+        List<RoleCoupleCounter> parts = new ArrayList<RoleCoupleCounter>();
+        for (int i = 0; i < 3; i++)
+            parts.add(new RoleCoupleCounter(roles, 600));
+        for (int i = 0; i < 7; i++) {
+            Genome genome = randomGenome(rand, roles, 2, 120);
+            String genomeId = "83333." + i;
+            full.countCouplings(genome);
+            full.recordGenome(genomeId, "");
+            RoleCoupleCounter part = parts.get(i % 3);
+            part.countCouplings(genome);
+            part.recordGenome(genomeId, "");
+        }
+        File[] partFiles = new File[] { new File("src/test", "part1.rcb"), new File("src/test", "part2.ser"),
+                new File("src/test", "part3.rcb") };
+        for (int i = 0; i < 3; i++)
+            parts.get(i).save(partFiles[i]);
+        File binFile = new File("src/test", "merged.rcb");
+        File textFile = new File("src/test", "merged.ser");
+        try (CouplerMerger merger = new CouplerMerger(Arrays.asList(partFiles), false)) {
+            assertEquals("Wrong genome total.", 7, merger.getGenomeTotal());
+            assertEquals("Wrong pair total.", full.getPairTotal(), merger.write(binFile, true));
+        }
+        File tempDir = new File("src/test", "merge.tmp");
+        Files.createDirectories(tempDir.toPath());
+        try {
+            try (CouplerMerger merger = new CouplerMerger(Arrays.asList(partFiles), tempDir, false)) {
+                assertThat("Text input not converted.", tempDir.list().length, equalTo(1));
+                merger.write(textFile, false);
+            }
+            assertThat("Converted input not deleted.", tempDir.list().length, equalTo(0));
+        } finally {
+            for (File file : tempDir.listFiles())
+                file.delete();
+            tempDir.delete();
+        }
+        for (File merged : new File[] { binFile, textFile }) {
+            RoleCoupleCounter loaded = RoleCoupleCounter.load(merged);
+            assertSameCounts("Merge to " + merged.getName(), full, loaded);
+            assertEquals("Wrong merged ledger size.", 7, loaded.getLedger().size());
+            assertTrue("Genome missing from merged ledger.", loaded.isCounted("83333.5"));
+        }
+        // Verify that incompatible inputs are rejected.
+        File badFile = new File("src/test", "part4.rcb");
+        new RoleCoupleCounter(roles, 500).save(badFile);
+        try (CouplerMerger merger = new CouplerMerger(Arrays.asList(partFiles[0], badFile), false)) {
+            fail("Gap mismatch not detected.");
+        } catch (IOException e) {
+            assertThat("Wrong gap error.", e.getMessage(), containsString("gap"));
+        }
+        try (CouplerMerger merger = new CouplerMerger(Arrays.asList(partFiles[0], partFiles[0]), false)) {
+            fail("Duplicate genome not detected.");
+        } catch (IOException e) {
+            assertThat("Wrong duplicate error.", e.getMessage(), containsString("counted in both"));
+        }
+        RoleMap fewRoles = new RoleMap();
+        fewRoles.register("Random role 1", "Random role 2");
+        new RoleCoupleCounter(fewRoles, 600).save(badFile);
+        try (CouplerMerger merger = new CouplerMerger(Arrays.asList(partFiles[0], badFile), false)) {
+            fail("Role set mismatch not detected.");
+        } catch (IOException e) {
+            assertThat("Wrong role error.", e.getMessage(), containsString("roles"));
+        }
+    }
+
+    /**
+     * Test the progress metrics.
+     *
+     * @throws IOException
+     */
+    public void testMetrics() throws IOException {
+        Random rand = new Random(4321);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 20; i++)
+            roles.register("Random role " + i);
+        RoleCoupleCounter main = new RoleCoupleCounter(roles, 500);
+        CouplingMetrics metrics = main.getMetrics();
+        main.countCouplings(randomGenome(rand, roles, 2, 100));
+        RoleCoupleCounter shard = main.createShard();
+        assertSame("Shard does not share metrics.", metrics, shard.getMetrics());
+        shard.countCouplings(randomGenome(rand, roles, 3, 50));
+        main.merge(shard);
+        assertEquals("Wrong genome count.", 2L, metrics.getGenomes());
+        assertEquals("Wrong feature count.", 350L, metrics.getFeatures());
+        assertThat("No counting time.", metrics.getSeconds(CouplingMetrics.Phase.COUNT), greaterThan(0.0));
+        metrics.setPairSource(() -> main.getPairTotal());
+        String snapshot = metrics.snapshot();
+        assertThat("Bad snapshot start.", snapshot, startsWith("{\"elapsed\":"));
+        assertThat("Genome count missing.", snapshot, containsString("\"genomes\":2,"));
+        assertThat("Pair count missing.", snapshot, containsString("\"pairs\":" + main.getPairTotal() + ","));
+        assertThat("Bad snapshot end.", snapshot, endsWith("}}"));
+        // Verify the final snapshot goes to the file.
+        File snapFile = new File("src/test", "metrics.tmp");
+        try {
+            metrics.startSnapshots(snapFile, 3600);
+            metrics.close();
+            List<String> lines = Files.readAllLines(snapFile.toPath());
+            assertEquals("Wrong number of snapshots.", 1, lines.size());
+            assertThat("Bad final snapshot.", lines.get(0), containsString("\"save\":"));
+        } finally {
+            snapFile.delete();
+        }
+    }
+
+    /**
+     * Test spilling the pair table to disk.
+     *
+     * @throws IOException
+     */
+    public void testSpill() throws IOException {
+        Random rand = new Random(2468);
+        RoleMap roles = new RoleMap();
+        // We need enough roles to get a hash-based pair table.
+        for (int i = 1; i <= PairCountTable.TRIANGLE_LIMIT + 100; i++)
+            roles.register("Random role " + i);
+        RoleCoupleCounter expected = new RoleCoupleCounter(roles, 1000);
+        RoleCoupleCounter spilled = new RoleCoupleCounter(roles, 1000);
+        spilled.setMemoryLimit(4096, new File("src/test"));
+        RoleCoupleCounter[] shards = new RoleCoupleCounter[] { spilled.createShard(2), spilled.createShard(2) };
+        for (RoleCoupleCounter shard : shards)
+            assertNotNull("Shard has no run files.", shard.getRuns());
+        for (int i = 0; i < 8; i++) {
+            Genome genome = randomGenome(rand, roles, 2, 200);
+            expected.countCouplings(genome);
+            if (i >= 5)
+                shards[i % 2].countCouplings(genome);
+            else
+                spilled.countCouplings(genome);
+        }
+        assertTrue("Shard not spilled.", shards[1].isSpilled());
+        for (RoleCoupleCounter shard : shards) {
+            spilled.merge(shard);
+            shard.deleteRuns();
+        }
+        assertTrue("Counter not spilled.", spilled.isSpilled());
+        assertThat("Too few runs.", spilled.getRuns().size(), greaterThan(1));
+        try {
+            Role role = roles.objectValues().iterator().next();
+            spilled.getCount(role, role);
+            fail("Pair query allowed after spill.");
+        } catch (IllegalStateException e) { }
+        // The binary files should be identical.
+        File expectedFile = new File("src/test", "expected.rcb");
+        File spilledFile = new File("src/test", "spilled.rcb");
+        expected.save(expectedFile);
+        spilled.save(spilledFile);
+        assertTrue("Binary files differ.", Arrays.equals(Files.readAllBytes(expectedFile.toPath()),
+                Files.readAllBytes(spilledFile.toPath())));
+        // The text file should load to the same counts.
+        File textFile = new File("src/test", "spilled.tmp");
+        try {
+            spilled.save(textFile, false);
+            assertSameCounts("Spilled text", expected, RoleCoupleCounter.load(textFile));
+        } finally {
+            textFile.delete();
+        }
+        // The reports should be the same.
+        List<PairCounter<Role>.Count> oldPairs = expected.getPairCounts(0.1, 2);
+        List<PairCounter<Role>.Count> newPairs = spilled.getPairCounts(0.1, 2);
+        assertEquals("Wrong report size.", oldPairs.size(), newPairs.size());
+        assertThat("No pairs to report.", oldPairs.size(), greaterThan(0));
+        for (int i = 0; i < oldPairs.size(); i++)
+            assertEquals("Wrong report count at " + i, oldPairs.get(i).getCount(), newPairs.get(i).getCount());
+        try (CounterPairStream oldStream = new CounterPairStream(expected, 0.1, 2, 20);
+                CounterPairStream newStream = new CounterPairStream(spilled, 0.1, 2, 20)) {
+            while (oldStream.next()) {
+                assertTrue("Spilled stream too short.", newStream.next());
+                assertEquals("Wrong stream role.", oldStream.getRole1(), newStream.getRole1());
+                assertEquals("Wrong stream role.", oldStream.getRole2(), newStream.getRole2());
+                assertEquals("Wrong stream count.", oldStream.getCount(), newStream.getCount());
+                assertEquals("Wrong stream togetherness.", oldStream.getTogetherness(), newStream.getTogetherness(), 1e-9);
+            }
+            assertFalse("Spilled stream too long.", newStream.next());
+        }
+        spilled.deleteRuns();
+        File[] leftover = new File("src/test").listFiles((dir, name) -> name.endsWith(".run"));
+        assertEquals("Run files not deleted.", 0, leftover.length);
+    }
+
+    /**
+     * Test approximate counting with a sketch.
+     */
+    public void testSketch() {
+        // Test the error bounds on a skewed stream of pairs.
+        Random rand = new Random(1357);
+        SketchPairTable sketch = new SketchPairTable(40000, 4);
+        HashPairTable truth = new HashPairTable(1000);
+        for (int i = 0; i < 200000; i++) {
+            int r1 = (int) Math.floor(Math.pow(rand.nextDouble(), 3) * 3000);
+            int r2 = (int) Math.floor(Math.pow(rand.nextDouble(), 3) * 3000);
+            sketch.add(r1, r2, 1);
+            truth.add(r1, r2, 1);
+        }
+        assertEquals("Wrong sketch total.", 200000L, sketch.getTotal());
+        final double candidateError = sketch.getCandidateError();
+        truth.forEach((r1, r2, count) -> {
+            int estimate = sketch.get(r1, r2);
+            assertThat("Estimate too low.", estimate, greaterThanOrEqualTo(count));
+            if (count > candidateError)
+                assertThat("Heavy pair not a candidate.", sketch.getError(r1, r2), greaterThanOrEqualTo(0));
+        });
+        sketch.forEach((r1, r2, count) -> {
+            assertThat("Candidate count too high.", (double) count, lessThanOrEqualTo(truth.get(r1, r2) + candidateError));
+        });
+        try {
+            sketch.add(1, 2, -1);
+            fail("Sketch allowed subtraction.");
+        } catch (UnsupportedOperationException e) { }
+        // Count all roles with a sketch big enough to hold every pair, and verify the exact pass.
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 30; i++)
+            roles.register("Random role " + i);
+        RoleCoupleCounter exact = new RoleCoupleCounter(roles, 800);
+        RoleCoupleCounter approx = new RoleCoupleCounter(new RoleMap(), 800);
+        approx.setSketch(1 << 20);
+        approx.setAllRoles(true);
+        List<Genome> genomes = new ArrayList<Genome>();
+        for (int i = 0; i < 5; i++)
+            genomes.add(randomGenome(rand, roles, 2, 150));
+        for (Genome genome : genomes) {
+            exact.countCouplings(genome);
+            approx.countCouplings(genome);
+        }
+        assertNotNull("Sketch not found.", approx.getSketch());
+        assertEquals("Wrong number of roles found.", exact.getRoleCounts().size(), approx.getRoleCounts().size());
+        for (CountMap<Role>.Count count : exact.getRoleCounts())
+            assertEquals("Wrong role count.", count.getCount(), approx.getCount(approx.getRole(count.getKey().getId())));
+        RoleCoupleCounter second = approx.createCandidateCounter(0.2, 5);
+        for (Genome genome : genomes)
+            second.countCouplings(genome);
+        List<PairCounter<Role>.Count> expected = exact.getPairCounts(0.2, 5);
+        List<PairCounter<Role>.Count> actual = second.getPairCounts(0.2, 5);
+        assertThat("No pairs to check.", expected.size(), greaterThan(0));
+        assertEquals("Wrong number of exact pairs.", expected.size(), actual.size());
+        for (PairCounter<Role>.Count count : expected) {
+            Role role1 = second.getRole(count.getKey1().getId());
+            Role role2 = second.getRole(count.getKey2().getId());
+            assertEquals("Wrong exact count.", count.getCount(), second.getCount(role1, role2));
+        }
+    }
+
+    /**
+     * Test multi-gap counting.
+     *
+     * @throws IOException
+     */
+    public void testMultiGap() throws IOException {
+        Random rand = new Random(8642);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 25; i++)
+            roles.register("Random role " + i);
+        int[] gaps = MultiGapCoupleCounter.parseGaps("800, 0,200");
+        assertThat("Gaps not sorted.", gaps[0], equalTo(0));
+        assertThat("Gaps not sorted.", gaps[2], equalTo(800));
+        MultiGapCoupleCounter multi = new MultiGapCoupleCounter(roles, gaps);
+        RoleCoupleCounter[] singles = new RoleCoupleCounter[gaps.length];
+        for (int k = 0; k < gaps.length; k++)
+            singles[k] = new RoleCoupleCounter(roles, gaps[k]);
+        RoleCoupleCounter shard = multi.createShard();
+        for (int i = 0; i < 4; i++) {
+            Genome genome = randomGenome(rand, roles, 2, 150);
+            if (i % 2 == 0)
+                multi.countCouplings(genome);
+            else
+                shard.countCouplings(genome);
+            for (RoleCoupleCounter single : singles)
+                single.countCouplings(genome);
+        }
+        multi.merge(shard);
+        for (int k = 0; k < gaps.length; k++) {
+            assertSameCounts("Gap " + gaps[k], singles[k], multi.forGap(gaps[k]));
+            Role role1 = roles.getByName("Random role 1");
+            Role role2 = roles.getByName("Random role 2");
+            assertEquals("Wrong direct count for gap " + gaps[k], singles[k].getCount(role1, role2),
+                    multi.getCount(role1, role2, gaps[k]));
+        }
+        try {
+            multi.forGap(500);
+            fail("Uncounted gap accepted.");
+        } catch (IllegalArgumentException e) { }
+        // Verify the file format.
+        File gapFile = new File("src/test", "multi.tmp");
+        try {
+            multi.save(gapFile);
+            assertTrue("Multi-gap file not recognized.", MultiGapCoupleCounter.isMultiGap(gapFile));
+            RoleCoupleCounter loaded = RoleCoupleCounter.load(gapFile);
+            assertThat("Wrong counter type loaded.", loaded, instanceOf(MultiGapCoupleCounter.class));
+            for (int k = 0; k < gaps.length; k++)
+                assertSameCounts("Loaded gap " + gaps[k], singles[k], ((MultiGapCoupleCounter) loaded).forGap(gaps[k]));
+            assertEquals("Ledger not loaded.", multi.getLedger(), loaded.getLedger());
+            assertSameCounts("Plain load", singles[2], CouplerTextLoader.load(gapFile, false));
+            try {
+                multi.save(new File("src/test", "multi.rcb"));
+                fail("Binary multi-gap save allowed.");
+            } catch (IOException e) { }
+        } finally {
+            gapFile.delete();
+        }
+    }
+
+    /**
+     * Test removing and replacing genomes.
+     */
+    public void testRemoval() throws IOException {
+        Random rand = new Random(2468);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 20; i++)
+            roles.register("Random role " + i);
+        Genome gA = randomGenome(rand, roles, 2, 120);
+        Genome gB = randomGenome(rand, roles, 3, 100);
+        Genome gC = randomGenome(rand, roles, 1, 150);
+        RoleCoupleCounter full = new RoleCoupleCounter(roles, 300);
+        GenomeProjection pA = full.project(gA);
+        full.countCouplings(pA);
+        full.countCouplings(full.project(gB));
+        full.countCouplings(gC);
+        RoleCoupleCounter direct = new RoleCoupleCounter(roles, 300);
+        direct.countCouplings(gA);
+        direct.countCouplings(gB);
+        direct.countCouplings(gC);
+        assertSameCounts("Projection counts", direct, full);
+        RoleCoupleCounter expected = new RoleCoupleCounter(roles, 300);
+        expected.countCouplings(gB);
+        expected.countCouplings(gC);
+        // Save and reload the projection, then use it to remove the genome.
+        File projFile = new File("src/test", "proj.tmp");
+        GenomeProjection loaded;
+        try {
+            pA.save(projFile);
+            loaded = GenomeProjection.load(projFile);
+        } finally {
+            projFile.delete();
+        }
+        assertThat("Wrong genome ID loaded.", loaded.getGenomeId(), equalTo(pA.getGenomeId()));
+        assertThat("Wrong feature total loaded.", loaded.getFeatureTotal(), equalTo(pA.getFeatureTotal()));
+        assertThat("Wrong contig count loaded.", loaded.getContigTotal(), equalTo(2));
+        full.uncountCouplings(loaded);
+        assertSameCounts("Projection removal", expected, full);
+        direct.uncountCouplings(gA);
+        assertSameCounts("Genome removal", expected, direct);
+        // Replace a genome with a new version in a multi-gap counter.
+        int[] gaps = new int[] { 100, 300 };
+        MultiGapCoupleCounter multi = new MultiGapCoupleCounter(roles, gaps);
+        multi.countCouplings(multi.project(gA));
+        multi.countCouplings(gB);
+        multi.uncountCouplings(multi.project(gB));
+        multi.countCouplings(gC);
+        RoleCoupleCounter small = new RoleCoupleCounter(roles, 100);
+        small.countCouplings(gA);
+        small.countCouplings(gC);
+        assertSameCounts("Multi-gap removal", small, multi.forGap(100));
+        // Verify the contribution log.
+        File logDir = new File("src/test", "contrib.tmp");
+        ContributionLog log = new ContributionLog(logDir);
+        try {
+            log.write(pA);
+            assertNull("Missing genome found in log.", log.read("missing"));
+            GenomeProjection logged = log.read(pA.getGenomeId());
+            assertNotNull("Logged projection not found.", logged);
+            assertThat("Wrong role total in log.", logged.getRoleTotal(), equalTo(pA.getRoleTotal()));
+            log.delete(pA.getGenomeId());
+            assertNull("Deleted genome found in log.", log.read(pA.getGenomeId()));
+            log.write(pA);
+            assertThat("Wrong staged sequence.", log.getSequence(), equalTo(1L));
+            log.commit();
+            assertNotNull("Committed projection not found.", log.read(pA.getGenomeId()));
+            assertThat("Wrong committed sequence.", log.getSequence(), equalTo(1L));
+            // An interrupted run with no coupler save must be rolled back.
+            log.delete(pA.getGenomeId());
+            assertNull("Staged deletion not visible.", log.read(pA.getGenomeId()));
+            assertThat("Wrong second staged sequence.", log.getSequence(), equalTo(2L));
+            assertTrue("Staged changes not found.", new ContributionLog(logDir).recover(1));
+            assertNotNull("Uncommitted deletion survived.", log.read(pA.getGenomeId()));
+            assertFalse("Changes found after recovery.", new ContributionLog(logDir).recover(1));
+            // An interrupted run that saved the coupler must be committed.  The sequence number must
+            // survive saving and loading the coupler in each format.
+            log = new ContributionLog(logDir);
+            log.recover(1);
+            log.delete(pA.getGenomeId());
+            expected.setLogSequence(log.getSequence());
+            File couplerFile = new File(logDir, "coupler.tmp");
+            expected.save(couplerFile, false);
+            long textSequence = RoleCoupleCounter.load(couplerFile).getLogSequence();
+            assertThat("Wrong text sequence.", textSequence, equalTo(2L));
+            expected.save(couplerFile, true);
+            assertThat("Wrong binary sequence.", RoleCoupleCounter.load(couplerFile).getLogSequence(), equalTo(2L));
+            multi.setLogSequence(2);
+            multi.save(couplerFile, false);
+            assertThat("Wrong multi-gap sequence.", RoleCoupleCounter.load(couplerFile).getLogSequence(), equalTo(2L));
+            assertThat("Wrong extracted sequence.", multi.forGap(100).getLogSequence(), equalTo(2L));
+            assertTrue("Staged changes not found for commit.", new ContributionLog(logDir).recover(textSequence));
+            assertNull("Saved deletion not committed.", new ContributionLog(logDir).read(pA.getGenomeId()));
+            String[] leftovers = logDir.list((dir, name) -> ! name.equals("coupler.tmp"));
+            assertThat("Staged files left after commit.", leftovers.length, equalTo(0));
+        } finally {
+            for (File file : logDir.listFiles())
+                file.delete();
+            logDir.delete();
+        }
+        assertFalse("Missing genome removed from ledger.", full.removeGenome("missing"));
+    }
+
+    /**
+     * Test genome sources.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void testGenomeSource() throws IOException, InterruptedException {
+        File dirFile = new File("src/test", "source.tmp");
+        File tarFile = new File("src/test", "source.tmp.tar.gz");
+        Files.createDirectories(dirFile.toPath());
+        try {
+            writeText(new File(dirFile, "100.1.gto"), "genome 100.1");
+            writeText(new File(dirFile, "notes.txt"), "not a genome");
+            try (OutputStream out = new GZIPOutputStream(new FileOutputStream(new File(dirFile, "100.2.gto.gz")))) {
+                out.write("genome 100.2".getBytes(StandardCharsets.UTF_8));
+            }
+            try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(
+                    new FileOutputStream(tarFile)))) {
+                writeTarEntry(tar, "gtos/200.1.gto", "genome 200.1".getBytes(StandardCharsets.UTF_8));
+                writeTarEntry(tar, "gtos/README", "not a genome".getBytes(StandardCharsets.UTF_8));
+                writeTarEntry(tar, "gtos/100.1.gto", "duplicate".getBytes(StandardCharsets.UTF_8));
+                ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+                try (OutputStream out = new GZIPOutputStream(zipped)) {
+                    out.write("genome 200.2".getBytes(StandardCharsets.UTF_8));
+                }
+                writeTarEntry(tar, "gtos/200.2.gto.gz", zipped.toByteArray());
+            }
+            assertTrue("Directory not valid.", GenomeSource.isValid(dirFile));
+            assertFalse("Text file valid.", GenomeSource.isValid(new File(dirFile, "notes.txt")));
+            assertThat("Wrong ID for compressed GTO.", GenomeSource.genomeIdOf("x/83333.1.gto.gz"), equalTo("83333.1"));
+            // Read everything through a chain, in two batches.
+            List<String> ids = new ArrayList<String>();
+            List<GenomeSource> sources = Arrays.asList(GenomeSource.open(dirFile), new GenomeSource.ArchiveSource(tarFile));
+            try (GenomeSource chain = new GenomeSource.ChainSource(sources)) {
+                GenomeSource batch = new GenomeSource.BatchSource(chain, 3);
+                for (GenomeSource.Entry entry = batch.next(); entry != null; entry = batch.next()) {
+                    ids.add(entry.getGenomeId());
+                    String text = readEntry(entry);
+                    assertThat("Wrong content for " + entry, text, equalTo("genome " + entry.getGenomeId()));
+                }
+                assertEquals("Wrong batch size.", 3, ids.size());
+                assertTrue("Chain ended early.", chain.hasNext());
+                for (GenomeSource.Entry entry = chain.next(); entry != null; entry = chain.next()) {
+                    ids.add(entry.getGenomeId());
+                    assertThat("Wrong content for " + entry, readEntry(entry), equalTo("genome " + entry.getGenomeId()));
+                }
+            }
+            assertThat("Wrong genomes delivered.", ids, contains("100.1", "100.2", "200.1", "200.2"));
+            // Run an archive through the pipeline.
+            Random rand = new Random(1357);
+            RoleMap roles = new RoleMap();
+            roles.register("Random role 1");
+            Genome genome = randomGenome(rand, roles, 1, 20);
+            int found = 0;
+            try (GenomeSource archive = GenomeSource.open(tarFile);
+                    GenomePipeline pipeline = new GenomePipeline(archive, (item) -> item.setGenome(genome), 2, 1, 100)) {
+                for (GenomePipeline.Item item = pipeline.take(); item != null; item = pipeline.take()) {
+                    found++;
+                    pipeline.release(item);
+                }
+            }
+            assertEquals("Wrong number of archive entries.", 3, found);
+        } finally {
+            for (File file : dirFile.listFiles())
+                file.delete();
+            dirFile.delete();
+            tarFile.delete();
+        }
+    }
+
+    /**
+     * Test that GTOs in archives and compressed files are parsed the same way as GTO files in a directory.
+     *
+     * @throws IOException
+     */
+    public void testGtoParsing() throws IOException {
+        String gto = "{\n  \"id\": \"12345.6\",\n  \"scientific_name\": \"Bacillus \\\"praestrigiae\\\" \\u004earnia\",\n" +
+                "  \"domain\": \"Bacteria\", \"genetic_code\": 4,\n" +
+                "  \"features\": [\n" +
+                "    { \"id\": \"fig|12345.6.peg.1\", \"type\": \"CDS\", \"function\": \"Role 1\",\n" +
+                "      \"location\": [[\"con1\", 100, \"+\", 201]], \"protein_translation\": \"MKVLL\" },\n" +
+                "    { \"id\": \"fig|12345.6.peg.2\", \"type\": \"CDS\", \"function\": \"Role 2\",\n" +
+                "      \"location\": [[\"con1\", 400, \"-\", 301]] },\n" +
+                "    { \"id\": \"fig|12345.6.peg.3\", \"type\": \"CDS\", \"function\": \"Role 3\",\n" +
+                "      \"location\": [[\"con1\", 200, \"+\", 101], [\"con1\", 400, \"+\", 101]] },\n" +
+                "    { \"id\": \"fig|12345.6.peg.4\", \"type\": \"CDS\", \"function\": \"Role 1 / Role 2\",\n" +
+                "      \"location\": [[\"con2\", 500, \"-\", 200]] } ],\n" +
+                "  \"contigs\": [ { \"id\": \"con1\", \"dna\": \"acgtacgtacgt\" }, { \"id\": \"con2\", \"dna\": \"ttgg\" } ]\n}\n";
+        byte[] gtoBytes = gto.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(zipped)) {
+            out.write(gtoBytes);
+        }
+        RoleMap roles = new RoleMap();
+        roles.register("Role 1", "Role 2", "Role 3");
+        // Store the GTO in a directory and a tar archive, plain and compressed.
+        File dirFile = new File("src/test", "gto.tmp");
+        File tarFile = new File("src/test", "gto.tmp.tar.gz");
+        Files.createDirectories(dirFile.toPath());
+        try {
+            Files.write(new File(dirFile, "12345.6.gto").toPath(), gtoBytes);
+            Files.write(new File(dirFile, "12345.7.gto.gz").toPath(), zipped.toByteArray());
+            try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(
+                    new FileOutputStream(tarFile)))) {
+                writeTarEntry(tar, "gtos/12345.8.gto", gtoBytes);
+                writeTarEntry(tar, "gtos/12345.9.gto.gz", zipped.toByteArray());
+            }
+            // The plain file in the directory is loaded directly by the genome library.
+            Genome expected = new Genome(new File(dirFile, "12345.6.gto"));
+            RoleCoupleCounter expectedCounts = new RoleCoupleCounter(roles, 200);
+            expectedCounts.countCouplings(expected);
+            int found = 0;
+            for (File inFile : new File[] { dirFile, tarFile }) {
+                try (GenomeSource source = GenomeSource.open(inFile)) {
+                    for (GenomeSource.Entry entry = source.next(); entry != null; entry = source.next()) {
+                        found++;
+                        Genome genome = entry.read();
+                        assertThat("Wrong genome ID from " + entry, genome.getId(), equalTo(expected.getId()));
+                        assertThat("Wrong genome name from " + entry, genome.getName(), equalTo(expected.getName()));
+                        assertThat("Wrong contig count from " + entry, genome.getContigs().size(),
+                                equalTo(expected.getContigs().size()));
+                        assertThat("Wrong feature count from " + entry, genome.getFeatures().size(),
+                                equalTo(expected.getFeatures().size()));
+                        RoleCoupleCounter counts = new RoleCoupleCounter(roles, 200);
+                        counts.countCouplings(genome);
+                        assertSameCounts("GTO from " + entry, expectedCounts, counts);
+                    }
+                }
+            }
+            assertEquals("Wrong number of GTOs read.", 4, found);
+        } finally {
+            for (File file : dirFile.listFiles())
+                file.delete();
+            dirFile.delete();
+            tarFile.delete();
+        }
+        // Verify that a damaged GTO is reported.
+        try {
+            new GenomeSource.BufferEntry("bad.gto", "{ \"id\": \"1.1\", \"features\": [ {".getBytes(StandardCharsets.UTF_8)).read();
+            fail("Damaged GTO accepted.");
+        } catch (IOException e) {
+            assertThat("Wrong damaged GTO error.", e.getMessage(), containsString("bad.gto"));
+        }
+    }
+
+    /**
+     * Write a string to a file.
+     *
+     * @param outFile	output file
+     * @param text		text to write
+     *
+     * @throws IOException
+     */
+    private static void writeText(File outFile, String text) throws IOException {
+        Files.write(outFile.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write an entry to a tar archive.
+     *
+     * @param tar		output archive
+     * @param name		entry name
+     * @param data		entry data
+     *
+     * @throws IOException
+     */
+    private static void writeTarEntry(TarArchiveOutputStream tar, String name, byte[] data) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(data.length);
+        tar.putArchiveEntry(entry);
+        tar.write(data);
+        tar.closeArchiveEntry();
+    }
+
+    /**
+     * @return the decompressed text of a genome source entry
+     *
+     * @param entry		entry to read
+     *
+     * @throws IOException
+     */
+    private static String readEntry(GenomeSource.Entry entry) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (InputStream in = entry.open()) {
+            InputStream text = (entry.getName().endsWith(GenomeSource.GZ_SUFFIX) ? new GZIPInputStream(in) : in);
+            byte[] chunk = new byte[1024];
+            for (int len = text.read(chunk); len >= 0; len = text.read(chunk))
+                buffer.write(chunk, 0, len);
+        }
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Test the coupling query server.
+     *
+     * @throws IOException
+     */
+    public void testServer() throws IOException {
+        RoleCoupleCounter counter = new RoleCoupleCounter(fakeRoles(), 100);
+        counter.countCouplings(fakeGenome());
+        Role role1 = counter.getRole("Role1n1");
+        List<CouplingPartner> partners = counter.getPartners(role1, 0.0, 1);
+        assertThat("Wrong partners.", partners.stream().map(x -> x.getRole().getId()).collect(Collectors.toList()),
+                contains("Role3n1", "Role2n1"));
+        assertThat("Wrong partner count.", partners.get(0).getCount(), equalTo(2));
+        assertThat("Wrong filtered partners.", counter.getPartners(role1, 0.6, 1).size(), equalTo(1));
+        File couplerFile = new File("src/test", "serve.tmp");
+        File newFile = new File("src/test", "serve.new.tmp");
+        try {
+            // A text coupler is served from memory and a binary one through an index.
+            for (boolean binary : new boolean[] { false, true }) {
+                counter = new RoleCoupleCounter(fakeRoles(), 100);
+                counter.countCouplings(fakeGenome());
+                counter.save(couplerFile, binary);
+                try (CouplingServer server = new CouplingServer(couplerFile, false)) {
+                    server.start(new InetSocketAddress("localhost", 0), 2, 0);
+                    String base = "http://localhost:" + server.getPort();
+                    assertThat("Wrong role count.", httpText(base + "/count?role=Role1n1", null),
+                            equalTo("Role1n1\t3\n"));
+                    assertThat("Wrong pair count.", httpText(base + "/pair?role1=Role1n1&role2=Role3n1", null),
+                            startsWith("Role1n1\tRole3n1\t2\t0.66"));
+                    assertThat("Wrong partner list.", httpText(base + "/partners?role=Role1n1&top=1", null),
+                            startsWith("Role1n1\tRole3n1\t2\t"));
+                    String batch = httpText(base + "/batch", "Role4n1\tRole5n1\ninvalid\nRole2n1\tRole3n1\n");
+                    String[] lines = batch.split("\n");
+                    assertThat("Wrong batch size.", lines.length, equalTo(3));
+                    assertThat("Wrong batch pair.", lines[0], equalTo("Role4n1\tRole5n1\t1\t1.0"));
+                    assertThat("Wrong batch role.", lines[1], equalTo("invalid\t0"));
+                    assertThat("Wrong second batch pair.", lines[2], startsWith("Role2n1\tRole3n1\t2\t"));
+                    try {
+                        httpText(base + "/pair?role1=Role1n1", null);
+                        fail("Missing parameter accepted.");
+                    } catch (IOException e) { }
+                    // Updating requests must be posted.
+                    for (String path : new String[] { "/reload", "/batch" }) {
+                        HttpURLConnection conn = (HttpURLConnection) new URL(base + path).openConnection();
+                        assertThat("Wrong status for GET " + path + ".", conn.getResponseCode(), equalTo(405));
+                        assertThat("Wrong allowed method for " + path + ".", conn.getHeaderField("Allow"),
+                                equalTo("POST"));
+                        conn.disconnect();
+                    }
+                    // Replace the coupler file the way the coupling processor does, and reload it.
+                    counter.countCouplings(fakeGenome());
+                    counter.save(newFile, binary);
+                    Files.move(newFile.toPath(), couplerFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    assertTrue("Reload failed.", httpText(base + "/reload", "").startsWith("reloaded"));
+                    assertThat("Reloaded role count wrong.", httpText(base + "/count?role=Role1n1", null),
+                            equalTo("Role1n1\t6\n"));
+                    assertThat("Wrong status.", httpText(base + "/status", null), containsString("gap\t100\n"));
+                }
+            }
+        } finally {
+            couplerFile.delete();
+            newFile.delete();
+        }
+    }
+
+    /**
+     * @return the text of an HTTP response
+     *
+     * @param url		URL to request
+     * @param body		body to post, or NULL for a GET request
+     *
+     * @throws IOException
+     */
+    private static String httpText(String url, String body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        if (body != null) {
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (InputStream in = conn.getInputStream()) {
+            byte[] chunk = new byte[1024];
+            for (int len = in.read(chunk); len >= 0; len = in.read(chunk))
+                buffer.write(chunk, 0, len);
+        }
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Test the partner index.
+     */
+    public void testPartnerIndex() {
+        Random rand = new Random(97531);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 30; i++)
+            roles.register("Random role " + i);
+        RoleCoupleCounter counter = new RoleCoupleCounter(roles, 400);
+        for (int i = 0; i < 5; i++)
+            counter.countCouplings(randomGenome(rand, roles, 2, 200));
+        PartnerIndex index = counter.getPartnerIndex();
+        assertThat("Index not reused.", counter.getPartnerIndex(), sameInstance(index));
+        final double minTogether = 0.05;
+        final int minCount = 3;
+        // Compute the expected partners by brute force.
+        Map<String, Map<String, Integer>> expected = new HashMap<String, Map<String, Integer>>();
+        counter.visitPairs(minTogether, minCount, (role1, role2, count, together) -> {
+            expected.computeIfAbsent(role1.getId(), k -> new HashMap<String, Integer>()).put(role2.getId(), count);
+            expected.computeIfAbsent(role2.getId(), k -> new HashMap<String, Integer>()).put(role1.getId(), count);
+        });
+        for (Role role : roles.objectValues()) {
+            List<CouplingPartner> partners = counter.getPartners(role, minTogether, minCount);
+            Map<String, Integer> expectedPartners = expected.getOrDefault(role.getId(), new HashMap<String, Integer>());
+            assertEquals("Wrong partner count for " + role.getId(), expectedPartners.size(), partners.size());
+            for (int i = 0; i < partners.size(); i++) {
+                CouplingPartner partner = partners.get(i);
+                String partnerId = partner.getRole().getId();
+                assertEquals("Wrong pair count for " + role.getId() + "/" + partnerId,
+                        expectedPartners.get(partnerId).intValue(), partner.getCount());
+                assertEquals("Wrong togetherness for " + role.getId() + "/" + partnerId,
+                        counter.getTogetherness(role, partner.getRole()), partner.getTogetherness(), 1e-12);
+                if (i > 0) {
+                    CouplingPartner prev = partners.get(i - 1);
+                    assertTrue("Partners out of order for " + role.getId(),
+                            prev.getTogetherness() > partner.getTogetherness() ||
+                            prev.getTogetherness() == partner.getTogetherness() && prev.getCount() >= partner.getCount());
+                }
+            }
+            assertEquals("Wrong degree for " + role.getId(), counter.getPartners(role, 0.0, 1).size(),
+                    index.getDegree(counter.findIndex(role)));
+        }
+        assertThat("Unknown role has partners.", counter.getPartners(null, 0.0, 1).size(), equalTo(0));
+        // Counting another genome must discard the index.
+        counter.countCouplings(randomGenome(rand, roles, 1, 100));
+        assertThat("Stale index reused.", counter.getPartnerIndex(), not(sameInstance(index)));
+    }
+
+    /**
+     * Test the projection cache.
+     */
+    public void testProjectionCache() throws IOException {
+        Random rand = new Random(1357);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 20; i++)
+            roles.register("Random role " + i);
+        Genome genome = randomGenome(rand, roles, 3, 150);
+        RoleCoupleCounter counter = new RoleCoupleCounter(roles, 300);
+        GenomeProjection projection = counter.project(genome);
+        GenomeSource.Entry entry = new GenomeSource.BufferEntry("100.1.gto", "original".getBytes(StandardCharsets.UTF_8));
+        GenomeSource.Entry changed = new GenomeSource.BufferEntry("100.1.gto", "modified".getBytes(StandardCharsets.UTF_8));
+        String signature = ProjectionCache.roleSignature(counter);
+        assertThat("Role signature not repeatable.", ProjectionCache.roleSignature(new RoleCoupleCounter(roles, 100)),
+                equalTo(signature));
+        File cacheDir = new File("src/test", "cache.tmp");
+        try {
+            ProjectionCache cache = new ProjectionCache(cacheDir, signature);
+            assertNull("Projection found in empty cache.", cache.read(entry));
+            cache.write(entry, projection);
+            GenomeProjection cached = cache.read(entry);
+            assertNotNull("Cached projection not found.", cached);
+            assertThat("Wrong genome ID cached.", cached.getGenomeId(), equalTo("100.1"));
+            assertThat("Wrong feature total cached.", cached.getFeatureTotal(), equalTo(projection.getFeatureTotal()));
+            assertThat("Wrong contig count cached.", cached.getContigTotal(), equalTo(3));
+            assertNull("Projection found for changed genome.", cache.read(changed));
+            assertThat("Wrong hit count.", cache.getHits(), equalTo(1));
+            assertThat("Wrong miss count.", cache.getMisses(), equalTo(2));
+            // A different role set must invalidate the cache.
+            RoleMap moreRoles = new RoleMap();
+            for (Role role : roles.objectValues())
+                moreRoles.register(role.getName());
+            moreRoles.register("Extra role");
+            String otherSignature = ProjectionCache.roleSignature(new RoleCoupleCounter(moreRoles, 300));
+            assertThat("Role signature did not change.", otherSignature, not(equalTo(signature)));
+            assertNull("Projection found for changed role set.", new ProjectionCache(cacheDir, otherSignature).read(entry));
+            // Counting from the cached projection with a different gap must match counting the genome.
+            RoleCoupleCounter direct = new RoleCoupleCounter(roles, 150);
+            direct.countCouplings(genome);
+            RoleCoupleCounter fromCache = new RoleCoupleCounter(roles, 150);
+            fromCache.countCouplings(cache.read(entry));
+            assertSameCounts("Cached projection counts", direct, fromCache);
+        } finally {
+            if (cacheDir.isDirectory()) {
+                for (File file : cacheDir.listFiles())
+                    file.delete();
+                cacheDir.delete();
+            }
+        }
+    }
+
+    /**
+     * Test parallel counting of the contigs in a genome.
+     */
+    public void testContigParallel() {
+        Random rand = new Random(97531);
+        RoleMap roles = new RoleMap();
+        for (int i = 1; i <= 30; i++)
+            roles.register("Random role " + i);
+        Genome big = randomGenome(rand, roles, 300, 40);
+        Genome small = randomGenome(rand, roles, 2, 100);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            RoleCoupleCounter serial = new RoleCoupleCounter(roles, 400);
+            serial.countCouplings(big);
+            serial.countCouplings(small);
+            RoleCoupleCounter parallel = new RoleCoupleCounter(roles, 400);
+            parallel.setContigPool(pool);
+            parallel.countCouplings(big);
+            parallel.countCouplings(small);
+            assertSameCounts("Parallel genome counts", serial, parallel);
+            assertThat("Pool not passed to shard.", parallel.createShard().getContigPool(), sameInstance(pool));
+            parallel.uncountCouplings(parallel.project(big));
+            RoleCoupleCounter expected = new RoleCoupleCounter(roles, 400);
+            expected.countCouplings(small);
+            assertSameCounts("Parallel projection removal", expected, parallel);
+            // Verify the gap buckets of a multi-gap counter.
+            int[] gaps = new int[] { 100, 250, 400 };
+            MultiGapCoupleCounter multiSerial = new MultiGapCoupleCounter(roles, gaps);
+            multiSerial.countCouplings(big);
+            MultiGapCoupleCounter multiParallel = new MultiGapCoupleCounter(roles, gaps);
+            multiParallel.setContigPool(pool);
+            multiParallel.countCouplings(big);
+            for (int gap : gaps)
+                assertSameCounts("Parallel counts for gap " + gap, multiSerial.forGap(gap), multiParallel.forGap(gap));
+        } finally {
+            pool.shutdown();
+        }
+    }
 
 }